@@ -0,0 +1,204 @@
+package com.turmer.fieldsales;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Adaptive flow control for SPP writes.
+ *
+ * Replaces the fixed 512-byte / 50 ms pacing. Each chunk is timed: RFCOMM
+ * blocks the write when the printer stops granting credits, so a slow write
+ * means the printer buffer is filling up. The pacer backs off
+ * multiplicatively on a stall (or an XOFF from the printer) and probes back
+ * up additively after a run of fast chunks, so it settles at the rate the
+ * printer actually drains paper.
+ *
+ * Plain Java with no Android dependencies, so it can be driven against any
+ * OutputStream, including a simulated slow sink.
+ */
+final class AdaptivePacer {
+
+    static final int MIN_CHUNK = 64;
+    static final int MAX_CHUNK = 4096;
+    static final int MAX_GAP_MS = 200;
+
+    // A chunk that takes longer than this to write+flush counts as a stall
+    static final long STALL_MS = 120;
+    // Fast chunks in a row before we try a bigger chunk / shorter gap
+    private static final int PROBE_AFTER = 8;
+    // How long we honour an XOFF before giving up on the printer, or holding the job
+    static final long XOFF_TIMEOUT_MS = 10000;
+    // ... and while the printer reports paper out / cover open, e.g. during a paper change
+    static final long HELD_TIMEOUT_MS = 10 * 60 * 1000;
+
+    /**
+     * Lets a job wait out a long XOFF (paper run out or cover opened
+     * mid-job) instead of failing, so it carries on from the same byte on
+     * XON rather than being sent again from the start.
+     */
+    interface Hold {
+        /** True once the XOFF has lasted {@link #XOFF_TIMEOUT_MS}; false again when the wait ends. */
+        void held(boolean held);
+
+        /** Called while held; throws to give up the wait (job cancelled, link gone). */
+        void check() throws IOException;
+    }
+
+    private int chunkSize;
+    private int gapMs;
+    private int fastStreak;
+    private volatile boolean paused;
+    private volatile boolean held;
+
+    // Running totals for the current pacer lifetime
+    private long totalBytes;
+    private long totalNanos;
+    private int stalls;
+
+    AdaptivePacer(PrinterProfile profile) {
+        this.chunkSize = clamp(profile.chunkSize, MIN_CHUNK, MAX_CHUNK);
+        this.gapMs = clamp(profile.gapMs, 0, MAX_GAP_MS);
+    }
+
+    /** Size of the next chunk the caller should hand to {@link #writeChunk}. */
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    int gapMs() {
+        return gapMs;
+    }
+
+    int stalls() {
+        return stalls;
+    }
+
+    /** Measured throughput in bytes per second, or 0 before anything was written. */
+    long bytesPerSecond() {
+        return totalNanos > 0 ? totalBytes * 1_000_000_000L / totalNanos : 0;
+    }
+
+    /** The values learned so far, to be persisted for this printer. */
+    PrinterProfile snapshot() {
+        return new PrinterProfile(chunkSize, gapMs);
+    }
+
+    /** Starts learning again from the given profile. */
+    void reset(PrinterProfile profile) {
+        chunkSize = clamp(profile.chunkSize, MIN_CHUNK, MAX_CHUNK);
+        gapMs = clamp(profile.gapMs, 0, MAX_GAP_MS);
+        fastStreak = 0;
+        stalls = 0;
+        totalBytes = 0;
+        totalNanos = 0;
+    }
+
+    /** Printer sent XOFF (buffer full). Called by the link's status monitor, which reads the input stream. */
+    void pause() {
+        paused = true;
+    }
+
+    /** Printer sent XON (ready again). */
+    void resume() {
+        paused = false;
+    }
+
+    /** Printer reported it is not ready; an XOFF wait then lasts up to {@link #HELD_TIMEOUT_MS}. */
+    void setHeld(boolean held) {
+        this.held = held;
+    }
+
+    /**
+     * Writes and flushes one chunk, then adapts and sleeps the current gap.
+     * The caller should keep len at or below {@link #chunkSize()}.
+     */
+    void writeChunk(OutputStream out, byte[] data, int off, int len)
+            throws IOException, InterruptedException {
+        writeChunk(out, data, off, len, null);
+    }
+
+    /**
+     * Same, but an XOFF lasting longer than {@link #XOFF_TIMEOUT_MS} holds
+     * the job through hold for up to {@link #HELD_TIMEOUT_MS} instead of
+     * failing it.
+     */
+    void writeChunk(OutputStream out, byte[] data, int off, int len, Hold hold)
+            throws IOException, InterruptedException {
+        boolean backedOff = false;
+        if (paused) {
+            waitForXon(hold);
+            backedOff = true;
+        }
+
+        long start = System.nanoTime();
+        out.write(data, off, len);
+        out.flush();
+        long elapsed = System.nanoTime() - start;
+
+        totalBytes += len;
+        totalNanos += elapsed;
+
+        if (backedOff || elapsed / 1_000_000L > STALL_MS) {
+            backOff();
+        } else if (++fastStreak >= PROBE_AFTER) {
+            probe();
+        }
+
+        if (gapMs > 0) {
+            Thread.sleep(gapMs);
+            totalNanos += gapMs * 1_000_000L;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private void backOff() {
+        stalls++;
+        fastStreak = 0;
+        chunkSize = Math.max(MIN_CHUNK, chunkSize / 2);
+        gapMs = Math.min(MAX_GAP_MS, Math.max(gapMs * 2, 10));
+    }
+
+    private void probe() {
+        fastStreak = 0;
+        if (gapMs > 0) {
+            // Shrink the gap first; it costs more throughput than chunk size
+            gapMs = gapMs * 3 / 4;
+        } else {
+            chunkSize = Math.min(MAX_CHUNK, chunkSize + 256);
+        }
+    }
+
+    private void waitForXon(Hold hold) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        boolean holding = false;
+        try {
+            while (paused) {
+                long waited = System.currentTimeMillis() - start;
+                if (hold != null && !holding && waited > XOFF_TIMEOUT_MS) {
+                    holding = true;
+                    hold.held(true);
+                }
+                long timeout = held || holding ? HELD_TIMEOUT_MS : XOFF_TIMEOUT_MS;
+                if (waited > timeout) {
+                    paused = false;
+                    throw new IOException("Printer busy (no XON after " + timeout + " ms)");
+                }
+                if (holding) {
+                    hold.check();
+                }
+                Thread.sleep(10);
+            }
+        } finally {
+            if (holding) {
+                hold.held(false);
+            }
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,354 @@
+package com.turmer.fieldsales;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk cache for the Odoo web client's static assets (JS/CSS bundles,
+ * fonts, icons), fed from WebViewClient.shouldInterceptRequest.
+ *
+ * A cached asset is served at once, also when offline, and then revalidated
+ * in the background with If-None-Match / If-Modified-Since at most once per
+ * {@link #REVALIDATE_INTERVAL_MS}; a changed asset is replaced for the next
+ * load. A miss is downloaded on the WebView's request thread and stored.
+ * Entries live in a {@link DiskLruStore}, keyed by the SHA-256 of the URL.
+ *
+ * No WebView types here, so it can be driven against a local HTTP server;
+ * MainActivity wraps {@link Response} into a WebResourceResponse.
+ */
+final class AssetCache {
+
+    private static final String TAG = "AssetCache";
+
+    // Entry header: magic, mime, encoding ("" = none), ETag, Last-Modified, body length
+    private static final int MAGIC = 0x41535431; // "AST1"
+
+    private static final long REVALIDATE_INTERVAL_MS = 60 * 60 * 1000;
+    private static final int MAX_ENTRY_BYTES = 8 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    // Request headers worth passing on; Accept-Encoding is left to HttpURLConnection
+    // so bodies are stored decoded
+    private static final String[] FORWARDED_HEADERS = {"User-Agent", "Accept", "Accept-Language", "Referer"};
+
+    /** Supplies the Cookie header for a URL, e.g. from CookieManager; may return null. */
+    interface CookieSource {
+        String cookiesFor(String url);
+    }
+
+    /** What to hand back to the WebView. */
+    static final class Response {
+        final int status;
+        final String reason;
+        final String mimeType;
+        final String encoding;
+        final Map<String, String> headers;
+        final InputStream body;
+        final boolean fromCache;
+
+        Response(String mimeType, String encoding, InputStream body, boolean fromCache) {
+            this.status = 200;
+            this.reason = "OK";
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.headers = Collections.singletonMap("X-Asset-Cache", fromCache ? "hit" : "miss");
+            this.body = body;
+            this.fromCache = fromCache;
+        }
+    }
+
+    private static final class Meta {
+        final String mimeType;
+        final String encoding;
+        final String etag;
+        final String lastModified;
+        final long length;
+
+        Meta(String mimeType, String encoding, String etag, String lastModified, long length) {
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private final DiskLruStore store;
+    private final CookieSource cookies;
+    private final ExecutorService revalidator = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "asset-revalidate");
+        t.setDaemon(true);
+        return t;
+    });
+    // URL -> when it was last revalidated (or fetched) in this process
+    private final Map<String, Long> validatedAt = new ConcurrentHashMap<>();
+    private volatile String origin;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong updated = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    AssetCache(File directory, long maxBytes, CookieSource cookies) {
+        this.store = new DiskLruStore(directory, maxBytes);
+        this.cookies = cookies;
+    }
+
+    /** Only assets of this origin ("https://host[:port]") are cached; null disables the cache. */
+    void setOrigin(String origin) {
+        this.origin = origin;
+    }
+
+    /** GETs of versioned bundles, module static files and fonts on the Odoo origin. */
+    boolean isCacheable(String method, String url) {
+        String base = origin;
+        if (base == null || !"GET".equalsIgnoreCase(method) || !url.startsWith(base + "/")) {
+            return false;
+        }
+        String path = url.substring(base.length());
+        int query = path.indexOf('?');
+        String plainPath = (query >= 0 ? path.substring(0, query) : path).toLowerCase(Locale.ROOT);
+        return plainPath.startsWith("/web/assets/")
+                || plainPath.contains("/static/")
+                || plainPath.endsWith(".woff2") || plainPath.endsWith(".woff") || plainPath.endsWith(".ttf");
+    }
+
+    /**
+     * Serves the asset from cache, or downloads and stores it. Returns null
+     * when the WebView should load it itself (not 200, too large, offline
+     * and not cached). Blocking; call from the WebView's request thread.
+     */
+    Response fetch(String url, Map<String, String> requestHeaders) {
+        String key = keyOf(url);
+        InputStream cached = store.open(key);
+        if (cached != null) {
+            try {
+                DataInputStream in = new DataInputStream(cached);
+                Meta meta = readMeta(in);
+                hits.incrementAndGet();
+                bytesSaved.addAndGet(meta.length);
+                scheduleRevalidate(url, key, meta, requestHeaders);
+                return new Response(meta.mimeType, meta.encoding, in, true);
+            } catch (IOException e) {
+                Log.w(TAG, "Dropping bad entry for " + url, e);
+                closeQuietly(cached);
+                store.remove(key);
+            }
+        }
+
+        misses.incrementAndGet();
+        HttpURLConnection conn = null;
+        try {
+            conn = open(url, requestHeaders);
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            long declared = conn.getContentLengthLong();
+            if (declared > MAX_ENTRY_BYTES) {
+                return null;
+            }
+            byte[] body = readBody(conn.getInputStream());
+            if (body == null) {
+                return null;
+            }
+            Meta meta = metaOf(conn, body.length);
+            store(key, meta, body);
+            validatedAt.put(url, System.currentTimeMillis());
+            return new Response(meta.mimeType, meta.encoding, new ByteArrayInputStream(body), false);
+        } catch (IOException e) {
+            // Offline and not cached: let the WebView show its own error
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    String statsJson() {
+        JSONObject json = new JSONObject();
+        Json.put(json, "hits", hits.get());
+        Json.put(json, "misses", misses.get());
+        Json.put(json, "notModified", notModified.get());
+        Json.put(json, "updated", updated.get());
+        Json.put(json, "bytesSaved", bytesSaved.get());
+        Json.put(json, "entries", store.count());
+        Json.put(json, "sizeBytes", store.sizeBytes());
+        return json.toString();
+    }
+
+    // -------------------------------------------------------------------------
+    // Background revalidation
+    // -------------------------------------------------------------------------
+
+    private void scheduleRevalidate(String url, String key, Meta meta, Map<String, String> requestHeaders) {
+        long now = System.currentTimeMillis();
+        Long last = validatedAt.get(url);
+        if (last != null && now - last < REVALIDATE_INTERVAL_MS) {
+            return;
+        }
+        // Claim it so parallel hits do not queue the same check twice
+        if (last == null ? validatedAt.putIfAbsent(url, now) != null : !validatedAt.replace(url, last, now)) {
+            return;
+        }
+        Map<String, String> headers = requestHeaders != null
+                ? new HashMap<>(requestHeaders) : new HashMap<String, String>();
+        revalidator.execute(() -> revalidate(url, key, meta, headers));
+    }
+
+    private void revalidate(String url, String key, Meta meta, Map<String, String> requestHeaders) {
+        HttpURLConnection conn = null;
+        try {
+            conn = open(url, requestHeaders);
+            if (!meta.etag.isEmpty()) {
+                conn.setRequestProperty("If-None-Match", meta.etag);
+            }
+            if (!meta.lastModified.isEmpty()) {
+                conn.setRequestProperty("If-Modified-Since", meta.lastModified);
+            }
+            int code = conn.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                notModified.incrementAndGet();
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                byte[] body = readBody(conn.getInputStream());
+                if (body != null) {
+                    store(key, metaOf(conn, body.length), body);
+                    updated.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            // Offline: keep serving the cached copy and try again next start
+            validatedAt.remove(url);
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private HttpURLConnection open(String url, Map<String, String> requestHeaders) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        conn.setUseCaches(false);
+        if (requestHeaders != null) {
+            for (String name : FORWARDED_HEADERS) {
+                for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                    if (name.equalsIgnoreCase(header.getKey())) {
+                        conn.setRequestProperty(name, header.getValue());
+                    }
+                }
+            }
+        }
+        String cookie = cookies != null ? cookies.cookiesFor(url) : null;
+        if (cookie != null && !cookie.isEmpty()) {
+            conn.setRequestProperty("Cookie", cookie);
+        }
+        return conn;
+    }
+
+    /** Reads the whole body, or returns null if it is larger than an entry may be. */
+    private static byte[] readBody(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_ENTRY_BYTES) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Meta metaOf(HttpURLConnection conn, long length) {
+        // "text/javascript; charset=utf-8" -> mime + encoding
+        String contentType = conn.getContentType();
+        String mimeType = "application/octet-stream";
+        String encoding = null;
+        if (contentType != null) {
+            String[] parts = contentType.split(";");
+            mimeType = parts[0].trim();
+            for (int i = 1; i < parts.length; i++) {
+                String part = parts[i].trim();
+                if (part.toLowerCase(Locale.ROOT).startsWith("charset=")) {
+                    encoding = part.substring(8).replace("\"", "").trim();
+                }
+            }
+        }
+        return new Meta(mimeType, encoding, nonNull(conn.getHeaderField("ETag")),
+                nonNull(conn.getHeaderField("Last-Modified")), length);
+    }
+
+    private void store(String key, Meta meta, byte[] body) {
+        try {
+            ByteArrayOutputStream entry = new ByteArrayOutputStream(body.length + 256);
+            DataOutputStream out = new DataOutputStream(entry);
+            out.writeInt(MAGIC);
+            out.writeUTF(meta.mimeType);
+            out.writeUTF(nonNull(meta.encoding));
+            out.writeUTF(meta.etag);
+            out.writeUTF(meta.lastModified);
+            out.writeLong(body.length);
+            out.write(body);
+            store.put(key, entry.toByteArray());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache " + key, e);
+        }
+    }
+
+    private static Meta readMeta(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an asset entry");
+        }
+        String mimeType = in.readUTF();
+        String encoding = in.readUTF();
+        return new Meta(mimeType, encoding.isEmpty() ? null : encoding, in.readUTF(), in.readUTF(), in.readLong());
+    }
+
+    private static String keyOf(String url) {
+        return FragmentCache.keyOf(url.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException ignored) {
+            // Nothing to do
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.turmer.fieldsales;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes base64 text lazily as bytes are read.
+ *
+ * Used instead of android.util.Base64.decode() so a large print payload is
+ * never materialised whole: the source (the job's record in the print
+ * spool) is read a few KB at a time, and the writer reads a chunk-sized
+ * block, sends it, and reads the next. Accepts the same input as
+ * Base64.DEFAULT (standard alphabet, optional padding, embedded
+ * whitespace/newlines) and also tolerates the URL-safe alphabet.
+ */
+final class Base64DecodingInputStream extends InputStream {
+
+    private static final int WHITESPACE = -2;
+    private static final int INVALID = -1;
+    private static final int[] DECODE = new int[128];
+
+    private static final int READ_SIZE = 4096;
+
+    static {
+        java.util.Arrays.fill(DECODE, INVALID);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = i;
+        }
+        DECODE['-'] = 62;
+        DECODE['_'] = 63;
+        DECODE[' '] = WHITESPACE;
+        DECODE['\t'] = WHITESPACE;
+        DECODE['\r'] = WHITESPACE;
+        DECODE['\n'] = WHITESPACE;
+    }
+
+    private final InputStream source;
+    // Base64 text read ahead from the source
+    private final byte[] text = new byte[READ_SIZE];
+    private int textPos;
+    private int textLen;
+    private long offset;
+    private boolean finished;
+
+    // Bytes of the last decoded quantum that did not fit in the caller's buffer
+    private final byte[] carry = new byte[3];
+    private int carryPos;
+    private int carryLen;
+
+    /** @param source base64 text as ASCII bytes; closed with this stream */
+    Base64DecodingInputStream(InputStream source) {
+        this.source = source;
+    }
+
+    /**
+     * Exact number of bytes a stream over the same text will produce,
+     * computed with a single scan that reads the source to the end.
+     */
+    static long decodedLength(InputStream source) throws IOException {
+        byte[] buffer = new byte[READ_SIZE];
+        long sextets = 0;
+        int n;
+        while ((n = source.read(buffer)) > 0) {
+            for (int i = 0; i < n; i++) {
+                int c = buffer[i];
+                if (c == '=') {
+                    return sextets * 6 / 8;
+                }
+                if (c >= 0 && DECODE[c] >= 0) {
+                    sextets++;
+                }
+            }
+        }
+        return sextets * 6 / 8;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int written = 0;
+
+        while (carryPos < carryLen && written < len) {
+            b[off + written++] = carry[carryPos++];
+        }
+
+        while (written < len && !finished) {
+            int quantum = 0;
+            int sextets = 0;
+            while (sextets < 4) {
+                int v = nextSextet();
+                if (v < 0) {
+                    break;
+                }
+                quantum = (quantum << 6) | v;
+                sextets++;
+            }
+            if (sextets < 4) {
+                finished = true;
+                if (sextets == 1) {
+                    throw new IOException("Truncated base64 input");
+                }
+                if (sextets == 0) {
+                    break;
+                }
+                // 2 sextets -> 1 byte, 3 sextets -> 2 bytes
+                quantum <<= 6 * (4 - sextets);
+            }
+            int produced = sextets == 4 ? 3 : sextets - 1;
+
+            if (len - written >= produced) {
+                b[off + written++] = (byte) (quantum >> 16);
+                if (produced > 1) b[off + written++] = (byte) (quantum >> 8);
+                if (produced > 2) b[off + written++] = (byte) quantum;
+            } else {
+                carry[0] = (byte) (quantum >> 16);
+                carry[1] = (byte) (quantum >> 8);
+                carry[2] = (byte) quantum;
+                carryPos = 0;
+                carryLen = produced;
+                while (carryPos < carryLen && written < len) {
+                    b[off + written++] = carry[carryPos++];
+                }
+            }
+        }
+
+        return written == 0 && finished && carryPos >= carryLen ? -1 : written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /** Next 6-bit value, or -1 at end of input or padding. */
+    private int nextSextet() throws IOException {
+        while (true) {
+            if (textPos == textLen) {
+                textLen = source.read(text, 0, text.length);
+                textPos = 0;
+                if (textLen <= 0) {
+                    textLen = 0;
+                    return -1;
+                }
+            }
+            int c = text[textPos++];
+            offset++;
+            if (c == '=') {
+                // Padding ends the input; nothing after it is read
+                finished = true;
+                return -1;
+            }
+            int v = c >= 0 ? DECODE[c] : INVALID;
+            if (v >= 0) {
+                return v;
+            }
+            if (v == INVALID) {
+                throw new IOException("Invalid base64 character at offset " + (offset - 1));
+            }
+        }
+    }
+}
@@ -4,9 +4,11 @@ import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.util.Log;
 import android.webkit.JavascriptInterface;
 import android.widget.Toast;
 
@@ -14,209 +16,995 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 /**
  * JavaScript Bridge for Bluetooth Printing
  * Exposed to WebView as window.AndroidPrint
  *
  * Usage from JavaScript:
- *   window.AndroidPrint.listPairedDevices()  -> JSON string of paired devices
+ *   window.AndroidPrint.listPairedDevices()  -> JSON string of paired devices, best printer first
+ *   window.AndroidPrint.startDiscovery()     -> "OK"; nearby devices arrive as events
+ *   window.AndroidPrint.stopDiscovery()      -> "OK"
  *   window.AndroidPrint.connect(address)      -> "OK" or error message
- *   window.AndroidPrint.print(base64Data)     -> "OK" or error message
+ *   window.AndroidPrint.print(base64Data)     -> "OK:<jobId>" or error message
+ *   window.AndroidPrint.printReceipt(json)    -> "OK:<jobId>" or error message
+ *   window.AndroidPrint.printImage(b64, opts) -> "OK:<jobId>" or error message
+ *   window.AndroidPrint.printShapedText(t,o)  -> "OK:<jobId>"; Arabic / bidi text drawn natively
+ *   window.AndroidPrint.cacheFragment(b64)    -> "OK:<ref>" content key of stored ESC/POS bytes
+ *   window.AndroidPrint.printWithFragments(j) -> "OK:<jobId>" or "ERROR: Missing fragment <ref>"
+ *   window.AndroidPrint.printBatch(json)      -> JSON { batchId, jobs: [{ jobId } or { error }] }
+ *   window.AndroidPrint.reprint(jobId, n, o)  -> "OK:<jobId>"; n more copies of a recent job, no resend
+ *   window.AndroidPrint.cancelJob(jobId)      -> "OK" or error message
+ *   window.AndroidPrint.getQueueDepth()       -> number of pending jobs
+ *   window.AndroidPrint.getPrinterProfile()   -> JSON of learned pacing for the printer
  *   window.AndroidPrint.disconnect()          -> "OK"
  *   window.AndroidPrint.isConnected()         -> "true" or "false"
+ *   window.AndroidPrint.getConnectionState()  -> JSON { address, name, state, error? }
+ *   window.AndroidPrint.setIdleTimeout(secs)  -> "OK"; 0 keeps the link open
  *   window.AndroidPrint.getConnectedDevice()  -> device name or ""
+ *   window.AndroidPrint.getMetrics()          -> JSON of per-call latency / throughput counters
+ *
+ * Several printers can be used at once (e.g. a receipt and a label printer
+ * in the same van). Each has its own PrinterSession with its own queue and
+ * writer thread. The calls above use the default printer (the last one
+ * passed to connect()); the *To variants take a target, which is either a
+ * role assigned with assignRole() or a MAC address:
+ *   window.AndroidPrint.assignRole("label", address) -> "OK"
+ *   window.AndroidPrint.printTo("label", base64Data) -> "OK:<jobId>" or error message
+ *   window.AndroidPrint.getPrinterStatus("label")    -> JSON { address, name, state, connected, queueDepth, ... }
+ *   window.AndroidPrint.listPrinters()               -> JSON { default, roles, printers: [status...] }
+ *
+ * Pages that support it can also post ESC/POS ArrayBuffers to
+ * window.AndroidPrintPort (see MainActivity.setupBinaryPrintChannel), which
+ * skips base64 and the string round trip; the reply is the same "OK:<jobId>".
+ *
+ * Print jobs are queued and written on a background thread. Progress is
+ * reported to the page as 'androidPrintJob' window events whose detail is
+ * { jobId, address, state, bytesWritten, totalBytes, error? } with state one of
+ * queued / printing / held / done / failed / cancelled.
+ *
+ * Each link also polls the printer's real-time status (paper, cover, errors).
+ * Changes are pushed as 'androidPrinterStatus' events with detail
+ * { address, known, ready, offline, coverOpen, paperOut, paperNearEnd, error }.
+ * A job that is about to start on a printer that is not ready is 'held'
+ * until it is. So is a job whose printer stops taking data part way through
+ * (XOFF on paper out or cover open) for more than 10 s; it carries on from
+ * where it stopped on XON instead of failing and being sent again.
+ *
+ * The printer link is managed by PrinterConnection: connected in the
+ * background, kept warm, re-established after drops and closed when idle.
+ * Jobs wait for a ready link instead of failing with "Printer not connected".
+ *
+ * Wherever a MAC address is accepted, a network printer can be given as
+ * "tcp:host[:port]" (raw TCP, port 9100 by default), or "loopback" for an
+ * in-memory printer to test with; see PrinterTransport. Everything else
+ * works the same for them.
  */
 public class BluetoothPrintBridge {
 
-    // Standard SPP UUID for Classic Bluetooth serial communication
-    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private static final String TAG = "BluetoothPrintBridge";
+
+    // Shared with MainActivity
+    private static final String PREFS_NAME = "FieldSalesPrefs";
+    private static final String KEY_LAST_PRINTER = "last_printer_address";
+    private static final String KEY_IDLE_TIMEOUT = "printer_idle_timeout_ms";
+
+    // How long connect() waits for the link
+    private static final long CONNECT_TIMEOUT_MS = 15000;
+
+    // reprint() copies per call
+    private static final int MAX_COPIES = 10;
+
+    private static final int SCAN_PERMISSION_REQUEST_CODE = 1002;
 
     private final Activity activity;
+    private final PageEventBus events;
     private BluetoothAdapter bluetoothAdapter;
-    private BluetoothSocket bluetoothSocket;
-    private OutputStream outputStream;
-    private String connectedDeviceName = "";
+    // Upper-case MAC address -> session; sessions never share a lock
+    private final Map<String, PrinterSession> sessions = new ConcurrentHashMap<>();
+    // Printer used by the calls without a target
+    private volatile String defaultAddress;
+    private final SharedPreferences prefs;
+    // Role ("receipt", "label", ...) -> printer address
+    private final SharedPreferences rolePrefs;
+    private final PrinterProfileStore profileStore;
+    private final FragmentCache fragmentCache;
+    // Glyph cache for text the printer fonts cannot show (Arabic, mixed direction)
+    private final TextRasterizer textRasterizer = new TextRasterizer();
+    // Bytes of recently rendered jobs, for reprint() copies
+    private final ReprintCache reprints;
+    // "<printer address>|<kc1><kc2>" -> logo ref stored in that printer's NV memory
+    private final SharedPreferences nvGraphicsPrefs;
+    // Every job is spooled before it is queued and replayed after a restart
+    private final PrintSpool spool;
+    // Spool writes and their fsync run here in order, never on a bridge or UI thread
+    private final ExecutorService spoolWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "print-spool");
+        t.setDaemon(true);
+        return t;
+    });
+    // Jobs accepted but not yet spooled and queued, and those of them cancelled meanwhile; guarded by spooling
+    private final Map<Long, PrintSpool.Record> spooling = new HashMap<>();
+    private final Set<Long> cancelledWhileSpooling = new HashSet<>();
+    // Spooled jobs that failed for want of a printer, waiting for it to come back
+    private final Set<Long> parked = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean spoolReplayed = new AtomicBoolean();
+    // Set once ids are above those in the spool; later ids skip the spool lock
+    private volatile boolean idsReserved;
+    // Cached bonded devices and discovery results
+    private final PrinterDeviceRegistry deviceRegistry;
+    private volatile boolean shuttingDown;
 
-    public BluetoothPrintBridge(Activity activity) {
+    public BluetoothPrintBridge(Activity activity, PageEventBus events) {
         this.activity = activity;
+        this.events = events;
         this.bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        this.prefs = activity.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.profileStore = new PrinterProfileStore(activity);
+        this.fragmentCache = new FragmentCache(activity);
+        this.reprints = new ReprintCache(new File(activity.getCacheDir(), "reprints"));
+        this.nvGraphicsPrefs = activity.getSharedPreferences("NvGraphics", Context.MODE_PRIVATE);
+        this.rolePrefs = activity.getSharedPreferences("PrinterRoles", Context.MODE_PRIVATE);
+        // Read back in start(), off the main thread
+        this.spool = new PrintSpool(new File(activity.getFilesDir(), "print_spool.log"));
+        this.deviceRegistry = new PrinterDeviceRegistry(activity, bluetoothAdapter, new PrinterDeviceRegistry.Listener() {
+            @Override
+            public void onDeviceFound(JSONObject device) {
+                events.post("androidDeviceFound", device);
+            }
+
+            @Override
+            public void onDiscoveryFinished(int found) {
+                JSONObject detail = new JSONObject();
+                Json.put(detail, "found", found);
+                events.post("androidDiscoveryFinished", detail);
+            }
+
+            @Override
+            public void onPairedDevicesChanged() {
+                events.postLatest("androidPairedDevicesChanged", "", new JSONObject());
+            }
+        });
+        BridgeMetrics.startLogging();
     }
 
     /**
-     * Returns a JSON array of paired Bluetooth devices
+     * Reads back the spool and starts watching for paired devices, on the
+     * spool thread. Called from onCreate once the page load has been issued,
+     * so neither delays it.
+     */
+    public void start() {
+        onSpoolThread(() -> {
+            reserveIds();
+            deviceRegistry.start();
+        });
+    }
+
+    /**
+     * Returns the paired Bluetooth devices as { devices: [ { name, address,
+     * type, bonded, printer, preferred, rssi?, lastSeen? } ] }, ranked: the
+     * default printer, other known printers, then printers by device class
+     * and signal strength. Cached until a device is paired or unpaired, which
+     * is also announced as an 'androidPairedDevicesChanged' window event.
      * Called from JS: window.AndroidPrint.listPairedDevices()
      */
     @JavascriptInterface
     public String listPairedDevices() {
-        try {
-            if (!checkBluetoothPermission()) {
-                return "{\"error\": \"Bluetooth permission not granted\"}";
+        return timed("listPairedDevices", () -> {
+            try {
+                if (!checkBluetoothPermission()) {
+                    return "{\"error\": \"Bluetooth permission not granted\"}";
+                }
+
+                if (bluetoothAdapter == null) {
+                    return "{\"error\": \"Bluetooth not supported on this device\"}";
+                }
+
+                return deviceRegistry.pairedJson(preferredPrinters());
+
+            } catch (Exception e) {
+                return "{\"error\": \"" + e.getMessage() + "\"}";
             }
+        });
+    }
 
+    /**
+     * Scans for nearby Bluetooth devices, e.g. a printer that has not been
+     * paired yet. Each device is sent as an 'androidDeviceFound' window event
+     * (same fields as listPairedDevices) as soon as it is seen, and the scan
+     * ends with 'androidDiscoveryFinished' { found } after about 12 seconds.
+     * Called from JS: window.AndroidPrint.startDiscovery()
+     */
+    @JavascriptInterface
+    public String startDiscovery() {
+        return timed("startDiscovery", () -> {
             if (bluetoothAdapter == null) {
-                return "{\"error\": \"Bluetooth not supported on this device\"}";
+                return "ERROR: Bluetooth not supported";
             }
+            if (!checkScanPermission()) {
+                return "ERROR: Scan permission not granted";
+            }
+            try {
+                return deviceRegistry.startDiscovery() ? "OK" : "ERROR: Could not start scan (Bluetooth off?)";
+            } catch (SecurityException e) {
+                return "ERROR: " + e.getMessage();
+            }
+        });
+    }
 
-            Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
-            JSONArray devices = new JSONArray();
+    /**
+     * Ends a scan started with startDiscovery(); connecting also ends it.
+     * Called from JS: window.AndroidPrint.stopDiscovery()
+     */
+    @JavascriptInterface
+    public String stopDiscovery() {
+        return timed("stopDiscovery", () -> {
+            deviceRegistry.stopDiscovery();
+            return "OK";
+        });
+    }
 
-            for (BluetoothDevice device : pairedDevices) {
-                JSONObject deviceInfo = new JSONObject();
-                deviceInfo.put("name", device.getName() != null ? device.getName() : "Unknown");
-                deviceInfo.put("address", device.getAddress());
-                deviceInfo.put("type", device.getType()); // 1=Classic, 2=BLE, 3=Dual
-                devices.put(deviceInfo);
-            }
+    /**
+     * Connects to a Bluetooth device by MAC address (or a "tcp:host[:port]"
+     * network printer) and makes it the default printer. The link is then
+     * kept warm in the background and re-established automatically if it
+     * drops. Other printers stay connected.
+     * Called from JS: window.AndroidPrint.connect("AA:BB:CC:DD:EE:FF")
+     */
+    @JavascriptInterface
+    public String connect(String deviceAddress) {
+        return timed("connect", () -> {
+            try {
+                String address = PrinterTransport.normalizeAddress(deviceAddress);
+                if (address == null) {
+                    return "ERROR: Invalid address";
+                }
 
-            JSONObject result = new JSONObject();
-            result.put("devices", devices);
-            return result.toString();
+                if (PrinterTransport.isBluetooth(address)) {
+                    if (!checkBluetoothPermission()) {
+                        return "ERROR: Bluetooth permission not granted";
+                    }
 
-        } catch (Exception e) {
-            return "{\"error\": \"" + e.getMessage() + "\"}";
+                    if (bluetoothAdapter == null) {
+                        return "ERROR: Bluetooth not supported";
+                    }
+                }
+                boolean existed = sessions.containsKey(address);
+                PrinterSession session = session(address);
+
+                if (!session.connection.awaitConnected(CONNECT_TIMEOUT_MS)) {
+                    String error = session.connection.lastError();
+                    if (!existed) {
+                        closeSession(address);
+                    }
+                    return "ERROR: " + (error != null ? error : "Connection timed out");
+                }
+
+                defaultAddress = address;
+                prefs.edit().putString(KEY_LAST_PRINTER, address).apply();
+                return "OK:" + session.connection.deviceName();
+
+            } catch (Exception e) {
+                return "ERROR: " + e.getMessage();
+            }
+        });
+    }
+
+    /**
+     * Starts connecting to the last used printer, and to every printer that
+     * has a role, in the background so the first print of the day does not
+     * pay for RFCOMM setup. Called by MainActivity once Bluetooth permission
+     * is available.
+     */
+    public void preconnectLastPrinter() {
+        boolean bluetooth = bluetoothAdapter != null && bluetoothAdapter.isEnabled() && checkBluetoothPermission();
+        String last = PrinterTransport.normalizeAddress(prefs.getString(KEY_LAST_PRINTER, ""));
+        if (last != null && defaultAddress == null && (bluetooth || !PrinterTransport.isBluetooth(last))) {
+            defaultAddress = last;
+            session(last);
+        }
+        for (Object address : rolePrefs.getAll().values()) {
+            String normalized = PrinterTransport.normalizeAddress(String.valueOf(address));
+            if (normalized != null && (bluetooth || !PrinterTransport.isBluetooth(normalized))) {
+                session(normalized);
+            }
+        }
+        if (bluetooth) {
+            replaySpool();
         }
     }
 
     /**
-     * Connects to a Bluetooth device by MAC address
-     * Called from JS: window.AndroidPrint.connect("AA:BB:CC:DD:EE:FF")
+     * Routes a logical role ("receipt", "label", ...) to a printer so pages
+     * can print by role. An empty address removes the role.
+     * Called from JS: window.AndroidPrint.assignRole("label", "AA:BB:CC:DD:EE:FF")
      */
     @JavascriptInterface
-    public String connect(String deviceAddress) {
-        try {
-            if (!checkBluetoothPermission()) {
-                return "ERROR: Bluetooth permission not granted";
+    public String assignRole(String role, String deviceAddress) {
+        return timed("assignRole", () -> {
+            if (role == null || role.trim().isEmpty()) {
+                return "ERROR: Empty role";
+            }
+            String key = role.trim().toLowerCase(Locale.ROOT);
+            if (deviceAddress == null || deviceAddress.trim().isEmpty()) {
+                rolePrefs.edit().remove(key).apply();
+                return "OK";
+            }
+            String address = PrinterTransport.normalizeAddress(deviceAddress);
+            if (address == null) {
+                return "ERROR: Invalid address";
             }
+            rolePrefs.edit().putString(key, address).apply();
+            return "OK";
+        });
+    }
 
-            if (bluetoothAdapter == null) {
-                return "ERROR: Bluetooth not supported";
+    /**
+     * Sets how long an unused printer link stays open (0 = never close)
+     * Called from JS: window.AndroidPrint.setIdleTimeout(seconds)
+     */
+    @JavascriptInterface
+    public String setIdleTimeout(String seconds) {
+        return timed("setIdleTimeout", () -> {
+            try {
+                long ms = Math.max(0, Long.parseLong(seconds.trim())) * 1000;
+                prefs.edit().putLong(KEY_IDLE_TIMEOUT, ms).apply();
+                for (PrinterSession session : sessions.values()) {
+                    session.connection.setIdleTimeoutMs(ms);
+                }
+                return "OK";
+            } catch (NumberFormatException | NullPointerException e) {
+                return "ERROR: Invalid timeout";
             }
+        });
+    }
 
-            // Disconnect existing connection
-            disconnect();
+    /**
+     * Returns the connection state as JSON: { address, name, state, error }
+     * with state one of disconnected / connecting / connected /
+     * waiting_retry / idle / closed. The same detail is pushed as
+     * 'androidPrinterConnection' window events for every printer.
+     * Called from JS: window.AndroidPrint.getConnectionState()
+     */
+    @JavascriptInterface
+    public String getConnectionState() {
+        return timed("getConnectionState", () -> {
+            PrinterSession session = defaultSession();
+            if (session == null) {
+                return "{\"state\": \"disconnected\"}";
+            }
+            return connectionJson(session.connection).toString();
+        });
+    }
+
+    /**
+     * Returns the status of one printer as JSON: the connection state fields
+     * plus connected, queueDepth, the last printer status and the roles
+     * routed to it.
+     * Called from JS: window.AndroidPrint.getPrinterStatus("label")
+     */
+    @JavascriptInterface
+    public String getPrinterStatus(String target) {
+        return timed("getPrinterStatus", () -> {
+            String address = resolve(target);
+            if (address == null) {
+                return "{\"error\": \"Unknown printer " + target + "\"}";
+            }
+            PrinterSession session = sessions.get(address);
+            if (session == null) {
+                JSONObject json = new JSONObject();
+                Json.put(json, "address", address);
+                Json.put(json, "state", "disconnected");
+                Json.put(json, "connected", false);
+                Json.put(json, "queueDepth", 0);
+                Json.put(json, "roles", rolesOf(address));
+                return json.toString();
+            }
+            return statusJson(session).toString();
+        });
+    }
 
-            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
-            connectedDeviceName = device.getName() != null ? device.getName() : deviceAddress;
+    /**
+     * Lists every printer with a session, the default printer and the role map
+     * Called from JS: window.AndroidPrint.listPrinters()
+     */
+    @JavascriptInterface
+    public String listPrinters() {
+        return timed("listPrinters", () -> {
+            try {
+                JSONArray printers = new JSONArray();
+                for (PrinterSession session : sessions.values()) {
+                    printers.put(statusJson(session));
+                }
+                JSONObject result = new JSONObject();
+                result.put("default", defaultAddress != null ? defaultAddress : "");
+                result.put("roles", new JSONObject(rolePrefs.getAll()));
+                result.put("printers", printers);
+                result.put("spooled", spool.size());
+                return result.toString();
+            } catch (Exception e) {
+                return "{\"error\": \"" + e.getMessage() + "\"}";
+            }
+        });
+    }
 
-            // Cancel discovery to speed up connection
-            bluetoothAdapter.cancelDiscovery();
+    /**
+     * Queues raw ESC/POS data (base64 encoded) and returns immediately
+     * Called from JS: window.AndroidPrint.print(base64EncodedData)
+     */
+    @JavascriptInterface
+    public String print(String base64Data) {
+        return timed("print", () -> submitBase64(null, base64Data));
+    }
 
-            // Connect via SPP (Serial Port Profile) - used by most thermal printers
-            bluetoothSocket = device.createRfcommSocketToServiceRecord(SPP_UUID);
-            bluetoothSocket.connect();
-            outputStream = bluetoothSocket.getOutputStream();
+    /**
+     * Queues raw ESC/POS data (base64 encoded) for a role or address
+     * Called from JS: window.AndroidPrint.printTo("label", base64EncodedData)
+     */
+    @JavascriptInterface
+    public String printTo(String target, String base64Data) {
+        return timed("printTo", () -> submitBase64(target, base64Data));
+    }
 
-            return "OK:" + connectedDeviceName;
+    private String submitBase64(String target, String base64Data) {
+        if (base64Data == null || base64Data.isEmpty()) {
+            return "ERROR: Empty print data";
+        }
+        return submit(target, PrintJob.Kind.BASE64, base64Data.getBytes(StandardCharsets.US_ASCII), null);
+    }
 
-        } catch (IOException e) {
-            connectedDeviceName = "";
-            return "ERROR: " + e.getMessage();
-        } catch (Exception e) {
-            connectedDeviceName = "";
-            return "ERROR: " + e.getMessage();
+    /**
+     * Queues raw ESC/POS bytes that arrived without base64, from the binary
+     * WebMessage channel. Not exposed as a @JavascriptInterface.
+     */
+    public String printBytes(byte[] data) {
+        if (data == null || data.length == 0) {
+            return "ERROR: Empty print data";
         }
+        return submit(null, PrintJob.Kind.RAW, data, null);
     }
 
     /**
-     * Prints raw ESC/POS data (base64 encoded)
-     * Called from JS: window.AndroidPrint.print(base64EncodedData)
+     * Queues raw text (plain string, not base64)
+     * Called from JS: window.AndroidPrint.printText(text)
      */
     @JavascriptInterface
-    public String print(String base64Data) {
-        try {
-            if (outputStream == null || bluetoothSocket == null || !bluetoothSocket.isConnected()) {
-                return "ERROR: Printer not connected";
-            }
+    public String printText(String text) {
+        return timed("printText", () -> submitText(null, text));
+    }
 
-            // Decode base64 to bytes
-            byte[] data = android.util.Base64.decode(base64Data, android.util.Base64.DEFAULT);
+    /**
+     * Queues raw text for a role or address
+     * Called from JS: window.AndroidPrint.printTextTo("label", text)
+     */
+    @JavascriptInterface
+    public String printTextTo(String target, String text) {
+        return timed("printTextTo", () -> submitText(target, text));
+    }
 
-            // Write in chunks to avoid buffer overflow
-            int chunkSize = 512;
-            for (int i = 0; i < data.length; i += chunkSize) {
-                int end = Math.min(i + chunkSize, data.length);
-                outputStream.write(data, i, end - i);
-                outputStream.flush();
-                Thread.sleep(50); // Small delay between chunks
-            }
+    private String submitText(String target, String text) {
+        if (text == null) {
+            return "ERROR: Empty text";
+        }
+        return submit(target, PrintJob.Kind.TEXT, text.getBytes(StandardCharsets.UTF_8), null);
+    }
 
-            return "OK";
+    /**
+     * Queues a structured receipt that is rendered to ESC/POS natively.
+     * See ReceiptRenderer for the JSON model.
+     * Called from JS: window.AndroidPrint.printReceipt(JSON.stringify(receipt))
+     */
+    @JavascriptInterface
+    public String printReceipt(String receiptJson) {
+        return timed("printReceipt", () -> submitReceipt(null, receiptJson));
+    }
 
-        } catch (IOException e) {
-            return "ERROR: " + e.getMessage();
+    /**
+     * Queues a structured receipt for a role or address
+     * Called from JS: window.AndroidPrint.printReceiptTo("receipt", JSON.stringify(receipt))
+     */
+    @JavascriptInterface
+    public String printReceiptTo(String target, String receiptJson) {
+        return timed("printReceiptTo", () -> submitReceipt(target, receiptJson));
+    }
+
+    private String submitReceipt(String target, String receiptJson) {
+        if (receiptJson == null || receiptJson.trim().isEmpty()) {
+            return "ERROR: Empty receipt";
+        }
+        return submit(target, PrintJob.Kind.RECEIPT, receiptJson.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * Queues a PNG/JPEG (base64 or data: URL) that is scaled, dithered and
+     * encoded to compact raster commands natively. See ImageRasterizer for
+     * the options JSON; pass "" for defaults.
+     * Called from JS: window.AndroidPrint.printImage(dataUrl, JSON.stringify({ width: 384 }))
+     */
+    @JavascriptInterface
+    public String printImage(String base64Image, String optionsJson) {
+        return timed("printImage", () -> submitImage(null, base64Image, optionsJson));
+    }
+
+    /**
+     * Queues a PNG/JPEG for a role or address
+     * Called from JS: window.AndroidPrint.printImageTo("label", dataUrl, optionsJson)
+     */
+    @JavascriptInterface
+    public String printImageTo(String target, String base64Image, String optionsJson) {
+        return timed("printImageTo", () -> submitImage(target, base64Image, optionsJson));
+    }
+
+    private String submitImage(String target, String base64Image, String optionsJson) {
+        if (base64Image == null || base64Image.isEmpty()) {
+            return "ERROR: Empty image";
+        }
+        return submit(target, PrintJob.Kind.IMAGE, base64Image.getBytes(StandardCharsets.US_ASCII), optionsJson);
+    }
+
+    /**
+     * Queues many jobs at once, e.g. the end-of-day van stock report,
+     * collections summary and invoice reprints. Items:
+     *   { "type": "base64", "data": base64 }
+     *   { "type": "text", "data": "..." }
+     *   { "type": "receipt", "data": { ... } }
+     *   { "type": "image", "data": dataUrl, "options": { ... } }
+     *   { "type": "shapedText", "data": "...", "options": { ... } }   as for printShapedText
+     *   { "type": "fragments", "data": [ ... ] }    as for printWithFragments
+     * The jobs are spooled with one fsync and printed in order over the one
+     * link, each rendered while the one before it is written. Every job has
+     * its own androidPrintJob events (with the batchId) and a failed job does
+     * not stop the others. Returns { batchId, jobs: [ { jobId } or { error } ] }
+     * in item order; an item that is not valid is reported and skipped.
+     * Called from JS: window.AndroidPrint.printBatch(JSON.stringify(items))
+     */
+    @JavascriptInterface
+    public String printBatch(String itemsJson) {
+        return timed("printBatch", () -> submitBatch(null, itemsJson));
+    }
+
+    /**
+     * Queues many jobs at once on a role or address
+     * Called from JS: window.AndroidPrint.printBatchTo("receipt", JSON.stringify(items))
+     */
+    @JavascriptInterface
+    public String printBatchTo(String target, String itemsJson) {
+        return timed("printBatchTo", () -> submitBatch(target, itemsJson));
+    }
+
+    private String submitBatch(String target, String itemsJson) {
+        try {
+            JSONArray items = new JSONArray(itemsJson);
+            PrinterSession session = sessionFor(target);
+            if (session == null) {
+                return errorJson(target == null || target.trim().isEmpty()
+                        ? "Printer not connected" : "Unknown printer " + target);
+            }
+            long batchId = nextJobId();
+            List<PrintSpool.Record> records = new ArrayList<>(items.length());
+            JSONArray jobs = new JSONArray();
+            for (int i = 0; i < items.length(); i++) {
+                JSONObject entry = new JSONObject();
+                try {
+                    PrintSpool.Record record = batchRecord(nextJobId(), session.address, items.getJSONObject(i));
+                    records.add(record);
+                    entry.put("jobId", String.valueOf(record.id));
+                } catch (Exception e) {
+                    entry.put("error", e.getMessage() != null ? e.getMessage() : e.toString());
+                }
+                jobs.put(entry);
+            }
+            enqueue(session, records, batchId);
+            JSONObject result = new JSONObject();
+            result.put("batchId", String.valueOf(batchId));
+            result.put("jobs", jobs);
+            return result.toString();
         } catch (Exception e) {
-            return "ERROR: " + e.getMessage();
+            return errorJson("Invalid batch: " + e.getMessage());
         }
     }
 
     /**
-     * Prints raw text (plain string, not base64)
-     * Called from JS: window.AndroidPrint.printText(text)
+     * Queues text drawn natively as raster, for scripts the printer fonts
+     * lack: Arabic is shaped and mixed Arabic/English lines are put in
+     * display order. See TextRasterizer for the options JSON; pass "" for
+     * defaults. Receipts do the same per line on their own (see
+     * ReceiptRenderer "rasterText").
+     * Called from JS: window.AndroidPrint.printShapedText(text, JSON.stringify({ size: 28 }))
      */
     @JavascriptInterface
-    public String printText(String text) {
+    public String printShapedText(String text, String optionsJson) {
+        return timed("printShapedText", () -> submitShapedText(null, text, optionsJson));
+    }
+
+    /**
+     * Queues natively drawn text for a role or address
+     * Called from JS: window.AndroidPrint.printShapedTextTo("receipt", text, optionsJson)
+     */
+    @JavascriptInterface
+    public String printShapedTextTo(String target, String text, String optionsJson) {
+        return timed("printShapedTextTo", () -> submitShapedText(target, text, optionsJson));
+    }
+
+    private String submitShapedText(String target, String text, String optionsJson) {
+        if (text == null || text.isEmpty()) {
+            return "ERROR: Empty text";
+        }
+        return submit(target, PrintJob.Kind.SHAPED_TEXT, text.getBytes(StandardCharsets.UTF_8), optionsJson);
+    }
+
+    // -------------------------------------------------------------------------
+    // Reprint - extra copies from the bytes already rendered
+    // -------------------------------------------------------------------------
+
+    /**
+     * Prints a recent job again, copies times, on the printer that printed
+     * it, from the bytes kept when it was rendered
+     * Called from JS: window.AndroidPrint.reprint(jobId, 2)
+     */
+    @JavascriptInterface
+    public String reprint(String jobId, int copies) {
+        return timed("reprint", () -> submitReprint(null, jobId, copies, null));
+    }
+
+    /**
+     * Same, with options { marker: true | "text", columns, dots }: a marker
+     * ("COPY" for true) is printed large and centred above each copy
+     * Called from JS: window.AndroidPrint.reprint(jobId, 2, JSON.stringify({ marker: true }))
+     */
+    @JavascriptInterface
+    public String reprint(String jobId, int copies, String optionsJson) {
+        return timed("reprint", () -> submitReprint(null, jobId, copies, optionsJson));
+    }
+
+    /**
+     * Prints copies of a recent job on a role or address, e.g. the office copy
+     * on the depot printer. The job may still be queued or printing
+     * Called from JS: window.AndroidPrint.reprintTo("office", jobId, 1, optionsJson)
+     */
+    @JavascriptInterface
+    public String reprintTo(String target, String jobId, int copies, String optionsJson) {
+        return timed("reprintTo", () -> submitReprint(target, jobId, copies, optionsJson));
+    }
+
+    private String submitReprint(String target, String jobId, int copies, String optionsJson) {
+        long id;
         try {
-            if (outputStream == null || bluetoothSocket == null || !bluetoothSocket.isConnected()) {
-                return "ERROR: Printer not connected";
+            id = Long.parseLong(jobId.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            return "ERROR: Invalid job id";
+        }
+        if (copies < 1 || copies > MAX_COPIES) {
+            return "ERROR: Copies must be 1 to " + MAX_COPIES;
+        }
+        JSONObject options;
+        try {
+            options = optionsJson != null && !optionsJson.trim().isEmpty()
+                    ? new JSONObject(optionsJson) : new JSONObject();
+        } catch (JSONException e) {
+            return "ERROR: Invalid JSON - " + e.getMessage();
+        }
+        String source = sourceAddress(id);
+        if (source == null) {
+            return "ERROR: Job " + id + " is no longer available for reprint";
+        }
+        PrinterSession session;
+        if (target == null || target.trim().isEmpty()) {
+            session = canOpen(source) ? session(source) : null;
+        } else {
+            session = sessionFor(target);
+        }
+        if (session == null) {
+            return noPrinter(target);
+        }
+        // Not spooled: a copy lost to a restart is asked for again
+        String address = session.address;
+        long copyId = nextJobId();
+        session.queue.enqueue(new PrintJob(copyId, PrintJob.Kind.REPRINT,
+                j -> renderReprint(j, id, address, copies, options)));
+        return "OK:" + copyId;
+    }
+
+    // -------------------------------------------------------------------------
+    // Fragment cache - constant receipt parts stored once, printed by ref
+    // -------------------------------------------------------------------------
+
+    /**
+     * Stores pre-encoded ESC/POS bytes and returns their content key
+     * Called from JS: window.AndroidPrint.cacheFragment(base64EncodedData)
+     */
+    @JavascriptInterface
+    public String cacheFragment(String base64Data) {
+        return timed("cacheFragment", () -> {
+            try {
+                byte[] data = android.util.Base64.decode(base64Data, android.util.Base64.DEFAULT);
+                return "OK:" + fragmentCache.put(data);
+            } catch (Exception e) {
+                return "ERROR: " + e.getMessage();
+            }
+        });
+    }
+
+    /**
+     * Renders a receipt model (e.g. the VAT header) once and caches the result
+     * Called from JS: window.AndroidPrint.cacheReceiptFragment(JSON.stringify(block))
+     */
+    @JavascriptInterface
+    public String cacheReceiptFragment(String receiptJson) {
+        return timed("cacheReceiptFragment", () -> {
+            try {
+                return "OK:" + fragmentCache.put(ReceiptRenderer.render(new JSONObject(receiptJson), textRasterizer));
+            } catch (Exception e) {
+                return "ERROR: " + e.getMessage();
             }
+        });
+    }
 
-            byte[] data = text.getBytes("UTF-8");
-            outputStream.write(data);
-            outputStream.flush();
+    /**
+     * Rasterizes a logo once and caches it. Returns JSON with "ref" (banded
+     * raster to send as-is) and, when the logo fits, "nvRef" (the command that
+     * stores it in printer NV memory, see printWithFragments).
+     * Called from JS: window.AndroidPrint.cacheImageFragment(dataUrl, optionsJson)
+     */
+    @JavascriptInterface
+    public String cacheImageFragment(String base64Image, String optionsJson) {
+        return timed("cacheImageFragment", () -> {
+            try {
+                RasterEncoder.Result raster = ImageRasterizer.rasterize(base64Image, optionsJson);
+                String ref = fragmentCache.put(raster.bytes);
+                JSONObject result = new JSONObject();
+                result.put("ref", ref);
+                result.put("width", raster.width);
+                result.put("height", raster.height);
+                result.put("bytes", raster.bytes.length);
+                if (raster.packed.length <= EscPos.MAX_NV_DATA) {
+                    int[] kc = nvKeyCode(ref);
+                    byte[] define = EscPos.defineNvGraphics(kc[0], kc[1], raster.packed, raster.rowBytes, raster.height);
+                    result.put("nvRef", fragmentCache.put(define));
+                }
+                return result.toString();
+            } catch (Exception e) {
+                return "{\"error\": \"" + e.getMessage() + "\"}";
+            }
+        });
+    }
 
-            return "OK";
+    /**
+     * Returns whether a fragment ref is still cached
+     * Called from JS: window.AndroidPrint.hasFragment(ref)
+     */
+    @JavascriptInterface
+    public String hasFragment(String ref) {
+        return timed("hasFragment", () -> {
+            return fragmentCache.contains(ref) ? "true" : "false";
+        });
+    }
+
+    /**
+     * Prints a mix of cached fragments and dynamic parts as one job. Items:
+     *   "ref" or { "ref": ref }           cached fragment
+     *   { "data": base64 }                 dynamic ESC/POS bytes
+     *   { "text": "..." }                  UTF-8 text
+     *   { "receipt": { ... } }             receipt model, rendered natively
+     *   { "logo": ref, "nv": nvRef }       logo printed from printer NV memory once
+     *                                      stored there, falling back to the raster
+     * Called from JS: window.AndroidPrint.printWithFragments(JSON.stringify(items))
+     */
+    @JavascriptInterface
+    public String printWithFragments(String itemsJson) {
+        return timed("printWithFragments", () -> submitFragments(null, itemsJson));
+    }
+
+    /**
+     * Prints fragments and dynamic parts as one job on a role or address
+     * Called from JS: window.AndroidPrint.printWithFragmentsTo("receipt", JSON.stringify(items))
+     */
+    @JavascriptInterface
+    public String printWithFragmentsTo(String target, String itemsJson) {
+        return timed("printWithFragmentsTo", () -> submitFragments(target, itemsJson));
+    }
 
+    private String submitFragments(String target, String itemsJson) {
+        try {
+            // Fail fast on evicted refs so the page can re-cache and retry
+            String missing = missingFragment(new JSONArray(itemsJson));
+            if (missing != null) {
+                return "ERROR: Missing fragment " + missing;
+            }
         } catch (Exception e) {
-            return "ERROR: " + e.getMessage();
+            return "ERROR: Invalid fragment list: " + e.getMessage();
         }
+        return submit(target, PrintJob.Kind.FRAGMENTS, itemsJson.getBytes(StandardCharsets.UTF_8), null);
     }
 
     /**
-     * Disconnects from the Bluetooth printer
+     * Returns fragment cache counters as JSON
+     * Called from JS: window.AndroidPrint.getFragmentCacheStats()
+     */
+    @JavascriptInterface
+    public String getFragmentCacheStats() {
+        return timed("getFragmentCacheStats", () -> {
+            return fragmentCache.statsJson();
+        });
+    }
+
+    /**
+     * Cancels a queued or running print job on whichever printer holds it
+     * Called from JS: window.AndroidPrint.cancelJob(jobId)
+     */
+    @JavascriptInterface
+    public String cancelJob(String jobId) {
+        return timed("cancelJob", () -> {
+            long id;
+            try {
+                id = Long.parseLong(jobId.trim());
+            } catch (NumberFormatException | NullPointerException e) {
+                return "ERROR: Invalid job id";
+            }
+            synchronized (spooling) {
+                if (spooling.containsKey(id)) {
+                    // Cancelled as soon as it is queued
+                    cancelledWhileSpooling.add(id);
+                    return "OK";
+                }
+            }
+            // Job ids are unique across queues
+            for (PrinterSession session : sessions.values()) {
+                if (session.queue.cancel(id)) {
+                    return "OK";
+                }
+            }
+            return "ERROR: No such job";
+        });
+    }
+
+    /**
+     * Returns the number of jobs waiting or printing on all printers
+     * Called from JS: window.AndroidPrint.getQueueDepth()
+     */
+    @JavascriptInterface
+    public String getQueueDepth() {
+        return timed("getQueueDepth", () -> {
+            int depth;
+            synchronized (spooling) {
+                depth = spooling.size();
+            }
+            for (PrinterSession session : sessions.values()) {
+                depth += session.queue.depth();
+            }
+            return String.valueOf(depth);
+        });
+    }
+
+    /**
+     * Disconnects from the default printer
      * Called from JS: window.AndroidPrint.disconnect()
      */
     @JavascriptInterface
     public String disconnect() {
-        try {
-            if (outputStream != null) {
-                outputStream.close();
-                outputStream = null;
+        return timed("disconnect", () -> {
+            String address = defaultAddress;
+            defaultAddress = null;
+            if (address != null) {
+                closeSession(address);
             }
-            if (bluetoothSocket != null) {
-                bluetoothSocket.close();
-                bluetoothSocket = null;
+            return "OK";
+        });
+    }
+
+    /**
+     * Disconnects one printer by role or address; its pending jobs are cancelled
+     * Called from JS: window.AndroidPrint.disconnectDevice("label")
+     */
+    @JavascriptInterface
+    public String disconnectDevice(String target) {
+        return timed("disconnectDevice", () -> {
+            String address = resolve(target);
+            if (address == null) {
+                return noPrinter(target);
             }
-            connectedDeviceName = "";
+            if (address.equals(defaultAddress)) {
+                defaultAddress = null;
+            }
+            closeSession(address);
             return "OK";
-        } catch (IOException e) {
-            return "ERROR: " + e.getMessage();
-        }
+        });
     }
 
     /**
-     * Returns whether a printer is currently connected
+     * Returns whether the default printer is currently connected
      * Called from JS: window.AndroidPrint.isConnected()
      */
     @JavascriptInterface
     public String isConnected() {
-        boolean connected = bluetoothSocket != null && bluetoothSocket.isConnected();
-        return connected ? "true" : "false";
+        return timed("isConnected", () -> {
+            PrinterSession session = defaultSession();
+            return session != null && session.connection.isConnected() ? "true" : "false";
+        });
     }
 
     /**
-     * Returns the name of the connected device
+     * Returns the name of the default printer when connected
      * Called from JS: window.AndroidPrint.getConnectedDevice()
      */
     @JavascriptInterface
     public String getConnectedDevice() {
-        return connectedDeviceName;
+        return timed("getConnectedDevice", () -> {
+            PrinterSession session = defaultSession();
+            return session != null && session.connection.isConnected() ? session.connection.deviceName() : "";
+        });
+    }
+
+    /**
+     * Returns the pacing learned for the default printer
+     * Called from JS: window.AndroidPrint.getPrinterProfile()
+     */
+    @JavascriptInterface
+    public String getPrinterProfile() {
+        return timed("getPrinterProfile", () -> {
+            try {
+                PrinterSession session = defaultSession();
+                PrinterConnection conn = session != null ? session.connection : null;
+                AdaptivePacer current = conn != null ? conn.pacer() : null;
+                if (current == null) {
+                    return "{\"error\": \"Printer not connected\"}";
+                }
+                JSONObject result = new JSONObject();
+                result.put("address", conn.address);
+                result.put("chunkSize", current.chunkSize());
+                result.put("gapMs", current.gapMs());
+                result.put("bytesPerSecond", current.bytesPerSecond());
+                result.put("stalls", current.stalls());
+                return result.toString();
+            } catch (Exception e) {
+                return "{\"error\": \"" + e.getMessage() + "\"}";
+            }
+        });
+    }
+
+    /**
+     * Forgets the learned pacing for the default printer
+     * Called from JS: window.AndroidPrint.resetPrinterProfile()
+     */
+    @JavascriptInterface
+    public String resetPrinterProfile() {
+        return timed("resetPrinterProfile", () -> {
+            PrinterSession session = defaultSession();
+            if (session == null) {
+                return "ERROR: Printer not connected";
+            }
+            PrinterConnection conn = session.connection;
+            profileStore.forget(conn.address);
+            AdaptivePacer current = conn.pacer();
+            if (current != null) {
+                current.reset(conn.transport.defaultProfile());
+            }
+            return "OK";
+        });
     }
 
     /**
@@ -239,10 +1027,747 @@ public class BluetoothPrintBridge {
         return "true";
     }
 
+    /**
+     * Call counts, latency percentiles and histograms, bytes and bytes/s for
+     * every bridge call ("js.*"), rendering ("render.*"), the Bluetooth
+     * connect ("bt.connect") and the SPP writes ("spp.write")
+     * Called from JS: window.AndroidPrint.getMetrics()
+     */
+    @JavascriptInterface
+    public String getMetrics() {
+        return BridgeMetrics.toJson().toString();
+    }
+
+    /**
+     * Clears all metrics, e.g. before reproducing a field issue
+     * Called from JS: window.AndroidPrint.resetMetrics()
+     */
+    @JavascriptInterface
+    public String resetMetrics() {
+        BridgeMetrics.reset();
+        return "OK";
+    }
+
+    /**
+     * Drops the in-memory fragment copies and cached glyphs when the system
+     * is short of memory; both are rebuilt on the next print. Jobs kept for
+     * reprint() are moved to disk on the spool thread, not dropped: for a
+     * printed job they are the only copy left. Queued jobs and open links
+     * are kept. Called from onTrimMemory.
+     */
+    public void trimMemory() {
+        fragmentCache.trimMemory();
+        textRasterizer.clear();
+        onSpoolThread(reprints::spill);
+    }
+
+    /**
+     * Cancels all pending jobs and closes every printer. Called from onDestroy.
+     */
+    public void shutdown() {
+        // Jobs cancelled by the shutdown stay spooled for the next start
+        shuttingDown = true;
+        defaultAddress = null;
+        deviceRegistry.stop();
+        for (String address : new ArrayList<>(sessions.keySet())) {
+            closeSession(address);
+        }
+        // Jobs still being spooled are written, for the next start
+        spoolWriter.shutdown();
+    }
+
+    // -------------------------------------------------------------------------
+    // Spool - jobs are on disk before they are queued
+    // -------------------------------------------------------------------------
+
+    /**
+     * Spools a job's source for the target printer and queues it, in the
+     * background; the id is returned at once.
+     */
+    private String submit(String target, PrintJob.Kind kind, byte[] payload, String options) {
+        PrinterSession session = sessionFor(target);
+        if (session == null) {
+            return noPrinter(target);
+        }
+        long id = nextJobId();
+        enqueue(session, Collections.singletonList(new PrintSpool.Record(id, session.address, kind, options, payload)), 0);
+        return "OK:" + id;
+    }
+
+    /**
+     * Has job sources spooled with one fsync and then queued in order, on
+     * the spool thread, so no bridge call (nor the UI thread, for the binary
+     * channel) waits for the disk.
+     */
+    private void enqueue(PrinterSession session, List<PrintSpool.Record> records, long batchId) {
+        if (records.isEmpty()) {
+            return;
+        }
+        synchronized (spooling) {
+            for (PrintSpool.Record record : records) {
+                spooling.put(record.id, record);
+            }
+        }
+        if (!onSpoolThread(() -> spoolAndQueue(session, records, batchId))) {
+            synchronized (spooling) {
+                for (PrintSpool.Record record : records) {
+                    spooling.remove(record.id);
+                }
+            }
+        }
+    }
+
+    /**
+     * If the spool cannot be written the jobs are still printed, just not
+     * durably, and their events say so. Runs on the spool thread.
+     */
+    private void spoolAndQueue(PrinterSession session, List<PrintSpool.Record> records, long batchId) {
+        PrinterSession target = session;
+        boolean spooled = false;
+        try {
+            spool.appendAll(records);
+            spooled = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not spool job " + records.get(0).id
+                    + (records.size() > 1 ? " and " + (records.size() - 1) + " more" : ""), e);
+        }
+        for (PrintSpool.Record record : records) {
+            PrintJob job;
+            if (spooled) {
+                job = spooledJob(record.id, record.address, record.kind);
+            } else if (record.kind == PrintJob.Kind.BASE64) {
+                job = base64Job(record.id, record.address, () -> new ByteArrayInputStream(record.payload));
+            } else {
+                job = new PrintJob(record.id, record.kind,
+                        j -> renderSource(j, record.kind, record.address, record.options, record.payload));
+            }
+            job.batchId = batchId;
+            job.unspooled = !spooled;
+            if (!shuttingDown) {
+                target = queueOn(target, job);
+            }
+            boolean cancelled;
+            synchronized (spooling) {
+                spooling.remove(record.id);
+                cancelled = cancelledWhileSpooling.remove(record.id);
+            }
+            if (cancelled && parked.remove(record.id)) {
+                spool.markDone(record.id);
+            } else if (cancelled) {
+                target.queue.cancel(record.id);
+            }
+        }
+    }
+
+    /**
+     * Queues a job on the session, or on the one that replaced it if it was
+     * closed while the job was being spooled. With no open session for the
+     * printer the job fails as retryable, so a spooled one is parked until
+     * the printer is back. Returns the session for the call's next job.
+     */
+    private PrinterSession queueOn(PrinterSession session, PrintJob job) {
+        if (session.queue.offer(job)) {
+            return session;
+        }
+        PrinterSession replacement = sessions.get(session.address);
+        if (replacement != null && replacement.queue.offer(job)) {
+            return replacement;
+        }
+        job.state = PrintJob.State.FAILED;
+        job.error = "Printer disconnected";
+        job.retryable = true;
+        onJobStateChanged(job);
+        events.post("androidPrintJob", jobJson(job, session.address));
+        return session;
+    }
+
+    /** Checks one printBatch item and turns it into a job source; throws with the reason it is unusable. */
+    private PrintSpool.Record batchRecord(long id, String address, JSONObject item) throws Exception {
+        String type = item.optString("type", "");
+        Object data = item.opt("data");
+        if (data == null || data == JSONObject.NULL || data.toString().isEmpty()) {
+            throw new IllegalArgumentException("Empty " + (type.isEmpty() ? "item" : type));
+        }
+        switch (type) {
+            case "base64":
+                return new PrintSpool.Record(id, address, PrintJob.Kind.BASE64,
+                        null, data.toString().getBytes(StandardCharsets.US_ASCII));
+            case "text":
+                return new PrintSpool.Record(id, address, PrintJob.Kind.TEXT,
+                        null, data.toString().getBytes(StandardCharsets.UTF_8));
+            case "receipt":
+                // An object or the JSON.stringify of one
+                return new PrintSpool.Record(id, address, PrintJob.Kind.RECEIPT,
+                        null, data.toString().getBytes(StandardCharsets.UTF_8));
+            case "shapedText":
+                Object textOptions = item.opt("options");
+                return new PrintSpool.Record(id, address, PrintJob.Kind.SHAPED_TEXT,
+                        textOptions != null ? textOptions.toString() : null, data.toString().getBytes(StandardCharsets.UTF_8));
+            case "image":
+                Object options = item.opt("options");
+                return new PrintSpool.Record(id, address, PrintJob.Kind.IMAGE,
+                        options != null ? options.toString() : null, data.toString().getBytes(StandardCharsets.US_ASCII));
+            case "fragments":
+                JSONArray fragments = data instanceof JSONArray ? (JSONArray) data : new JSONArray(data.toString());
+                String missing = missingFragment(fragments);
+                if (missing != null) {
+                    throw new IOException("Missing fragment " + missing);
+                }
+                return new PrintSpool.Record(id, address, PrintJob.Kind.FRAGMENTS,
+                        null, fragments.toString().getBytes(StandardCharsets.UTF_8));
+            default:
+                throw new IllegalArgumentException("Unknown type \"" + type + "\"");
+        }
+    }
+
+    /** A job whose source is read back from the spool when the writer reaches it. */
+    private PrintJob spooledJob(long id, String address, PrintJob.Kind kind) {
+        if (kind == PrintJob.Kind.BASE64) {
+            return base64Job(id, address, () -> {
+                InputStream in = spool.openPayload(id);
+                if (in == null) {
+                    throw new IOException("Job " + id + " is no longer spooled");
+                }
+                return in;
+            });
+        }
+        return new PrintJob(id, kind, j -> {
+            PrintSpool.Record record = spool.read(id);
+            if (record == null) {
+                throw new IOException("Job " + id + " is no longer spooled");
+            }
+            return renderSource(j, record.kind, record.address, record.options, record.payload);
+        });
+    }
+
+    /**
+     * A base64 job decoded block by block as the writer sends it, so even a
+     * large image job never exists decoded in memory. One small enough for
+     * the reprint cache is copied as it goes out and kept once written.
+     */
+    private PrintJob base64Job(long id, String address, PrintJob.Base64Source.Text payload) {
+        return new PrintJob(id, PrintJob.Kind.BASE64, new PrintJob.Base64Source(payload) {
+            @Override
+            public InputStream open(PrintJob job) throws IOException {
+                InputStream decoded = super.open(job);
+                if (job.totalBytes > ReprintCache.MAX_ENTRY_BYTES) {
+                    return decoded;
+                }
+                byte[] copy = new byte[(int) job.totalBytes];
+                job.afterWrite = () -> reprints.put(id, address, false, Collections.singletonList(copy));
+                return new FilterInputStream(decoded) {
+                    private int copied;
+
+                    @Override
+                    public int read() throws IOException {
+                        byte[] one = new byte[1];
+                        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        int n = in.read(b, off, len);
+                        if (n > 0) {
+                            System.arraycopy(b, off, copy, copied, n);
+                            copied += n;
+                        }
+                        return n;
+                    }
+                };
+            }
+        });
+    }
+
+    /** Turns a job source into ESC/POS parts. Runs on the writer thread. */
+    private List<byte[]> renderSource(PrintJob job, PrintJob.Kind kind, String address,
+                                      String options, byte[] payload) throws Exception {
+        long start = BridgeMetrics.start();
+        List<byte[]> parts = null;
+        try {
+            parts = render(job, kind, address, options, payload);
+            // A fragment job may print a logo from this printer's NV memory
+            reprints.put(job.id, address, kind == PrintJob.Kind.FRAGMENTS, parts);
+            return parts;
+        } finally {
+            long bytes = 0;
+            if (parts != null) {
+                for (byte[] part : parts) {
+                    bytes += part.length;
+                }
+            }
+            BridgeMetrics.record("render." + kind.name().toLowerCase(Locale.ROOT), start, bytes, parts != null);
+        }
+    }
+
+    private List<byte[]> render(PrintJob job, PrintJob.Kind kind, String address,
+                                String options, byte[] payload) throws Exception {
+        switch (kind) {
+            case BASE64:
+                // Only reprints of a job not yet printed get here; print jobs stream it
+                return Collections.singletonList(decodeBase64(payload));
+            case RECEIPT:
+                return Collections.singletonList(
+                        ReceiptRenderer.render(new JSONObject(new String(payload, StandardCharsets.UTF_8)), textRasterizer));
+            case IMAGE:
+                return Collections.singletonList(ImageRasterizer.rasterize(
+                        new String(payload, StandardCharsets.US_ASCII), options).bytes);
+            case SHAPED_TEXT:
+                return Collections.singletonList(textRasterizer.render(
+                        new String(payload, StandardCharsets.UTF_8), options).bytes);
+            case FRAGMENTS:
+                return renderFragments(job, new JSONArray(new String(payload, StandardCharsets.UTF_8)), address);
+            default:
+                // TEXT and RAW are sent as they are
+                return Collections.singletonList(payload);
+        }
+    }
+
+    /** Decodes a base64 payload into a single array of exactly its size. */
+    private static byte[] decodeBase64(byte[] payload) throws IOException {
+        byte[] data = new byte[(int) Base64DecodingInputStream.decodedLength(new ByteArrayInputStream(payload))];
+        try (InputStream in = new Base64DecodingInputStream(new ByteArrayInputStream(payload))) {
+            int off = 0;
+            int n;
+            while (off < data.length && (n = in.read(data, off, data.length - off)) > 0) {
+                off += n;
+            }
+        }
+        return data;
+    }
+
+    /** Printer of a job that was rendered or is still to print, or null. */
+    private String sourceAddress(long id) {
+        ReprintCache.Entry entry = reprints.get(id);
+        if (entry != null) {
+            return entry.address;
+        }
+        synchronized (spooling) {
+            PrintSpool.Record record = spooling.get(id);
+            if (record != null) {
+                return record.address;
+            }
+        }
+        for (PrinterSession session : sessions.values()) {
+            if (session.queue.contains(id)) {
+                return session.address;
+            }
+        }
+        // Parked for want of a printer, or spooled before a restart
+        for (PrintSpool.Record record : spool.pending()) {
+            if (record.id == id) {
+                return record.address;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies of a job's bytes, each after the marker, for a reprint job.
+     * Runs on the writer thread of the printer the copies go to.
+     */
+    private List<byte[]> renderReprint(PrintJob job, long sourceId, String address, int copies,
+                                       JSONObject options) throws Exception {
+        List<byte[]> source;
+        ReprintCache.Entry entry = reprints.get(sourceId);
+        if (entry != null && (!entry.printerBound || entry.address.equals(address))) {
+            source = entry.parts;
+        } else {
+            // Not rendered yet (e.g. queued on another printer), evicted, or
+            // using the other printer's stored logo: render the spooled source
+            PrintSpool.Record record = spool.read(sourceId);
+            if (record == null) {
+                synchronized (spooling) {
+                    record = spooling.get(sourceId);
+                }
+            }
+            if (record == null) {
+                throw new IOException(entry != null
+                        ? "Job " + sourceId + " prints a logo stored in " + entry.address + "; reprint it there"
+                        : "Job " + sourceId + " is no longer available for reprint");
+            }
+            source = render(job, record.kind, address, record.options, record.payload);
+        }
+        byte[] marker = copyMarker(options);
+        List<byte[]> parts = new ArrayList<>(copies * (source.size() + 1));
+        for (int i = 0; i < copies; i++) {
+            if (marker != null) {
+                parts.add(marker);
+            }
+            parts.addAll(source);
+        }
+        return parts;
+    }
+
+    /** The marker printed above each copy, or null for none. */
+    private byte[] copyMarker(JSONObject options) throws JSONException {
+        Object marker = options.opt("marker");
+        String text = Boolean.TRUE.equals(marker) ? "COPY"
+                : marker instanceof String ? ((String) marker).trim() : "";
+        if (text.isEmpty()) {
+            return null;
+        }
+        JSONObject block = new JSONObject();
+        block.put("text", text);
+        block.put("align", "center");
+        block.put("bold", true);
+        block.put("size", 2);
+        JSONObject receipt = new JSONObject();
+        receipt.put("columns", options.optInt("columns", ReceiptRenderer.DEFAULT_COLUMNS));
+        receipt.put("dots", options.optInt("dots", ReceiptRenderer.DEFAULT_DOTS));
+        receipt.put("header", new JSONArray().put(block));
+        receipt.put("feed", 1);
+        // Drawn as raster if the text needs it, e.g. an Arabic marker
+        return ReceiptRenderer.render(receipt, textRasterizer);
+    }
+
+    /** Keeps the spool in step with a job that just changed state. */
+    private void onJobStateChanged(PrintJob job) {
+        if (!job.isFinished() || shuttingDown || job.kind == PrintJob.Kind.REPRINT || job.unspooled) {
+            // Not in the spool: nothing to mark done, nor to send again
+            return;
+        }
+        if (job.state == PrintJob.State.FAILED && job.retryable) {
+            // Printer away or not ready: keep it and send it again when it is back
+            parked.add(job.id);
+        } else {
+            onSpoolThread(() -> spool.markDone(job.id));
+        }
+    }
+
+    /** A new job id, above those still spooled from a previous run even if start() has not run yet. */
+    private long nextJobId() {
+        if (!idsReserved) {
+            reserveIds();
+        }
+        return PrintQueue.nextId();
+    }
+
+    private void reserveIds() {
+        PrintQueue.reserveIds(spool.maxId());
+        idsReserved = true;
+    }
+
+    /** Runs a spool write after those already submitted; false once shut down. */
+    private boolean onSpoolThread(Runnable task) {
+        try {
+            spoolWriter.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /** Queues every spooled job once, after a restart, behind any spool write already under way. */
+    private void replaySpool() {
+        if (!spoolReplayed.compareAndSet(false, true)) {
+            return;
+        }
+        onSpoolThread(() -> {
+            for (PrintSpool.Record record : spool.pending()) {
+                PrinterSession session = canOpen(record.address) ? session(record.address) : null;
+                if (session != null) {
+                    session.queue.enqueue(spooledJob(record.id, record.address, record.kind));
+                }
+            }
+        });
+    }
+
+    /** Re-queues the parked jobs of a printer that is reachable and ready again. */
+    private void replayParked(String address) {
+        if (parked.isEmpty()) {
+            return;
+        }
+        PrinterSession session = sessions.get(address);
+        if (session == null) {
+            return;
+        }
+        for (PrintSpool.Record record : spool.pending()) {
+            if (record.address.equals(address) && parked.remove(record.id)) {
+                session.queue.enqueue(spooledJob(record.id, record.address, record.kind));
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Fragment rendering (runs on the session's writer thread)
+    // -------------------------------------------------------------------------
+
+    /** Resolves a printWithFragments list into parts. Runs on the writer thread. */
+    private List<byte[]> renderFragments(PrintJob job, JSONArray items, String address) throws Exception {
+        List<byte[]> parts = new ArrayList<>(items.length());
+        List<String> nvStored = new ArrayList<>();
+        for (int i = 0; i < items.length(); i++) {
+            Object item = items.get(i);
+            if (item instanceof String) {
+                parts.add(requireFragment((String) item));
+                continue;
+            }
+            JSONObject obj = (JSONObject) item;
+            if (obj.has("ref")) {
+                parts.add(requireFragment(obj.getString("ref")));
+            } else if (obj.has("data")) {
+                parts.add(android.util.Base64.decode(obj.getString("data"), android.util.Base64.DEFAULT));
+            } else if (obj.has("text")) {
+                parts.add(obj.getString("text").getBytes(StandardCharsets.UTF_8));
+            } else if (obj.has("receipt")) {
+                parts.add(ReceiptRenderer.render(obj.getJSONObject("receipt"), textRasterizer));
+            } else if (obj.has("logo")) {
+                String ref = obj.getString("logo");
+                String nvRef = obj.optString("nv", "");
+                int[] kc = nvKeyCode(ref);
+                String slot = address + "|" + (char) kc[0] + (char) kc[1];
+                if (ref.equals(nvGraphicsPrefs.getString(slot, null))) {
+                    parts.add(EscPos.printNvGraphics(kc[0], kc[1]));
+                } else if (!nvRef.isEmpty() && fragmentCache.contains(nvRef)) {
+                    parts.add(requireFragment(nvRef));
+                    parts.add(EscPos.printNvGraphics(kc[0], kc[1]));
+                    nvStored.add(slot + "=" + ref);
+                } else {
+                    parts.add(requireFragment(ref));
+                }
+            }
+        }
+        if (!nvStored.isEmpty()) {
+            // Only remember the NV upload once the printer has received all of it.
+            // A job rendered ahead of this one being written uploads it again, harmlessly
+            job.afterWrite = () -> {
+                SharedPreferences.Editor editor = nvGraphicsPrefs.edit();
+                for (String entry : nvStored) {
+                    int eq = entry.lastIndexOf('=');
+                    editor.putString(entry.substring(0, eq), entry.substring(eq + 1));
+                }
+                editor.apply();
+            };
+        }
+        return parts;
+    }
+
+    /** First ref in a printWithFragments list that is no longer cached, or null. */
+    private String missingFragment(JSONArray items) throws JSONException {
+        for (int i = 0; i < items.length(); i++) {
+            Object item = items.get(i);
+            String ref = item instanceof String ? (String) item
+                    : ((JSONObject) item).optString("ref", ((JSONObject) item).optString("logo", ""));
+            if (!ref.isEmpty() && !fragmentCache.contains(ref)) {
+                return ref;
+            }
+        }
+        return null;
+    }
+
+    private byte[] requireFragment(String ref) throws IOException {
+        byte[] data = fragmentCache.get(ref);
+        if (data == null) {
+            throw new IOException("Missing fragment " + ref);
+        }
+        return data;
+    }
+
+    /** NV key code pair (32..126 each) derived from a logo's content key. */
+    private static int[] nvKeyCode(String ref) {
+        int h = ref.hashCode() & 0x7FFFFFFF;
+        return new int[]{32 + h % 95, 32 + (h / 95) % 95};
+    }
+
     // -------------------------------------------------------------------------
     // Private helpers
     // -------------------------------------------------------------------------
 
+    /** {"error": message}, escaped: the message may quote the page's input. */
+    private static String errorJson(String message) {
+        JSONObject json = new JSONObject();
+        Json.put(json, "error", message);
+        return json.toString();
+    }
+
+    /**
+     * Runs a bridge call and records it as "js.<name>"; an error reply counts
+     * as an error. An exception is logged and answered as an error too,
+     * rather than thrown into the page.
+     */
+    private static String timed(String name, Supplier<String> call) {
+        long start = BridgeMetrics.start();
+        String result = null;
+        try {
+            result = call.get();
+            return result;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "js." + name + " failed", e);
+            return "ERROR: " + (e.getMessage() != null ? e.getMessage() : e.toString());
+        } finally {
+            boolean ok = result != null && !result.startsWith("ERROR") && !result.startsWith("{\"error\"");
+            BridgeMetrics.record("js." + name, start, ok);
+        }
+    }
+
+    /**
+     * Maps a target to a printer address: empty means the default printer
+     * (falling back to the last used one), otherwise a role, otherwise a MAC
+     * address. Returns null when nothing matches.
+     */
+    private String resolve(String target) {
+        if (target == null || target.trim().isEmpty()) {
+            if (defaultAddress == null) {
+                preconnectLastPrinter();
+            }
+            return defaultAddress;
+        }
+        String byRole = rolePrefs.getString(target.trim().toLowerCase(Locale.ROOT), null);
+        return byRole != null ? byRole : PrinterTransport.normalizeAddress(target);
+    }
+
+    /**
+     * Session that should take a job for the target, created on demand. The
+     * link itself may still be connecting or idle-closed; the writer waits.
+     */
+    private PrinterSession sessionFor(String target) {
+        String address = resolve(target);
+        if (address == null || !canOpen(address)) {
+            return null;
+        }
+        return session(address);
+    }
+
+    /**
+     * Bluetooth printers to rank first in the device list: the default (or
+     * last used) printer, then the others with a role, in a stable order.
+     */
+    private List<String> preferredPrinters() {
+        String first = defaultAddress;
+        if (first == null) {
+            first = PrinterTransport.normalizeAddress(prefs.getString(KEY_LAST_PRINTER, ""));
+        }
+        List<String> preferred = new ArrayList<>();
+        if (first != null) {
+            preferred.add(first);
+        }
+        for (Object address : new TreeSet<>(rolePrefs.getAll().values())) {
+            String normalized = PrinterTransport.normalizeAddress(String.valueOf(address));
+            if (normalized != null && !preferred.contains(normalized)) {
+                preferred.add(normalized);
+            }
+        }
+        return preferred;
+    }
+
+    /** Network and loopback printers work without Bluetooth. */
+    private boolean canOpen(String address) {
+        return bluetoothAdapter != null || !PrinterTransport.isBluetooth(address);
+    }
+
+    private PrinterSession defaultSession() {
+        String address = defaultAddress;
+        return address != null ? sessions.get(address) : null;
+    }
+
+    private PrinterSession session(String address) {
+        return sessions.computeIfAbsent(address, a -> {
+            PrinterSession session = new PrinterSession(PrinterTransport.forAddress(bluetoothAdapter, a), a, profileStore,
+                    new PrinterConnection.Listener() {
+                        @Override
+                        public void onConnectionStateChanged(PrinterConnection connection) {
+                            events.postState("androidPrinterConnection", a, connectionJson(connection));
+                            if (connection.state() == PrinterConnection.State.CONNECTED) {
+                                replayParked(connection.address);
+                            }
+                        }
+
+                        @Override
+                        public void onPrinterStatusChanged(PrinterConnection connection, PrinterStatus status) {
+                            JSONObject detail = status.toJson();
+                            Json.put(detail, "address", connection.address);
+                            events.postState("androidPrinterStatus", a, detail);
+                            if (status.isReady()) {
+                                replayParked(connection.address);
+                            }
+                        }
+                    },
+                    new PrintQueue.Listener() {
+                        @Override
+                        public void onJobStateChanged(PrintJob job) {
+                            BluetoothPrintBridge.this.onJobStateChanged(job);
+                            events.post("androidPrintJob", jobJson(job, a));
+                        }
+
+                        @Override
+                        public void onJobProgress(PrintJob job) {
+                            // Only the latest progress of a job is worth sending
+                            events.postLatest("androidPrintJob", String.valueOf(job.id), jobJson(job, a));
+                        }
+                    });
+            session.connection.setIdleTimeoutMs(
+                    prefs.getLong(KEY_IDLE_TIMEOUT, PrinterConnection.DEFAULT_IDLE_TIMEOUT_MS));
+            session.connection.open();
+            return session;
+        });
+    }
+
+    private void closeSession(String address) {
+        PrinterSession session = sessions.remove(address);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    private static String noPrinter(String target) {
+        return target == null || target.trim().isEmpty()
+                ? "ERROR: Printer not connected" : "ERROR: Unknown printer " + target;
+    }
+
+    private JSONArray rolesOf(String address) {
+        JSONArray roles = new JSONArray();
+        for (Map.Entry<String, ?> entry : rolePrefs.getAll().entrySet()) {
+            if (address.equals(entry.getValue())) {
+                roles.put(entry.getKey());
+            }
+        }
+        return roles;
+    }
+
+    private JSONObject statusJson(PrinterSession session) {
+        JSONObject json = connectionJson(session.connection);
+        Json.put(json, "connected", session.connection.isConnected());
+        Json.put(json, "queueDepth", session.queue.depth());
+        Json.put(json, "status", session.connection.status().toJson());
+        Json.put(json, "default", session.address.equals(defaultAddress));
+        Json.put(json, "roles", rolesOf(session.address));
+        return json;
+    }
+
+    private static JSONObject jobJson(PrintJob job, String address) {
+        JSONObject json = job.toJson();
+        Json.put(json, "address", address);
+        return json;
+    }
+
+    private static JSONObject connectionJson(PrinterConnection conn) {
+        JSONObject json = new JSONObject();
+        Json.put(json, "address", conn.address);
+        Json.put(json, "name", conn.deviceName());
+        Json.put(json, "transport", conn.transport.kind());
+        Json.put(json, "state", conn.state().name().toLowerCase());
+        String error = conn.lastError();
+        if (error != null) {
+            Json.put(json, "error", error);
+        }
+        return json;
+    }
+
+    /**
+     * Scanning needs BLUETOOTH_SCAN on Android 12+ and location before that.
+     * Asks for it when missing, so the page can simply try again.
+     */
+    private boolean checkScanPermission() {
+        String permission = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                ? Manifest.permission.BLUETOOTH_SCAN : Manifest.permission.ACCESS_FINE_LOCATION;
+        if (ContextCompat.checkSelfPermission(activity, permission) == PackageManager.PERMISSION_GRANTED) {
+            return true;
+        }
+        activity.runOnUiThread(() -> ActivityCompat.requestPermissions(activity,
+                new String[]{permission}, SCAN_PERMISSION_REQUEST_CODE));
+        return false;
+    }
+
     private boolean checkBluetoothPermission() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
             // Android 12+
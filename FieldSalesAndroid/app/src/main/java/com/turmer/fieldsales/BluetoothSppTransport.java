@@ -0,0 +1,105 @@
+package com.turmer.fieldsales;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Classic Bluetooth Serial Port Profile, which is what most mobile thermal
+ * printers (e.g. the Honeywell CT32) speak.
+ */
+final class BluetoothSppTransport implements PrinterTransport {
+
+    // Standard SPP UUID for Classic Bluetooth serial communication
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter adapter;
+    private final String address;
+
+    BluetoothSppTransport(BluetoothAdapter adapter, String address) {
+        this.adapter = adapter;
+        this.address = address;
+    }
+
+    @Override
+    public Channel connect() throws IOException {
+        BluetoothDevice device = adapter.getRemoteDevice(address);
+        String name = device.getName();
+
+        // Cancel discovery to speed up connection
+        adapter.cancelDiscovery();
+
+        // Connect via SPP (Serial Port Profile) - used by most thermal printers
+        BluetoothSocket socket = device.createRfcommSocketToServiceRecord(SPP_UUID);
+        long connectStart = BridgeMetrics.start();
+        boolean connected = false;
+        try {
+            socket.connect();
+            connected = true;
+            return new RfcommChannel(socket, name != null ? name : address);
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+            throw e;
+        } finally {
+            BridgeMetrics.record("bt.connect", connectStart, connected);
+        }
+    }
+
+    @Override
+    public String kind() {
+        return "spp";
+    }
+
+    @Override
+    public PrinterProfile defaultProfile() {
+        return PrinterProfile.DEFAULT;
+    }
+
+    private static final class RfcommChannel implements Channel {
+        private final BluetoothSocket socket;
+        private final String name;
+        private final InputStream in;
+        private final OutputStream out;
+
+        RfcommChannel(BluetoothSocket socket, String name) throws IOException {
+            this.socket = socket;
+            this.name = name;
+            this.in = socket.getInputStream();
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public InputStream in() {
+            return in;
+        }
+
+        @Override
+        public OutputStream out() {
+            return out;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return socket.isConnected();
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.turmer.fieldsales;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide call counters and latency histograms, so a slow print can be
+ * pinned on the JS call, rendering / base64 decoding, the RFCOMM connect or
+ * the SPP writes from one dump.
+ *
+ * Names are "js.&lt;method&gt;" for bridge calls, "render.&lt;kind&gt;",
+ * "bt.connect" / "tcp.connect" and "spp.write" / "tcp.write". Recording is
+ * a handful of lock-free adds (LongAdder, AtomicLongArray), cheap enough
+ * for every call. Read with
+ * {@link #toJson()}; a one-line-per-metric summary is logged under
+ * "BridgeMetrics" every {@link #LOG_INTERVAL_MIN} minutes while something
+ * is happening.
+ */
+final class BridgeMetrics {
+
+    private static final String TAG = "BridgeMetrics";
+
+    private static final long LOG_INTERVAL_MIN = 5;
+
+    // Histogram bucket upper bounds in ms; the last bucket is everything slower
+    private static final long[] BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+    /** One named operation. */
+    static final class Metric {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray histogram = new AtomicLongArray(BOUNDS_MS.length + 1);
+
+        void record(long nanos, long byteCount, boolean ok) {
+            calls.increment();
+            if (!ok) {
+                errors.increment();
+            }
+            totalNanos.add(nanos);
+            if (byteCount > 0) {
+                bytes.add(byteCount);
+            }
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            // Rounded up, or 1.9 ms would count as "<=1"
+            histogram.incrementAndGet(bucketOf((nanos + 999999) / 1000000));
+        }
+
+        JSONObject toJson() {
+            long count = calls.sum();
+            long total = totalNanos.sum();
+            long byteCount = bytes.sum();
+            JSONObject json = new JSONObject();
+            Json.put(json, "calls", count);
+            Json.put(json, "errors", errors.sum());
+            Json.put(json, "totalMs", total / 1000000);
+            Json.put(json, "avgMs", count > 0 ? round(total / 1e6 / count) : 0);
+            Json.put(json, "maxMs", round(maxNanos.get() / 1e6));
+            Json.put(json, "p50Ms", percentileMs(0.50));
+            Json.put(json, "p95Ms", percentileMs(0.95));
+            Json.put(json, "p99Ms", percentileMs(0.99));
+            if (byteCount > 0) {
+                Json.put(json, "bytes", byteCount);
+                // Over the time spent inside the operation, not wall time
+                Json.put(json, "bytesPerSec", total > 0 ? byteCount * 1000000000L / total : 0);
+            }
+            JSONObject buckets = new JSONObject();
+            for (int i = 0; i < histogram.length(); i++) {
+                long n = histogram.get(i);
+                if (n > 0) {
+                    Json.put(buckets, i < BOUNDS_MS.length ? "<=" + BOUNDS_MS[i] : ">" + BOUNDS_MS[i - 1], n);
+                }
+            }
+            Json.put(json, "histogramMs", buckets);
+            return json;
+        }
+
+        /** Upper bound of the bucket holding the given fraction of calls. */
+        private long percentileMs(double fraction) {
+            long count = 0;
+            long[] snapshot = new long[histogram.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = histogram.get(i);
+                count += snapshot[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    long maxMs = (maxNanos.get() + 999999) / 1000000;
+                    return i < BOUNDS_MS.length ? Math.min(BOUNDS_MS[i], maxMs) : maxMs;
+                }
+            }
+            return maxNanos.get() / 1000000;
+        }
+
+        private String summary() {
+            long count = calls.sum();
+            long total = totalNanos.sum();
+            long byteCount = bytes.sum();
+            StringBuilder line = new StringBuilder()
+                    .append(count).append(" calls, ").append(errors.sum()).append(" errors, avg ")
+                    .append(count > 0 ? round(total / 1e6 / count) : 0).append(" ms, p95 ")
+                    .append(percentileMs(0.95)).append(" ms, max ").append(round(maxNanos.get() / 1e6)).append(" ms");
+            if (byteCount > 0 && total > 0) {
+                line.append(", ").append(byteCount).append(" B at ")
+                        .append(byteCount * 1000000000L / total).append(" B/s");
+            }
+            return line.toString();
+        }
+    }
+
+    private static final Map<String, Metric> METRICS = new ConcurrentHashMap<>();
+    private static final AtomicBoolean LOGGING = new AtomicBoolean();
+    private static final AtomicLong RECORDED = new AtomicLong();
+    private static long lastLogged;
+
+    private BridgeMetrics() {
+    }
+
+    /** Start time for {@link #record}. */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    static void record(String name, long startNanos, boolean ok) {
+        record(name, startNanos, 0, ok);
+    }
+
+    static void record(String name, long startNanos, long bytes, boolean ok) {
+        metric(name).record(System.nanoTime() - startNanos, bytes, ok);
+        RECORDED.incrementAndGet();
+    }
+
+    /** Same as {@link #record} for a duration measured by the caller. */
+    static void recordNanos(String name, long nanos, long bytes, boolean ok) {
+        metric(name).record(nanos, bytes, ok);
+        RECORDED.incrementAndGet();
+    }
+
+    static Metric metric(String name) {
+        Metric metric = METRICS.get(name);
+        if (metric == null) {
+            metric = METRICS.computeIfAbsent(name, n -> new Metric());
+        }
+        return metric;
+    }
+
+    /** { metrics: { name: { calls, errors, avgMs, p95Ms, ..., bytesPerSec } } } sorted by name. */
+    static JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        JSONObject metrics = new JSONObject();
+        for (Map.Entry<String, Metric> entry : new TreeMap<>(METRICS).entrySet()) {
+            Json.put(metrics, entry.getKey(), entry.getValue().toJson());
+        }
+        Json.put(json, "metrics", metrics);
+        return json;
+    }
+
+    static void reset() {
+        METRICS.clear();
+    }
+
+    /** Starts the periodic logcat summary; later calls do nothing. */
+    static void startLogging() {
+        if (!LOGGING.compareAndSet(false, true)) {
+            return;
+        }
+        ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bridge-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        logger.scheduleAtFixedRate(BridgeMetrics::logSummary, LOG_INTERVAL_MIN, LOG_INTERVAL_MIN, TimeUnit.MINUTES);
+    }
+
+    private static void logSummary() {
+        long recorded = RECORDED.get();
+        if (recorded == lastLogged) {
+            // Nothing new since the last summary
+            return;
+        }
+        lastLogged = recorded;
+        for (Map.Entry<String, Metric> entry : new TreeMap<>(METRICS).entrySet()) {
+            Log.i(TAG, entry.getKey() + ": " + entry.getValue().summary());
+        }
+    }
+
+    private static int bucketOf(long ms) {
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            if (ms <= BOUNDS_MS[i]) {
+                return i;
+            }
+        }
+        return BOUNDS_MS.length;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
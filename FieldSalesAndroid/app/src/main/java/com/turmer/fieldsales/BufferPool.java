@@ -0,0 +1,42 @@
+package com.turmer.fieldsales;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small pool of fixed-size byte buffers shared by the print writers.
+ *
+ * Every chunk the pacer can ask for fits in one buffer, so a job of any size
+ * streams through the same few kilobytes instead of allocating per job.
+ */
+final class BufferPool {
+
+    static final int BUFFER_SIZE = AdaptivePacer.MAX_CHUNK;
+    private static final int MAX_POOLED = 8;
+
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    static byte[] acquire() {
+        byte[] buffer = POOL.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return buffer;
+    }
+
+    static void release(byte[] buffer) {
+        if (buffer == null || buffer.length != BUFFER_SIZE) {
+            return;
+        }
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(buffer);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+}
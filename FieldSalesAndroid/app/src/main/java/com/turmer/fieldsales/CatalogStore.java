@@ -0,0 +1,536 @@
+package com.turmer.fieldsales;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Local SQLite copy of the Odoo catalog: products, product categories,
+ * pricelist rules and customers.
+ *
+ * Each synced model is a {@link Table}: a plain table keyed by the Odoo id,
+ * plus an FTS4 index over the searchable columns (prefix-indexed, so
+ * "ora juic" finds "Orange Juice 1L" without a table scan). Per model the
+ * newest (write_date, id) seen is kept as the watermark for the next
+ * incremental pull; see {@link CatalogSync}.
+ *
+ * The database is a cache of the server: a schema change simply drops it
+ * and the next sync pulls everything again.
+ */
+final class CatalogStore extends SQLiteOpenHelper implements CatalogSync.Store {
+
+    private static final String DB_NAME = "catalog.db";
+    private static final int DB_VERSION = 1;
+
+    private static final int TEXT = 0;
+    private static final int REAL = 1;
+    private static final int INTEGER = 2;
+    // many2one [id, "name"] -> id or name
+    private static final int M2O_ID = 3;
+    private static final int M2O_NAME = 4;
+
+    /** One column of a synced table, filled from an Odoo field. */
+    static final class Column {
+        final String name;
+        final String field;
+        final int type;
+
+        Column(String name, String field, int type) {
+            this.name = name;
+            this.field = field;
+            this.type = type;
+        }
+    }
+
+    /** An Odoo model mirrored into a table (and optionally a full-text index). */
+    static final class Table {
+        final String model;
+        final String name;
+        final String domain;
+        final Column[] columns;
+        final String[] searchColumns;
+
+        Table(String model, String name, String domain, Column[] columns, String... searchColumns) {
+            this.model = model;
+            this.name = name;
+            this.domain = domain;
+            this.columns = columns;
+            this.searchColumns = searchColumns;
+        }
+
+        String ftsName() {
+            return searchColumns.length > 0 ? name + "_fts" : null;
+        }
+
+        /** The Odoo fields to read, always including id and write_date. */
+        String[] fields() {
+            String[] fields = new String[columns.length + 2];
+            fields[0] = "id";
+            fields[1] = "write_date";
+            for (int i = 0; i < columns.length; i++) {
+                fields[i + 2] = columns[i].field;
+            }
+            return fields;
+        }
+    }
+
+    static final Table CATEGORIES = new Table("product.category", "categories", "[]", new Column[]{
+            new Column("name", "complete_name", TEXT),
+            new Column("parentPath", "parent_path", TEXT)});
+
+    static final Table PRODUCTS = new Table("product.product", "products", "[[\"sale_ok\", \"=\", true]]",
+            new Column[]{
+                    new Column("name", "display_name", TEXT),
+                    new Column("code", "default_code", TEXT),
+                    new Column("barcode", "barcode", TEXT),
+                    new Column("price", "lst_price", REAL),
+                    new Column("uom", "uom_id", M2O_NAME),
+                    new Column("categId", "categ_id", M2O_ID),
+                    new Column("tmplId", "product_tmpl_id", M2O_ID)},
+            "name", "code", "barcode");
+
+    static final Table PRICE_RULES = new Table("product.pricelist.item", "priceRules", "[]", new Column[]{
+            new Column("pricelistId", "pricelist_id", M2O_ID),
+            new Column("appliedOn", "applied_on", TEXT),
+            new Column("productId", "product_id", M2O_ID),
+            new Column("tmplId", "product_tmpl_id", M2O_ID),
+            new Column("categId", "categ_id", M2O_ID),
+            new Column("minQty", "min_quantity", REAL),
+            new Column("compute", "compute_price", TEXT),
+            new Column("fixedPrice", "fixed_price", REAL),
+            new Column("percent", "percent_price", REAL),
+            new Column("base", "base", TEXT),
+            new Column("basePricelistId", "base_pricelist_id", M2O_ID),
+            new Column("discount", "price_discount", REAL),
+            new Column("surcharge", "price_surcharge", REAL),
+            new Column("rounding", "price_round", REAL),
+            new Column("minMargin", "price_min_margin", REAL),
+            new Column("maxMargin", "price_max_margin", REAL),
+            new Column("dateStart", "date_start", TEXT),
+            new Column("dateEnd", "date_end", TEXT)});
+
+    static final Table CUSTOMERS = new Table("res.partner", "customers", "[[\"customer_rank\", \">\", 0]]",
+            new Column[]{
+                    new Column("name", "name", TEXT),
+                    new Column("ref", "ref", TEXT),
+                    new Column("phone", "phone", TEXT),
+                    new Column("mobile", "mobile", TEXT),
+                    new Column("email", "email", TEXT),
+                    new Column("street", "street", TEXT),
+                    new Column("city", "city", TEXT),
+                    new Column("vat", "vat", TEXT),
+                    new Column("pricelistId", "property_product_pricelist", M2O_ID)},
+            "name", "ref", "phone", "mobile", "city");
+
+    /** In sync order: rules and products refer to categories. */
+    static final Table[] TABLES = {CATEGORIES, PRODUCTS, PRICE_RULES, CUSTOMERS};
+
+    /** Where the last pull of a model stopped. */
+    static final class Watermark {
+        final String writeDate;
+        final long lastId;
+        final long syncedAt;
+
+        Watermark(String writeDate, long lastId, long syncedAt) {
+            this.writeDate = writeDate;
+            this.lastId = lastId;
+            this.syncedAt = syncedAt;
+        }
+    }
+
+    CatalogStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        // Searches keep working while a sync page is being written
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        for (Table table : TABLES) {
+            StringBuilder sql = new StringBuilder("CREATE TABLE ").append(table.name)
+                    .append(" (id INTEGER PRIMARY KEY");
+            for (Column column : table.columns) {
+                sql.append(", ").append(column.name).append(column.type == REAL ? " REAL"
+                        : column.type == INTEGER || column.type == M2O_ID ? " INTEGER" : " TEXT");
+            }
+            db.execSQL(sql.append(")").toString());
+            if (table.ftsName() != null) {
+                db.execSQL("CREATE VIRTUAL TABLE " + table.ftsName() + " USING fts4("
+                        + String.join(", ", table.searchColumns) + ", tokenize=unicode61, prefix=\"2,3\")");
+            }
+        }
+        db.execSQL("CREATE INDEX products_barcode ON products (barcode)");
+        db.execSQL("CREATE INDEX priceRules_pricelist ON priceRules (pricelistId, appliedOn)");
+        db.execSQL("CREATE TABLE syncState (model TEXT PRIMARY KEY, writeDate TEXT, lastId INTEGER, syncedAt INTEGER)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        dropAll(db);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    // -------------------------------------------------------------------------
+    // Sync side
+    // -------------------------------------------------------------------------
+
+    @Override
+    public Watermark watermark(Table table) {
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT writeDate, lastId, syncedAt FROM syncState WHERE model = ?", new String[]{table.model})) {
+            if (c.moveToFirst()) {
+                return new Watermark(c.getString(0), c.getLong(1), c.getLong(2));
+            }
+        }
+        return new Watermark(null, 0, 0);
+    }
+
+    /** Upserts one page of search_read rows and moves the watermark, in one transaction. */
+    @Override
+    public void apply(Table table, JSONArray rows, Watermark next) throws JSONException {
+        SQLiteDatabase db = getWritableDatabase();
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ").append(table.name).append(" (id");
+        for (Column column : table.columns) {
+            sql.append(", ").append(column.name);
+        }
+        sql.append(") VALUES (?");
+        for (int i = 0; i < table.columns.length; i++) {
+            sql.append(", ?");
+        }
+        sql.append(")");
+
+        db.beginTransaction();
+        try (SQLiteStatement upsert = db.compileStatement(sql.toString());
+             SQLiteStatement ftsDelete = table.ftsName() != null
+                     ? db.compileStatement("DELETE FROM " + table.ftsName() + " WHERE docid = ?") : null;
+             SQLiteStatement ftsInsert = table.ftsName() != null
+                     ? db.compileStatement(ftsInsertSql(table)) : null) {
+            for (int r = 0; r < rows.length(); r++) {
+                JSONObject row = rows.getJSONObject(r);
+                long id = row.getLong("id");
+                upsert.clearBindings();
+                upsert.bindLong(1, id);
+                for (int i = 0; i < table.columns.length; i++) {
+                    bind(upsert, i + 2, table.columns[i], row.opt(table.columns[i].field));
+                }
+                upsert.executeInsert();
+                if (ftsInsert != null) {
+                    ftsDelete.bindLong(1, id);
+                    ftsDelete.executeUpdateDelete();
+                    ftsInsert.clearBindings();
+                    ftsInsert.bindLong(1, id);
+                    for (int i = 0; i < table.searchColumns.length; i++) {
+                        Column column = columnOf(table, table.searchColumns[i]);
+                        bind(ftsInsert, i + 2, column, row.opt(column.field));
+                    }
+                    ftsInsert.executeInsert();
+                }
+            }
+            saveWatermark(db, table, next.writeDate, next.lastId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Deletes local rows the server no longer returns (deleted, archived, out of the domain). */
+    @Override
+    public int prune(Table table, Set<Long> serverIds) {
+        SQLiteDatabase db = getWritableDatabase();
+        List<Long> gone = new ArrayList<>();
+        try (Cursor c = db.rawQuery("SELECT id FROM " + table.name, null)) {
+            while (c.moveToNext()) {
+                if (!serverIds.contains(c.getLong(0))) {
+                    gone.add(c.getLong(0));
+                }
+            }
+        }
+        if (gone.isEmpty()) {
+            return 0;
+        }
+        db.beginTransaction();
+        try (SQLiteStatement delete = db.compileStatement("DELETE FROM " + table.name + " WHERE id = ?");
+             SQLiteStatement ftsDelete = table.ftsName() != null
+                     ? db.compileStatement("DELETE FROM " + table.ftsName() + " WHERE docid = ?") : null) {
+            for (long id : gone) {
+                delete.bindLong(1, id);
+                delete.executeUpdateDelete();
+                if (ftsDelete != null) {
+                    ftsDelete.bindLong(1, id);
+                    ftsDelete.executeUpdateDelete();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return gone.size();
+    }
+
+    /** Records a completed sync of the model without moving its watermark. */
+    @Override
+    public void touch(Table table) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.execSQL("INSERT OR IGNORE INTO syncState (model, lastId) VALUES (?, 0)", new Object[]{table.model});
+        db.execSQL("UPDATE syncState SET syncedAt = ? WHERE model = ?",
+                new Object[]{System.currentTimeMillis(), table.model});
+    }
+
+    /** Drops everything; the next sync starts from scratch. */
+    void clear() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Table table : TABLES) {
+                db.execSQL("DELETE FROM " + table.name);
+                if (table.ftsName() != null) {
+                    db.execSQL("DELETE FROM " + table.ftsName());
+                }
+            }
+            db.execSQL("DELETE FROM syncState");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Queries
+    // -------------------------------------------------------------------------
+
+    /** Products whose name, internal reference or barcode has words starting with the query's words. */
+    JSONArray searchProducts(String query, int limit) {
+        return search(PRODUCTS, query, limit,
+                "(p.barcode = ?1 OR p.code = ?1 COLLATE NOCASE) DESC, p.name COLLATE NOCASE");
+    }
+
+    /** Customers by name, reference, phone or city. */
+    JSONArray searchCustomers(String query, int limit) {
+        return search(CUSTOMERS, query, limit, "(p.ref = ?1 COLLATE NOCASE) DESC, p.name COLLATE NOCASE");
+    }
+
+    /** Exact barcode lookup for the scanner; null if unknown. */
+    JSONObject productByBarcode(String barcode) throws JSONException {
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT * FROM products WHERE barcode = ? LIMIT 1", new String[]{barcode})) {
+            return c.moveToFirst() ? rowJson(c) : null;
+        }
+    }
+
+    /**
+     * Unit price of a product on a pricelist for a quantity, following Odoo's
+     * rule order; see {@link PriceRules#price}. Returns null for an unknown
+     * product.
+     */
+    JSONObject price(long productId, long pricelistId, double qty) throws JSONException {
+        SQLiteDatabase db = getReadableDatabase();
+        try (Cursor c = db.rawQuery("SELECT p.price, p.tmplId, c.parentPath FROM products p"
+                + " LEFT JOIN categories c ON c.id = p.categId WHERE p.id = ?",
+                new String[]{String.valueOf(productId)})) {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return PriceRules.price(id -> rulesOf(db, id), productId, c.getLong(1),
+                    c.isNull(2) ? "" : c.getString(2), c.getDouble(0), pricelistId, qty, utcNow());
+        }
+    }
+
+    /** Row counts and per-model sync times. */
+    JSONObject statusJson() throws JSONException {
+        SQLiteDatabase db = getReadableDatabase();
+        JSONObject json = new JSONObject();
+        for (Table table : TABLES) {
+            JSONObject model = new JSONObject();
+            try (Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + table.name, null)) {
+                c.moveToFirst();
+                model.put("count", c.getLong(0));
+            }
+            Watermark watermark = watermark(table);
+            model.put("writeDate", watermark.writeDate != null ? watermark.writeDate : JSONObject.NULL);
+            model.put("syncedAt", watermark.syncedAt);
+            json.put(table.name, model);
+        }
+        return json;
+    }
+
+    /** When the last full sync finished (the oldest model's time), 0 if never. */
+    long lastSyncedAt() {
+        long oldest = Long.MAX_VALUE;
+        for (Table table : TABLES) {
+            oldest = Math.min(oldest, watermark(table).syncedAt);
+        }
+        return oldest;
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private JSONArray search(Table table, String query, int limit, String order) {
+        String match = matchExpression(query);
+        String exact = query != null ? query.trim() : "";
+        String sql = match.isEmpty()
+                ? "SELECT p.* FROM " + table.name + " p ORDER BY p.name COLLATE NOCASE LIMIT ?"
+                : "SELECT p.* FROM " + table.name + " p JOIN " + table.ftsName() + " f ON f.docid = p.id"
+                        + " WHERE " + table.ftsName() + " MATCH ?3 ORDER BY " + order + " LIMIT ?2";
+        String[] args = match.isEmpty()
+                ? new String[]{String.valueOf(limit)}
+                : new String[]{exact, String.valueOf(limit), match};
+        JSONArray results = new JSONArray();
+        try (Cursor c = getReadableDatabase().rawQuery(sql, args)) {
+            while (c.moveToNext()) {
+                results.put(rowJson(c));
+            }
+        }
+        return results;
+    }
+
+    /** "Ora juic" -> "ora* juic*": every word must prefix-match. */
+    static String matchExpression(String query) {
+        if (query == null) {
+            return "";
+        }
+        StringBuilder match = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= query.length(); i++) {
+            char ch = i < query.length() ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(ch)) {
+                word.append(ch);
+            } else if (Character.getType(ch) != Character.NON_SPACING_MARK && word.length() > 0) {
+                // Anything else separates words, as the unicode61 tokenizer does (marks are dropped)
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                // Lower case, so a typed AND / OR / NOT is a word and not an operator
+                match.append(word.toString().toLowerCase(Locale.ROOT)).append('*');
+                word.setLength(0);
+            }
+        }
+        return match.toString();
+    }
+
+    /** The pricelist's rules with their category's parentPath and name, for {@link PriceRules}. */
+    private static List<JSONObject> rulesOf(SQLiteDatabase db, long pricelistId) {
+        List<JSONObject> rules = new ArrayList<>();
+        try (Cursor c = db.rawQuery("SELECT r.*, c.parentPath AS categPath, c.name AS categName"
+                + " FROM priceRules r LEFT JOIN categories c ON c.id = r.categId WHERE r.pricelistId = ?",
+                new String[]{String.valueOf(pricelistId)})) {
+            while (c.moveToNext()) {
+                rules.add(rowJson(c));
+            }
+        }
+        return rules;
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Column column, Object value) {
+        // Odoo sends false for an empty field of any type
+        if (value == null || value == JSONObject.NULL || Boolean.FALSE.equals(value)) {
+            statement.bindNull(index);
+            return;
+        }
+        switch (column.type) {
+            case REAL:
+                statement.bindDouble(index, ((Number) value).doubleValue());
+                break;
+            case INTEGER:
+                statement.bindLong(index, ((Number) value).longValue());
+                break;
+            case M2O_ID:
+            case M2O_NAME:
+                JSONArray pair = value instanceof JSONArray ? (JSONArray) value : null;
+                if (pair == null || pair.length() < 2) {
+                    statement.bindNull(index);
+                } else if (column.type == M2O_ID) {
+                    statement.bindLong(index, pair.optLong(0));
+                } else {
+                    statement.bindString(index, pair.optString(1));
+                }
+                break;
+            default:
+                statement.bindString(index, value.toString());
+        }
+    }
+
+    private static JSONObject rowJson(Cursor c) {
+        JSONObject row = new JSONObject();
+        for (int i = 0; i < c.getColumnCount(); i++) {
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    Json.put(row, c.getColumnName(i), JSONObject.NULL);
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    Json.put(row, c.getColumnName(i), c.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    // Odoo's JSON cannot carry NaN or infinity, so neither is stored
+                    Json.put(row, c.getColumnName(i), c.getDouble(i));
+                    break;
+                default:
+                    Json.put(row, c.getColumnName(i), c.getString(i));
+            }
+        }
+        return row;
+    }
+
+    private static String ftsInsertSql(Table table) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table.ftsName()).append(" (docid");
+        for (String column : table.searchColumns) {
+            sql.append(", ").append(column);
+        }
+        sql.append(") VALUES (?");
+        for (int i = 0; i < table.searchColumns.length; i++) {
+            sql.append(", ?");
+        }
+        return sql.append(")").toString();
+    }
+
+    private static Column columnOf(Table table, String name) {
+        for (Column column : table.columns) {
+            if (column.name.equals(name)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("No column " + name + " in " + table.name);
+    }
+
+    private static void saveWatermark(SQLiteDatabase db, Table table, String writeDate, long lastId) {
+        db.execSQL("INSERT OR REPLACE INTO syncState (model, writeDate, lastId, syncedAt) VALUES (?, ?, ?, ?)",
+                new Object[]{table.model, writeDate, lastId, System.currentTimeMillis()});
+    }
+
+    private static void dropAll(SQLiteDatabase db) {
+        for (Table table : TABLES) {
+            db.execSQL("DROP TABLE IF EXISTS " + table.name);
+            if (table.ftsName() != null) {
+                db.execSQL("DROP TABLE IF EXISTS " + table.ftsName());
+            }
+        }
+        db.execSQL("DROP TABLE IF EXISTS syncState");
+    }
+
+    /** Odoo stores UTC "yyyy-MM-dd HH:mm:ss"; dates-only compare on their prefix. */
+    private static String utcNow() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date());
+    }
+}
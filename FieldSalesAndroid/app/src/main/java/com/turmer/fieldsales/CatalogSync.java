@@ -0,0 +1,115 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Pulls the catalog from Odoo into a {@link CatalogStore}.
+ *
+ * Per model only records changed since the stored watermark are read,
+ * ordered by (write_date, id) in pages of {@link #PAGE_SIZE}; each page is
+ * committed with its watermark, so an interrupted sync resumes where it
+ * stopped. Ties on write_date (a bulk write stamps many records with the
+ * same second) are broken by id. Deletions and archiving do not show up in
+ * write_date, so each pass ends with an ids-only search and drops the local
+ * rows the server no longer returns.
+ */
+final class CatalogSync {
+
+    private static final int PAGE_SIZE = 500;
+
+    /** Where the pulled rows go: the {@link CatalogStore}. */
+    interface Store {
+        CatalogStore.Watermark watermark(CatalogStore.Table table);
+
+        /** Upserts one page and moves the model's watermark to {@code next}, both or neither. */
+        void apply(CatalogStore.Table table, JSONArray rows, CatalogStore.Watermark next) throws JSONException;
+
+        /** Deletes the rows whose id is not in {@code serverIds}; returns how many. */
+        int prune(CatalogStore.Table table, Set<Long> serverIds);
+
+        /** Records a completed sync of the model. */
+        void touch(CatalogStore.Table table);
+    }
+
+    private final OdooRpc rpc;
+    private final Store store;
+
+    CatalogSync(OdooRpc rpc, Store store) {
+        this.rpc = rpc;
+        this.store = store;
+    }
+
+    /**
+     * Syncs every model in order. Blocking; call from a background thread.
+     *
+     * @return per model { fetched, removed }, plus tookMs
+     */
+    JSONObject run() throws IOException {
+        long started = System.currentTimeMillis();
+        JSONObject summary = new JSONObject();
+        try {
+            for (CatalogStore.Table table : CatalogStore.TABLES) {
+                JSONObject counts = new JSONObject();
+                counts.put("fetched", pull(table));
+                counts.put("removed", prune(table));
+                store.touch(table);
+                summary.put(table.name, counts);
+            }
+            summary.put("tookMs", System.currentTimeMillis() - started);
+        } catch (JSONException e) {
+            throw new IOException("Bad sync data", e);
+        }
+        return summary;
+    }
+
+    private int pull(CatalogStore.Table table) throws IOException, JSONException {
+        int fetched = 0;
+        while (true) {
+            JSONArray domain = domainAfter(table.domain, store.watermark(table));
+            JSONArray rows = rpc.searchRead(table.model, domain, table.fields(), "write_date asc, id asc", PAGE_SIZE);
+            if (rows.length() > 0) {
+                store.apply(table, rows, watermarkOf(rows));
+                fetched += rows.length();
+            }
+            if (rows.length() < PAGE_SIZE) {
+                return fetched;
+            }
+        }
+    }
+
+    /** The model's domain narrowed to what sorts after the watermark. */
+    static JSONArray domainAfter(String domain, CatalogStore.Watermark watermark) throws JSONException {
+        JSONArray after = new JSONArray(domain);
+        if (watermark.writeDate != null) {
+            // write_date > w OR (write_date = w AND id > lastId)
+            after.put("|")
+                    .put(new JSONArray().put("write_date").put(">").put(watermark.writeDate))
+                    .put("&")
+                    .put(new JSONArray().put("write_date").put("=").put(watermark.writeDate))
+                    .put(new JSONArray().put("id").put(">").put(watermark.lastId));
+        }
+        return after;
+    }
+
+    /** The watermark past a page: its last row, as pages come sorted by (write_date, id). */
+    static CatalogStore.Watermark watermarkOf(JSONArray rows) throws JSONException {
+        JSONObject last = rows.getJSONObject(rows.length() - 1);
+        return new CatalogStore.Watermark(last.getString("write_date"), last.getLong("id"),
+                System.currentTimeMillis());
+    }
+
+    private int prune(CatalogStore.Table table) throws IOException, JSONException {
+        JSONArray ids = rpc.search(table.model, new JSONArray(table.domain));
+        Set<Long> serverIds = new HashSet<>(ids.length() * 2);
+        for (int i = 0; i < ids.length(); i++) {
+            serverIds.add(ids.getLong(i));
+        }
+        return store.prune(table, serverIds);
+    }
+}
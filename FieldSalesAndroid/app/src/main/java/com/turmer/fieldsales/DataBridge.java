@@ -0,0 +1,374 @@
+package com.turmer.fieldsales;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import android.webkit.JavascriptInterface;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * JavaScript bridge to the local catalog.
+ * Exposed to WebView as window.AndroidData
+ *
+ * Usage from JavaScript:
+ *   window.AndroidData.sync()                          -> "OK" (runs in the background) or error message
+ *   window.AndroidData.searchProducts(query, limit)     -> JSON array of products
+ *   window.AndroidData.searchCustomers(query, limit)    -> JSON array of customers
+ *   window.AndroidData.findBarcode(barcode)             -> JSON product or ""
+ *   window.AndroidData.getPrice(productId, pricelistId, qty) -> JSON { price, listPrice, ruleId?, reason? }
+ *   window.AndroidData.getCatalogStatus()               -> JSON { syncing, products: { count, syncedAt }, ... }
+ *   window.AndroidData.clearCatalog()                   -> "OK"
+ *
+ * Offline outbox (orders and payments made without coverage):
+ *   window.AndroidData.queueOrder(valsJson, key)        -> "OK:<key>"; sale.order, confirmed once created
+ *   window.AndroidData.queuePayment(valsJson, key)      -> "OK:<key>"; account.payment, posted once created
+ *   window.AndroidData.queueRecord(model, valsJson, key, optionsJson) -> "OK:<key>" or error message
+ *   window.AndroidData.getOutbox()                      -> JSON array of entries
+ *   window.AndroidData.getOutboxStatus()                -> JSON { online, pending, done, failed }
+ *   window.AndroidData.flushOutbox()                    -> "OK"; send now, ignoring backoff
+ *   window.AndroidData.retryOutbox(key)                 -> "OK" or error message
+ *   window.AndroidData.discardOutbox(key)               -> "OK" or error message
+ *
+ * Searches match word prefixes on name, internal reference and barcode
+ * (customers: name, reference, phone, mobile, city) and answer from SQLite
+ * without touching the network. Sync progress is reported as
+ * 'androidCatalogSync' window events whose detail is
+ * { state: started / done / failed, summary?, error? }.
+ *
+ * The key is the page's idempotency key (e.g. a UUID made when the rep
+ * confirms): queueing the same key twice keeps one entry, and it is written
+ * to the record's key field so a resend never creates a duplicate. If the
+ * vals already fill that field (a customer's own PO number), that value is
+ * kept and the record is found by it instead, so it should be unique. Outbox
+ * changes are reported as 'androidOutbox' window events whose detail is
+ * { key, model, state: pending / done / failed, attempts, recordId?, error?, nextAttemptAt? }.
+ */
+public class DataBridge {
+
+    private static final String TAG = "DataBridge";
+
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 200;
+    // syncIfStale() leaves a catalog younger than this alone
+    private static final long STALE_AFTER_MS = 15 * 60 * 1000;
+
+    // Field that carries the idempotency key, unless the page names another
+    private static final Map<String, String> KEY_FIELDS = new HashMap<>();
+    // Follow-up methods the page may ask for after create
+    private static final Set<String> THEN_METHODS = new HashSet<>(Arrays.asList("action_confirm", "action_post"));
+
+    static {
+        KEY_FIELDS.put("sale.order", "client_order_ref");
+        KEY_FIELDS.put("account.payment", "ref");
+    }
+
+    private final PageEventBus events;
+    private final OdooRpc rpc;
+    private final CatalogStore store;
+    private final CatalogSync sync;
+    private final OutboxStore outbox;
+    private final OutboxSender outboxSender;
+    private final AtomicBoolean syncing = new AtomicBoolean();
+    private final ExecutorService syncExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "catalog-sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public DataBridge(Context context, PageEventBus events, OdooRpc rpc) {
+        this.events = events;
+        this.rpc = rpc;
+        this.store = new CatalogStore(context);
+        this.sync = new CatalogSync(rpc, store);
+        this.outbox = new OutboxStore(context);
+        this.outboxSender = new OutboxSender(rpc, outbox,
+                entry -> events.post("androidOutbox", entry.toJson()));
+    }
+
+    /**
+     * Starts an incremental sync of products, prices and customers
+     * Called from JS: window.AndroidData.sync()
+     */
+    @JavascriptInterface
+    public String sync() {
+        if (!syncing.compareAndSet(false, true)) {
+            return "ERROR: Sync already running";
+        }
+        syncExecutor.execute(this::runSync);
+        return "OK";
+    }
+
+    /**
+     * Searches products by word prefix; an empty query lists them by name
+     * Called from JS: window.AndroidData.searchProducts("ora juic", 20)
+     */
+    @JavascriptInterface
+    public String searchProducts(String query, int limit) {
+        return store.searchProducts(query, clampLimit(limit)).toString();
+    }
+
+    /**
+     * Searches customers by word prefix
+     * Called from JS: window.AndroidData.searchCustomers("ahmed riy", 20)
+     */
+    @JavascriptInterface
+    public String searchCustomers(String query, int limit) {
+        return store.searchCustomers(query, clampLimit(limit)).toString();
+    }
+
+    /**
+     * Looks up a scanned barcode
+     * Called from JS: window.AndroidData.findBarcode("6281234567890")
+     */
+    @JavascriptInterface
+    public String findBarcode(String barcode) {
+        if (barcode == null || barcode.trim().isEmpty()) {
+            return "";
+        }
+        try {
+            JSONObject product = store.productByBarcode(barcode.trim());
+            return product != null ? product.toString() : "";
+        } catch (JSONException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Unit price of a product on a pricelist for a quantity
+     * Called from JS: window.AndroidData.getPrice(productId, pricelistId, qty)
+     */
+    @JavascriptInterface
+    public String getPrice(long productId, long pricelistId, double qty) {
+        try {
+            JSONObject price = store.price(productId, pricelistId, qty);
+            return price != null ? price.toString() : "ERROR: Unknown product " + productId;
+        } catch (JSONException e) {
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Row counts and last sync times
+     * Called from JS: window.AndroidData.getCatalogStatus()
+     */
+    @JavascriptInterface
+    public String getCatalogStatus() {
+        try {
+            JSONObject status = store.statusJson();
+            status.put("syncing", syncing.get());
+            return status.toString();
+        } catch (JSONException e) {
+            return "{}";
+        }
+    }
+
+    /**
+     * Deletes the local catalog; the next sync downloads everything again
+     * Called from JS: window.AndroidData.clearCatalog()
+     */
+    @JavascriptInterface
+    public String clearCatalog() {
+        if (syncing.get()) {
+            return "ERROR: Sync running";
+        }
+        store.clear();
+        return "OK";
+    }
+
+    // -------------------------------------------------------------------------
+    // Offline outbox
+    // -------------------------------------------------------------------------
+
+    /**
+     * Queues a sale order (vals as for sale.order.create) and confirms it once created
+     * Called from JS: window.AndroidData.queueOrder(JSON.stringify(vals), uuid)
+     */
+    @JavascriptInterface
+    public String queueOrder(String valsJson, String key) {
+        return queueRecord("sale.order", valsJson, key, "{\"then\": \"action_confirm\"}");
+    }
+
+    /**
+     * Queues a customer payment (vals as for account.payment.create) and posts it once created
+     * Called from JS: window.AndroidData.queuePayment(JSON.stringify(vals), uuid)
+     */
+    @JavascriptInterface
+    public String queuePayment(String valsJson, String key) {
+        return queueRecord("account.payment", valsJson, key, "{\"then\": \"action_post\"}");
+    }
+
+    /**
+     * Queues any record; options: { keyField?, then?: "action_confirm" | "action_post" }
+     * Called from JS: window.AndroidData.queueRecord(model, valsJson, key, optionsJson)
+     */
+    @JavascriptInterface
+    public String queueRecord(String model, String valsJson, String key, String optionsJson) {
+        if (key == null || key.trim().isEmpty()) {
+            return "ERROR: Missing idempotency key";
+        }
+        try {
+            new JSONObject(valsJson);
+            JSONObject options = optionsJson != null && !optionsJson.isEmpty()
+                    ? new JSONObject(optionsJson) : new JSONObject();
+            String keyField = options.optString("keyField", KEY_FIELDS.get(model));
+            if (keyField == null || keyField.isEmpty()) {
+                return "ERROR: No key field for " + model;
+            }
+            String then = options.optString("then", null);
+            if (then != null && !THEN_METHODS.contains(then)) {
+                return "ERROR: Unsupported method " + then;
+            }
+            OutboxStore.Entry entry = outbox.add(key.trim(), model, keyField, valsJson, then);
+            events.post("androidOutbox", entry.toJson());
+            outboxSender.flushDue();
+            return "OK:" + entry.key;
+        } catch (JSONException e) {
+            return "ERROR: Invalid JSON - " + e.getMessage();
+        }
+    }
+
+    /**
+     * Every entry still queued, failed, or sent in the last week
+     * Called from JS: window.AndroidData.getOutbox()
+     */
+    @JavascriptInterface
+    public String getOutbox() {
+        return outbox.listJson().toString();
+    }
+
+    /**
+     * Entry counts per state
+     * Called from JS: window.AndroidData.getOutboxStatus()
+     */
+    @JavascriptInterface
+    public String getOutboxStatus() {
+        try {
+            return outbox.countsJson().toString();
+        } catch (JSONException e) {
+            return "{}";
+        }
+    }
+
+    /**
+     * Sends pending entries now instead of waiting for their backoff
+     * Called from JS: window.AndroidData.flushOutbox()
+     */
+    @JavascriptInterface
+    public String flushOutbox() {
+        outboxSender.flushNow();
+        return "OK";
+    }
+
+    /**
+     * Puts a failed entry (e.g. after fixing the customer in Odoo) back in line
+     * Called from JS: window.AndroidData.retryOutbox(key)
+     */
+    @JavascriptInterface
+    public String retryOutbox(String key) {
+        if (!outbox.retry(key)) {
+            return "ERROR: No failed entry " + key;
+        }
+        events.post("androidOutbox", outbox.get(key).toJson());
+        outboxSender.flushNow();
+        return "OK";
+    }
+
+    /**
+     * Drops an entry that was not sent
+     * Called from JS: window.AndroidData.discardOutbox(key)
+     */
+    @JavascriptInterface
+    public String discardOutbox(String key) {
+        return outbox.discard(key) ? "OK" : "ERROR: No unsent entry " + key;
+    }
+
+    // -------------------------------------------------------------------------
+    // Called from MainActivity
+    // -------------------------------------------------------------------------
+
+    /**
+     * Starts watching connectivity and sends what the outbox holds, on the
+     * sync thread. Called from onCreate once the page load has been issued.
+     */
+    void start(Context context) {
+        Context app = context.getApplicationContext();
+        syncExecutor.execute(() -> outboxSender.start(app));
+    }
+
+    /** The web client finished loading: the session may be fresh, so catch up. */
+    void onPageLoaded() {
+        syncIfStale();
+        outboxSender.flushNow();
+    }
+
+    /** Syncs in the background unless the catalog was synced recently. */
+    private void syncIfStale() {
+        if (rpc.origin() == null) {
+            return;
+        }
+        syncExecutor.execute(() -> {
+            if (System.currentTimeMillis() - store.lastSyncedAt() >= STALE_AFTER_MS
+                    && syncing.compareAndSet(false, true)) {
+                runSync();
+            }
+        });
+    }
+
+    /** Lets SQLite free its page caches when the system is short of memory. */
+    void trimMemory() {
+        SQLiteDatabase.releaseMemory();
+    }
+
+    void shutdown() {
+        syncExecutor.shutdownNow();
+        outboxSender.stop();
+        store.close();
+        outbox.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private void runSync() {
+        dispatchSyncEvent("started", null, null);
+        try {
+            JSONObject summary = sync.run();
+            Log.i(TAG, "Catalog synced: " + summary);
+            dispatchSyncEvent("done", summary, null);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Catalog sync failed", e);
+            dispatchSyncEvent("failed", null, e.getMessage());
+        } finally {
+            syncing.set(false);
+        }
+    }
+
+    private void dispatchSyncEvent(String state, JSONObject summary, String error) {
+        JSONObject detail = new JSONObject();
+        Json.put(detail, "state", state);
+        if (summary != null) {
+            Json.put(detail, "summary", summary);
+        }
+        if (error != null) {
+            Json.put(detail, "error", error);
+        }
+        events.post("androidCatalogSync", detail);
+    }
+
+    private static int clampLimit(int limit) {
+        return limit <= 0 ? DEFAULT_LIMIT : Math.min(limit, MAX_LIMIT);
+    }
+}
@@ -0,0 +1,121 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Order and JSON of the devices in the printer picker, for
+ * {@link PrinterDeviceRegistry}, which fills in the {@link Device}s from the
+ * bonded set and scan broadcasts. Free of android.bluetooth so the
+ * benchmark module runs this same code on a plain JVM.
+ *
+ * Devices are ranked: preferred printers (the default one first, then the
+ * last used and those with a role), then printers by device class, then by
+ * signal strength if seen in the last {@link #FRESH_MS}, then by name.
+ */
+final class DeviceRanking {
+
+    // A sighting older than this no longer counts for ranking
+    static final long FRESH_MS = 2 * 60 * 1000;
+    static final int NO_RSSI = Short.MIN_VALUE;
+
+    // Values of BluetoothDevice.DEVICE_TYPE_UNKNOWN and BluetoothClass.Device.Major
+    static final int TYPE_UNKNOWN = 0;
+    static final int MAJOR_UNCATEGORIZED = 0x1F00;
+    static final int MAJOR_IMAGING = 0x0600;
+
+    /** What we know about one device. Guarded by the registry. */
+    static final class Device {
+        final String address;
+        String name;
+        int type = TYPE_UNKNOWN;
+        int majorClass = MAJOR_UNCATEGORIZED;
+        boolean bonded;
+        int rssi = NO_RSSI;
+        long seenAt;
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        boolean isPrinter() {
+            return majorClass == MAJOR_IMAGING;
+        }
+
+        boolean isFresh(long now) {
+            return rssi != NO_RSSI && now - seenAt < FRESH_MS;
+        }
+    }
+
+    private DeviceRanking() {
+    }
+
+    /**
+     * { devices: [ { name, address, type, bonded, printer, preferred, rssi?, lastSeen? } ] }
+     * with the devices ranked; sorts the list in place.
+     *
+     * @param preferred default printer first, then other preferred addresses
+     */
+    static String pairedJson(List<Device> devices, List<String> preferred) {
+        JSONObject result = new JSONObject();
+        Json.put(result, "devices", rankedJson(devices, preferred));
+        return result.toString();
+    }
+
+    static JSONObject toJson(Device device, List<String> preferred) {
+        JSONObject json = new JSONObject();
+        Json.put(json, "name", device.name != null ? device.name : "Unknown");
+        Json.put(json, "address", device.address);
+        Json.put(json, "type", device.type); // 1=Classic, 2=BLE, 3=Dual
+        Json.put(json, "bonded", device.bonded);
+        Json.put(json, "printer", device.isPrinter());
+        Json.put(json, "preferred", preferred.contains(device.address));
+        if (device.rssi != NO_RSSI) {
+            Json.put(json, "rssi", device.rssi);
+            Json.put(json, "lastSeen", device.seenAt);
+        }
+        return json;
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private static JSONArray rankedJson(List<Device> list, List<String> preferred) {
+        long now = System.currentTimeMillis();
+        Collections.sort(list, (a, b) -> {
+            int byPreference = Integer.compare(preferenceOf(a, preferred), preferenceOf(b, preferred));
+            if (byPreference != 0) {
+                return byPreference;
+            }
+            if (a.isPrinter() != b.isPrinter()) {
+                return a.isPrinter() ? -1 : 1;
+            }
+            int rssiA = a.isFresh(now) ? a.rssi : NO_RSSI;
+            int rssiB = b.isFresh(now) ? b.rssi : NO_RSSI;
+            if (rssiA != rssiB) {
+                return Integer.compare(rssiB, rssiA);
+            }
+            return sortName(a).compareTo(sortName(b));
+        });
+        JSONArray devices = new JSONArray();
+        for (Device device : list) {
+            devices.put(toJson(device, preferred));
+        }
+        return devices;
+    }
+
+    /** 0 for the default printer, 1 for other preferred ones, 2 for the rest. */
+    private static int preferenceOf(Device device, List<String> preferred) {
+        int index = preferred.indexOf(device.address);
+        return index < 0 ? 2 : Math.min(index, 1);
+    }
+
+    private static String sortName(Device device) {
+        return device.name != null ? device.name.toLowerCase(Locale.ROOT) : "\uffff";
+    }
+}
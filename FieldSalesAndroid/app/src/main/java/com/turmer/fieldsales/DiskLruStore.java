@@ -0,0 +1,189 @@
+package com.turmer.fieldsales;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded key/value store of files in one app-private directory.
+ *
+ * Least recently used entries are deleted once the total exceeds the limit.
+ * Recency survives restarts through each file's modification time, which is
+ * bumped on every read. Writes go to a temp file and are renamed into place,
+ * so a crash never leaves a half-written entry behind.
+ *
+ * Keys become file names and must be [A-Za-z0-9_-]; callers use hashes.
+ *
+ * The directory is scanned on first use rather than in the constructor, so
+ * a store can be built on the main thread and indexed on the thread that
+ * first reads from it.
+ */
+final class DiskLruStore {
+
+    private static final String TAG = "DiskLruStore";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxBytes;
+    // key -> file size, in access order (eldest first)
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+    private boolean loaded;
+
+    DiskLruStore(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized boolean contains(String key) {
+        ensureLoaded();
+        return index.containsKey(key);
+    }
+
+    /** Returns the stored bytes, or null if absent or unreadable. */
+    synchronized byte[] get(String key) {
+        ensureLoaded();
+        Long size = index.get(key);
+        if (size == null) {
+            return null;
+        }
+        File file = fileFor(key);
+        byte[] data = new byte[(int) (long) size];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    throw new IOException("Short read");
+                }
+                read += n;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable entry " + key, e);
+            removeLocked(key);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return data;
+    }
+
+    /**
+     * Opens the entry for streaming, or returns null if absent. The stream
+     * stays readable even if the entry is evicted while it is open.
+     */
+    synchronized InputStream open(String key) {
+        ensureLoaded();
+        if (index.get(key) == null) {
+            return null;
+        }
+        File file = fileFor(key);
+        try {
+            InputStream in = new FileInputStream(file);
+            file.setLastModified(System.currentTimeMillis());
+            return in;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable entry " + key, e);
+            removeLocked(key);
+            return null;
+        }
+    }
+
+    synchronized void put(String key, byte[] data) throws IOException {
+        ensureLoaded();
+        if (data.length > maxBytes) {
+            throw new IOException("Entry larger than cache (" + data.length + " bytes)");
+        }
+        File tmp = new File(directory, key + TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        File file = fileFor(key);
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not store " + key);
+        }
+        Long old = index.put(key, (long) data.length);
+        totalBytes += data.length - (old != null ? old : 0);
+        trimTo(maxBytes);
+    }
+
+    synchronized void remove(String key) {
+        ensureLoaded();
+        removeLocked(key);
+    }
+
+    /** Evicts least recently used entries until at most targetBytes remain. */
+    synchronized void trimTo(long targetBytes) {
+        ensureLoaded();
+        Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+        while (totalBytes > targetBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            fileFor(eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    synchronized long sizeBytes() {
+        ensureLoaded();
+        return totalBytes;
+    }
+
+    synchronized int count() {
+        ensureLoaded();
+        return index.size();
+    }
+
+    File fileFor(String key) {
+        return new File(directory, key);
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private void removeLocked(String key) {
+        Long size = index.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        fileFor(key).delete();
+    }
+
+    private void ensureLoaded() {
+        if (!loaded) {
+            loaded = true;
+            loadIndex();
+        }
+    }
+
+    private void loadIndex() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + directory);
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                file.delete(); // left over from an interrupted write
+                continue;
+            }
+            index.put(file.getName(), file.length());
+            totalBytes += file.length();
+        }
+        trimTo(maxBytes);
+    }
+}
@@ -0,0 +1,87 @@
+package com.turmer.fieldsales;
+
+/**
+ * ESC/POS command bytes used by the native renderers.
+ *
+ * Only the subset the CT32 and similar 2"/3" thermal printers understand.
+ */
+final class EscPos {
+
+    static final byte ESC = 0x1B;
+    static final byte GS = 0x1D;
+    static final byte LF = 0x0A;
+
+    static final int ALIGN_LEFT = 0;
+    static final int ALIGN_CENTER = 1;
+    static final int ALIGN_RIGHT = 2;
+
+    /** ESC @ - reset printer to power-on defaults. */
+    static final byte[] INIT = {ESC, '@'};
+
+    /** GS V 66 0 - feed to cutter and partial cut (ignored by printers without a cutter). */
+    static final byte[] CUT = {GS, 'V', 66, 0};
+
+    private EscPos() {
+    }
+
+    /** ESC a n */
+    static byte[] align(int alignment) {
+        return new byte[]{ESC, 'a', (byte) alignment};
+    }
+
+    /** ESC E n */
+    static byte[] bold(boolean on) {
+        return new byte[]{ESC, 'E', (byte) (on ? 1 : 0)};
+    }
+
+    /** GS ! n - width and height multipliers, 1..8 each. */
+    static byte[] size(int width, int height) {
+        int w = Math.max(1, Math.min(8, width)) - 1;
+        int h = Math.max(1, Math.min(8, height)) - 1;
+        return new byte[]{GS, '!', (byte) ((w << 4) | h)};
+    }
+
+    /** ESC d n - print and feed n lines. */
+    static byte[] feed(int lines) {
+        return new byte[]{ESC, 'd', (byte) Math.max(0, Math.min(255, lines))};
+    }
+
+    /**
+     * GS ( L fn 67 - store a raster image in NV graphics memory under key
+     * (kc1, kc2), both 32..126. Written to flash, so only send it when the
+     * printer does not have the key yet.
+     */
+    static byte[] defineNvGraphics(int kc1, int kc2, byte[] packed, int rowBytes, int height) {
+        int k = rowBytes * height;
+        int p = 11 + k; // m fn a kc1 kc2 b xL xH yL yH c + data
+        int widthDots = rowBytes * 8;
+        byte[] cmd = new byte[5 + p];
+        int i = 0;
+        cmd[i++] = GS;
+        cmd[i++] = '(';
+        cmd[i++] = 'L';
+        cmd[i++] = (byte) (p & 0xFF);
+        cmd[i++] = (byte) ((p >> 8) & 0xFF);
+        cmd[i++] = 48;  // m
+        cmd[i++] = 67;  // fn: define NV graphics
+        cmd[i++] = 48;  // a: raster format
+        cmd[i++] = (byte) kc1;
+        cmd[i++] = (byte) kc2;
+        cmd[i++] = 1;   // b: one colour
+        cmd[i++] = (byte) (widthDots & 0xFF);
+        cmd[i++] = (byte) ((widthDots >> 8) & 0xFF);
+        cmd[i++] = (byte) (height & 0xFF);
+        cmd[i++] = (byte) ((height >> 8) & 0xFF);
+        cmd[i++] = 49;  // c: colour 1
+        System.arraycopy(packed, 0, cmd, i, k);
+        return cmd;
+    }
+
+    /** GS ( L fn 69 - print the NV graphics stored under (kc1, kc2) at normal scale. */
+    static byte[] printNvGraphics(int kc1, int kc2) {
+        return new byte[]{GS, '(', 'L', 6, 0, 48, 69, (byte) kc1, (byte) kc2, 1, 1};
+    }
+
+    /** Largest raster data the NV define command can carry in one go. */
+    static final int MAX_NV_DATA = 65535 - 11;
+}
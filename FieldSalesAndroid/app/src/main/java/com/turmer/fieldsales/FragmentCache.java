@@ -0,0 +1,154 @@
+package com.turmer.fieldsales;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed cache of pre-encoded ESC/POS fragments (logo raster,
+ * VAT header, footer, ...).
+ *
+ * A fragment's key is the SHA-256 of its bytes, so the page can keep a ref
+ * across sessions and the same content is never stored twice. Lookups hit a
+ * small in-memory LRU first and fall back to a {@link DiskLruStore} in the
+ * app cache directory.
+ */
+final class FragmentCache {
+
+    private static final String TAG = "FragmentCache";
+
+    private static final long MEMORY_BYTES = 2L * 1024 * 1024;
+    private static final long DISK_BYTES = 16L * 1024 * 1024;
+
+    private final DiskLruStore disk;
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(32, 0.75f, true);
+    private long memoryBytes;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    FragmentCache(Context context) {
+        this.disk = new DiskLruStore(new File(context.getCacheDir(), "escpos_fragments"), DISK_BYTES);
+    }
+
+    /** Stores the bytes and returns their content key. */
+    String put(byte[] data) throws IOException {
+        String key = keyOf(data);
+        if (!disk.contains(key)) {
+            disk.put(key, data);
+        }
+        remember(key, data);
+        return key;
+    }
+
+    /** Returns the fragment, or null if it was never stored or has been evicted. */
+    byte[] get(String key) {
+        synchronized (this) {
+            byte[] data = memory.get(key);
+            if (data != null) {
+                memoryHits.incrementAndGet();
+                return data;
+            }
+        }
+        if (!isValidKey(key)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        byte[] data = disk.get(key);
+        if (data == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+        remember(key, data);
+        return data;
+    }
+
+    boolean contains(String key) {
+        synchronized (this) {
+            if (memory.containsKey(key)) {
+                return true;
+            }
+        }
+        return isValidKey(key) && disk.contains(key);
+    }
+
+    /** Drops the in-memory copies; disk entries stay. */
+    synchronized void trimMemory() {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    String statsJson() {
+        JSONObject json = new JSONObject();
+        Json.put(json, "memoryHits", memoryHits.get());
+        Json.put(json, "diskHits", diskHits.get());
+        Json.put(json, "misses", misses.get());
+        Json.put(json, "memoryBytes", memoryBytesSnapshot());
+        Json.put(json, "diskBytes", disk.sizeBytes());
+        Json.put(json, "entries", disk.count());
+        return json.toString();
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private synchronized long memoryBytesSnapshot() {
+        return memoryBytes;
+    }
+
+    private synchronized void remember(String key, byte[] data) {
+        if (data.length > MEMORY_BYTES / 4) {
+            return; // keep big fragments on disk only
+        }
+        byte[] old = memory.put(key, data);
+        memoryBytes += data.length - (old != null ? old.length : 0);
+        Iterator<Map.Entry<String, byte[]>> it = memory.entrySet().iterator();
+        while (memoryBytes > MEMORY_BYTES && it.hasNext()) {
+            memoryBytes -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    static String keyOf(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory on every Android release
+            Log.e(TAG, "SHA-256 unavailable", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Refs come from JS; only our own hex keys may touch the file system
+    private static boolean isValidKey(String key) {
+        if (key == null || key.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
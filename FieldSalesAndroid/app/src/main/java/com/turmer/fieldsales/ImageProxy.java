@@ -0,0 +1,501 @@
+package com.turmer.fieldsales;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves Odoo's /web/image/... URLs downscaled on the device and re-encoded
+ * as WebP, fed from WebViewClient.shouldInterceptRequest.
+ *
+ * The size an image is wanted at is read from the URL (a WxH segment or
+ * width/height parameters, else the image_N field) and rounded up to a
+ * bucket of {@link #BUCKETS}, capped at {@link #MAX_EDGE}. When the URL asks
+ * for a larger image_N field than the bucket needs, the smallest field that
+ * still covers it is fetched instead (image_1920 -> image_512), so fewer
+ * bytes cross the network. The result is kept in a {@link DiskLruStore}
+ * with a small in-memory LRU on top, so each image and size is fetched once.
+ *
+ * Odoo URLs that carry a "unique" checksum change whenever the image does
+ * and are kept until evicted; others are refetched after a day.
+ */
+final class ImageProxy {
+
+    private static final String TAG = "ImageProxy";
+
+    // Entry header: magic, mime, fetchedAt, body length
+    private static final int MAGIC = 0x494D4731; // "IMG1"
+
+    static final int[] BUCKETS = {64, 128, 256, 512, 1024};
+    private static final int MAX_EDGE = 1024;
+    // image.mixin fields Odoo keeps pre-resized
+    private static final int[] SERVER_SIZES = {128, 256, 512, 1024, 1920};
+
+    private static final int WEBP_QUALITY = 80;
+    private static final int MAX_SOURCE_BYTES = 20 * 1024 * 1024;
+    private static final long MEMORY_BYTES = 4L * 1024 * 1024;
+    private static final long UNVERSIONED_TTL_MS = 24 * 60 * 60 * 1000;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    // Full-size decodes are the memory peak; two at a time is plenty for a list of thumbnails
+    private static final int MAX_PARALLEL_DECODES = 2;
+
+    private static final String[] FORWARDED_HEADERS = {"User-Agent", "Accept-Language", "Referer"};
+
+    private static final Pattern FIELD = Pattern.compile("^image_(\\d+)$");
+    private static final Pattern SIZE_SEGMENT = Pattern.compile("^(\\d+)x(\\d+)$");
+    private static final Pattern UNIQUE_SEGMENT = Pattern.compile("^\\d+-[0-9a-f]+$");
+
+    /** An encoded image ready to hand to the WebView. */
+    private static final class Image {
+        final String mimeType;
+        final long fetchedAt;
+        final byte[] body;
+
+        Image(String mimeType, long fetchedAt, byte[] body) {
+            this.mimeType = mimeType;
+            this.fetchedAt = fetchedAt;
+            this.body = body;
+        }
+    }
+
+    private final DiskLruStore store;
+    private final AssetCache.CookieSource cookies;
+    private final Semaphore decodeSlots = new Semaphore(MAX_PARALLEL_DECODES);
+    private volatile String origin;
+
+    // Guarded by itself
+    private final LinkedHashMap<String, Image> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesFetched = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong bytesFromCache = new AtomicLong();
+    private final AtomicLong decodedBytesSaved = new AtomicLong();
+
+    ImageProxy(File directory, long maxBytes, AssetCache.CookieSource cookies) {
+        this.store = new DiskLruStore(directory, maxBytes);
+        this.cookies = cookies;
+    }
+
+    /** Only images of this origin ("https://host[:port]") are proxied; null disables the proxy. */
+    void setOrigin(String origin) {
+        this.origin = origin;
+    }
+
+    boolean isImageRequest(String method, String url) {
+        String base = origin;
+        return base != null && "GET".equalsIgnoreCase(method)
+                && (url.startsWith(base + "/web/image/") || url.startsWith(base + "/web/image?"));
+    }
+
+    /**
+     * Returns the image at its bucket size, from memory, disk or the server.
+     * Returns null when the WebView should load the URL itself (error
+     * status, too large, offline and not cached). Blocking; call from the
+     * WebView's request thread.
+     */
+    AssetCache.Response fetch(String url, Map<String, String> requestHeaders) {
+        requests.incrementAndGet();
+        String key = FragmentCache.keyOf(url.getBytes(StandardCharsets.UTF_8));
+        boolean versioned = isVersioned(url);
+
+        Image image = fromMemory(key);
+        if (image != null && (versioned || !isExpired(image))) {
+            memoryHits.incrementAndGet();
+            return serve(image, true);
+        }
+        Image stale = image != null ? image : fromDisk(key);
+        if (stale != null && (versioned || !isExpired(stale))) {
+            diskHits.incrementAndGet();
+            remember(key, stale);
+            return serve(stale, true);
+        }
+
+        misses.incrementAndGet();
+        try {
+            image = download(url, requestHeaders);
+        } catch (IOException e) {
+            image = null;
+        }
+        if (image == null) {
+            // Offline or an error: an expired copy beats a broken image
+            return stale != null ? serve(stale, true) : null;
+        }
+        save(key, image);
+        remember(key, image);
+        return serve(image, false);
+    }
+
+    String statsJson() {
+        JSONObject json = new JSONObject();
+        Json.put(json, "requests", requests.get());
+        Json.put(json, "memoryHits", memoryHits.get());
+        Json.put(json, "diskHits", diskHits.get());
+        Json.put(json, "misses", misses.get());
+        Json.put(json, "bytesFetched", bytesFetched.get());
+        Json.put(json, "bytesServed", bytesServed.get());
+        Json.put(json, "bytesFromCache", bytesFromCache.get());
+        Json.put(json, "decodedBytesSaved", decodedBytesSaved.get());
+        Json.put(json, "entries", store.count());
+        Json.put(json, "sizeBytes", store.sizeBytes());
+        return json.toString();
+    }
+
+    /** Drops the memory tier when the system is short of memory; the disk copies stay. */
+    void trimMemory() {
+        synchronized (memory) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // URL handling
+    // -------------------------------------------------------------------------
+
+    /** Longest edge the page asked for, rounded up to a bucket. */
+    static int bucketOf(String url) {
+        // An explicit WxH wins over the field's nominal size; 0x0 means "as stored"
+        int sizeEdge = 0;
+        int fieldEdge = 0;
+        for (String segment : pathOf(url).split("/")) {
+            Matcher size = SIZE_SEGMENT.matcher(segment);
+            Matcher field = FIELD.matcher(segment);
+            if (size.matches()) {
+                sizeEdge = Math.max(Integer.parseInt(size.group(1)), Integer.parseInt(size.group(2)));
+            } else if (field.matches()) {
+                fieldEdge = Integer.parseInt(field.group(1));
+            }
+        }
+        String width = queryParam(url, "width");
+        String height = queryParam(url, "height");
+        if (width != null || height != null) {
+            sizeEdge = Math.max(parseOr(width, 0), parseOr(height, 0));
+        }
+        String fieldParam = queryParam(url, "field");
+        if (fieldParam != null) {
+            Matcher field = FIELD.matcher(fieldParam);
+            if (field.matches()) {
+                fieldEdge = Integer.parseInt(field.group(1));
+            }
+        }
+        int wanted = sizeEdge > 0 ? sizeEdge : fieldEdge > 0 ? fieldEdge : MAX_EDGE;
+        for (int bucket : BUCKETS) {
+            if (bucket >= wanted) {
+                return bucket;
+            }
+        }
+        return MAX_EDGE;
+    }
+
+    /** The same URL with image_N lowered to the smallest server size covering the bucket. */
+    static String serverUrlFor(String url, int bucket) {
+        int serverSize = SERVER_SIZES[SERVER_SIZES.length - 1];
+        for (int size : SERVER_SIZES) {
+            if (size >= bucket) {
+                serverSize = size;
+                break;
+            }
+        }
+        Matcher field = Pattern.compile("([/=])image_(\\d+)(?=[/?&#]|$)").matcher(url);
+        StringBuffer out = new StringBuffer();
+        while (field.find()) {
+            int requested = Integer.parseInt(field.group(2));
+            int size = requested > serverSize ? serverSize : requested;
+            field.appendReplacement(out, field.group(1) + "image_" + size);
+        }
+        field.appendTail(out);
+        return out.toString();
+    }
+
+    private static boolean isVersioned(String url) {
+        if (queryParam(url, "unique") != null) {
+            return true;
+        }
+        for (String segment : pathOf(url).split("/")) {
+            if (UNIQUE_SEGMENT.matcher(segment).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // -------------------------------------------------------------------------
+    // Fetch, downscale, encode
+    // -------------------------------------------------------------------------
+
+    private Image download(String url, Map<String, String> requestHeaders) throws IOException {
+        int bucket = bucketOf(url);
+        String smaller = serverUrlFor(url, bucket);
+        Image image = download(smaller, url, requestHeaders, bucket);
+        if (image == null && !smaller.equals(url)) {
+            // A model without the smaller field: take what the page asked for
+            image = download(url, url, requestHeaders, bucket);
+        }
+        return image;
+    }
+
+    private Image download(String fetchUrl, String url, Map<String, String> requestHeaders, int bucket)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(fetchUrl).openConnection();
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            conn.setUseCaches(false);
+            if (requestHeaders != null) {
+                for (String name : FORWARDED_HEADERS) {
+                    for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                        if (name.equalsIgnoreCase(header.getKey())) {
+                            conn.setRequestProperty(name, header.getValue());
+                        }
+                    }
+                }
+            }
+            String cookie = cookies != null ? cookies.cookiesFor(url) : null;
+            if (cookie != null && !cookie.isEmpty()) {
+                conn.setRequestProperty("Cookie", cookie);
+            }
+            if (conn.getResponseCode() != HttpURLConnection.HTTP_OK
+                    || conn.getContentLengthLong() > MAX_SOURCE_BYTES) {
+                return null;
+            }
+            byte[] source = readBody(conn.getInputStream());
+            if (source == null) {
+                return null;
+            }
+            bytesFetched.addAndGet(source.length);
+            String mimeType = conn.getContentType();
+            if (mimeType != null) {
+                mimeType = mimeType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+            }
+            return transcode(source, mimeType != null ? mimeType : "application/octet-stream", bucket);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    /** Downscales to fit the bucket and encodes WebP; keeps the source when that is not smaller. */
+    private Image transcode(byte[] source, String mimeType, int bucket) {
+        long now = System.currentTimeMillis();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(source, 0, source.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0 || "image/gif".equals(mimeType)) {
+            // SVG placeholders, animations: pass through untouched
+            return new Image(mimeType, now, source);
+        }
+        int longest = Math.max(bounds.outWidth, bounds.outHeight);
+        if (longest <= bucket && "image/webp".equals(mimeType)) {
+            return new Image(mimeType, now, source);
+        }
+
+        // Decode at the smallest power-of-two reduction still at least the bucket size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (longest / (options.inSampleSize * 2) >= bucket) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap decoded = null;
+        Bitmap scaled = null;
+        try {
+            decodeSlots.acquireUninterruptibly();
+            try {
+                decoded = BitmapFactory.decodeByteArray(source, 0, source.length, options);
+            } finally {
+                decodeSlots.release();
+            }
+            if (decoded == null) {
+                return new Image(mimeType, now, source);
+            }
+            scaled = decoded;
+            int edge = Math.max(decoded.getWidth(), decoded.getHeight());
+            if (edge > bucket) {
+                float ratio = (float) bucket / edge;
+                scaled = Bitmap.createScaledBitmap(decoded,
+                        Math.max(1, Math.round(decoded.getWidth() * ratio)),
+                        Math.max(1, Math.round(decoded.getHeight() * ratio)), true);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(source.length / 4 + 1024);
+            scaled.compress(webpFormat(), WEBP_QUALITY, out);
+            byte[] webp = out.toByteArray();
+            long sourcePixels = (long) bounds.outWidth * bounds.outHeight;
+            long servedPixels = (long) scaled.getWidth() * scaled.getHeight();
+            if (webp.length >= source.length && servedPixels >= sourcePixels) {
+                return new Image(mimeType, now, source);
+            }
+            // What the renderer would otherwise have decoded, at 4 bytes a pixel
+            decodedBytesSaved.addAndGet((sourcePixels - servedPixels) * 4);
+            return new Image("image/webp", now, webp);
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Out of memory downscaling " + bounds.outWidth + "x" + bounds.outHeight);
+            return new Image(mimeType, now, source);
+        } finally {
+            if (scaled != null && scaled != decoded) {
+                scaled.recycle();
+            }
+            if (decoded != null) {
+                decoded.recycle();
+            }
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat webpFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    // -------------------------------------------------------------------------
+    // Memory and disk tiers
+    // -------------------------------------------------------------------------
+
+    private Image fromMemory(String key) {
+        synchronized (memory) {
+            return memory.get(key);
+        }
+    }
+
+    private void remember(String key, Image image) {
+        if (image.body.length > MEMORY_BYTES / 8) {
+            return;
+        }
+        synchronized (memory) {
+            Image previous = memory.put(key, image);
+            if (previous != null) {
+                memoryBytes -= previous.body.length;
+            }
+            memoryBytes += image.body.length;
+            Iterator<Image> eldest = memory.values().iterator();
+            while (memoryBytes > MEMORY_BYTES && eldest.hasNext()) {
+                memoryBytes -= eldest.next().body.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    private Image fromDisk(String key) {
+        InputStream cached = store.open(key);
+        if (cached == null) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(cached)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an image entry");
+            }
+            String mimeType = in.readUTF();
+            long fetchedAt = in.readLong();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Image(mimeType, fetchedAt, body);
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping bad entry " + key, e);
+            store.remove(key);
+            return null;
+        }
+    }
+
+    private void save(String key, Image image) {
+        try {
+            ByteArrayOutputStream entry = new ByteArrayOutputStream(image.body.length + 64);
+            DataOutputStream out = new DataOutputStream(entry);
+            out.writeInt(MAGIC);
+            out.writeUTF(image.mimeType);
+            out.writeLong(image.fetchedAt);
+            out.writeInt(image.body.length);
+            out.write(image.body);
+            store.put(key, entry.toByteArray());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not cache " + key, e);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private AssetCache.Response serve(Image image, boolean fromCache) {
+        bytesServed.addAndGet(image.body.length);
+        if (fromCache) {
+            bytesFromCache.addAndGet(image.body.length);
+        }
+        return new AssetCache.Response(image.mimeType, null, new ByteArrayInputStream(image.body), fromCache);
+    }
+
+    private static boolean isExpired(Image image) {
+        return System.currentTimeMillis() - image.fetchedAt > UNVERSIONED_TTL_MS;
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_SOURCE_BYTES) {
+                    return null;
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String pathOf(String url) {
+        int start = url.indexOf("/web/image");
+        int end = url.indexOf('?');
+        return url.substring(Math.max(start, 0), end > start ? end : url.length());
+    }
+
+    private static String queryParam(String url, String name) {
+        int query = url.indexOf('?');
+        if (query < 0) {
+            return null;
+        }
+        for (String pair : url.substring(query + 1).split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq >= 0 ? pair.substring(0, eq) : pair;
+            if (key.equals(name)) {
+                return eq >= 0 ? pair.substring(eq + 1) : "";
+            }
+        }
+        return null;
+    }
+
+    private static int parseOr(String value, int fallback) {
+        try {
+            return value != null ? Integer.parseInt(value) : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
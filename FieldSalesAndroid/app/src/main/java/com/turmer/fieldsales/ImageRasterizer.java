@@ -0,0 +1,117 @@
+package com.turmer.fieldsales;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * Decodes a PNG/JPEG, scales it to the printer's dot width and hands the
+ * pixels to {@link RasterEncoder}.
+ *
+ * Options JSON (all optional):
+ * <pre>
+ * { "width": 384, "dither": "floyd|ordered|threshold", "threshold": 128,
+ *   "align": "left|center|right", "mode": "band|raster" }
+ * </pre>
+ * "width" is the target width in dots (384 for 2" paper, 576 for 3").
+ * Images narrower than the target are not upscaled.
+ */
+final class ImageRasterizer {
+
+    private static final String TAG = "ImageRasterizer";
+
+    static final int DEFAULT_WIDTH_DOTS = 384;
+
+    private ImageRasterizer() {
+    }
+
+    static RasterEncoder.Result rasterize(String base64Image, String optionsJson) throws IOException {
+        JSONObject options;
+        try {
+            options = optionsJson == null || optionsJson.trim().isEmpty()
+                    ? new JSONObject() : new JSONObject(optionsJson);
+        } catch (JSONException e) {
+            throw new IOException("Invalid image options: " + e.getMessage(), e);
+        }
+        int targetWidth = Math.max(8, options.optInt("width", DEFAULT_WIDTH_DOTS));
+
+        byte[] encoded = Base64.decode(stripDataUrl(base64Image), Base64.DEFAULT);
+
+        // Read the bounds first so a large photo is subsampled while decoding
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(encoded, 0, encoded.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Unsupported image format");
+        }
+        BitmapFactory.Options decode = new BitmapFactory.Options();
+        decode.inSampleSize = 1;
+        while (bounds.outWidth / (decode.inSampleSize * 2) >= targetWidth) {
+            decode.inSampleSize *= 2;
+        }
+        decode.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(encoded, 0, encoded.length, decode);
+        if (bitmap == null) {
+            throw new IOException("Could not decode image");
+        }
+
+        int width = Math.min(targetWidth, bitmap.getWidth());
+        int height = Math.max(1, Math.round(bitmap.getHeight() * (width / (float) bitmap.getWidth())));
+        if (width != bitmap.getWidth()) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+
+        RasterEncoder.Result result = RasterEncoder.encode(pixels, width, height, parseOptions(options));
+        Log.i(TAG, "Rasterized " + width + "x" + height + " -> " + result.bytes.length
+                + " bytes (plain GS v 0: " + result.plainBytes + ") in "
+                + result.encodeNanos / 1000000 + " ms");
+        return result;
+    }
+
+    static RasterEncoder.Options parseOptions(JSONObject json) {
+        RasterEncoder.Options options = new RasterEncoder.Options();
+        switch (json.optString("dither", "floyd")) {
+            case "ordered":
+                options.dither = RasterEncoder.Dither.ORDERED;
+                break;
+            case "threshold":
+                options.dither = RasterEncoder.Dither.THRESHOLD;
+                break;
+            default:
+                options.dither = RasterEncoder.Dither.FLOYD_STEINBERG;
+                break;
+        }
+        options.threshold = Math.max(1, Math.min(254, json.optInt("threshold", 128)));
+        switch (json.optString("align", "left")) {
+            case "center":
+                options.align = EscPos.ALIGN_CENTER;
+                break;
+            case "right":
+                options.align = EscPos.ALIGN_RIGHT;
+                break;
+            default:
+                options.align = EscPos.ALIGN_LEFT;
+                break;
+        }
+        options.banded = !"raster".equals(json.optString("mode", "band"));
+        return options;
+    }
+
+    // Accept "data:image/png;base64,...." as produced by canvas.toDataURL()
+    private static String stripDataUrl(String data) {
+        int comma = data.startsWith("data:") ? data.indexOf(',') : -1;
+        return comma >= 0 ? data.substring(comma + 1) : data;
+    }
+}
@@ -0,0 +1,23 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/** org.json without the checked exception where it cannot happen. */
+final class Json {
+
+    private Json() {
+    }
+
+    /**
+     * JSONObject.put for values built here: it only throws for a null key or
+     * a non-finite number, which would be a bug rather than bad input.
+     */
+    static JSONObject put(JSONObject json, String key, Object value) {
+        try {
+            return json.put(key, value);
+        } catch (JSONException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
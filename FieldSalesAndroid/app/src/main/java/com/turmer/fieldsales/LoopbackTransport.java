@@ -0,0 +1,158 @@
+package com.turmer.fieldsales;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A printer in memory, so the whole print path (queue, spool, pacing,
+ * status polling, events) can be exercised without hardware:
+ * connect("loopback") and print as usual.
+ *
+ * Job bytes are dropped; the "loopback.write" metric counts them. DLE EOT
+ * status requests are answered with "ready", so the status monitor sees a
+ * healthy printer. An optional rate ("loopback:11000" bytes per second)
+ * makes writes block like a slow Bluetooth link.
+ */
+final class LoopbackTransport implements PrinterTransport {
+
+    private static final int DLE = 0x10;
+    private static final int EOT = 0x04;
+    // DLE EOT n reply with no offline / error / paper bits set
+    private static final int READY = 0x12;
+
+    private final long bytesPerSecond;
+
+    LoopbackTransport(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** "loopback" or "loopback:rate", or null for a bad rate. */
+    static String normalize(String address) {
+        if (address.equals(LOOPBACK)) {
+            return LOOPBACK;
+        }
+        try {
+            long rate = Long.parseLong(address.substring(LOOPBACK.length() + 1));
+            return rate > 0 ? LOOPBACK + ":" + rate : rate == 0 ? LOOPBACK : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static LoopbackTransport fromAddress(String address) {
+        return new LoopbackTransport(address.equals(LOOPBACK) ? 0
+                : Long.parseLong(address.substring(LOOPBACK.length() + 1)));
+    }
+
+    @Override
+    public Channel connect() {
+        return new LoopbackChannel();
+    }
+
+    @Override
+    public String kind() {
+        return "loopback";
+    }
+
+    @Override
+    public PrinterProfile defaultProfile() {
+        return bytesPerSecond > 0 ? PrinterProfile.DEFAULT : PrinterProfile.NETWORK;
+    }
+
+    private final class LoopbackChannel implements Channel {
+        private final LinkedBlockingQueue<Integer> replies = new LinkedBlockingQueue<>();
+        private volatile boolean open = true;
+        // Bytes of a DLE EOT request seen so far; writes hold the link's write lock
+        private int matched;
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int available() throws IOException {
+                checkOpen();
+                return replies.size();
+            }
+
+            @Override
+            public int read() throws IOException {
+                try {
+                    Integer b;
+                    while ((b = replies.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                        checkOpen();
+                    }
+                    return b;
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkOpen();
+                for (int i = off; i < off + len; i++) {
+                    answer(b[i] & 0xFF);
+                }
+                if (bytesPerSecond > 0) {
+                    try {
+                        long nanos = len * 1_000_000_000L / bytesPerSecond;
+                        Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        };
+
+        @Override
+        public InputStream in() {
+            return in;
+        }
+
+        @Override
+        public OutputStream out() {
+            return out;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return open;
+        }
+
+        @Override
+        public String name() {
+            return bytesPerSecond > 0 ? "Loopback (" + bytesPerSecond + " B/s)" : "Loopback";
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void answer(int b) {
+            if (matched == 2 && b >= 1 && b <= 4) {
+                replies.add(READY);
+                matched = 0;
+            } else if (matched == 1 && b == EOT) {
+                matched = 2;
+            } else {
+                matched = b == DLE ? 1 : 0;
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if (!open) {
+                throw new IOException("Loopback closed");
+            }
+        }
+    }
+}
@@ -5,17 +5,25 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.InputType;
 import android.view.Gravity;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.WindowManager;
+import android.webkit.CookieManager;
+import android.webkit.RenderProcessGoneDetail;
 import android.webkit.WebChromeClient;
 import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
@@ -34,22 +42,87 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.webkit.WebMessageCompat;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Collections;
 
 public class MainActivity extends AppCompatActivity {
 
     // SharedPreferences keys
     private static final String PREFS_NAME = "FieldSalesPrefs";
     private static final String KEY_ODOO_URL = "odoo_url";
+    // Instance state: the page that was open, reloaded after process death
+    private static final String KEY_LAST_URL = "last_url";
     private static final String DEFAULT_ODOO_URL = "https://your-odoo-server.com/web#action=tts_field_sales";
 
     private static final int PERMISSION_REQUEST_CODE = 1001;
 
+    // JS object injected by the binary print channel (window.AndroidPrintPort)
+    private static final String PRINT_PORT_NAME = "AndroidPrintPort";
+
+    // Page helpers; injected at document start with the event shim, else after load
+    private static final String HELPER_SCRIPT = "(function() {" +
+        "if (window._androidPrintInjected || !window.AndroidPrint) return;" +
+        "window._androidPrintInjected = true;" +
+        "window.AndroidPrint.listDevices = function() {" +
+        "  try { return JSON.parse(window.AndroidPrint.listPairedDevices()); }" +
+        "  catch(e) { return { error: e.message }; }" +
+        "};" +
+        // Send a Uint8Array over the binary channel when available, else as base64.
+        // Resolves with the same "OK:<jobId>" / "ERROR: ..." string as print().
+        "window.AndroidPrint.printBytes = function(bytes) {" +
+        "  var port = window.AndroidPrintPort;" +
+        "  if (port) {" +
+        "    return new Promise(function(resolve) {" +
+        "      var q = port._pending || (port._pending = []);" +
+        "      if (!port.onmessage) port.onmessage = function(e) { var r = q.shift(); if (r) r(e.data); };" +
+        "      q.push(resolve);" +
+        "      port.postMessage(bytes.buffer.slice(bytes.byteOffset, bytes.byteOffset + bytes.byteLength));" +
+        "    });" +
+        "  }" +
+        "  var s = ''; for (var i = 0; i < bytes.length; i += 8192) {" +
+        "    s += String.fromCharCode.apply(null, bytes.subarray(i, i + 8192)); }" +
+        "  return Promise.resolve(window.AndroidPrint.print(btoa(s)));" +
+        "};" +
+        // Expose openSettings to JS (e.g. from a gear icon in the web app)
+        "window.openAndroidSettings = function() { window.AndroidSettings.openSettings(); };" +
+        "console.log('[TurmerApp] Android bridge ready.');" +
+        "})();";
+
+    // Odoo static assets kept on disk for slow or missing connections
+    private static final long ASSET_CACHE_BYTES = 50L * 1024 * 1024;
+    private static final long IMAGE_CACHE_BYTES = 30L * 1024 * 1024;
+
     private WebView webView;
     private ProgressBar progressBar;
     private BluetoothPrintBridge bluetoothBridge;
+    private AssetCache assetCache;
+    private ImageProxy imageProxy;
+    private OdooRpc odooRpc;
+    private DataBridge dataBridge;
+    private PageEventBus events;
+    private WebViewHealth health;
     private SharedPreferences prefs;
+    private boolean binaryChannelReady = false;
+
+    private boolean fullyDrawnReported = false;
 
-    // Settings overlay views
+    // Last page, for rebuilding the WebView after its renderer died or the process was killed
+    private String lastUrl;
+    private boolean resumed;
+    // A rebuilt WebView waiting for the activity to come back before it loads
+    private boolean restorePending;
+    private boolean restoreToHome;
+    private long recoveryStartedAt;
+    private boolean recoveredToHome;
+
+    // Settings overlay views (overlay is null until first shown)
+    private FrameLayout rootLayout;
     private FrameLayout settingsOverlay;
     private boolean settingsVisible = false;
 
@@ -57,6 +130,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.mark(StartupTrace.ACTIVITY_CREATED);
 
         prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
 
@@ -67,53 +141,54 @@ public class MainActivity extends AppCompatActivity {
             WindowManager.LayoutParams.FLAG_FULLSCREEN
         );
 
+        // The WebView comes first: creating it loads and warms up the Chromium
+        // engine, the slowest step of a cold start, and the page load is issued
+        // straight after, before any other view is built
+        webView = new WebView(this);
+        StartupTrace.mark(StartupTrace.WEBVIEW_CREATED);
+
+        // Progress bar (the WebChromeClient updates it)
+        progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+        progressBar.setMax(100);
+        progressBar.setProgress(0);
+        progressBar.setProgressTintList(android.content.res.ColorStateList.valueOf(Color.parseColor("#6C3FC5")));
+
+        // Configure WebView and start loading (or restore after process death)
+        setupWebView(savedInstanceState);
+
         // Root frame layout (allows overlaying settings on top of WebView)
-        FrameLayout root = new FrameLayout(this);
-        root.setBackgroundColor(Color.parseColor("#0f0f1a"));
+        rootLayout = new FrameLayout(this);
+        rootLayout.setBackgroundColor(Color.parseColor("#0f0f1a"));
 
         // --- WebView Layer ---
         RelativeLayout webLayer = new RelativeLayout(this);
         webLayer.setBackgroundColor(Color.WHITE);
 
-        // Progress bar
-        progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
-        progressBar.setMax(100);
-        progressBar.setProgress(0);
-        progressBar.setProgressTintList(android.content.res.ColorStateList.valueOf(Color.parseColor("#6C3FC5")));
         RelativeLayout.LayoutParams pbParams = new RelativeLayout.LayoutParams(
             RelativeLayout.LayoutParams.MATCH_PARENT, 6
         );
         pbParams.addRule(RelativeLayout.ALIGN_PARENT_TOP);
         webLayer.addView(progressBar, pbParams);
 
-        // WebView
-        webView = new WebView(this);
         RelativeLayout.LayoutParams wvParams = new RelativeLayout.LayoutParams(
             RelativeLayout.LayoutParams.MATCH_PARENT,
             RelativeLayout.LayoutParams.MATCH_PARENT
         );
         webLayer.addView(webView, wvParams);
 
-        root.addView(webLayer, new FrameLayout.LayoutParams(
-            FrameLayout.LayoutParams.MATCH_PARENT,
-            FrameLayout.LayoutParams.MATCH_PARENT
-        ));
-
-        // --- Settings Overlay Layer ---
-        settingsOverlay = buildSettingsOverlay();
-        settingsOverlay.setVisibility(View.GONE);
-        root.addView(settingsOverlay, new FrameLayout.LayoutParams(
+        rootLayout.addView(webLayer, new FrameLayout.LayoutParams(
             FrameLayout.LayoutParams.MATCH_PARENT,
             FrameLayout.LayoutParams.MATCH_PARENT
         ));
 
-        setContentView(root);
+        // The settings overlay is built on first use (see showSettings)
+        setContentView(rootLayout);
 
-        // Configure WebView
-        setupWebView();
-
-        // Request Bluetooth permissions
-        requestBluetoothPermissions();
+        // Bluetooth permissions (and the printer pre-connect) wait for the first frame
+        runAfterFirstFrame(() -> {
+            StartupTrace.mark(StartupTrace.FIRST_FRAME);
+            requestBluetoothPermissions();
+        });
 
         // If no URL configured yet, show settings immediately
         String savedUrl = prefs.getString(KEY_ODOO_URL, "");
@@ -122,6 +197,38 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        // Lets a process killed in the background come back to the same page.
+        // Only the URL: the WebView's saved history can outgrow the binder limit
+        if (lastUrl != null) {
+            outState.putString(KEY_LAST_URL, lastUrl);
+        }
+    }
+
+    /** Runs the action once, right after the window has drawn its first frame. */
+    private void runAfterFirstFrame(Runnable action) {
+        View decor = getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            private boolean done;
+
+            @Override
+            public void onDraw() {
+                if (done) {
+                    return;
+                }
+                done = true;
+                ViewTreeObserver.OnDrawListener listener = this;
+                // Listeners cannot be removed while being dispatched
+                decor.post(() -> {
+                    decor.getViewTreeObserver().removeOnDrawListener(listener);
+                    action.run();
+                });
+            }
+        });
+    }
+
     // -------------------------------------------------------------------------
     // Settings Overlay (built programmatically - no XML needed)
     // -------------------------------------------------------------------------
@@ -278,6 +385,12 @@ public class MainActivity extends AppCompatActivity {
             }
             // Save to SharedPreferences
             prefs.edit().putString(KEY_ODOO_URL, url).apply();
+            assetCache.setOrigin(originOf(url));
+            imageProxy.setOrigin(originOf(url));
+            odooRpc.setOrigin(originOf(url));
+            // The binary and event channels are bound to the server origin, so re-bind them
+            setupBinaryPrintChannel();
+            events.bind(originOf(url), HELPER_SCRIPT);
             // Load the URL in WebView
             webView.loadUrl(url);
             hideSettings();
@@ -307,13 +420,23 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void showSettings() {
+        if (settingsOverlay == null) {
+            // Built on first use; most starts never open settings
+            settingsOverlay = buildSettingsOverlay();
+            rootLayout.addView(settingsOverlay, new FrameLayout.LayoutParams(
+                FrameLayout.LayoutParams.MATCH_PARENT,
+                FrameLayout.LayoutParams.MATCH_PARENT
+            ));
+        }
         settingsVisible = true;
         settingsOverlay.setVisibility(View.VISIBLE);
     }
 
     private void hideSettings() {
         settingsVisible = false;
-        settingsOverlay.setVisibility(View.GONE);
+        if (settingsOverlay != null) {
+            settingsOverlay.setVisibility(View.GONE);
+        }
     }
 
     // Helper: dp to pixels
@@ -325,8 +448,63 @@ public class MainActivity extends AppCompatActivity {
     // WebView Setup
     // -------------------------------------------------------------------------
 
+    private void setupWebView(Bundle savedInstanceState) {
+        health = new WebViewHealth(this);
+
+        // Serve Odoo bundles, fonts and icons from disk, revalidating in the background
+        assetCache = new AssetCache(new File(getCacheDir(), "web_assets"), ASSET_CACHE_BYTES,
+                url -> CookieManager.getInstance().getCookie(url));
+        assetCache.setOrigin(originOf(prefs.getString(KEY_ODOO_URL, "")));
+
+        // Product photos downscaled to the size shown and kept as WebP
+        imageProxy = new ImageProxy(new File(getCacheDir(), "web_images"), IMAGE_CACHE_BYTES,
+                url -> CookieManager.getInstance().getCookie(url));
+        imageProxy.setOrigin(originOf(prefs.getString(KEY_ODOO_URL, "")));
+
+        // Local catalog (products, prices, customers) - exposed as window.AndroidData
+        odooRpc = new OdooRpc(url -> CookieManager.getInstance().getCookie(url));
+        odooRpc.setOrigin(originOf(prefs.getString(KEY_ODOO_URL, "")));
+
+        // Events to the page (print progress, printer state, sync) go through one bus
+        events = new PageEventBus(webView);
+        dataBridge = new DataBridge(this, events, odooRpc);
+
+        // Set up Bluetooth bridge - exposed as window.AndroidPrint in JavaScript
+        bluetoothBridge = new BluetoothPrintBridge(this, events);
+
+        // The caches and bridges must be in place before the load, but their
+        // disk and system-service setup is deferred (see start() below)
+        configureWebView();
+
+        // After process death, go back to the page that was open
+        String resumedUrl = savedInstanceState != null ? savedInstanceState.getString(KEY_LAST_URL) : null;
+        if (resumedUrl != null) {
+            StartupTrace.setResumedUrl(true);
+            webView.loadUrl(resumedUrl);
+            StartupTrace.mark(StartupTrace.LOAD_STARTED);
+        } else {
+            // Load saved URL (or default)
+            String savedUrl = prefs.getString(KEY_ODOO_URL, "");
+            if (!savedUrl.isEmpty() && !savedUrl.equals(DEFAULT_ODOO_URL)) {
+                webView.loadUrl(savedUrl);
+                StartupTrace.mark(StartupTrace.LOAD_STARTED);
+            }
+            // If no URL set, settings screen will show automatically (handled in onCreate)
+        }
+
+        // Spool recovery, printer and network watchers: on background threads,
+        // now that the load is under way
+        bluetoothBridge.start();
+        dataBridge.start(this);
+    }
+
+    /**
+     * Settings, bridges, channels and clients of the current WebView. Runs
+     * again on the replacement after a renderer death; the bridges and caches
+     * it exposes are the same objects.
+     */
     @SuppressLint("SetJavaScriptEnabled")
-    private void setupWebView() {
+    private void configureWebView() {
         WebSettings settings = webView.getSettings();
         settings.setJavaScriptEnabled(true);
         settings.setDomStorageEnabled(true);
@@ -340,10 +518,13 @@ public class MainActivity extends AppCompatActivity {
         String defaultUA = settings.getUserAgentString();
         settings.setUserAgentString(defaultUA + " TurmerFieldSalesApp/1.0");
 
-        // Set up Bluetooth bridge - exposed as window.AndroidPrint in JavaScript
-        bluetoothBridge = new BluetoothPrintBridge(this);
+        webView.addJavascriptInterface(dataBridge, "AndroidData");
         webView.addJavascriptInterface(bluetoothBridge, "AndroidPrint");
 
+        // Binary transport for print payloads, next to AndroidPrint.print(base64)
+        setupBinaryPrintChannel();
+        events.bind(originOf(prefs.getString(KEY_ODOO_URL, "")), HELPER_SCRIPT);
+
         // Also expose a Settings bridge so JS can open settings
         webView.addJavascriptInterface(new Object() {
             @android.webkit.JavascriptInterface
@@ -355,6 +536,26 @@ public class MainActivity extends AppCompatActivity {
             public String getCurrentUrl() {
                 return prefs.getString(KEY_ODOO_URL, DEFAULT_ODOO_URL);
             }
+
+            @android.webkit.JavascriptInterface
+            public String getAssetCacheStats() {
+                return assetCache.statsJson();
+            }
+
+            @android.webkit.JavascriptInterface
+            public String getImageCacheStats() {
+                return imageProxy.statsJson();
+            }
+
+            @android.webkit.JavascriptInterface
+            public String getStartupTimings() {
+                return StartupTrace.toJson().toString();
+            }
+
+            @android.webkit.JavascriptInterface
+            public String getWebViewHealth() {
+                return health.statsJson();
+            }
         }, "AndroidSettings");
 
         webView.setWebViewClient(new WebViewClient() {
@@ -368,11 +569,65 @@ public class MainActivity extends AppCompatActivity {
                 return false;
             }
 
+            // Runs on a WebView network thread, so the cache may block here
+            @Override
+            public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+                String url = request.getUrl().toString();
+                AssetCache.Response response;
+                if (imageProxy.isImageRequest(request.getMethod(), url)) {
+                    response = imageProxy.fetch(url, request.getRequestHeaders());
+                } else if (assetCache.isCacheable(request.getMethod(), url)) {
+                    response = assetCache.fetch(url, request.getRequestHeaders());
+                } else {
+                    return null;
+                }
+                if (response == null) {
+                    return null;
+                }
+                return new WebResourceResponse(response.mimeType, response.encoding, response.status,
+                        response.reason, response.headers, response.body);
+            }
+
+            @Override
+            public void doUpdateVisitedHistory(WebView view, String url, boolean isReload) {
+                super.doUpdateVisitedHistory(view, url, isReload);
+                // Cannot be read once the renderer is gone, so keep it current
+                lastUrl = url;
+            }
+
+            @Override
+            public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
+                if (view == webView) {
+                    recoverWebView(detail.didCrash());
+                }
+                // Handled: without this the whole app is killed
+                return true;
+            }
+
+            @Override
+            public void onPageStarted(WebView view, String url, Bitmap favicon) {
+                super.onPageStarted(view, url, favicon);
+                events.onPageStarted();
+            }
+
             @Override
             public void onPageFinished(WebView view, String url) {
                 super.onPageFinished(view, url);
                 progressBar.setVisibility(View.GONE);
-                injectHelperScript();
+                StartupTrace.mark(StartupTrace.PAGE_FINISHED);
+                if (!fullyDrawnReported) {
+                    // Time to full display in Android vitals
+                    fullyDrawnReported = true;
+                    reportFullyDrawn();
+                }
+                injectHelperScript(url);
+                events.onPageFinished();
+                if (recoveryStartedAt != 0) {
+                    health.onRecovered(SystemClock.uptimeMillis() - recoveryStartedAt, recoveredToHome);
+                    recoveryStartedAt = 0;
+                }
+                // Pull catalog changes and send queued orders once the web client (and its session) is up
+                dataBridge.onPageLoaded();
             }
         });
 
@@ -386,31 +641,78 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         });
+    }
 
-        // Load saved URL (or default)
-        String savedUrl = prefs.getString(KEY_ODOO_URL, "");
-        if (!savedUrl.isEmpty() && !savedUrl.equals(DEFAULT_ODOO_URL)) {
-            webView.loadUrl(savedUrl);
+    /**
+     * Exposes window.AndroidPrintPort to the Odoo origin. The page posts
+     * ArrayBuffers of ESC/POS data which go to the print queue as-is, without
+     * base64 or a UTF-16 string copy. Each post gets a reply message with the
+     * same "OK:<jobId>" / "ERROR: ..." string print() returns, in post order.
+     *
+     * Older WebView builds lack ArrayBuffer messaging; then the object is not
+     * injected and the page keeps using AndroidPrint.print(base64).
+     */
+    private void setupBinaryPrintChannel() {
+        if (!WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_LISTENER)
+                || !WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_ARRAY_BUFFER)) {
+            binaryChannelReady = false;
+            return;
+        }
+
+        String origin = originOf(prefs.getString(KEY_ODOO_URL, ""));
+        if (origin == null) {
+            return;
         }
-        // If no URL set, settings screen will show automatically (handled in onCreate)
+
+        if (binaryChannelReady) {
+            WebViewCompat.removeWebMessageListener(webView, PRINT_PORT_NAME);
+        }
+        WebViewCompat.addWebMessageListener(webView, PRINT_PORT_NAME, Collections.singleton(origin),
+            (view, message, sourceOrigin, isMainFrame, replyProxy) -> {
+                String result;
+                if (message.getType() == WebMessageCompat.TYPE_ARRAY_BUFFER) {
+                    result = bluetoothBridge.printBytes(message.getArrayBuffer());
+                } else {
+                    // Strings are accepted as base64 so the port can be used uniformly
+                    result = bluetoothBridge.print(message.getData());
+                }
+                replyProxy.postMessage(result);
+            });
+        binaryChannelReady = true;
     }
 
-    private void injectHelperScript() {
-        String script = "javascript:(function() {" +
-            "if (window._androidPrintInjected) return;" +
-            "window._androidPrintInjected = true;" +
-            "window.dispatchEvent(new CustomEvent('androidAppReady', {" +
-            "  detail: { version: '1.0', hasBluetooth: true }" +
-            "}));" +
-            "window.AndroidPrint.listDevices = function() {" +
-            "  try { return JSON.parse(window.AndroidPrint.listPairedDevices()); }" +
-            "  catch(e) { return { error: e.message }; }" +
-            "};" +
-            // Expose openSettings to JS (e.g. from a gear icon in the web app)
-            "window.openAndroidSettings = function() { window.AndroidSettings.openSettings(); };" +
-            "console.log('[TurmerApp] Android bridge ready.');" +
-            "})();";
-        webView.loadUrl(script);
+    // Helper: "https://host:port/web#..." -> "https://host:port"
+    private static String originOf(String url) {
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+        Uri uri = Uri.parse(url);
+        if (uri.getScheme() == null || uri.getHost() == null) {
+            return null;
+        }
+        String origin = uri.getScheme() + "://" + uri.getHost();
+        return uri.getPort() != -1 ? origin + ":" + uri.getPort() : origin;
+    }
+
+    /**
+     * Announces the bridge with a one-time 'androidAppReady' event. The
+     * helpers come with the event shim at document start on the Odoo origin;
+     * any other page gets them now.
+     */
+    private void injectHelperScript(String url) {
+        StartupTrace.mark(StartupTrace.BRIDGE_READY);
+        if (!events.isConnected()) {
+            webView.evaluateJavascript(HELPER_SCRIPT, null);
+        }
+        String origin = originOf(url);
+        JSONObject detail = new JSONObject();
+        Json.put(detail, "version", "1.0");
+        Json.put(detail, "hasBluetooth", true);
+        Json.put(detail, "binaryChannel", binaryChannelReady && origin != null
+                && origin.equals(originOf(prefs.getString(KEY_ODOO_URL, ""))));
+        Json.put(detail, "eventChannel", events.isConnected());
+        Json.put(detail, "startup", StartupTrace.toJson());
+        events.postOnce("androidAppReady", detail);
     }
 
     // -------------------------------------------------------------------------
@@ -428,11 +730,98 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        resumed = true;
+        if (restorePending) {
+            restorePending = false;
+            restorePage(restoreToHome);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        resumed = false;
+        // The Odoo session must survive the process being killed in the background
+        CookieManager.getInstance().flush();
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         if (bluetoothBridge != null) {
-            bluetoothBridge.disconnect();
+            bluetoothBridge.shutdown();
+        }
+        if (dataBridge != null) {
+            dataBridge.shutdown();
+        }
+        if (events != null) {
+            events.close();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Memory Pressure & Renderer Recovery
+    // -------------------------------------------------------------------------
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        health.onTrimMemory(level);
+        // Not on UI_HIDDEN: that is every screen lock and app switch
+        if (level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= TRIM_MEMORY_BACKGROUND) {
+            // All rebuilt on demand; queued jobs and printer links are kept
+            bluetoothBridge.trimMemory();
+            imageProxy.trimMemory();
+            dataBridge.trimMemory();
+        }
+        if (WebViewHealth.isCritical(level)) {
+            // The renderer is the largest process we own; drop its RAM cache
+            webView.clearCache(false);
+            CookieManager.getInstance().flush();
+        }
+    }
+
+    /**
+     * Replaces a WebView whose renderer crashed or was killed for memory
+     * with a new one showing the same page. The bridges, print queues and
+     * printer links do not depend on the WebView and carry on; events posted
+     * meanwhile wait for the new page. In the background the new WebView
+     * waits for onResume() before loading.
+     */
+    private void recoverWebView(boolean crashed) {
+        boolean toHome = health.onRendererGone(crashed);
+        WebView dead = webView;
+        ViewGroup parent = (ViewGroup) dead.getParent();
+        int index = parent.indexOfChild(dead);
+        ViewGroup.LayoutParams params = dead.getLayoutParams();
+        parent.removeView(dead);
+        dead.destroy();
+
+        webView = new WebView(this);
+        binaryChannelReady = false;
+        events.attach(webView);
+        configureWebView();
+        parent.addView(webView, index, params);
+
+        if (resumed) {
+            restorePage(toHome);
+        } else {
+            restorePending = true;
+            restoreToHome = toHome;
+        }
+    }
+
+    /** Loads the last page into a rebuilt WebView, or the home URL if the page keeps killing it. */
+    private void restorePage(boolean toHome) {
+        recoveryStartedAt = SystemClock.uptimeMillis();
+        recoveredToHome = toHome;
+        String url = toHome || lastUrl == null ? prefs.getString(KEY_ODOO_URL, "") : lastUrl;
+        if (!url.isEmpty() && !url.equals(DEFAULT_ODOO_URL)) {
+            webView.loadUrl(url);
         }
     }
 
@@ -455,6 +844,8 @@ public class MainActivity extends AppCompatActivity {
             }
             if (!allGranted) {
                 ActivityCompat.requestPermissions(this, permissions, PERMISSION_REQUEST_CODE);
+            } else {
+                bluetoothBridge.preconnectLastPrinter();
             }
         } else {
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH)
@@ -462,6 +853,8 @@ public class MainActivity extends AppCompatActivity {
                 ActivityCompat.requestPermissions(this,
                     new String[]{Manifest.permission.BLUETOOTH, Manifest.permission.BLUETOOTH_ADMIN},
                     PERMISSION_REQUEST_CODE);
+            } else {
+                bluetoothBridge.preconnectLastPrinter();
             }
         }
     }
@@ -473,9 +866,13 @@ public class MainActivity extends AppCompatActivity {
         if (requestCode == PERMISSION_REQUEST_CODE) {
             boolean granted = grantResults.length > 0 &&
                               grantResults[0] == PackageManager.PERMISSION_GRANTED;
-            String js = "javascript:window.dispatchEvent(new CustomEvent('bluetoothPermissionResult', " +
-                        "{ detail: { granted: " + granted + " } }));";
-            webView.loadUrl(js);
+            JSONObject detail = new JSONObject();
+            Json.put(detail, "granted", granted);
+            events.post("bluetoothPermissionResult", detail);
+            if (granted) {
+                // Warm up the link to the last used printer before the first print
+                bluetoothBridge.preconnectLastPrinter();
+            }
         }
     }
 }
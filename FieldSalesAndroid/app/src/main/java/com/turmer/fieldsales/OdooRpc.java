@@ -0,0 +1,171 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal Odoo JSON-RPC client for /web/dataset/call_kw.
+ *
+ * Rides on the web client's login: the session cookie is taken from the
+ * WebView's cookie store for every call, so there is no second login and
+ * no password kept on the device. An Odoo error reply (access error, expired
+ * session, ...) is thrown as an {@link OdooException} carrying Odoo's own
+ * message; any other IOException means the server was not reached.
+ */
+final class OdooRpc {
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 60000;
+
+    /** Odoo answered with an error instead of a result. */
+    static final class OdooException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /** True for an expired session: the same call may succeed after logging in again. */
+        final boolean sessionExpired;
+
+        OdooException(String message, boolean sessionExpired) {
+            super(message);
+            this.sessionExpired = sessionExpired;
+        }
+    }
+
+    private final AssetCache.CookieSource cookies;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private volatile String origin;
+
+    OdooRpc(AssetCache.CookieSource cookies) {
+        this.cookies = cookies;
+    }
+
+    /** Odoo origin ("https://host[:port]"); null until a URL is configured. */
+    void setOrigin(String origin) {
+        this.origin = origin;
+    }
+
+    String origin() {
+        return origin;
+    }
+
+    /** model.search_read(domain, fields, order, limit), with archived records left out. */
+    JSONArray searchRead(String model, JSONArray domain, String[] fields, String order, int limit)
+            throws IOException {
+        try {
+            JSONObject kwargs = new JSONObject();
+            kwargs.put("domain", domain);
+            kwargs.put("fields", new JSONArray(fields));
+            kwargs.put("order", order);
+            kwargs.put("limit", limit);
+            Object result = callKw(model, "search_read", new JSONArray(), kwargs);
+            return result instanceof JSONArray ? (JSONArray) result : new JSONArray();
+        } catch (JSONException e) {
+            throw new IOException("Bad search_read reply for " + model, e);
+        }
+    }
+
+    /** model.search(domain): ids only, which is cheap even for the whole table. */
+    JSONArray search(String model, JSONArray domain) throws IOException {
+        Object result = callKw(model, "search", new JSONArray().put(domain), new JSONObject());
+        return result instanceof JSONArray ? (JSONArray) result : new JSONArray();
+    }
+
+    /** Calls model.method(*args, **kwargs) and returns the JSON "result". */
+    Object callKw(String model, String method, JSONArray args, JSONObject kwargs) throws IOException {
+        String base = origin;
+        if (base == null) {
+            throw new IOException("No Odoo URL configured");
+        }
+        String url = base + "/web/dataset/call_kw/" + model + "/" + method;
+        byte[] request;
+        try {
+            JSONObject params = new JSONObject();
+            params.put("model", model);
+            params.put("method", method);
+            params.put("args", args);
+            params.put("kwargs", kwargs);
+            JSONObject body = new JSONObject();
+            body.put("jsonrpc", "2.0");
+            body.put("method", "call");
+            body.put("params", params);
+            body.put("id", nextId.getAndIncrement());
+            request = body.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException e) {
+            throw new IOException("Could not build request", e);
+        }
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            conn.setUseCaches(false);
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/json");
+            conn.setFixedLengthStreamingMode(request.length);
+            String cookie = cookies != null ? cookies.cookiesFor(url) : null;
+            if (cookie != null && !cookie.isEmpty()) {
+                conn.setRequestProperty("Cookie", cookie);
+            }
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(request);
+            }
+            int code = conn.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + code + " from " + model + "." + method);
+            }
+            JSONObject reply = new JSONObject(readText(conn.getInputStream()));
+            JSONObject error = reply.optJSONObject("error");
+            if (error != null) {
+                throw errorOf(error);
+            }
+            return reply.opt("result");
+        } catch (JSONException e) {
+            throw new IOException("Bad reply from " + model + "." + method, e);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    /** "Session expired" / "You are not allowed to access ..." rather than "Odoo Server Error". */
+    private static OdooException errorOf(JSONObject error) {
+        JSONObject data = error.optJSONObject("data");
+        if (data != null) {
+            if ("odoo.http.SessionExpiredException".equals(data.optString("name"))) {
+                return new OdooException("Session expired", true);
+            }
+            String message = data.optString("message");
+            if (!message.isEmpty()) {
+                return new OdooException(message, false);
+            }
+        }
+        return new OdooException(error.optString("message", "Odoo error"), false);
+    }
+
+    private static String readText(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.turmer.fieldsales;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends {@link OutboxStore} entries to Odoo when the network is there.
+ *
+ * Due entries are grouped by model and follow-up method into batches of
+ * {@link #BATCH_SIZE}. A batch costs one search_read for keys that already
+ * exist (a previous send whose reply was lost), one multi-record create
+ * and, if asked for, one call such as action_confirm on the new ids and on
+ * found ones still in draft (lost before their follow-up ran). At
+ * most {@link #MAX_PARALLEL_BATCHES} batches are in flight at once.
+ *
+ * Odoo creates a batch in one transaction, so one invalid order rejects all
+ * of them; the batch is then resent one record at a time to find it. A
+ * rejected record is marked failed and left for the page. Network errors
+ * and expired sessions retry with exponential backoff and jitter, and every
+ * pending entry is tried again as soon as a network comes back.
+ */
+final class OutboxSender {
+
+    private static final String TAG = "OutboxSender";
+
+    private static final int BATCH_SIZE = 25;
+    private static final int MAX_PARALLEL_BATCHES = 3;
+    private static final int MAX_DUE_PER_PASS = 500;
+    private static final long BACKOFF_BASE_MS = 5000;
+    private static final long BACKOFF_MAX_MS = 15 * 60 * 1000;
+    private static final long KEEP_DONE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    interface Listener {
+        void onEntryChanged(OutboxStore.Entry entry);
+    }
+
+    private final OdooRpc rpc;
+    private final OutboxStore store;
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "outbox");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService senders = Executors.newFixedThreadPool(MAX_PARALLEL_BATCHES, r -> {
+        Thread t = new Thread(r, "outbox-send");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    // Sticky until a flush takes it, so a flushNow() is not lost to an already queued flushDue()
+    private final AtomicBoolean force = new AtomicBoolean();
+    private ConnectivityManager connectivity;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    // Guarded by this, so a start() that runs late does not register after stop()
+    private boolean stopped;
+    private volatile boolean online = true;
+    // Scheduler thread only
+    private ScheduledFuture<?> wakeUp;
+
+    OutboxSender(OdooRpc rpc, OutboxStore store, Listener listener) {
+        this.rpc = rpc;
+        this.store = store;
+        this.listener = listener;
+    }
+
+    /** Watches connectivity and sends whatever is pending. Any thread; no-op after stop(). */
+    synchronized void start(Context context) {
+        if (stopped) {
+            return;
+        }
+        connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivity != null) {
+            online = connectivity.getActiveNetwork() != null;
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    online = true;
+                    flushNow();
+                }
+
+                @Override
+                public void onLost(Network network) {
+                    online = connectivity.getActiveNetwork() != null;
+                }
+            };
+            connectivity.registerDefaultNetworkCallback(networkCallback);
+        }
+        flushNow();
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (connectivity != null && networkCallback != null) {
+            connectivity.unregisterNetworkCallback(networkCallback);
+        }
+        scheduler.shutdownNow();
+        senders.shutdownNow();
+    }
+
+    /** Sends every pending entry now, ignoring backoff (network back, or the page asked). */
+    void flushNow() {
+        force.set(true);
+        flushDue();
+    }
+
+    /** Sends entries that are due. */
+    void flushDue() {
+        if (flushQueued.compareAndSet(false, true)) {
+            scheduler.execute(this::flush);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Scheduler thread
+    // -------------------------------------------------------------------------
+
+    private void flush() {
+        flushQueued.set(false);
+        boolean ignoreBackoff = force.getAndSet(false);
+        if (wakeUp != null) {
+            wakeUp.cancel(false);
+            wakeUp = null;
+        }
+        if (!online || rpc.origin() == null) {
+            // The network callback (or a new URL and flushNow) starts us again
+            return;
+        }
+        store.purgeDone(System.currentTimeMillis() - KEEP_DONE_MS);
+
+        List<OutboxStore.Entry> due;
+        do {
+            due = store.due(ignoreBackoff ? Long.MAX_VALUE : System.currentTimeMillis(), MAX_DUE_PER_PASS);
+            List<Future<?>> inFlight = new ArrayList<>();
+            for (List<OutboxStore.Entry> batch : batchesOf(due)) {
+                inFlight.add(senders.submit(() -> sendBatch(batch)));
+            }
+            for (Future<?> future : inFlight) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Outbox batch crashed", e.getCause());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // Entries that failed just now are not due again until their backoff ends
+            ignoreBackoff = false;
+        } while (due.size() == MAX_DUE_PER_PASS && online);
+
+        long next = store.nextDueAt();
+        if (next >= 0) {
+            long delay = Math.max(0, next - System.currentTimeMillis());
+            wakeUp = scheduler.schedule(this::flushDue, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Same model and follow-up method go together, in queue order. */
+    private static List<List<OutboxStore.Entry>> batchesOf(List<OutboxStore.Entry> due) {
+        Map<String, List<OutboxStore.Entry>> groups = new LinkedHashMap<>();
+        for (OutboxStore.Entry entry : due) {
+            String group = entry.model + "|" + entry.keyField + "|" + entry.thenMethod;
+            List<OutboxStore.Entry> list = groups.get(group);
+            if (list == null) {
+                list = new ArrayList<>();
+                groups.put(group, list);
+            }
+            list.add(entry);
+        }
+        List<List<OutboxStore.Entry>> batches = new ArrayList<>();
+        for (List<OutboxStore.Entry> group : groups.values()) {
+            for (int i = 0; i < group.size(); i += BATCH_SIZE) {
+                batches.add(group.subList(i, Math.min(group.size(), i + BATCH_SIZE)));
+            }
+        }
+        return batches;
+    }
+
+    // -------------------------------------------------------------------------
+    // Sender threads
+    // -------------------------------------------------------------------------
+
+    private void sendBatch(List<OutboxStore.Entry> batch) {
+        OutboxStore.Entry first = batch.get(0);
+        try {
+            // Created on an earlier attempt whose reply never arrived?
+            JSONArray keys = new JSONArray();
+            for (OutboxStore.Entry entry : batch) {
+                keys.put(entry.keyValue());
+            }
+            JSONArray domain = new JSONArray().put(new JSONArray().put(first.keyField).put("in").put(keys));
+            // The state tells whether a found record still needs the follow-up
+            String[] fields = first.thenMethod != null
+                    ? new String[]{"id", first.keyField, "state"}
+                    : new String[]{"id", first.keyField};
+            JSONArray existing = rpc.searchRead(first.model, domain, fields, "id", batch.size());
+            Map<String, JSONObject> existingRows = new HashMap<>();
+            for (int i = 0; i < existing.length(); i++) {
+                JSONObject row = existing.getJSONObject(i);
+                existingRows.put(row.optString(first.keyField), row);
+            }
+
+            // Entries whose record exists once this batch is through, with its id
+            List<OutboxStore.Entry> toFinish = new ArrayList<>();
+            JSONArray finishIds = new JSONArray();
+            List<OutboxStore.Entry> toCreate = new ArrayList<>();
+            JSONArray valsList = new JSONArray();
+            for (OutboxStore.Entry entry : batch) {
+                JSONObject row = existingRows.get(entry.keyValue());
+                if (row == null) {
+                    toCreate.add(entry);
+                    valsList.put(entry.valsWithKey());
+                } else if (first.thenMethod != null && "draft".equals(row.optString("state"))) {
+                    // Created, but the reply was lost before the follow-up ran
+                    toFinish.add(entry);
+                    finishIds.put(row.getLong("id"));
+                } else {
+                    done(entry, row.getLong("id"), null);
+                }
+            }
+
+            if (!toCreate.isEmpty()) {
+                Object created = rpc.callKw(first.model, "create", new JSONArray().put(valsList), new JSONObject());
+                JSONArray ids = created instanceof JSONArray ? (JSONArray) created : new JSONArray().put(created);
+                if (ids.length() != toCreate.size()) {
+                    throw new IOException("create returned " + ids.length() + " ids for " + toCreate.size());
+                }
+                for (int i = 0; i < toCreate.size(); i++) {
+                    toFinish.add(toCreate.get(i));
+                    finishIds.put(ids.getLong(i));
+                }
+            }
+            if (toFinish.isEmpty()) {
+                return;
+            }
+
+            String warning = null;
+            if (first.thenMethod != null) {
+                try {
+                    rpc.callKw(first.model, first.thenMethod, new JSONArray().put(finishIds), new JSONObject());
+                } catch (IOException e) {
+                    // The records exist; retrying would only fail on the key check
+                    warning = "Created, but " + first.thenMethod + " failed: " + e.getMessage();
+                }
+            }
+            for (int i = 0; i < toFinish.size(); i++) {
+                done(toFinish.get(i), finishIds.getLong(i), warning);
+            }
+        } catch (OdooRpc.OdooException e) {
+            if (e.sessionExpired) {
+                retryLater(batch, e.getMessage());
+            } else if (batch.size() > 1) {
+                // One bad record rolled back the whole create; find it
+                for (OutboxStore.Entry entry : batch) {
+                    sendBatch(Collections.singletonList(entry));
+                }
+            } else {
+                store.markFailed(first.key, first.attempts + 1, e.getMessage());
+                notifyChanged(first.key);
+            }
+        } catch (IOException e) {
+            retryLater(batch, e.getMessage());
+        } catch (JSONException e) {
+            // Vals the page handed us are not valid JSON objects: resending will not help
+            for (OutboxStore.Entry entry : batch) {
+                store.markFailed(entry.key, entry.attempts + 1, "Bad record data: " + e.getMessage());
+                notifyChanged(entry.key);
+            }
+        }
+    }
+
+    private void done(OutboxStore.Entry entry, long recordId, String warning) {
+        store.markDone(entry.key, recordId, warning);
+        notifyChanged(entry.key);
+    }
+
+    private void retryLater(List<OutboxStore.Entry> batch, String error) {
+        for (OutboxStore.Entry entry : batch) {
+            int attempts = entry.attempts + 1;
+            store.markRetry(entry.key, attempts, System.currentTimeMillis() + backoffMs(attempts), error);
+            notifyChanged(entry.key);
+        }
+    }
+
+    /** 5 s, 10 s, 20 s, ... up to 15 min, with +-25% jitter so devices do not retry in step. */
+    static long backoffMs(int attempts) {
+        long delay = BACKOFF_BASE_MS << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, BACKOFF_MAX_MS);
+        double jitter = 0.75 + ThreadLocalRandom.current().nextDouble() * 0.5;
+        return (long) (delay * jitter);
+    }
+
+    private void notifyChanged(String key) {
+        OutboxStore.Entry entry = store.get(key);
+        if (entry != null && listener != null) {
+            listener.onEntryChanged(entry);
+        }
+    }
+}
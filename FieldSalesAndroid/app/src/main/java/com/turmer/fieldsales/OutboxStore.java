@@ -0,0 +1,248 @@
+package com.turmer.fieldsales;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records (sale orders, payments) created on the device while offline,
+ * waiting to be sent to Odoo; see {@link OutboxSender}.
+ *
+ * Each entry carries the page's idempotency key, which is also written into
+ * the record itself (e.g. sale.order.client_order_ref) unless the page
+ * filled that field, so a send whose reply was lost is found on the server
+ * instead of being created twice.
+ * Sent entries are kept for a week after sending so the page can still show
+ * their result.
+ */
+final class OutboxStore extends SQLiteOpenHelper {
+
+    private static final String DB_NAME = "outbox.db";
+    private static final int DB_VERSION = 2;
+
+    static final String PENDING = "pending";
+    static final String DONE = "done";
+    static final String FAILED = "failed";
+
+    private static final String COLUMNS = "key, model, keyField, vals, thenMethod, state, attempts,"
+            + " nextAttemptAt, recordId, error, createdAt";
+
+    /** One queued record. */
+    static final class Entry {
+        final String key;
+        final String model;
+        final String keyField;
+        final String vals;
+        final String thenMethod;
+        final String state;
+        final int attempts;
+        final long nextAttemptAt;
+        final long recordId;
+        final String error;
+        final long createdAt;
+
+        Entry(Cursor c) {
+            this.key = c.getString(0);
+            this.model = c.getString(1);
+            this.keyField = c.getString(2);
+            this.vals = c.getString(3);
+            this.thenMethod = c.getString(4);
+            this.state = c.getString(5);
+            this.attempts = c.getInt(6);
+            this.nextAttemptAt = c.getLong(7);
+            this.recordId = c.getLong(8);
+            this.error = c.getString(9);
+            this.createdAt = c.getLong(10);
+        }
+
+        /** The vals to create, with the idempotency key in the key field if the page left it empty. */
+        JSONObject valsWithKey() throws JSONException {
+            JSONObject json = new JSONObject(vals);
+            Object value = json.opt(keyField);
+            // Odoo sends false for an empty field, and pages echo that back
+            if (value == null || value == JSONObject.NULL || Boolean.FALSE.equals(value)
+                    || value.toString().trim().isEmpty()) {
+                json.put(keyField, key);
+            }
+            return json;
+        }
+
+        /** What the record is found by on the server: the page's own value of the key field, or the key. */
+        String keyValue() throws JSONException {
+            return valsWithKey().get(keyField).toString();
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            Json.put(json, "key", key);
+            Json.put(json, "model", model);
+            Json.put(json, "state", state);
+            Json.put(json, "attempts", attempts);
+            Json.put(json, "createdAt", createdAt);
+            if (recordId > 0) {
+                Json.put(json, "recordId", recordId);
+            }
+            if (error != null) {
+                Json.put(json, "error", error);
+            }
+            if (PENDING.equals(state) && nextAttemptAt > 0) {
+                Json.put(json, "nextAttemptAt", nextAttemptAt);
+            }
+            return json;
+        }
+    }
+
+    OutboxStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE outbox (id INTEGER PRIMARY KEY AUTOINCREMENT, key TEXT NOT NULL UNIQUE,"
+                + " model TEXT NOT NULL, keyField TEXT NOT NULL, vals TEXT NOT NULL, thenMethod TEXT,"
+                + " state TEXT NOT NULL, attempts INTEGER NOT NULL DEFAULT 0,"
+                + " nextAttemptAt INTEGER NOT NULL DEFAULT 0, recordId INTEGER NOT NULL DEFAULT 0,"
+                + " error TEXT, createdAt INTEGER NOT NULL, doneAt INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX outbox_due ON outbox (state, nextAttemptAt)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Unsent orders must survive an upgrade; add migrations here when the schema changes
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE outbox ADD COLUMN doneAt INTEGER NOT NULL DEFAULT 0");
+            // Sent at some unknown time: keep them the full week from now
+            db.execSQL("UPDATE outbox SET doneAt = ? WHERE state = ?", new Object[]{System.currentTimeMillis(), DONE});
+        }
+    }
+
+    /**
+     * Queues a record unless its key is already queued; returns the entry
+     * under that key either way, so retries from the page are harmless.
+     */
+    Entry add(String key, String model, String keyField, String vals, String thenMethod) {
+        ContentValues values = new ContentValues();
+        values.put("key", key);
+        values.put("model", model);
+        values.put("keyField", keyField);
+        values.put("vals", vals);
+        values.put("thenMethod", thenMethod);
+        values.put("state", PENDING);
+        values.put("createdAt", System.currentTimeMillis());
+        getWritableDatabase().insertWithOnConflict("outbox", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        return get(key);
+    }
+
+    Entry get(String key) {
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT " + COLUMNS + " FROM outbox WHERE key = ?", new String[]{key})) {
+            return c.moveToFirst() ? new Entry(c) : null;
+        }
+    }
+
+    /** Pending entries whose next attempt is due, oldest first. */
+    List<Entry> due(long now, int limit) {
+        return query("SELECT " + COLUMNS + " FROM outbox WHERE state = ? AND nextAttemptAt <= ? ORDER BY id LIMIT ?",
+                PENDING, String.valueOf(now), String.valueOf(limit));
+    }
+
+    /** When the earliest pending entry is due, or -1 if none is pending. */
+    long nextDueAt() {
+        try (Cursor c = getReadableDatabase().rawQuery(
+                "SELECT MIN(nextAttemptAt) FROM outbox WHERE state = ?", new String[]{PENDING})) {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : -1;
+        }
+    }
+
+    void markDone(String key, long recordId, String warning) {
+        update(key, DONE, recordId, warning, -1, 0);
+    }
+
+    /** Odoo rejected the record; it stays until the page retries or discards it. */
+    void markFailed(String key, int attempts, String error) {
+        update(key, FAILED, 0, error, attempts, 0);
+    }
+
+    void markRetry(String key, int attempts, long nextAttemptAt, String error) {
+        update(key, PENDING, 0, error, attempts, nextAttemptAt);
+    }
+
+    /** Puts a failed entry back in line; false if there is no such failed entry. */
+    boolean retry(String key) {
+        ContentValues values = new ContentValues();
+        values.put("state", PENDING);
+        values.put("attempts", 0);
+        values.put("nextAttemptAt", 0);
+        values.putNull("error");
+        return getWritableDatabase().update("outbox", values, "key = ? AND state = ?",
+                new String[]{key, FAILED}) > 0;
+    }
+
+    /** Drops an entry that has not been sent; false if unknown or already sent. */
+    boolean discard(String key) {
+        return getWritableDatabase().delete("outbox", "key = ? AND state != ?", new String[]{key, DONE}) > 0;
+    }
+
+    /** Drops entries sent before {@code olderThan}, however long they waited to be sent. */
+    void purgeDone(long olderThan) {
+        getWritableDatabase().delete("outbox", "state = ? AND doneAt < ?",
+                new String[]{DONE, String.valueOf(olderThan)});
+    }
+
+    JSONArray listJson() {
+        JSONArray list = new JSONArray();
+        for (Entry entry : query("SELECT " + COLUMNS + " FROM outbox ORDER BY id")) {
+            list.put(entry.toJson());
+        }
+        return list;
+    }
+
+    JSONObject countsJson() throws JSONException {
+        JSONObject counts = new JSONObject().put(PENDING, 0).put(DONE, 0).put(FAILED, 0);
+        try (Cursor c = getReadableDatabase().rawQuery("SELECT state, COUNT(*) FROM outbox GROUP BY state", null)) {
+            while (c.moveToNext()) {
+                counts.put(c.getString(0), c.getLong(1));
+            }
+        }
+        return counts;
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private List<Entry> query(String sql, String... args) {
+        List<Entry> entries = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().rawQuery(sql, args)) {
+            while (c.moveToNext()) {
+                entries.add(new Entry(c));
+            }
+        }
+        return entries;
+    }
+
+    private void update(String key, String state, long recordId, String error, int attempts, long nextAttemptAt) {
+        ContentValues values = new ContentValues();
+        values.put("state", state);
+        values.put("recordId", recordId);
+        values.put("error", error);
+        values.put("nextAttemptAt", nextAttemptAt);
+        if (DONE.equals(state)) {
+            values.put("doneAt", System.currentTimeMillis());
+        }
+        if (attempts >= 0) {
+            values.put("attempts", attempts);
+        }
+        getWritableDatabase().update("outbox", values, "key = ?", new String[]{key});
+    }
+}
@@ -0,0 +1,421 @@
+package com.turmer.fieldsales;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.webkit.WebView;
+
+import androidx.webkit.JavaScriptReplyProxy;
+import androidx.webkit.ScriptHandler;
+import androidx.webkit.WebMessageCompat;
+import androidx.webkit.WebViewCompat;
+import androidx.webkit.WebViewFeature;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Native to page events (androidPrintJob, androidPrinterStatus, ...), still
+ * fired as CustomEvents on the page's window.
+ *
+ * For the Odoo origin a script injected at document start opens
+ * window.AndroidEventPort (a WebMessage listener) and says hello; events are
+ * then posted to that document in JSON batches and the page acks each one.
+ * Only one batch is in flight at a time: what is posted meanwhile waits,
+ * and an event posted with a key replaces the unsent one with the same key,
+ * so progress and status can be posted as often as they change without
+ * flooding a busy page. Events posted while a page is loading wait for it
+ * instead of reaching the old document or none. A batch that is not acked
+ * (the page went away, hung or reloaded) is sent again ahead of newer
+ * events, to the next page that says hello or to the same page after
+ * ACK_TIMEOUT_MS, so delivery is at least once. If a page stops taking
+ * events, only postLatest() and postState() ones (whose later value
+ * replaces them anyway) are dropped; job results, postOnce() and other
+ * post() events always arrive.
+ *
+ * Printer state (connection, status) is also remembered and replayed to
+ * every new page, and on window.AndroidEvents.replay(), so the page knows it
+ * without polling isConnected().
+ *
+ * Other pages, and WebView builds without document-start scripts, get the
+ * same batches through evaluateJavascript().
+ */
+final class PageEventBus {
+
+    private static final String TAG = "PageEventBus";
+
+    static final String PORT_NAME = "AndroidEventPort";
+
+    private static final int MAX_BATCH = 64;
+    // Pending key prefix of post() events; event types never start with it
+    private static final String UNKEYED = "#";
+    // Past this the oldest unsent postLatest/postState event is dropped (the
+    // page is told how many); other events are never dropped
+    private static final int MAX_PENDING = 512;
+    // A page that does not ack by then is gone or hung
+    private static final long ACK_TIMEOUT_MS = 5000;
+
+    // Fires a batch's events; "once" events fire at most once per document
+    private static final String DISPATCH = "function(b) {" +
+        "  b.events.forEach(function(e) {" +
+        "    if (e.once) { var k = '_androidOnce_' + e.type; if (window[k]) return; window[k] = true; }" +
+        "    window.dispatchEvent(new CustomEvent(e.type, { detail: e.detail }));" +
+        "  });" +
+        "  if (b.dropped) console.warn('[TurmerApp] ' + b.dropped + ' native events dropped');" +
+        "}";
+
+    private static final String SHIM = "(function() {" +
+        "var port = window." + PORT_NAME + ";" +
+        "if (!port || window.AndroidEvents) return;" +
+        "var dispatch = " + DISPATCH + ";" +
+        "port.onmessage = function(m) {" +
+        "  var b = JSON.parse(m.data);" +
+        "  try { dispatch(b); } finally { port.postMessage(JSON.stringify({ type: 'ack', seq: b.seq })); }" +
+        "};" +
+        "window.AndroidEvents = {" +
+        "  on: function(type, fn) {" +
+        "    var l = function(e) { fn(e.detail); };" +
+        "    window.addEventListener(type, l);" +
+        "    return function() { window.removeEventListener(type, l); };" +
+        "  }," +
+        "  replay: function() { port.postMessage(JSON.stringify({ type: 'replay' })); }" +
+        "};" +
+        "port.postMessage(JSON.stringify({ type: 'hello' }));" +
+        "})();";
+
+    private static final class Event {
+        final String type;
+        final JSONObject detail;
+        final boolean once;
+
+        Event(String type, JSONObject detail, boolean once) {
+            this.type = type;
+            this.detail = detail;
+            this.once = once;
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            Json.put(json, "type", type);
+            Json.put(json, "detail", detail != null ? detail : new JSONObject());
+            if (once) {
+                Json.put(json, "once", true);
+            }
+            return json;
+        }
+    }
+
+    private final Handler main = new Handler(Looper.getMainLooper());
+
+    // Guarded by this. Keyed events under "type|key" (or the type for postOnce),
+    // the rest under "#" and a serial
+    private final LinkedHashMap<String, Event> pending = new LinkedHashMap<>();
+    // The batch in flight, under the same keys, until the page acks it
+    private final LinkedHashMap<String, Event> unacked = new LinkedHashMap<>();
+    private final Map<String, Event> state = new LinkedHashMap<>();
+    private long serial;
+    // Keyed events in pending, the only ones that may be dropped
+    private int keyed;
+    private int dropped;
+    private boolean flushScheduled;
+
+    // Main thread only
+    private WebView webView;
+    private String origin;
+    private ScriptHandler startScript;
+    private JavaScriptReplyProxy page;
+    private boolean loading = true;
+    private long seq;
+    private long inFlight;
+
+    private final Runnable ackTimeout = () -> {
+        if (inFlight != 0) {
+            Log.w(TAG, "No ack for batch " + inFlight + ", sending it again");
+            resend();
+            flush();
+        }
+    };
+
+    PageEventBus(WebView webView) {
+        this.webView = webView;
+    }
+
+    /**
+     * Moves to a new WebView after the renderer died. Unsent events stay
+     * queued for its first page; call bind() again for the shim.
+     */
+    void attach(WebView webView) {
+        // The old view is destroyed, so there is nothing to unregister from it
+        this.webView = webView;
+        origin = null;
+        startScript = null;
+        onPageStarted();
+    }
+
+    // -------------------------------------------------------------------------
+    // Posting (any thread)
+    // -------------------------------------------------------------------------
+
+    /** Every such event reaches the page, in order. */
+    void post(String type, JSONObject detail) {
+        enqueue(null, new Event(type, detail, false));
+    }
+
+    /** Replaces an unsent event of the same type and key, e.g. progress of one job. */
+    void postLatest(String type, String key, JSONObject detail) {
+        enqueue(type + "|" + key, new Event(type, detail, false));
+    }
+
+    /** Like postLatest, and replayed to every new page until replaced. */
+    void postState(String type, String key, JSONObject detail) {
+        String stateKey = type + "|" + key;
+        Event event = new Event(type, detail, false);
+        synchronized (this) {
+            state.put(stateKey, event);
+        }
+        enqueue(stateKey, event);
+    }
+
+    /** Fired at most once per document, however often it is posted. */
+    void postOnce(String type, JSONObject detail) {
+        enqueue(type, new Event(type, detail, true));
+    }
+
+    // -------------------------------------------------------------------------
+    // Called from MainActivity (main thread)
+    // -------------------------------------------------------------------------
+
+    /**
+     * Injects the shim (after helperScript) into documents of this origin.
+     * False if the WebView cannot, in which case every page gets events
+     * through evaluateJavascript().
+     */
+    boolean bind(String origin, String helperScript) {
+        unbind();
+        if (origin == null
+                || !WebViewFeature.isFeatureSupported(WebViewFeature.WEB_MESSAGE_LISTENER)
+                || !WebViewFeature.isFeatureSupported(WebViewFeature.DOCUMENT_START_SCRIPT)) {
+            return false;
+        }
+        Set<String> rules = Collections.singleton(origin);
+        WebViewCompat.addWebMessageListener(webView, PORT_NAME, rules, this::onMessage);
+        startScript = WebViewCompat.addDocumentStartJavaScript(webView, helperScript + SHIM, rules);
+        this.origin = origin;
+        return true;
+    }
+
+    /** A new document is loading; hold events until it says hello or finishes loading. */
+    void onPageStarted() {
+        page = null;
+        loading = true;
+        resend();
+    }
+
+    /** A document without the shim gets events from here on through evaluateJavascript(). */
+    void onPageFinished() {
+        loading = false;
+        flush();
+    }
+
+    /** True if the current document has the shim (and so the helpers). */
+    boolean isConnected() {
+        return page != null;
+    }
+
+    void close() {
+        unbind();
+        clearInFlight();
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private void unbind() {
+        if (origin != null) {
+            WebViewCompat.removeWebMessageListener(webView, PORT_NAME);
+            if (startScript != null) {
+                startScript.remove();
+            }
+            origin = null;
+            startScript = null;
+        }
+        page = null;
+    }
+
+    private void onMessage(WebView view, WebMessageCompat message, Uri sourceOrigin,
+                           boolean isMainFrame, JavaScriptReplyProxy replyProxy) {
+        if (!isMainFrame || message.getData() == null) {
+            return;
+        }
+        JSONObject json;
+        try {
+            json = new JSONObject(message.getData());
+        } catch (JSONException e) {
+            Log.w(TAG, "Bad message from the page: " + e.getMessage());
+            return;
+        }
+        switch (json.optString("type")) {
+            case "hello":
+                page = replyProxy;
+                resend();
+                replayState();
+                break;
+            case "ack":
+                if (json.optLong("seq") == inFlight) {
+                    acked();
+                    flush();
+                }
+                break;
+            case "replay":
+                replayState();
+                break;
+            default:
+                Log.w(TAG, "Unknown message from the page: " + json.optString("type"));
+        }
+    }
+
+    private void replayState() {
+        List<Map.Entry<String, Event>> replay;
+        synchronized (this) {
+            replay = new ArrayList<>(state.entrySet());
+        }
+        for (Map.Entry<String, Event> entry : replay) {
+            enqueue(entry.getKey(), entry.getValue());
+        }
+        flush();
+    }
+
+    private void enqueue(String key, Event event) {
+        boolean schedule;
+        synchronized (this) {
+            if (key == null) {
+                key = UNKEYED + serial++;
+            }
+            // Re-inserted at the end, so the page never sees an older value last
+            if (pending.remove(key) == null && isKeyed(key)) {
+                keyed++;
+            }
+            pending.put(key, event);
+            if (pending.size() > MAX_PENDING && keyed > 0) {
+                dropEldestKeyed(key);
+            }
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+        if (schedule) {
+            main.post(this::flush);
+        }
+    }
+
+    /** Sends the next batch if none is in flight and the page can take it. Main thread. */
+    private void flush() {
+        JSONObject batch = new JSONObject();
+        synchronized (this) {
+            flushScheduled = false;
+            if (inFlight != 0 || pending.isEmpty() || (page == null && loading)) {
+                return;
+            }
+            JSONArray events = new JSONArray();
+            Iterator<Map.Entry<String, Event>> it = pending.entrySet().iterator();
+            while (it.hasNext() && events.length() < MAX_BATCH) {
+                Map.Entry<String, Event> next = it.next();
+                events.put(next.getValue().toJson());
+                unacked.put(next.getKey(), next.getValue());
+                it.remove();
+                if (isKeyed(next.getKey())) {
+                    keyed--;
+                }
+            }
+            Json.put(batch, "seq", ++seq);
+            Json.put(batch, "events", events);
+            if (dropped > 0) {
+                Json.put(batch, "dropped", dropped);
+                dropped = 0;
+            }
+        }
+        long sent = seq;
+        inFlight = sent;
+        if (page != null) {
+            page.postMessage(batch.toString());
+        } else {
+            // Returns once the script ran, which is as good as an ack
+            webView.evaluateJavascript("(" + DISPATCH + ")(" + batch + ");", value -> {
+                if (inFlight == sent) {
+                    acked();
+                    flush();
+                }
+            });
+        }
+        main.postDelayed(ackTimeout, ACK_TIMEOUT_MS);
+    }
+
+    /** Drops the oldest postLatest/postState event other than the one just posted. Caller holds the lock. */
+    private void dropEldestKeyed(String posted) {
+        Iterator<Map.Entry<String, Event>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Event> next = it.next();
+            String key = next.getKey();
+            // A postOnce event has no later value to stand in for it
+            if (isKeyed(key) && !next.getValue().once && !key.equals(posted)) {
+                it.remove();
+                keyed--;
+                dropped++;
+                return;
+            }
+        }
+    }
+
+    private static boolean isKeyed(String key) {
+        return !key.startsWith(UNKEYED);
+    }
+
+    private void acked() {
+        synchronized (this) {
+            unacked.clear();
+        }
+        clearInFlight();
+    }
+
+    /**
+     * Puts the batch in flight back at the head of the queue, for the next
+     * flush. An event posted since under the same key keeps its newer value.
+     */
+    private void resend() {
+        clearInFlight();
+        synchronized (this) {
+            if (unacked.isEmpty()) {
+                return;
+            }
+            LinkedHashMap<String, Event> queue = new LinkedHashMap<>(unacked);
+            for (Map.Entry<String, Event> entry : pending.entrySet()) {
+                queue.remove(entry.getKey());
+                queue.put(entry.getKey(), entry.getValue());
+            }
+            unacked.clear();
+            pending.clear();
+            pending.putAll(queue);
+            keyed = 0;
+            for (String key : pending.keySet()) {
+                if (isKeyed(key)) {
+                    keyed++;
+                }
+            }
+        }
+    }
+
+    private void clearInFlight() {
+        inFlight = 0;
+        main.removeCallbacks(ackTimeout);
+    }
+}
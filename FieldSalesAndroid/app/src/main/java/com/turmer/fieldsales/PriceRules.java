@@ -0,0 +1,184 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Odoo's pricelist rules, evaluated on the device from synced priceRules
+ * rows (see {@link CatalogStore#price}).
+ *
+ * The rule that applies is picked the way Odoo does: variant, template,
+ * category, global; then the larger minimum quantity, the deeper category
+ * and the newer rule. Rules past their dates or above the quantity never
+ * match. Plain Java over rows already read, so it needs no database.
+ */
+final class PriceRules {
+
+    // Pricelists based on other pricelists: follow at most this many levels
+    private static final int MAX_PRICELIST_DEPTH = 5;
+
+    /**
+     * The rules of one pricelist: priceRules rows, each with its category's
+     * parentPath as "categPath" and name as "categName" (null when the
+     * category is not synced).
+     */
+    interface Source {
+        List<JSONObject> rules(long pricelistId) throws JSONException;
+    }
+
+    private PriceRules() {
+    }
+
+    /**
+     * Unit price of a product on a pricelist for a quantity, as
+     * { productId, pricelistId, qty, listPrice, price, ruleId, reason }.
+     * "price" is null when the matching rule needs data that is not synced
+     * (cost-based formulas); the page should then ask the server.
+     *
+     * @param categPath the product category's parentPath, "" if none
+     * @param now       UTC "yyyy-MM-dd HH:mm:ss", as Odoo stores dates
+     */
+    static JSONObject price(Source rules, long productId, long tmplId, String categPath, double listPrice,
+                            long pricelistId, double qty, String now) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("productId", productId);
+        result.put("pricelistId", pricelistId);
+        result.put("qty", qty);
+        result.put("listPrice", listPrice);
+        String[] reason = new String[1];
+        long[] ruleId = new long[1];
+        Double price = priceOf(rules, productId, tmplId, categPath, listPrice, pricelistId, qty, now, 0,
+                ruleId, reason);
+        result.put("price", price != null ? price : JSONObject.NULL);
+        if (ruleId[0] > 0) {
+            result.put("ruleId", ruleId[0]);
+        }
+        if (reason[0] != null) {
+            result.put("reason", reason[0]);
+        }
+        return result;
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private static Double priceOf(Source rules, long productId, long tmplId, String categPath, double listPrice,
+                                  long pricelistId, double qty, String now, int depth, long[] ruleId,
+                                  String[] reason) throws JSONException {
+        JSONObject rule = null;
+        for (JSONObject candidate : rules.rules(pricelistId)) {
+            if (applies(candidate, productId, tmplId, categPath, qty, now)
+                    && (rule == null || precedes(candidate, rule))) {
+                rule = candidate;
+            }
+        }
+        if (rule == null) {
+            return listPrice;
+        }
+        if (depth == 0) {
+            ruleId[0] = rule.getLong("id");
+        }
+        String compute = rule.optString("compute");
+        if ("fixed".equals(compute)) {
+            return rule.optDouble("fixedPrice", 0);
+        }
+
+        // Percentage and formula both start from the rule's base price
+        double base;
+        String baseKind = rule.isNull("base") ? "list_price" : rule.getString("base");
+        if ("list_price".equals(baseKind)) {
+            base = listPrice;
+        } else if ("pricelist".equals(baseKind) && !rule.isNull("basePricelistId") && depth < MAX_PRICELIST_DEPTH) {
+            Double other = priceOf(rules, productId, tmplId, categPath, listPrice, rule.getLong("basePricelistId"),
+                    qty, now, depth + 1, ruleId, reason);
+            if (other == null) {
+                return null;
+            }
+            base = other;
+        } else {
+            reason[0] = "Rule " + rule.getLong("id") + " is based on " + baseKind;
+            return null;
+        }
+
+        if ("percentage".equals(compute)) {
+            return base - base * rule.optDouble("percent", 0) / 100;
+        }
+        double price = base - base * rule.optDouble("discount", 0) / 100;
+        double rounding = rule.optDouble("rounding", 0);
+        if (rounding > 0) {
+            price = Math.round(price / rounding) * rounding;
+        }
+        price += rule.optDouble("surcharge", 0);
+        double minMargin = rule.optDouble("minMargin", 0);
+        double maxMargin = rule.optDouble("maxMargin", 0);
+        if (minMargin != 0) {
+            price = Math.max(price, base + minMargin);
+        }
+        if (maxMargin != 0) {
+            price = Math.min(price, base + maxMargin);
+        }
+        return price;
+    }
+
+    private static boolean applies(JSONObject rule, long productId, long tmplId, String categPath, double qty,
+                                   String now) throws JSONException {
+        if (!rule.isNull("minQty") && rule.getDouble("minQty") > qty) {
+            return false;
+        }
+        // A date-only bound compares with the date part of now
+        if (!rule.isNull("dateStart")) {
+            String start = rule.getString("dateStart");
+            if (start.compareTo(prefix(now, start.length())) > 0) {
+                return false;
+            }
+        }
+        if (!rule.isNull("dateEnd")) {
+            String end = rule.getString("dateEnd");
+            if (end.compareTo(prefix(now, end.length())) < 0) {
+                return false;
+            }
+        }
+        switch (rule.optString("appliedOn")) {
+            case "3_global":
+                return true;
+            case "2_product_category":
+                // parent_path "1/4/" covers the category and everything under it
+                return !rule.isNull("categPath") && categPath.startsWith(rule.getString("categPath"));
+            case "1_product":
+                return !rule.isNull("tmplId") && rule.getLong("tmplId") == tmplId;
+            case "0_product_variant":
+                return !rule.isNull("productId") && rule.getLong("productId") == productId;
+            default:
+                return false;
+        }
+    }
+
+    /** Odoo's order: applied_on, min_quantity desc, categ_id.complete_name desc, id desc. */
+    private static boolean precedes(JSONObject a, JSONObject b) throws JSONException {
+        int byScope = a.getString("appliedOn").compareTo(b.getString("appliedOn"));
+        if (byScope != 0) {
+            return byScope < 0;
+        }
+        int byQty = Double.compare(a.optDouble("minQty", 0), b.optDouble("minQty", 0));
+        if (byQty != 0) {
+            return byQty > 0;
+        }
+        // No category sorts last, as NULL does in SQLite
+        int byCategory = categName(a).compareTo(categName(b));
+        if (byCategory != 0) {
+            return byCategory > 0;
+        }
+        return a.getLong("id") > b.getLong("id");
+    }
+
+    private static String categName(JSONObject rule) throws JSONException {
+        return rule.isNull("categName") ? "" : rule.getString("categName");
+    }
+
+    private static String prefix(String text, int length) {
+        return text.length() > length ? text.substring(0, length) : text;
+    }
+}
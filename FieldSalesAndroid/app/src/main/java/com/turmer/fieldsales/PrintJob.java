@@ -0,0 +1,206 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single unit of work for the {@link PrintQueue}.
+ *
+ * Base64 jobs carry a {@link Source}: the payload is decoded on the writer
+ * thread, block by block, as the bytes are sent, so it never exists decoded
+ * in memory. Jobs built natively (receipts, images, fragments) carry a
+ * {@link Renderer} that runs on the writer thread, or ahead of time on the
+ * queue's prepare thread while the job before it is still being written
+ * ({@link #prepare()}). State and progress fields are written by the writer
+ * thread and read from the bridge thread, hence volatile.
+ */
+final class PrintJob {
+
+    /** HELD: started, waiting for the printer to be ready again (paper, cover). */
+    enum State { QUEUED, PRINTING, HELD, DONE, FAILED, CANCELLED }
+
+    /** How the payload is interpreted by the writer. */
+    enum Kind { BASE64, TEXT, RAW, RECEIPT, IMAGE, FRAGMENTS, SHAPED_TEXT, REPRINT }
+
+    /** Produces the job's bytes as one or more parts. Runs on the writer or prepare thread, once. */
+    interface Renderer {
+        List<byte[]> render(PrintJob job) throws Exception;
+    }
+
+    /** Streams the job's bytes as they are sent. Runs on the writer thread. */
+    interface Source {
+        /** Exact number of bytes {@link #open} will produce. */
+        long length() throws IOException;
+
+        InputStream open(PrintJob job) throws IOException;
+    }
+
+    /** Base64 text, from the spool or memory, decoded block by block as it is sent. */
+    static class Base64Source implements Source {
+
+        /** Opens the base64 text; once for the length and once per send. */
+        interface Text {
+            InputStream open() throws IOException;
+        }
+
+        private final Text text;
+
+        Base64Source(Text text) {
+            this.text = text;
+        }
+
+        @Override
+        public long length() throws IOException {
+            try (InputStream in = text.open()) {
+                return Base64DecodingInputStream.decodedLength(in);
+            }
+        }
+
+        @Override
+        public InputStream open(PrintJob job) throws IOException {
+            return new Base64DecodingInputStream(text.open());
+        }
+    }
+
+    final long id;
+    final Kind kind;
+    final Renderer renderer;
+    final Source source;
+    final long createdAt;
+
+    /** Id of the printBatch() call that queued the job, or 0. */
+    volatile long batchId;
+
+    volatile State state = State.QUEUED;
+    volatile long bytesWritten;
+    volatile long totalBytes = -1;
+    volatile long renderNanos;
+    volatile String error;
+    volatile boolean cancelRequested;
+    /** Failed for want of a printer, not because of its content; worth sending again. */
+    volatile boolean retryable;
+    /** Could not be written to the spool, so it is lost if the app dies before it prints. */
+    volatile boolean unspooled;
+
+    /** Run by the writer once every byte has been flushed; set by renderers. */
+    volatile Runnable afterWrite;
+
+    // Output (or failure) of the renderer, produced once; guarded by this
+    private List<byte[]> rendered;
+    private IOException renderError;
+
+    /** A job rendered natively on the writer thread. */
+    PrintJob(long id, Kind kind, Renderer renderer) {
+        this.id = id;
+        this.kind = kind;
+        this.renderer = renderer;
+        this.source = null;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    /** A job streamed from its source while it is written. */
+    PrintJob(long id, Kind kind, Source source) {
+        this.id = id;
+        this.kind = kind;
+        this.renderer = null;
+        this.source = source;
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    /** Exact number of bytes {@link #openStream()} will produce. */
+    long byteLength() throws IOException {
+        if (source != null) {
+            return source.length();
+        }
+        long total = 0;
+        for (byte[] part : render()) {
+            total += part.length;
+        }
+        return total;
+    }
+
+    /** Streams the bytes to send; the caller closes it. */
+    InputStream openStream() throws IOException {
+        if (source != null) {
+            return source.open(this);
+        }
+        List<InputStream> parts = new ArrayList<>();
+        for (byte[] part : render()) {
+            parts.add(new ByteArrayInputStream(part));
+        }
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    /**
+     * Renders the job now so the writer finds its bytes ready. A failure is
+     * kept and reported when the writer reaches the job.
+     */
+    void prepare() {
+        if (renderer == null || state != State.QUEUED) {
+            return;
+        }
+        try {
+            render();
+        } catch (IOException ignored) {
+            // Kept in renderError
+        }
+    }
+
+    private synchronized List<byte[]> render() throws IOException {
+        if (rendered == null && renderError == null) {
+            long start = System.nanoTime();
+            try {
+                rendered = renderer.render(this);
+            } catch (IOException e) {
+                renderError = e;
+            } catch (JSONException e) {
+                renderError = new IOException("Invalid " + kind.name().toLowerCase() + ": " + e.getMessage(), e);
+            } catch (Exception e) {
+                renderError = new IOException(e.getMessage() != null ? e.getMessage() : e.toString(), e);
+            }
+            renderNanos = System.nanoTime() - start;
+        }
+        if (renderError != null) {
+            throw renderError;
+        }
+        return rendered;
+    }
+
+    boolean isFinished() {
+        return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+    }
+
+    /** Event detail sent to the page for every state change or progress tick. */
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        Json.put(json, "jobId", String.valueOf(id));
+        Json.put(json, "state", state.name().toLowerCase());
+        Json.put(json, "bytesWritten", bytesWritten);
+        Json.put(json, "totalBytes", totalBytes);
+        if (batchId != 0) {
+            Json.put(json, "batchId", String.valueOf(batchId));
+        }
+        if (renderNanos > 0) {
+            Json.put(json, "renderMs", renderNanos / 1000000);
+        }
+        if (error != null) {
+            Json.put(json, "error", error);
+        }
+        if (state == State.FAILED && retryable && !unspooled) {
+            // Only the spool can send it again
+            Json.put(json, "willRetry", true);
+        }
+        if (unspooled) {
+            Json.put(json, "spooled", false);
+        }
+        return json;
+    }
+}
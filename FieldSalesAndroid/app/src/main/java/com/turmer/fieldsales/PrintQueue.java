@@ -0,0 +1,263 @@
+package com.turmer.fieldsales;
+
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FIFO print queue drained by one dedicated writer thread.
+ *
+ * The bridge only enqueues and returns; all decoding and socket writes run on
+ * the writer thread, so a long job never blocks other AndroidPrint calls.
+ * Jobs run strictly one after another so their bytes never interleave on the
+ * printer. While one job is written the next one is rendered on a second
+ * thread, so a run of queued jobs (e.g. a printBatch() of invoices) goes out
+ * back to back instead of waiting for each render in turn.
+ */
+final class PrintQueue {
+
+    private static final String TAG = "PrintQueue";
+
+    /** Performs the actual write of a job. Runs on the writer thread. */
+    interface JobWriter {
+        void write(PrintJob job) throws Exception;
+
+        /** The queue has run dry; resources held across jobs can go. */
+        default void idle() {
+        }
+    }
+
+    /** Receives job lifecycle callbacks. Called on the writer thread (or the caller's for queued/cancelled). */
+    interface Listener {
+        void onJobStateChanged(PrintJob job);
+        void onJobProgress(PrintJob job);
+    }
+
+    /** Thrown by a {@link JobWriter} when it notices {@link PrintJob#cancelRequested}. */
+    static final class CancelledException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException() {
+            super("Cancelled");
+        }
+    }
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    /** Job ids are unique across all queues. */
+    static long nextId() {
+        return NEXT_ID.incrementAndGet();
+    }
+
+    /** Makes sure new ids are above ids restored from a previous run. */
+    static void reserveIds(long upTo) {
+        NEXT_ID.accumulateAndGet(upTo, Math::max);
+    }
+
+    // Progress events are throttled so a big job does not flood the page
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
+    // Taken from and cancelled in under this, so a job is always in one of pending or current
+    private final LinkedBlockingDeque<PrintJob> pending = new LinkedBlockingDeque<>();
+    private final JobWriter writer;
+    private final Listener listener;
+    private final Thread thread;
+    // Renders the job after the current one; one job ahead keeps memory bounded
+    private final ExecutorService preparer;
+
+    private volatile PrintJob current;
+    private volatile boolean running = true;
+    private long lastProgressAt;
+
+    PrintQueue(String name, JobWriter writer, Listener listener) {
+        this.writer = writer;
+        this.listener = listener;
+        this.thread = new Thread(this::runLoop, "print-writer-" + name);
+        this.thread.setDaemon(true);
+        this.preparer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "print-prepare-" + name);
+            t.setDaemon(true);
+            return t;
+        });
+        this.thread.start();
+    }
+
+    /** Queues a job built by the caller with an id from {@link #nextId()}. */
+    PrintJob enqueue(PrintJob job) {
+        offer(job);
+        return job;
+    }
+
+    /**
+     * Queues a job unless the queue has been shut down, checked under the
+     * lock {@link #shutdown} takes, so a job is never left on a dead queue.
+     *
+     * @return false if shut down; the job is left as it was
+     */
+    boolean offer(PrintJob job) {
+        synchronized (this) {
+            if (!running) {
+                return false;
+            }
+            pending.addLast(job);
+            notifyAll();
+        }
+        listener.onJobStateChanged(job);
+        if (current != null && pending.peekFirst() == job) {
+            prepare(job);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels a job. A queued job is dropped at once; a running job stops at the
+     * next chunk boundary.
+     *
+     * @return false if no such job is queued or running
+     */
+    boolean cancel(long jobId) {
+        PrintJob dropped = null;
+        synchronized (this) {
+            Iterator<PrintJob> it = pending.iterator();
+            while (it.hasNext()) {
+                PrintJob job = it.next();
+                if (job.id == jobId) {
+                    it.remove();
+                    dropped = job;
+                    break;
+                }
+            }
+            if (dropped == null) {
+                PrintJob active = current;
+                if (active != null && active.id == jobId) {
+                    active.cancelRequested = true;
+                    return true;
+                }
+                return false;
+            }
+        }
+        dropped.state = PrintJob.State.CANCELLED;
+        listener.onJobStateChanged(dropped);
+        return true;
+    }
+
+    /** Whether the job is waiting or being written. */
+    synchronized boolean contains(long jobId) {
+        for (PrintJob job : pending) {
+            if (job.id == jobId) {
+                return true;
+            }
+        }
+        PrintJob active = current;
+        return active != null && active.id == jobId;
+    }
+
+    /** Number of jobs waiting plus the one being written, if any. */
+    int depth() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    /** Called by the writer as bytes go out; forwards throttled progress events. */
+    void reportProgress(PrintJob job, long written) {
+        job.bytesWritten = written;
+        long now = System.currentTimeMillis();
+        if (now - lastProgressAt >= PROGRESS_INTERVAL_MS || written == job.totalBytes) {
+            lastProgressAt = now;
+            listener.onJobProgress(job);
+        }
+    }
+
+    /**
+     * Called by the writer while the running job waits for the printer
+     * (paper out, cover open) and again when it carries on.
+     */
+    void setHeld(PrintJob job, boolean held) {
+        job.state = held ? PrintJob.State.HELD : PrintJob.State.PRINTING;
+        listener.onJobStateChanged(job);
+    }
+
+    /** Cancels everything and stops the writer thread. */
+    void shutdown() {
+        synchronized (this) {
+            running = false;
+        }
+        PrintJob job;
+        while ((job = pending.pollFirst()) != null) {
+            job.state = PrintJob.State.CANCELLED;
+            listener.onJobStateChanged(job);
+        }
+        PrintJob active = current;
+        if (active != null) {
+            active.cancelRequested = true;
+        }
+        preparer.shutdownNow();
+        thread.interrupt();
+    }
+
+    // -------------------------------------------------------------------------
+    // Writer thread
+    // -------------------------------------------------------------------------
+
+    private void runLoop() {
+        while (running) {
+            PrintJob job;
+            try {
+                job = takeNext();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            job.state = PrintJob.State.PRINTING;
+            lastProgressAt = 0;
+            listener.onJobStateChanged(job);
+            PrintJob next = pending.peekFirst();
+            if (next != null) {
+                prepare(next);
+            }
+            try {
+                writer.write(job);
+                job.state = PrintJob.State.DONE;
+            } catch (CancelledException e) {
+                job.state = PrintJob.State.CANCELLED;
+            } catch (Exception e) {
+                Log.w(TAG, "Job " + job.id + " failed", e);
+                job.error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                job.state = PrintJob.State.FAILED;
+            } finally {
+                current = null;
+            }
+            listener.onJobStateChanged(job);
+        }
+    }
+
+    /** Removes the next job and makes it current in one step, waiting for one if need be. */
+    private PrintJob takeNext() throws InterruptedException {
+        synchronized (this) {
+            PrintJob job = pending.pollFirst();
+            if (job != null) {
+                current = job;
+                return job;
+            }
+        }
+        writer.idle();
+        synchronized (this) {
+            PrintJob job;
+            while ((job = pending.pollFirst()) == null) {
+                wait();
+            }
+            current = job;
+            return job;
+        }
+    }
+
+    private void prepare(PrintJob job) {
+        try {
+            preparer.execute(job::prepare);
+        } catch (java.util.concurrent.RejectedExecutionException ignored) {
+            // Shut down; the writer renders it itself if it still gets there
+        }
+    }
+}
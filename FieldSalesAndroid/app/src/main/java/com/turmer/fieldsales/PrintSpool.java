@@ -0,0 +1,467 @@
+package com.turmer.fieldsales;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Crash-safe, append-only log of print jobs that have not been printed yet.
+ *
+ * A job's source (base64, text, receipt JSON, image, fragment list) is
+ * appended and fsynced before the job is queued, and a small "done" record is
+ * appended once the printer has every byte. Whatever is still live when the
+ * app starts again is replayed. Only an offset index is kept in memory;
+ * payloads are read back one job at a time as the writer gets to them, and
+ * a base64 payload is streamed from the file ({@link #openPayload}) rather
+ * than read whole. Payloads are written straight from the caller's array.
+ *
+ * Each record is framed as [length][body][CRC32]. A torn write at the tail
+ * (app killed mid-append) fails the check and is cut off on open. Once dead
+ * records outweigh live ones the file is rewritten with only the live ones.
+ *
+ * The file is read back on first use, not in the constructor, so opening
+ * the spool costs the main thread nothing.
+ */
+final class PrintSpool {
+
+    private static final String TAG = "PrintSpool";
+
+    private static final byte TYPE_ADD = 'A';
+    private static final byte TYPE_DONE = 'D';
+
+    // Rewrite the file once this much of it is dead and it is mostly dead
+    private static final long COMPACT_MIN_DEAD_BYTES = 256 * 1024;
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    /** A spooled job as read back from disk; {@link #pending()} leaves payload and options null. */
+    static final class Record {
+        final long id;
+        final String address;
+        final PrintJob.Kind kind;
+        final String options;
+        final byte[] payload;
+
+        Record(long id, String address, PrintJob.Kind kind, String options, byte[] payload) {
+            this.id = id;
+            this.address = address;
+            this.kind = kind;
+            this.options = options;
+            this.payload = payload;
+        }
+    }
+
+    /** Where a live record's frame sits in the file. */
+    private static final class Entry {
+        long offset;
+        final int frameLength;
+        final String address;
+        final PrintJob.Kind kind;
+
+        Entry(long offset, int frameLength, String address, PrintJob.Kind kind) {
+            this.offset = offset;
+            this.frameLength = frameLength;
+            this.address = address;
+            this.kind = kind;
+        }
+    }
+
+    private final File file;
+    // Live jobs in spool order
+    private final LinkedHashMap<Long, Entry> live = new LinkedHashMap<>();
+    private FileOutputStream out;
+    private long length;
+    private long liveBytes;
+    private long deadBytes;
+    private long maxId;
+    private boolean recovered;
+
+    PrintSpool(File file) {
+        this.file = file;
+    }
+
+    /** Highest job id ever spooled, so new ids do not collide with replayed ones. */
+    synchronized long maxId() {
+        ensureRecovered();
+        return maxId;
+    }
+
+    /** The jobs still to print, oldest first, without their payloads. */
+    synchronized List<Record> pending() {
+        ensureRecovered();
+        List<Record> result = new ArrayList<>(live.size());
+        for (Map.Entry<Long, Entry> e : live.entrySet()) {
+            result.add(new Record(e.getKey(), e.getValue().address, e.getValue().kind, null, null));
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        ensureRecovered();
+        return live.size();
+    }
+
+    /**
+     * Appends several jobs with a single fsync, e.g. a printBatch() of a
+     * day's invoices. Either all of them are spooled or none.
+     */
+    synchronized void appendAll(List<Record> records) throws IOException {
+        ensureRecovered();
+        List<byte[]> heads = new ArrayList<>(records.size());
+        List<byte[]> payloads = new ArrayList<>(records.size());
+        for (Record record : records) {
+            ByteArrayOutputStream head = new ByteArrayOutputStream(64);
+            DataOutputStream data = new DataOutputStream(head);
+            data.writeByte(TYPE_ADD);
+            data.writeLong(record.id);
+            data.writeUTF(record.address);
+            data.writeUTF(record.kind.name());
+            data.writeUTF(record.options != null ? record.options : "");
+            data.writeInt(record.payload.length);
+            heads.add(head.toByteArray());
+            payloads.add(record.payload);
+        }
+        long offset = length;
+        int[] frameLengths = writeFrames(heads, payloads);
+        for (int i = 0; i < records.size(); i++) {
+            Record record = records.get(i);
+            live.put(record.id, new Entry(offset, frameLengths[i], record.address, record.kind));
+            offset += frameLengths[i];
+            liveBytes += frameLengths[i];
+            maxId = Math.max(maxId, record.id);
+        }
+    }
+
+    /** Marks a job printed (or given up on); it will not be replayed. */
+    synchronized void markDone(long id) {
+        ensureRecovered();
+        Entry entry = live.remove(id);
+        if (entry == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(9);
+            DataOutputStream data = new DataOutputStream(body);
+            data.writeByte(TYPE_DONE);
+            data.writeLong(id);
+            int frameLength = writeFrame(body.toByteArray());
+            liveBytes -= entry.frameLength;
+            deadBytes += entry.frameLength + frameLength;
+            maybeCompact();
+        } catch (IOException e) {
+            // Worst case the job is printed again after a restart
+            Log.w(TAG, "Could not mark job " + id + " done", e);
+        }
+    }
+
+    /** Reads a live job back, or returns null if it is no longer spooled. */
+    synchronized Record read(long id) throws IOException {
+        ensureRecovered();
+        Entry entry = live.get(id);
+        if (entry == null) {
+            return null;
+        }
+        try (DataInputStream in = openFrame(entry)) {
+            return parseAdd(in);
+        }
+    }
+
+    /**
+     * Opens just the payload of a live job, e.g. to decode a large base64
+     * job as it is sent, or returns null if it is no longer spooled. The
+     * stream reads the file as it was, even if it is compacted meanwhile.
+     */
+    synchronized InputStream openPayload(long id) throws IOException {
+        ensureRecovered();
+        Entry entry = live.get(id);
+        if (entry == null) {
+            return null;
+        }
+        DataInputStream in = openFrame(entry);
+        try {
+            if (in.readByte() != TYPE_ADD) {
+                throw new IOException("Not a job record");
+            }
+            in.readLong();
+            in.readUTF();
+            in.readUTF();
+            in.readUTF();
+            return new PayloadInputStream(in, in.readInt());
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers (caller holds the lock)
+    // -------------------------------------------------------------------------
+
+    /** Writes [length][body][crc] and fsyncs; returns the frame size. */
+    private int writeFrame(byte[] body) throws IOException {
+        return writeFrames(Collections.singletonList(body), Collections.singletonList(NO_BYTES))[0];
+    }
+
+    /**
+     * Writes one frame per head with a single fsync; each body is a head
+     * followed by its tail, written as it is. Returns the frame sizes.
+     */
+    private int[] writeFrames(List<byte[]> heads, List<byte[]> tails) throws IOException {
+        int[] frameLengths = new int[heads.size()];
+        long written = 0;
+        try {
+            if (out == null) {
+                out = new FileOutputStream(file, true);
+            }
+            // Large tails skip the buffer, so a payload is never copied
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 8192));
+            for (int i = 0; i < heads.size(); i++) {
+                byte[] head = heads.get(i);
+                byte[] tail = tails.get(i);
+                CRC32 crc = new CRC32();
+                crc.update(head);
+                crc.update(tail);
+                data.writeInt(head.length + tail.length);
+                data.write(head);
+                data.write(tail);
+                data.writeInt((int) crc.getValue());
+                frameLengths[i] = head.length + tail.length + 8;
+                written += frameLengths[i];
+            }
+            data.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            // Drop partial frames so later appends still follow a valid record
+            closeOut();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(length);
+            }
+            throw e;
+        }
+        length += written;
+        return frameLengths;
+    }
+
+    /** A reader positioned at the start of a live record's body. */
+    private DataInputStream openFrame(Entry entry) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(entry.offset);
+            DataInputStream data = new DataInputStream(new BufferedInputStream(in, 8192));
+            data.readInt();
+            return data;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private void ensureRecovered() {
+        if (!recovered) {
+            recovered = true;
+            recover();
+        }
+    }
+
+    /** Rebuilds the index from the file, cutting off a torn tail. */
+    private void recover() {
+        long good = 0;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    int bodyLength;
+                    try {
+                        bodyLength = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (bodyLength < 9 || bodyLength > file.length()) {
+                        break;
+                    }
+                    byte[] body = new byte[bodyLength];
+                    in.readFully(body);
+                    int stored = in.readInt();
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if ((int) crc.getValue() != stored) {
+                        break;
+                    }
+                    int frameLength = bodyLength + 8;
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                    byte type = record.readByte();
+                    long id = record.readLong();
+                    if (type == TYPE_ADD) {
+                        String address = record.readUTF();
+                        PrintJob.Kind kind = PrintJob.Kind.valueOf(record.readUTF());
+                        live.put(id, new Entry(good, frameLength, address, kind));
+                        liveBytes += frameLength;
+                        maxId = Math.max(maxId, id);
+                    } else {
+                        Entry entry = live.remove(id);
+                        if (entry != null) {
+                            liveBytes -= entry.frameLength;
+                            deadBytes += entry.frameLength;
+                        }
+                        deadBytes += frameLength;
+                    }
+                    good += frameLength;
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                Log.w(TAG, "Spool truncated at " + good, e);
+            }
+            if (good < file.length()) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(good);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not truncate spool", e);
+                }
+            }
+        }
+        length = good;
+        if (!live.isEmpty()) {
+            Log.i(TAG, "Recovered " + live.size() + " unprinted job(s)");
+        }
+        maybeCompact();
+    }
+
+    private void maybeCompact() {
+        if (live.isEmpty() && length > 0) {
+            // Nothing to keep: start from an empty file
+            try {
+                closeOut();
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(0);
+                }
+                length = 0;
+                deadBytes = 0;
+            } catch (IOException e) {
+                Log.w(TAG, "Could not reset spool", e);
+            }
+            return;
+        }
+        if (deadBytes < COMPACT_MIN_DEAD_BYTES || deadBytes < liveBytes) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            long offset = 0;
+            try (RandomAccessFile src = new RandomAccessFile(file, "r");
+                 FileOutputStream dst = new FileOutputStream(tmp)) {
+                byte[] frame = new byte[0];
+                for (Entry entry : live.values()) {
+                    if (frame.length < entry.frameLength) {
+                        frame = new byte[entry.frameLength];
+                    }
+                    src.seek(entry.offset);
+                    src.readFully(frame, 0, entry.frameLength);
+                    dst.write(frame, 0, entry.frameLength);
+                }
+                dst.getFD().sync();
+            }
+            closeOut();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Rename failed");
+            }
+            for (Entry entry : live.values()) {
+                entry.offset = offset;
+                offset += entry.frameLength;
+            }
+            length = offset;
+            deadBytes = 0;
+        } catch (IOException e) {
+            // The old file is untouched and still valid
+            Log.w(TAG, "Spool compaction failed", e);
+            tmp.delete();
+        }
+    }
+
+    private void closeOut() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private static Record parseAdd(DataInputStream in) throws IOException {
+        if (in.readByte() != TYPE_ADD) {
+            throw new IOException("Not a job record");
+        }
+        long id = in.readLong();
+        String address = in.readUTF();
+        PrintJob.Kind kind = PrintJob.Kind.valueOf(in.readUTF());
+        String options = in.readUTF();
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+        return new Record(id, address, kind, options, payload);
+    }
+
+    /** The payload part of a record frame; closing it closes the file. */
+    private static final class PayloadInputStream extends FilterInputStream {
+        private long remaining;
+
+        PayloadInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
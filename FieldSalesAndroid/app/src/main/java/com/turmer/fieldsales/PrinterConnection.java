@@ -0,0 +1,361 @@
+package com.turmer.fieldsales;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one printer link warm.
+ *
+ * Connecting (1-5 s of RFCOMM setup, or a TCP handshake; see
+ * {@link PrinterTransport}) happens on this object's own thread,
+ * never on the JavaBridge thread. Once up, the link's
+ * {@link PrinterStatusMonitor} polls the printer (which also keeps the idle
+ * link alive) and the link is re-established with
+ * exponential backoff when it drops, and closed after a configurable idle
+ * time to save battery. Writers call {@link #acquire} which waits for a
+ * ready link (connecting on demand) instead of failing outright.
+ */
+final class PrinterConnection {
+
+    private static final String TAG = "PrinterConnection";
+
+    private static final long TICK_MS = 5000;
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    enum State { DISCONNECTED, CONNECTING, CONNECTED, WAITING_RETRY, IDLE, CLOSED }
+
+    /**
+     * An open channel with its streams, the pacer learned for this printer and
+     * the status monitor reading the input stream.
+     */
+    static final class Link {
+        final PrinterTransport.Channel channel;
+        /** For job data; only written between {@link #beginJob()} and {@link #endJob()}. */
+        final OutputStream out;
+        final InputStream in;
+        final AdaptivePacer pacer;
+        PrinterStatusMonitor monitor;
+
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        Link(PrinterTransport.Channel channel, AdaptivePacer pacer) {
+            this.channel = channel;
+            this.out = channel.out();
+            this.in = channel.in();
+            this.pacer = pacer;
+        }
+
+        /**
+         * Claims the stream for a whole job. ESC/POS forbids real-time
+         * commands inside another command's data (a GS v 0 image, a GS ( L
+         * upload), and only the end of a job is sure to be a command
+         * boundary, so status requests wait until {@link #endJob()}.
+         */
+        void beginJob() {
+            writeLock.lock();
+        }
+
+        void endJob() {
+            writeLock.unlock();
+        }
+
+        /**
+         * Sends a real-time command unless a job is being written right now.
+         * Returns false to retry later.
+         */
+        boolean tryWriteRealtime(byte[] command) throws IOException {
+            if (!writeLock.tryLock()) {
+                return false;
+            }
+            try {
+                out.write(command);
+                out.flush();
+                return true;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    interface Listener {
+        void onConnectionStateChanged(PrinterConnection connection);
+        void onPrinterStatusChanged(PrinterConnection connection, PrinterStatus status);
+    }
+
+    final String address;
+    final PrinterTransport transport;
+    private final PrinterProfileStore profiles;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+
+    // Guarded by this
+    private State state = State.DISCONNECTED;
+    private Link link;
+    private String deviceName;
+    private String lastError;
+    private long backoffMs = MIN_BACKOFF_MS;
+    private long lastActivity;
+    private int users;
+    private ScheduledFuture<?> retryTask;
+
+    private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    PrinterConnection(PrinterTransport transport, String address, PrinterProfileStore profiles, Listener listener) {
+        this.transport = transport;
+        this.address = address;
+        this.profiles = profiles;
+        this.listener = listener;
+        this.deviceName = address;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "printer-conn-" + address);
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Starts connecting in the background if not already connected or connecting. */
+    synchronized void open() {
+        if (state == State.DISCONNECTED || state == State.IDLE) {
+            state = State.CONNECTING;
+            executor.execute(this::doConnect);
+            notifyListener();
+        } else if (state == State.WAITING_RETRY) {
+            // Someone is waiting for the printer, skip the rest of the backoff
+            if (retryTask != null) retryTask.cancel(false);
+            state = State.CONNECTING;
+            executor.execute(this::doConnect);
+        }
+    }
+
+    /** Waits until the link is up without claiming it. */
+    synchronized boolean awaitConnected(long timeoutMs) throws InterruptedException {
+        open();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (state != State.CONNECTED && state != State.CLOSED) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return state == State.CONNECTED;
+    }
+
+    /**
+     * Returns a ready link for writing, connecting on demand. Must be paired
+     * with {@link #release()}. Idle close and keepalives are held off while
+     * the link is in use.
+     */
+    synchronized Link acquire(long timeoutMs) throws IOException, InterruptedException {
+        if (!awaitConnected(timeoutMs)) {
+            throw new IOException(state == State.CLOSED ? "Printer disconnected"
+                    : "Printer not reachable" + (lastError != null ? ": " + lastError : ""));
+        }
+        users++;
+        lastActivity = System.currentTimeMillis();
+        link.monitor.setBusy(true);
+        return link;
+    }
+
+    synchronized void release() {
+        users = Math.max(0, users - 1);
+        lastActivity = System.currentTimeMillis();
+        if (link != null && users == 0) {
+            link.monitor.setBusy(false);
+        }
+    }
+
+    /** Whether a link from {@link #acquire} is still the live one. */
+    synchronized boolean isCurrent(Link acquired) {
+        return acquired == link && state == State.CONNECTED;
+    }
+
+    /** A writer hit an I/O error on this link: drop it and reconnect in the background. */
+    synchronized void reportFailure(Link failed, IOException e) {
+        if (failed != link || state == State.CLOSED) {
+            return;
+        }
+        Log.w(TAG, "Link to " + address + " failed", e);
+        lastError = e.getMessage();
+        closeLink();
+        scheduleRetry();
+    }
+
+    /** Closes the link for good and stops all background work. */
+    void close() {
+        synchronized (this) {
+            state = State.CLOSED;
+            if (retryTask != null) retryTask.cancel(false);
+            closeLink();
+            notifyAll();
+        }
+        executor.shutdownNow();
+        notifyListener();
+    }
+
+    void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    synchronized boolean isConnected() {
+        return state == State.CONNECTED && link != null && link.channel.isConnected();
+    }
+
+    synchronized String deviceName() {
+        return deviceName;
+    }
+
+    synchronized String lastError() {
+        return lastError;
+    }
+
+    /** Last status reported by the printer; UNKNOWN while down or for printers that never answer. */
+    synchronized PrinterStatus status() {
+        return link != null ? link.monitor.status() : PrinterStatus.UNKNOWN;
+    }
+
+    /** Pacer of the current link, or null when down. */
+    synchronized AdaptivePacer pacer() {
+        return link != null ? link.pacer : null;
+    }
+
+    // -------------------------------------------------------------------------
+    // Background work (connection thread)
+    // -------------------------------------------------------------------------
+
+    private void doConnect() {
+        synchronized (this) {
+            if (state == State.CLOSED || state == State.CONNECTED) {
+                return;
+            }
+            state = State.CONNECTING;
+        }
+        PrinterTransport.Channel channel = null;
+        try {
+            channel = transport.connect();
+
+            // Pacing starts from what we learned about this printer last time
+            Link newLink = new Link(channel, new AdaptivePacer(profiles.load(address, transport.defaultProfile())));
+            newLink.monitor = new PrinterStatusMonitor(newLink, address, new PrinterStatusMonitor.Callback() {
+                @Override
+                public void onStatusChanged(PrinterStatus status) {
+                    listener.onPrinterStatusChanged(PrinterConnection.this, status);
+                }
+
+                @Override
+                public void onLinkFailed(IOException e) {
+                    reportFailure(newLink, e);
+                }
+            });
+            synchronized (this) {
+                if (state == State.CLOSED) {
+                    channel.close();
+                    return;
+                }
+                link = newLink;
+                deviceName = channel.name();
+                state = State.CONNECTED;
+                lastError = null;
+                backoffMs = MIN_BACKOFF_MS;
+                lastActivity = System.currentTimeMillis();
+                newLink.monitor.start();
+                notifyAll();
+            }
+            notifyListener();
+        } catch (IOException | SecurityException | IllegalArgumentException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Already failing
+                }
+            }
+            synchronized (this) {
+                lastError = e.getMessage();
+                scheduleRetry();
+            }
+        }
+    }
+
+    private void tick() {
+        synchronized (this) {
+            if (state != State.CONNECTED || users > 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long idleFor = now - lastActivity;
+            if (idleTimeoutMs > 0 && idleFor >= idleTimeoutMs) {
+                Log.i(TAG, "Closing idle link to " + address);
+                closeLink();
+                state = State.IDLE;
+            } else if (!link.channel.isConnected()) {
+                lastError = "Link lost";
+                closeLink();
+                scheduleRetry();
+                return;
+            } else {
+                return;
+            }
+        }
+        notifyListener();
+    }
+
+    /** Caller holds the lock. */
+    private void scheduleRetry() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.WAITING_RETRY;
+        long delay = backoffMs;
+        backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+        try {
+            retryTask = executor.schedule(this::doConnect, delay, TimeUnit.MILLISECONDS);
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            state = State.CLOSED;
+        }
+        notifyAll();
+        notifyListener();
+    }
+
+    /** Caller holds the lock. */
+    private void closeLink() {
+        if (link == null) {
+            return;
+        }
+        // Keep what we learned about pacing for the next connection
+        profiles.save(address, link.pacer.snapshot());
+        link.monitor.stop();
+        try {
+            link.out.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        try {
+            link.channel.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+        link = null;
+    }
+
+    /** The listener only posts to the UI thread, so it is safe to call with the lock held. */
+    private void notifyListener() {
+        listener.onConnectionStateChanged(this);
+    }
+}
@@ -0,0 +1,301 @@
+package com.turmer.fieldsales;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.os.Parcelable;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bonded and nearby Bluetooth devices for the printer picker.
+ *
+ * The bonded set is read once and its JSON reply kept until a bond-state,
+ * device-name or adapter-state broadcast says it changed, so
+ * listPairedDevices() is normally a field read. A discovery scan reports
+ * each device to the {@link Listener} as its ACTION_FOUND broadcast
+ * arrives instead of after the ~12 s scan. The signal strength and time of
+ * the last sighting are kept for ranking; {@link DeviceRanking} orders
+ * the devices and builds the JSON.
+ */
+final class PrinterDeviceRegistry {
+
+    private static final String TAG = "PrinterDeviceRegistry";
+
+    interface Listener {
+        /** A device seen for the first time in the current scan. Main thread. */
+        void onDeviceFound(JSONObject device);
+
+        void onDiscoveryFinished(int found);
+
+        /** A device was paired or unpaired; listPairedDevices() has changed. */
+        void onPairedDevicesChanged();
+    }
+
+    private final Context context;
+    private final BluetoothAdapter adapter;
+    private final Listener listener;
+
+    // Guarded by this
+    private final Map<String, DeviceRanking.Device> devices = new HashMap<>();
+    private final Set<String> foundInScan = new HashSet<>();
+    private boolean bondedLoaded;
+    private boolean discovering;
+    private String pairedJson;
+    private String pairedJsonKey;
+    // When the first signal strength ranked in pairedJson stops counting
+    private long pairedJsonStaleAt;
+    private List<String> lastPreferred = Collections.emptyList();
+    private boolean registered;
+    // Set by stop(), so a start() that runs late does not register again
+    private boolean stopped;
+
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+                onFound(intent);
+            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                onDiscoveryFinished();
+            } else if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+                int state = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
+                if (state != BluetoothDevice.BOND_BONDING) {
+                    invalidate();
+                    listener.onPairedDevicesChanged();
+                }
+            } else if (BluetoothDevice.ACTION_NAME_CHANGED.equals(action)) {
+                BluetoothDevice renamed = parcelableExtra(intent, BluetoothDevice.EXTRA_DEVICE, BluetoothDevice.class);
+                // Nearby devices are renamed all through a scan; only paired ones matter here
+                if (renamed != null && isBonded(renamed.getAddress())) {
+                    invalidate();
+                }
+            } else {
+                // Adapter switched on or off
+                invalidate();
+            }
+        }
+    };
+
+    PrinterDeviceRegistry(Context context, BluetoothAdapter adapter, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.adapter = adapter;
+        this.listener = listener;
+    }
+
+    /** Starts listening for bond changes and scan results. Any thread; no-op after stop(). */
+    synchronized void start() {
+        if (registered || stopped || adapter == null) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        // System broadcasts only, so no export flag is needed
+        context.registerReceiver(receiver, filter);
+        registered = true;
+    }
+
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            if (!registered) {
+                return;
+            }
+            registered = false;
+        }
+        context.unregisterReceiver(receiver);
+        stopDiscovery();
+    }
+
+    /**
+     * { devices: [ { name, address, type, bonded, printer, preferred, rssi?, lastSeen? } ] }
+     * for the bonded devices, ranked. Rebuilt only after a bond change, a new
+     * signal strength, once one it ranked by is older than
+     * {@link DeviceRanking#FRESH_MS}, or when the preferred printers differ
+     * from the last call.
+     *
+     * @param preferred default printer first, then other preferred addresses
+     */
+    synchronized String pairedJson(List<String> preferred) {
+        lastPreferred = preferred;
+        String key = String.valueOf(preferred);
+        long now = System.currentTimeMillis();
+        if (bondedLoaded && pairedJson != null && key.equals(pairedJsonKey) && now < pairedJsonStaleAt) {
+            return pairedJson;
+        }
+        if (!bondedLoaded) {
+            loadBonded();
+        }
+        List<DeviceRanking.Device> bonded = new ArrayList<>();
+        long staleAt = Long.MAX_VALUE;
+        for (DeviceRanking.Device device : devices.values()) {
+            if (device.bonded) {
+                bonded.add(device);
+                if (device.isFresh(now)) {
+                    staleAt = Math.min(staleAt, device.seenAt + DeviceRanking.FRESH_MS);
+                }
+            }
+        }
+        pairedJson = DeviceRanking.pairedJson(bonded, preferred);
+        pairedJsonKey = key;
+        pairedJsonStaleAt = staleAt;
+        return pairedJson;
+    }
+
+    /** Starts a scan; found devices go to the listener. False if it could not start. */
+    synchronized boolean startDiscovery() {
+        if (adapter == null || !adapter.isEnabled()) {
+            return false;
+        }
+        foundInScan.clear();
+        if (!adapter.isDiscovering() && !adapter.startDiscovery()) {
+            return false;
+        }
+        discovering = true;
+        return true;
+    }
+
+    void stopDiscovery() {
+        boolean cancel;
+        synchronized (this) {
+            cancel = discovering;
+        }
+        if (cancel && adapter != null) {
+            try {
+                // DISCOVERY_FINISHED follows and reports the scan as done
+                adapter.cancelDiscovery();
+            } catch (SecurityException e) {
+                Log.w(TAG, "Cannot cancel discovery", e);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Broadcasts (main thread)
+    // -------------------------------------------------------------------------
+
+    private void onFound(Intent intent) {
+        BluetoothDevice found = parcelableExtra(intent, BluetoothDevice.EXTRA_DEVICE, BluetoothDevice.class);
+        if (found == null) {
+            return;
+        }
+        JSONObject json = null;
+        synchronized (this) {
+            DeviceRanking.Device device = device(found.getAddress());
+            device.rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceRanking.NO_RSSI);
+            device.seenAt = System.currentTimeMillis();
+            BluetoothClass bluetoothClass = parcelableExtra(intent, BluetoothDevice.EXTRA_CLASS, BluetoothClass.class);
+            if (bluetoothClass != null) {
+                device.majorClass = bluetoothClass.getMajorDeviceClass();
+            }
+            String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+            if (name != null) {
+                device.name = name;
+            }
+            readDetails(device, found);
+            if (discovering && foundInScan.add(device.address)) {
+                json = DeviceRanking.toJson(device, lastPreferred);
+            }
+            if (device.bonded) {
+                // Signal strength feeds the ranking
+                pairedJson = null;
+            }
+        }
+        if (json != null) {
+            listener.onDeviceFound(json);
+        }
+    }
+
+    private void onDiscoveryFinished() {
+        int found;
+        synchronized (this) {
+            if (!discovering) {
+                return;
+            }
+            discovering = false;
+            found = foundInScan.size();
+        }
+        listener.onDiscoveryFinished(found);
+    }
+
+    private synchronized boolean isBonded(String address) {
+        DeviceRanking.Device device = devices.get(address);
+        return device != null && device.bonded;
+    }
+
+    private synchronized void invalidate() {
+        bondedLoaded = false;
+        pairedJson = null;
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers (caller holds the lock)
+    // -------------------------------------------------------------------------
+
+    private void loadBonded() {
+        for (DeviceRanking.Device device : devices.values()) {
+            device.bonded = false;
+        }
+        if (adapter != null) {
+            for (BluetoothDevice bondedDevice : adapter.getBondedDevices()) {
+                DeviceRanking.Device device = device(bondedDevice.getAddress());
+                device.bonded = true;
+                readDetails(device, bondedDevice);
+                BluetoothClass bluetoothClass = bondedDevice.getBluetoothClass();
+                if (bluetoothClass != null) {
+                    device.majorClass = bluetoothClass.getMajorDeviceClass();
+                }
+            }
+        }
+        bondedLoaded = true;
+    }
+
+    private DeviceRanking.Device device(String address) {
+        DeviceRanking.Device device = devices.get(address);
+        if (device == null) {
+            device = new DeviceRanking.Device(address);
+            devices.put(address, device);
+        }
+        return device;
+    }
+
+    /** The typed lookup on Android 13+, where the untyped one is deprecated. */
+    @SuppressWarnings("deprecation")
+    private static <T extends Parcelable> T parcelableExtra(Intent intent, String name, Class<T> type) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return intent.getParcelableExtra(name, type);
+        }
+        return intent.getParcelableExtra(name);
+    }
+
+    /** Name and type need BLUETOOTH_CONNECT on Android 12+; a scan alone may not have it. */
+    private static void readDetails(DeviceRanking.Device device, BluetoothDevice bluetoothDevice) {
+        try {
+            String name = bluetoothDevice.getName();
+            if (name != null) {
+                device.name = name;
+            }
+            device.type = bluetoothDevice.getType();
+        } catch (SecurityException ignored) {
+            // Keep what the broadcast told us
+        }
+    }
+}
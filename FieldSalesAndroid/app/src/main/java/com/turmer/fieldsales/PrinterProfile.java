@@ -0,0 +1,42 @@
+package com.turmer.fieldsales;
+
+/**
+ * Learned pacing parameters for one printer: chunk size and inter-chunk gap.
+ */
+final class PrinterProfile {
+
+    /** Where an unknown printer starts: large chunks, no gap. The pacer backs off from here. */
+    static final PrinterProfile DEFAULT = new PrinterProfile(1024, 0);
+
+    /** Where a network printer starts: a TCP link is never the bottleneck, so the largest chunk. */
+    static final PrinterProfile NETWORK = new PrinterProfile(AdaptivePacer.MAX_CHUNK, 0);
+
+    final int chunkSize;
+    final int gapMs;
+
+    PrinterProfile(int chunkSize, int gapMs) {
+        this.chunkSize = chunkSize;
+        this.gapMs = gapMs;
+    }
+
+    /** Compact "chunk,gap" form used for persistence. */
+    String encode() {
+        return chunkSize + "," + gapMs;
+    }
+
+    /** Parses {@link #encode()} output, falling back to the given profile on bad input. */
+    static PrinterProfile decode(String value, PrinterProfile fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        String[] parts = value.split(",");
+        if (parts.length != 2) {
+            return fallback;
+        }
+        try {
+            return new PrinterProfile(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.turmer.fieldsales;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Persists {@link PrinterProfile}s per printer address in SharedPreferences.
+ */
+final class PrinterProfileStore {
+
+    private static final String PREFS_NAME = "PrinterProfiles";
+
+    private final SharedPreferences prefs;
+
+    PrinterProfileStore(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** The saved profile, or the given one for a printer not seen before. */
+    PrinterProfile load(String address, PrinterProfile fallback) {
+        return PrinterProfile.decode(prefs.getString(address, null), fallback);
+    }
+
+    void save(String address, PrinterProfile profile) {
+        prefs.edit().putString(address, profile.encode()).apply();
+    }
+
+    void forget(String address) {
+        prefs.edit().remove(address).apply();
+    }
+}
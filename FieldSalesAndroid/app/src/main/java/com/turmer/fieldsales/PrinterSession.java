@@ -0,0 +1,217 @@
+package com.turmer.fieldsales;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * One printer: its warm connection plus its own print queue and writer thread.
+ *
+ * Sessions share nothing but the (thread-safe) profile store and buffer
+ * pool, so a receipt printer and a label printer print at full speed side
+ * by side. Jobs within a session still run strictly one after another.
+ *
+ * While more jobs are queued the writer keeps the link acquired from one job
+ * to the next, so a batch is one continuous stream: no idle check in between,
+ * at most one status request a second, and the pacer carries on at the rate
+ * it has reached.
+ */
+final class PrinterSession {
+
+    // How long a print job waits for a link, and for a printer that reports not ready
+    private static final long READY_TIMEOUT_MS = 30000;
+    private static final long HOLD_TIMEOUT_MS = AdaptivePacer.HELD_TIMEOUT_MS;
+    private static final long HOLD_CHECK_MS = 500;
+    // How long a job waits for a fresh status reply before starting anyway
+    private static final long STATUS_WAIT_MS = 300;
+
+    final String address;
+    final PrinterConnection connection;
+    final PrintQueue queue;
+    private final PrinterProfileStore profiles;
+    // Link kept between consecutive jobs; writer thread only
+    private PrinterConnection.Link held;
+
+    PrinterSession(PrinterTransport transport, String address, PrinterProfileStore profiles,
+                   PrinterConnection.Listener connectionListener, PrintQueue.Listener jobListener) {
+        this.address = address;
+        this.profiles = profiles;
+        this.connection = new PrinterConnection(transport, address, profiles, connectionListener);
+        this.queue = new PrintQueue(transport.kind() + "-" + address, new PrintQueue.JobWriter() {
+            @Override
+            public void write(PrintJob job) throws Exception {
+                writeJob(job);
+            }
+
+            @Override
+            public void idle() {
+                releaseHeld();
+            }
+        }, jobListener);
+    }
+
+    /** Cancels pending jobs and closes the link for good. */
+    void close() {
+        queue.shutdown();
+        connection.close();
+    }
+
+    // -------------------------------------------------------------------------
+    // Print queue writer (runs on this session's writer thread)
+    // -------------------------------------------------------------------------
+
+    private void writeJob(PrintJob job) throws Exception {
+        job.totalBytes = job.byteLength();
+
+        PrinterConnection.Link link = held;
+        if (link != null && !connection.isCurrent(link)) {
+            // Dropped since the last job
+            releaseHeld();
+            link = null;
+        }
+        if (link == null) {
+            // Waits for the warm link, or for a reconnect in progress
+            try {
+                link = connection.acquire(READY_TIMEOUT_MS);
+            } catch (IOException e) {
+                job.retryable = true;
+                throw e;
+            }
+            held = link;
+        }
+        AdaptivePacer jobPacer = link.pacer;
+
+        // Status is only asked for here, between jobs, never inside one's commands
+        link.monitor.awaitStatus(STATUS_WAIT_MS);
+        if (!link.monitor.status().isReady()) {
+            // Out of paper or cover open: wait for it before sending anything
+            holdUntilReady(job, link.monitor);
+        }
+
+        // Decode one pacer-sized block at a time into a pooled buffer and send it
+        // straight away, so memory stays flat and the first bytes go out at once
+        byte[] buffer = BufferPool.acquire();
+        InputStream in = job.openStream();
+        JobHold hold = new JobHold(job, link);
+        long writeStart = BridgeMetrics.start();
+        long sent = 0;
+        boolean completed = false;
+        link.beginJob();
+        try {
+            while (true) {
+                if (job.cancelRequested) {
+                    throw new PrintQueue.CancelledException();
+                }
+                int len = readFully(in, buffer, Math.min(jobPacer.chunkSize(), buffer.length));
+                if (len <= 0) {
+                    break;
+                }
+                jobPacer.writeChunk(link.out, buffer, 0, len, hold);
+                sent += len;
+                queue.reportProgress(job, sent);
+            }
+            Runnable afterWrite = job.afterWrite;
+            if (afterWrite != null) {
+                afterWrite.run();
+            }
+            completed = true;
+        } catch (IOException e) {
+            if (job.cancelRequested) {
+                // Given up while held; the link itself is fine
+                throw new PrintQueue.CancelledException();
+            }
+            job.retryable = true;
+            connection.reportFailure(link, e);
+            releaseHeld();
+            throw e;
+        } finally {
+            link.endJob();
+            BridgeMetrics.recordNanos(connection.transport.kind() + ".write",
+                    System.nanoTime() - writeStart - hold.heldNanos, sent, completed);
+            BufferPool.release(buffer);
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // Only reading the spool file
+            }
+        }
+    }
+
+    /**
+     * Holds a job whose printer stopped taking data mid-job (XOFF for paper
+     * out, cover open) until it sends XON, so the job carries on from where
+     * it stopped. Writer thread only.
+     */
+    private final class JobHold implements AdaptivePacer.Hold {
+        private final PrintJob job;
+        private final PrinterConnection.Link link;
+        private long heldSince;
+        // Left out of the write timings
+        long heldNanos;
+
+        JobHold(PrintJob job, PrinterConnection.Link link) {
+            this.job = job;
+            this.link = link;
+        }
+
+        @Override
+        public void held(boolean held) {
+            if (held) {
+                heldSince = System.nanoTime();
+            } else {
+                heldNanos += System.nanoTime() - heldSince;
+            }
+            queue.setHeld(job, held);
+        }
+
+        @Override
+        public void check() throws IOException {
+            if (job.cancelRequested) {
+                throw new IOException("Cancelled");
+            }
+            if (!connection.isCurrent(link)) {
+                throw new IOException("Printer disconnected");
+            }
+        }
+    }
+
+    /** Gives the link back once the queue has run dry or the link failed. */
+    private void releaseHeld() {
+        PrinterConnection.Link link = held;
+        if (link == null) {
+            return;
+        }
+        held = null;
+        connection.release();
+        // Keep what we learned even if the last job failed part way
+        profiles.save(address, link.pacer.snapshot());
+    }
+
+    private void holdUntilReady(PrintJob job, PrinterStatusMonitor monitor) throws Exception {
+        queue.setHeld(job, true);
+        long deadline = System.currentTimeMillis() + HOLD_TIMEOUT_MS;
+        while (!monitor.awaitReady(HOLD_CHECK_MS)) {
+            if (job.cancelRequested) {
+                throw new PrintQueue.CancelledException();
+            }
+            if (System.currentTimeMillis() > deadline) {
+                // Not an I/O failure: the link is fine and stays up
+                job.retryable = true;
+                throw new IllegalStateException("Printer not ready: " + monitor.status().describe());
+            }
+        }
+        queue.setHeld(job, false);
+    }
+
+    /** Fills up to len bytes of buffer; returns fewer only at end of stream. */
+    private static int readFully(InputStream in, byte[] buffer, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(buffer, total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,105 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONObject;
+
+/**
+ * Printer health as reported by the DLE EOT real-time status replies.
+ *
+ * Immutable; {@link PrinterStatusMonitor} derives a new instance from each
+ * reply byte. A printer that never answers stays {@link #UNKNOWN}, which
+ * counts as ready so silent printers behave exactly as before.
+ */
+final class PrinterStatus {
+
+    static final PrinterStatus UNKNOWN = new PrinterStatus(false, false, false, false, false, false);
+
+    /** At least one status reply has been received. */
+    final boolean known;
+    final boolean offline;
+    final boolean coverOpen;
+    final boolean paperOut;
+    final boolean paperNearEnd;
+    final boolean error;
+
+    private PrinterStatus(boolean known, boolean offline, boolean coverOpen, boolean paperOut,
+                          boolean paperNearEnd, boolean error) {
+        this.known = known;
+        this.offline = offline;
+        this.coverOpen = coverOpen;
+        this.paperOut = paperOut;
+        this.paperNearEnd = paperNearEnd;
+        this.error = error;
+    }
+
+    /** Every DLE EOT reply has bit 1 and 4 set and bits 0 and 7 clear, unlike XON/XOFF. */
+    static boolean isStatusByte(int b) {
+        return (b & 0x93) == 0x12;
+    }
+
+    /**
+     * Applies the reply to DLE EOT n (1 = printer, 2 = offline cause, 3 = error
+     * cause, 4 = paper). Replies arrive in that order each poll; 3 and 4 add to
+     * what 2 reported, so printers that skip them still clear their flags.
+     */
+    PrinterStatus withReply(int n, int b) {
+        switch (n) {
+            case 1:
+                return new PrinterStatus(true, (b & 0x08) != 0, coverOpen, paperOut, paperNearEnd, error);
+            case 2:
+                // Paper end here means printing has stopped; n = 4 reports the sensor
+                return new PrinterStatus(true, offline, (b & 0x04) != 0, (b & 0x20) != 0,
+                        paperNearEnd, (b & 0x40) != 0);
+            case 3:
+                // Mechanical, auto-cutter, unrecoverable or auto-recoverable error
+                return new PrinterStatus(true, offline, coverOpen, paperOut, paperNearEnd, error || (b & 0x6C) != 0);
+            case 4:
+                return new PrinterStatus(true, offline, coverOpen, paperOut || (b & 0x60) != 0,
+                        (b & 0x0C) != 0, error);
+            default:
+                return this;
+        }
+    }
+
+    /** True when jobs can be sent. Paper near end is only a warning. */
+    boolean isReady() {
+        return !offline && !coverOpen && !paperOut && !error;
+    }
+
+    /** Short reason for a not-ready printer, for job errors and logs. */
+    String describe() {
+        if (!known) return "unknown";
+        if (coverOpen) return "cover open";
+        if (paperOut) return "paper out";
+        if (error) return "printer error";
+        if (offline) return "offline";
+        return paperNearEnd ? "paper near end" : "ready";
+    }
+
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        Json.put(json, "known", known);
+        Json.put(json, "ready", isReady());
+        Json.put(json, "offline", offline);
+        Json.put(json, "coverOpen", coverOpen);
+        Json.put(json, "paperOut", paperOut);
+        Json.put(json, "paperNearEnd", paperNearEnd);
+        Json.put(json, "error", error);
+        return json;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PrinterStatus)) {
+            return false;
+        }
+        PrinterStatus other = (PrinterStatus) o;
+        return known == other.known && offline == other.offline && coverOpen == other.coverOpen
+                && paperOut == other.paperOut && paperNearEnd == other.paperNearEnd && error == other.error;
+    }
+
+    @Override
+    public int hashCode() {
+        return (known ? 1 : 0) | (offline ? 2 : 0) | (coverOpen ? 4 : 0)
+                | (paperOut ? 8 : 0) | (paperNearEnd ? 16 : 0) | (error ? 32 : 0);
+    }
+}
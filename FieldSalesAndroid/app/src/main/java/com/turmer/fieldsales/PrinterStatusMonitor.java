@@ -0,0 +1,220 @@
+package com.turmer.fieldsales;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Sole reader of a printer link's input stream.
+ *
+ * Sends DLE EOT 1..4 real-time status requests and parses the replies into
+ * a {@link PrinterStatus}: every second while a writer holds the link or the
+ * printer is not ready, otherwise every {@link #IDLE_POLL_MS}, which also
+ * keeps the idle link alive. XON/XOFF bytes on the same stream are handed to
+ * the link's {@link AdaptivePacer}.
+ *
+ * Requests are only written while no job is being written (see
+ * {@link PrinterConnection.Link#beginJob}), so never inside a command's data.
+ * The writer asks for a fresh status between jobs with {@link #awaitStatus}.
+ */
+final class PrinterStatusMonitor {
+
+    private static final String TAG = "PrinterStatusMonitor";
+
+    interface Callback {
+        void onStatusChanged(PrinterStatus status);
+        void onLinkFailed(IOException e);
+    }
+
+    // DLE EOT n for n = 1..4, in the order the replies come back
+    private static final byte[] QUERY = {
+            0x10, 0x04, 0x01, 0x10, 0x04, 0x02, 0x10, 0x04, 0x03, 0x10, 0x04, 0x04};
+
+    private static final long BUSY_POLL_MS = 1000;
+    static final long IDLE_POLL_MS = 30000;
+    // A writer holding the stream makes us retry this soon
+    private static final long RETRY_POLL_MS = 200;
+    private static final long READ_INTERVAL_MS = 20;
+
+    private static final int XON = 0x11;
+    private static final int XOFF = 0x13;
+
+    private final PrinterConnection.Link link;
+    private final Callback callback;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile boolean busy;
+    private volatile long nextPollAt;
+
+    // Reader thread only
+    private final ArrayDeque<Integer> expected = new ArrayDeque<>();
+    private PrinterStatus pending = PrinterStatus.UNKNOWN;
+
+    // Guarded by this
+    private PrinterStatus status = PrinterStatus.UNKNOWN;
+    // Complete request/reply cycles, and when the last one ended
+    private long cycles;
+    private long lastReplyAt;
+
+    PrinterStatusMonitor(PrinterConnection.Link link, String name, Callback callback) {
+        this.link = link;
+        this.callback = callback;
+        this.thread = new Thread(this::runLoop, "printer-status-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /** A job is writing to the link: poll often, starting now. */
+    void setBusy(boolean busy) {
+        this.busy = busy;
+        if (busy) {
+            nextPollAt = 0;
+        }
+    }
+
+    synchronized PrinterStatus status() {
+        return status;
+    }
+
+    /**
+     * Called by the writer between jobs, where a request cannot land inside a
+     * command: unless the printer answered within the last second, asks now
+     * and waits up to waitMs for the reply, so a job does not start on a
+     * printer that has run out of paper. Printers that never answered are
+     * not waited for.
+     */
+    void awaitStatus(long waitMs) throws InterruptedException {
+        long target;
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastReplyAt < BUSY_POLL_MS) {
+                return;
+            }
+            target = cycles + 1;
+        }
+        nextPollAt = 0;
+        synchronized (this) {
+            if (!status.known) {
+                return;
+            }
+            long deadline = System.currentTimeMillis() + waitMs;
+            while (running && cycles < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * Waits up to waitMs for the printer to report ready.
+     *
+     * @throws IOException if the link was closed while waiting
+     */
+    synchronized boolean awaitReady(long waitMs) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMs;
+        while (running && !status.isReady()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        if (!running) {
+            throw new IOException("Printer disconnected");
+        }
+        return true;
+    }
+
+    // -------------------------------------------------------------------------
+    // Reader thread
+    // -------------------------------------------------------------------------
+
+    private void runLoop() {
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                if (now >= nextPollAt) {
+                    poll(now);
+                }
+                while (link.in.available() > 0) {
+                    onByte(link.in.read());
+                }
+                Thread.sleep(READ_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException e) {
+            if (running) {
+                Log.w(TAG, "Status reader failed", e);
+                callback.onLinkFailed(e);
+            }
+        }
+    }
+
+    private void poll(long now) throws IOException {
+        if (!link.tryWriteRealtime(QUERY)) {
+            nextPollAt = now + RETRY_POLL_MS;
+            return;
+        }
+        // Printers that skip some requests never answer them; close the last cycle
+        if (!expected.isEmpty()) {
+            publish();
+        }
+        expected.clear();
+        for (int n = 1; n <= 4; n++) {
+            expected.addLast(n);
+        }
+        boolean fast = busy || !status().isReady();
+        nextPollAt = now + (fast ? BUSY_POLL_MS : IDLE_POLL_MS);
+    }
+
+    private void onByte(int b) {
+        if (b == XOFF) {
+            link.pacer.pause();
+        } else if (b == XON) {
+            link.pacer.resume();
+        } else if (PrinterStatus.isStatusByte(b) && !expected.isEmpty()) {
+            pending = pending.withReply(expected.pollFirst(), b);
+            if (expected.isEmpty()) {
+                publish();
+                synchronized (this) {
+                    cycles++;
+                    lastReplyAt = System.currentTimeMillis();
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void publish() {
+        PrinterStatus next = pending;
+        synchronized (this) {
+            if (next.equals(status)) {
+                return;
+            }
+            status = next;
+            notifyAll();
+        }
+        if (!next.isReady()) {
+            // Keep polling fast until the printer recovers
+            nextPollAt = Math.min(nextPollAt, System.currentTimeMillis() + BUSY_POLL_MS);
+        }
+        link.pacer.setHeld(!next.isReady());
+        callback.onStatusChanged(next);
+    }
+}
@@ -0,0 +1,86 @@
+package com.turmer.fieldsales;
+
+import android.bluetooth.BluetoothAdapter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * How bytes get to one printer. {@link PrinterConnection} keeps the link
+ * warm and {@link PrinterSession} writes jobs the same way whatever is
+ * underneath.
+ *
+ * The printer address says which transport it uses:
+ * <pre>
+ *   AA:BB:CC:DD:EE:FF      Bluetooth SPP (RFCOMM)
+ *   tcp:host[:port]        raw TCP, port 9100 unless given
+ *   loopback[:bytesPerSec] in-memory printer that is always ready, for testing
+ * </pre>
+ * Network printers need the "tcp:" prefix so that a role name can never be
+ * mistaken for a host name.
+ */
+interface PrinterTransport {
+
+    String LOOPBACK = "loopback";
+    String TCP_PREFIX = "tcp:";
+
+    /** An open connection to the printer. */
+    interface Channel extends Closeable {
+        InputStream in();
+
+        OutputStream out();
+
+        boolean isConnected();
+
+        /** Name to show for the printer, e.g. the Bluetooth device name. */
+        String name();
+    }
+
+    /** Opens a connection. Blocks for the connect; call off the main thread. */
+    Channel connect() throws IOException;
+
+    /** "spp", "tcp" or "loopback"; also the prefix of the write metrics. */
+    String kind();
+
+    /** Pacing to start from for a printer nothing has been learned about yet. */
+    PrinterProfile defaultProfile();
+
+    /** Canonical form of a printer address, or null when it is none of the forms above. */
+    static String normalizeAddress(String address) {
+        if (address == null) {
+            return null;
+        }
+        String trimmed = address.trim();
+        String upper = trimmed.toUpperCase(Locale.ROOT);
+        if (BluetoothAdapter.checkBluetoothAddress(upper)) {
+            return upper;
+        }
+        String lower = trimmed.toLowerCase(Locale.ROOT);
+        if (lower.equals(LOOPBACK) || lower.startsWith(LOOPBACK + ":")) {
+            return LoopbackTransport.normalize(lower);
+        }
+        if (lower.startsWith(TCP_PREFIX)) {
+            return TcpTransport.normalize(lower);
+        }
+        return null;
+    }
+
+    /** True for a (normalized) Bluetooth MAC address. */
+    static boolean isBluetooth(String address) {
+        return BluetoothAdapter.checkBluetoothAddress(address);
+    }
+
+    /** Transport for a normalized address. */
+    static PrinterTransport forAddress(BluetoothAdapter adapter, String address) {
+        if (address.startsWith(TCP_PREFIX)) {
+            return TcpTransport.fromAddress(address);
+        }
+        if (address.startsWith(LOOPBACK)) {
+            return LoopbackTransport.fromAddress(address);
+        }
+        return new BluetoothSppTransport(adapter, address);
+    }
+}
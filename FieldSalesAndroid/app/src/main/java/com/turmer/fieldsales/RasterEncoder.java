@@ -0,0 +1,302 @@
+package com.turmer.fieldsales;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Turns ARGB pixels into compact ESC/POS raster commands.
+ *
+ * Pipeline: luminance (alpha composited over white) -> dither to 1 bit ->
+ * pack -> emit. Instead of one plain GS v 0 block the image is emitted band
+ * by band: runs of blank rows become an ESC J paper feed, and when the image
+ * is left aligned each band is cropped to its rightmost inked byte. Logos
+ * and signatures are mostly white, so this sends a fraction of the bytes.
+ *
+ * Large images are dithered in horizontal strips in parallel. Strips are
+ * diffused independently, which costs at most a faint seam every
+ * {@link #STRIP_ROWS} rows and is invisible at thermal resolution.
+ *
+ * Plain Java; scaling and decoding are done by the caller (ImageRasterizer).
+ */
+final class RasterEncoder {
+
+    enum Dither { FLOYD_STEINBERG, ORDERED, THRESHOLD }
+
+    static final class Options {
+        Dither dither = Dither.FLOYD_STEINBERG;
+        int threshold = 128;
+        int align = EscPos.ALIGN_LEFT;
+        /** Band-wise output with blank-run feeds; false emits a single GS v 0. */
+        boolean banded = true;
+        /** Dither on several cores once the image has at least this many pixels. */
+        int parallelThreshold = 384 * 256;
+    }
+
+    static final class Result {
+        final byte[] bytes;
+        final int width;
+        final int height;
+        final long encodeNanos;
+        /** Size a single uncropped GS v 0 block would have had. */
+        final int plainBytes;
+        /** The 1-bit image, MSB first, rowBytes per row; used for NV graphics. */
+        final byte[] packed;
+        final int rowBytes;
+
+        Result(byte[] bytes, int width, int height, long encodeNanos, byte[] packed, int rowBytes) {
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+            this.encodeNanos = encodeNanos;
+            this.plainBytes = 8 + packed.length;
+            this.packed = packed;
+            this.rowBytes = rowBytes;
+        }
+    }
+
+    static final int STRIP_ROWS = 64;
+    // GS v 0 blocks are kept short so they fit the receive buffer of small printers
+    private static final int MAX_BLOCK_ROWS = 255;
+    // Blank runs shorter than this are cheaper to send than a feed + new header
+    private static final int MIN_FEED_ROWS = 4;
+
+    // 8x8 Bayer matrix, values 0..63
+    private static final int[] BAYER = {
+         0, 32,  8, 40,  2, 34, 10, 42,
+        48, 16, 56, 24, 50, 18, 58, 26,
+        12, 44,  4, 36, 14, 46,  6, 38,
+        60, 28, 52, 20, 62, 30, 54, 22,
+         3, 35, 11, 43,  1, 33,  9, 41,
+        51, 19, 59, 27, 49, 17, 57, 25,
+        15, 47,  7, 39, 13, 45,  5, 37,
+        63, 31, 55, 23, 61, 29, 53, 21,
+    };
+
+    private RasterEncoder() {
+    }
+
+    static Result encode(int[] argb, int width, int height, Options options) {
+        long start = System.nanoTime();
+        int rowBytes = (width + 7) / 8;
+        byte[] packed = new byte[rowBytes * height];
+
+        if ((long) width * height >= options.parallelThreshold && height > STRIP_ROWS) {
+            ditherParallel(argb, width, height, options, packed);
+        } else {
+            ditherStrip(argb, width, 0, height, options, packed);
+        }
+
+        byte[] bytes = options.banded
+                ? emitBanded(packed, rowBytes, height, options.align)
+                : emitPlain(packed, rowBytes, height, options.align);
+        return new Result(bytes, width, height, System.nanoTime() - start, packed, rowBytes);
+    }
+
+    /**
+     * Emits an image that is already 1 bit per pixel (MSB first, rows padded
+     * to whole bytes), such as text drawn by TextRasterizer. Banded and left
+     * aligned; the caller has placed the ink within the width.
+     */
+    static Result encodePacked(byte[] packed, int width, int height) {
+        long start = System.nanoTime();
+        int rowBytes = (width + 7) / 8;
+        byte[] bytes = emitBanded(packed, rowBytes, height, EscPos.ALIGN_LEFT);
+        return new Result(bytes, width, height, System.nanoTime() - start, packed, rowBytes);
+    }
+
+    // -------------------------------------------------------------------------
+    // Dithering
+    // -------------------------------------------------------------------------
+
+    private static void ditherParallel(int[] argb, int width, int height, Options options, byte[] packed) {
+        List<Callable<Void>> strips = new ArrayList<>();
+        for (int y = 0; y < height; y += STRIP_ROWS) {
+            final int from = y;
+            final int to = Math.min(height, y + STRIP_ROWS);
+            strips.add(() -> {
+                ditherStrip(argb, width, from, to, options, packed);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> f : ForkJoinPool.commonPool().invokeAll(strips)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ditherStrip(argb, width, 0, height, options, packed);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /** Dithers rows [from, to) into packed; strips write disjoint rows so no locking. */
+    private static void ditherStrip(int[] argb, int width, int from, int to, Options options, byte[] packed) {
+        int rowBytes = (width + 7) / 8;
+        switch (options.dither) {
+            case FLOYD_STEINBERG: {
+                // Error rows in 1/16 units, padded by one on each side
+                int[] err = new int[width + 2];
+                int[] next = new int[width + 2];
+                for (int y = from; y < to; y++) {
+                    boolean ltr = ((y - from) & 1) == 0; // serpentine scan
+                    java.util.Arrays.fill(next, 0);
+                    for (int i = 0; i < width; i++) {
+                        int x = ltr ? i : width - 1 - i;
+                        int gray = luminance(argb[y * width + x]) + err[x + 1] / 16;
+                        int out = gray < options.threshold ? 0 : 255;
+                        if (out == 0) {
+                            packed[y * rowBytes + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+                        }
+                        int e = gray - out;
+                        int dir = ltr ? 1 : -1;
+                        err[x + 1 + dir] += e * 7;
+                        next[x + 1 - dir] += e * 3;
+                        next[x + 1] += e * 5;
+                        next[x + 1 + dir] += e;
+                    }
+                    int[] t = err;
+                    err = next;
+                    next = t;
+                }
+                break;
+            }
+            case ORDERED:
+                for (int y = from; y < to; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int limit = (BAYER[((y & 7) << 3) | (x & 7)] * 255 + 128) / 64;
+                        if (luminance(argb[y * width + x]) <= limit) {
+                            packed[y * rowBytes + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+                        }
+                    }
+                }
+                break;
+            default:
+                for (int y = from; y < to; y++) {
+                    for (int x = 0; x < width; x++) {
+                        if (luminance(argb[y * width + x]) < options.threshold) {
+                            packed[y * rowBytes + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+                        }
+                    }
+                }
+                break;
+        }
+    }
+
+    /** 0 (black) .. 255 (white); transparent pixels count as paper. */
+    private static int luminance(int argb) {
+        int a = argb >>> 24;
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        int y = (r * 77 + g * 151 + b * 28) >> 8;
+        return (y * a + 255 * (255 - a)) / 255;
+    }
+
+    // -------------------------------------------------------------------------
+    // Command emission
+    // -------------------------------------------------------------------------
+
+    private static byte[] emitPlain(byte[] packed, int rowBytes, int height, int align) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(packed.length + 16);
+        writeBytes(out, EscPos.align(align));
+        for (int y = 0; y < height; y += MAX_BLOCK_ROWS) {
+            int rows = Math.min(MAX_BLOCK_ROWS, height - y);
+            rasterBlock(out, packed, rowBytes, y, rows, rowBytes);
+        }
+        writeBytes(out, EscPos.align(EscPos.ALIGN_LEFT));
+        return out.toByteArray();
+    }
+
+    private static byte[] emitBanded(byte[] packed, int rowBytes, int height, int align) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(packed.length / 2 + 16);
+        writeBytes(out, EscPos.align(align));
+        // Cropping the right edge per block would shift centred/right-aligned bands
+        boolean crop = align == EscPos.ALIGN_LEFT;
+
+        int y = 0;
+        while (y < height) {
+            int blank = 0;
+            while (y + blank < height && usedBytes(packed, rowBytes, y + blank) == 0) {
+                blank++;
+            }
+            if (blank >= MIN_FEED_ROWS || y + blank == height) {
+                feedDots(out, blank);
+                y += blank;
+                continue;
+            }
+
+            // Extend the block until a long enough blank run or the size limit
+            int end = y;
+            int width = 0;
+            int blankRun = 0;
+            while (end < height && end - y < MAX_BLOCK_ROWS) {
+                int used = usedBytes(packed, rowBytes, end);
+                if (used == 0) {
+                    if (++blankRun >= MIN_FEED_ROWS) {
+                        end -= blankRun - 1;
+                        break;
+                    }
+                } else {
+                    blankRun = 0;
+                    width = Math.max(width, used);
+                }
+                end++;
+            }
+            rasterBlock(out, packed, rowBytes, y, end - y, crop ? width : rowBytes);
+            y = end;
+        }
+        writeBytes(out, EscPos.align(EscPos.ALIGN_LEFT));
+        return out.toByteArray();
+    }
+
+    /** Index one past the last non-zero byte of the row, 0 for a blank row. */
+    private static int usedBytes(byte[] packed, int rowBytes, int row) {
+        int base = row * rowBytes;
+        for (int i = rowBytes - 1; i >= 0; i--) {
+            if (packed[base + i] != 0) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /** GS v 0 m xL xH yL yH d1..dk for rows [fromRow, fromRow + rows), first width bytes of each. */
+    private static void rasterBlock(ByteArrayOutputStream out, byte[] packed, int rowBytes,
+                                    int fromRow, int rows, int width) {
+        if (rows <= 0 || width <= 0) {
+            return;
+        }
+        out.write(EscPos.GS);
+        out.write('v');
+        out.write('0');
+        out.write(0);
+        out.write(width & 0xFF);
+        out.write((width >> 8) & 0xFF);
+        out.write(rows & 0xFF);
+        out.write((rows >> 8) & 0xFF);
+        for (int r = 0; r < rows; r++) {
+            out.write(packed, (fromRow + r) * rowBytes, width);
+        }
+    }
+
+    /** ESC J n - feed n dots, split into 255-dot steps. */
+    private static void feedDots(ByteArrayOutputStream out, int dots) {
+        while (dots > 0) {
+            int n = Math.min(255, dots);
+            out.write(EscPos.ESC);
+            out.write('J');
+            out.write(n);
+            dots -= n;
+        }
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,410 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders a compact JSON receipt model to ESC/POS bytes.
+ *
+ * Model (every section optional):
+ * <pre>
+ * {
+ *   "columns": 32,                 // characters per line at normal size
+ *   "charset": "UTF-8",            // encoding of text sent to the printer
+ *   "dots": 384,                   // paper width in dots, for lines drawn as raster
+ *   "rasterText": "auto",          // auto | always | never, see below
+ *   "header":  [ block, ... ],
+ *   "layout":  [ { "field": "name", "width": 0, "align": "left", "label": "Item" }, ... ],
+ *   "showColumnHeaders": false,
+ *   "lines":   [ { "name": "Water 330ml", "qty": "2", "price": "1.50", "total": "3.00" }, ... ],
+ *   "totals":  [ { "label": "Total", "value": "3.00", "bold": true }, ... ],
+ *   "taxes":   [ { "label": "VAT 15%", "value": "0.39" }, ... ],
+ *   "footer":  [ block, ... ],
+ *   "feed": 3,
+ *   "cut": false
+ * }
+ * block = "plain text" | { "text": "...", "align": "left|center|right", "bold": true, "size": 2 }
+ *       | { "separator": "-" }
+ * </pre>
+ * A layout column with width 0 takes whatever the fixed columns leave over.
+ * Each cell is word-wrapped inside its column, so a long product name
+ * continues on the next physical line without disturbing the other columns.
+ *
+ * Printer fonts have no Arabic, so with a {@link TextRaster} a line that
+ * needs shaping or right-to-left ordering ("auto") or every line
+ * ("always") is drawn as raster instead, each cell in the same character
+ * columns it would have had as text.
+ */
+final class ReceiptRenderer {
+
+    static final int DEFAULT_COLUMNS = 32;
+    static final int DEFAULT_DOTS = 384;
+
+    /** Draws lines the printer's own font cannot show; see TextRasterizer. */
+    interface TextRaster {
+        /** Whether the text needs shaping or bidi ordering. */
+        boolean needs(String text);
+
+        /**
+         * Raster commands for one printed line of cells, each widths[i]
+         * characters of charDots * size dots, one character apart.
+         */
+        byte[] line(String[] cells, int[] widths, int[] aligns, int charDots, boolean bold, int size);
+    }
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(2048);
+    private final TextRaster raster;
+    private int columns = DEFAULT_COLUMNS;
+    private Charset charset = Charset.forName("UTF-8");
+    private int charDots;
+    private boolean rasterAll;
+    private boolean bold;
+
+    private ReceiptRenderer(TextRaster raster) {
+        this.raster = raster;
+    }
+
+    /** Renders the receipt model. Throws on malformed JSON or an unknown charset. */
+    static byte[] render(String json) throws JSONException {
+        return render(new JSONObject(json));
+    }
+
+    static byte[] render(JSONObject receipt) throws JSONException {
+        return render(receipt, null);
+    }
+
+    /** Renders the receipt model, drawing the lines that need it with raster. */
+    static byte[] render(JSONObject receipt, TextRaster raster) throws JSONException {
+        String mode = receipt.optString("rasterText", "auto");
+        ReceiptRenderer renderer = new ReceiptRenderer("never".equals(mode) ? null : raster);
+        renderer.rasterAll = "always".equals(mode);
+        return renderer.renderReceipt(receipt);
+    }
+
+    private byte[] renderReceipt(JSONObject receipt) throws JSONException {
+        columns = Math.max(8, receipt.optInt("columns", DEFAULT_COLUMNS));
+        charset = Charset.forName(receipt.optString("charset", "UTF-8"));
+        charDots = Math.max(1, receipt.optInt("dots", DEFAULT_DOTS) / columns);
+
+        write(EscPos.INIT);
+
+        renderBlocks(receipt.optJSONArray("header"));
+
+        JSONArray lines = receipt.optJSONArray("lines");
+        if (lines != null && lines.length() > 0) {
+            Column[] layout = parseLayout(receipt.optJSONArray("layout"));
+            separator('-');
+            if (receipt.optBoolean("showColumnHeaders", false)) {
+                setBold(true);
+                String[] labels = new String[layout.length];
+                for (int i = 0; i < layout.length; i++) {
+                    labels[i] = layout[i].label;
+                }
+                row(layout, labels);
+                setBold(false);
+            }
+            for (int i = 0; i < lines.length(); i++) {
+                JSONObject line = lines.getJSONObject(i);
+                String[] cells = new String[layout.length];
+                for (int c = 0; c < layout.length; c++) {
+                    cells[c] = line.optString(layout[c].field, "");
+                }
+                row(layout, cells);
+                String note = line.optString("note", "");
+                if (!note.isEmpty()) {
+                    for (String wrapped : wrap(note, columns - 2)) {
+                        if (!drawn(new String[]{"", wrapped}, new int[]{1, columns - 2},
+                                new int[]{EscPos.ALIGN_LEFT, EscPos.ALIGN_LEFT}, 1)) {
+                            text("  " + wrapped);
+                        }
+                    }
+                }
+            }
+            separator('-');
+        }
+
+        renderPairs(receipt.optJSONArray("totals"));
+        renderPairs(receipt.optJSONArray("taxes"));
+        renderBlocks(receipt.optJSONArray("footer"));
+
+        write(EscPos.feed(receipt.optInt("feed", 3)));
+        if (receipt.optBoolean("cut", false)) {
+            write(EscPos.CUT);
+        }
+        return out.toByteArray();
+    }
+
+    // -------------------------------------------------------------------------
+    // Sections
+    // -------------------------------------------------------------------------
+
+    private void renderBlocks(JSONArray blocks) throws JSONException {
+        if (blocks == null) {
+            return;
+        }
+        for (int i = 0; i < blocks.length(); i++) {
+            Object item = blocks.get(i);
+            if (!(item instanceof JSONObject)) {
+                for (String wrapped : wrap(String.valueOf(item), columns)) {
+                    if (!drawn(new String[]{wrapped}, new int[]{columns}, new int[]{EscPos.ALIGN_LEFT}, 1)) {
+                        text(wrapped);
+                    }
+                }
+                continue;
+            }
+            JSONObject block = (JSONObject) item;
+            if (block.has("separator")) {
+                String sep = block.optString("separator", "-");
+                separator(sep.isEmpty() ? '-' : sep.charAt(0));
+                continue;
+            }
+            int size = Math.max(1, Math.min(8, block.optInt("size", 1)));
+            boolean blockBold = block.optBoolean("bold", false);
+            int align = parseAlign(block.optString("align", "left"));
+            int width = Math.max(1, columns / size);
+            write(EscPos.align(align));
+            if (blockBold) setBold(true);
+            if (size > 1) write(EscPos.size(size, size));
+            for (String wrapped : wrap(block.optString("text", ""), width)) {
+                if (!drawn(new String[]{wrapped}, new int[]{width}, new int[]{align}, size)) {
+                    text(wrapped);
+                }
+            }
+            if (size > 1) write(EscPos.size(1, 1));
+            if (blockBold) setBold(false);
+            write(EscPos.align(EscPos.ALIGN_LEFT));
+        }
+    }
+
+    /** Label on the left, value on the right, label wrapped if both do not fit. */
+    private void renderPairs(JSONArray pairs) throws JSONException {
+        if (pairs == null) {
+            return;
+        }
+        for (int i = 0; i < pairs.length(); i++) {
+            JSONObject pair = pairs.getJSONObject(i);
+            String value = pair.optString("value", "");
+            boolean pairBold = pair.optBoolean("bold", false);
+            if (pairBold) setBold(true);
+            int labelWidth = Math.max(1, columns - value.length() - 1);
+            List<String> labelLines = wrap(pair.optString("label", ""), labelWidth);
+            for (int l = 0; l < labelLines.size(); l++) {
+                String label = labelLines.get(l);
+                if (l == labelLines.size() - 1) {
+                    if (!drawn(new String[]{label, value}, new int[]{labelWidth, value.length()},
+                            new int[]{EscPos.ALIGN_LEFT, EscPos.ALIGN_RIGHT}, 1)) {
+                        text(label + spaces(columns - label.length() - value.length()) + value);
+                    }
+                } else if (!drawn(new String[]{label}, new int[]{columns}, new int[]{EscPos.ALIGN_LEFT}, 1)) {
+                    text(label);
+                }
+            }
+            if (pairBold) setBold(false);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Column layout
+    // -------------------------------------------------------------------------
+
+    private static final class Column {
+        final String field;
+        final String label;
+        final int align;
+        int width;
+
+        Column(String field, String label, int width, int align) {
+            this.field = field;
+            this.label = label;
+            this.width = width;
+            this.align = align;
+        }
+    }
+
+    private Column[] parseLayout(JSONArray layout) throws JSONException {
+        Column[] result;
+        if (layout == null || layout.length() == 0) {
+            // Item name takes the slack, then quantity and line total
+            result = new Column[]{
+                new Column("name", "Item", 0, EscPos.ALIGN_LEFT),
+                new Column("qty", "Qty", 4, EscPos.ALIGN_RIGHT),
+                new Column("total", "Total", 9, EscPos.ALIGN_RIGHT),
+            };
+        } else {
+            result = new Column[layout.length()];
+            for (int i = 0; i < layout.length(); i++) {
+                JSONObject col = layout.getJSONObject(i);
+                String field = col.getString("field");
+                result[i] = new Column(field, col.optString("label", field),
+                        Math.max(0, col.optInt("width", 0)),
+                        parseAlign(col.optString("align", "left")));
+            }
+        }
+
+        // One space between columns; flexible columns share what is left
+        int fixed = result.length - 1;
+        int flexible = 0;
+        for (Column col : result) {
+            fixed += col.width;
+            if (col.width == 0) flexible++;
+        }
+        int slack = Math.max(0, columns - fixed);
+        for (Column col : result) {
+            if (col.width == 0) {
+                col.width = Math.max(1, flexible > 0 ? slack / flexible : 1);
+            }
+        }
+        return result;
+    }
+
+    /** Prints one logical row; each cell wraps in its own column. */
+    private void row(Column[] layout, String[] cells) {
+        List<List<String>> wrapped = new ArrayList<>(layout.length);
+        int height = 1;
+        for (int c = 0; c < layout.length; c++) {
+            List<String> cellLines = wrap(cells[c], layout[c].width);
+            wrapped.add(cellLines);
+            height = Math.max(height, cellLines.size());
+        }
+        int[] widths = new int[layout.length];
+        int[] aligns = new int[layout.length];
+        for (int c = 0; c < layout.length; c++) {
+            widths[c] = layout[c].width;
+            aligns[c] = layout[c].align;
+        }
+        StringBuilder sb = new StringBuilder(columns);
+        String[] parts = new String[layout.length];
+        for (int l = 0; l < height; l++) {
+            for (int c = 0; c < layout.length; c++) {
+                List<String> cellLines = wrapped.get(c);
+                parts[c] = l < cellLines.size() ? cellLines.get(l) : "";
+            }
+            if (drawn(parts, widths, aligns, 1)) {
+                continue;
+            }
+            sb.setLength(0);
+            for (int c = 0; c < layout.length; c++) {
+                if (c > 0) sb.append(' ');
+                sb.append(pad(parts[c], widths[c], aligns[c]));
+            }
+            text(rtrim(sb));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Text helpers
+    // -------------------------------------------------------------------------
+
+    /** Greedy word wrap; words longer than the width are broken hard. */
+    static List<String> wrap(String text, int width) {
+        List<String> lines = new ArrayList<>();
+        for (String paragraph : text.split("\n", -1)) {
+            StringBuilder line = new StringBuilder(width);
+            for (String word : paragraph.split(" ")) {
+                if (word.isEmpty()) {
+                    continue;
+                }
+                while (word.length() > width) {
+                    if (line.length() > 0) {
+                        lines.add(line.toString());
+                        line.setLength(0);
+                    }
+                    lines.add(word.substring(0, width));
+                    word = word.substring(width);
+                }
+                if (line.length() > 0 && line.length() + 1 + word.length() > width) {
+                    lines.add(line.toString());
+                    line.setLength(0);
+                }
+                if (line.length() > 0) line.append(' ');
+                line.append(word);
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    private static String pad(String text, int width, int align) {
+        int gap = width - text.length();
+        if (gap <= 0) {
+            return text;
+        }
+        switch (align) {
+            case EscPos.ALIGN_RIGHT:
+                return spaces(gap) + text;
+            case EscPos.ALIGN_CENTER:
+                return spaces(gap / 2) + text + spaces(gap - gap / 2);
+            default:
+                return text + spaces(gap);
+        }
+    }
+
+    private static String spaces(int n) {
+        StringBuilder sb = new StringBuilder(Math.max(0, n));
+        for (int i = 0; i < n; i++) sb.append(' ');
+        return sb.toString();
+    }
+
+    private static String rtrim(CharSequence s) {
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == ' ') end--;
+        return s.subSequence(0, end).toString();
+    }
+
+    private static int parseAlign(String align) {
+        switch (align) {
+            case "center":
+                return EscPos.ALIGN_CENTER;
+            case "right":
+                return EscPos.ALIGN_RIGHT;
+            default:
+                return EscPos.ALIGN_LEFT;
+        }
+    }
+
+    private void separator(char c) {
+        StringBuilder sb = new StringBuilder(columns);
+        for (int i = 0; i < columns; i++) sb.append(c);
+        text(sb.toString());
+    }
+
+    /**
+     * Draws a line of cells as raster if the receipt has a TextRaster and
+     * any cell needs it (or rasterText is "always"). False if the caller
+     * should send it as text.
+     */
+    private boolean drawn(String[] cells, int[] widths, int[] aligns, int size) {
+        if (raster == null) {
+            return false;
+        }
+        boolean needed = rasterAll;
+        for (int i = 0; i < cells.length && !needed; i++) {
+            needed = raster.needs(cells[i]);
+        }
+        if (!needed) {
+            return false;
+        }
+        write(raster.line(cells, widths, aligns, charDots, bold, size));
+        return true;
+    }
+
+    private void setBold(boolean on) {
+        bold = on;
+        write(EscPos.bold(on));
+    }
+
+    private void text(String line) {
+        write(line.getBytes(charset));
+        out.write(EscPos.LF);
+    }
+
+    private void write(byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+}
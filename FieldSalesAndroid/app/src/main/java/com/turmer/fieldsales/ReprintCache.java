@@ -0,0 +1,163 @@
+package com.turmer.fieldsales;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The final bytes of recently rendered jobs, so extra copies (customer,
+ * driver, office) can be printed by job id with AndroidPrint.reprint()
+ * instead of the page sending the same payload over the bridge, and the app
+ * decoding or rendering it, once per copy.
+ *
+ * Filled on the writer thread as each job is rendered; the parts are kept
+ * as produced, not copied. Least recently used jobs go first past
+ * {@link #MAX_JOBS} or {@link #MAX_BYTES}. Printed jobs are already gone
+ * from the spool, so this is their only copy: a memory trim moves the jobs
+ * to a disk tier of the same size instead of dropping them ({@link #spill}).
+ * Disk entries are keyed per process, because job ids start over when the
+ * spool is empty; those of earlier runs are only ever evicted.
+ */
+final class ReprintCache {
+
+    private static final int MAX_JOBS = 32;
+    private static final long MAX_BYTES = 4L * 1024 * 1024;
+    // A long image job would push out every other one
+    static final long MAX_ENTRY_BYTES = MAX_BYTES / 4;
+
+    static final class Entry {
+        final String address;
+        /** May print graphics stored in that printer's NV memory, so only prints right there. */
+        final boolean printerBound;
+        final List<byte[]> parts;
+        final long bytes;
+
+        Entry(String address, boolean printerBound, List<byte[]> parts, long bytes) {
+            this.address = address;
+            this.printerBound = printerBound;
+            this.parts = parts;
+            this.bytes = bytes;
+        }
+    }
+
+    // Guarded by this
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(MAX_JOBS, 0.75f, true);
+    private long bytes;
+
+    private final DiskLruStore disk;
+    private final String keyPrefix = "r" + Long.toString(System.currentTimeMillis(), 36) + "_";
+
+    ReprintCache(File directory) {
+        this.disk = new DiskLruStore(directory, MAX_BYTES);
+    }
+
+    void put(long jobId, String address, boolean printerBound, List<byte[]> parts) {
+        long size = 0;
+        for (byte[] part : parts) {
+            size += part.length;
+        }
+        if (size > MAX_ENTRY_BYTES) {
+            return;
+        }
+        synchronized (this) {
+            Entry previous = entries.put(jobId, new Entry(address, printerBound, parts, size));
+            if (previous != null) {
+                bytes -= previous.bytes;
+            }
+            bytes += size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while ((bytes > MAX_BYTES || entries.size() > MAX_JOBS) && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * The job's bytes, or null if it was never rendered or has been evicted.
+     * Reads the file back for a job moved to disk.
+     */
+    Entry get(long jobId) {
+        synchronized (this) {
+            Entry entry = entries.get(jobId);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        byte[] data = disk.get(keyOf(jobId));
+        try {
+            return data != null ? decode(data) : null;
+        } catch (IOException e) {
+            disk.remove(keyOf(jobId));
+            return null;
+        }
+    }
+
+    /**
+     * Moves the jobs held in memory to disk, oldest first, for a memory trim.
+     * A job that cannot be written stays in memory. Blocking; call off the
+     * main thread.
+     */
+    void spill() {
+        List<Map.Entry<Long, Entry>> held;
+        synchronized (this) {
+            held = new ArrayList<>(entries.entrySet());
+        }
+        for (Map.Entry<Long, Entry> job : held) {
+            long jobId = job.getKey();
+            Entry entry = job.getValue();
+            try {
+                disk.put(keyOf(jobId), encode(entry));
+            } catch (IOException e) {
+                // Stays in memory
+                continue;
+            }
+            synchronized (this) {
+                if (entries.get(jobId) == entry) {
+                    entries.remove(jobId);
+                    bytes -= entry.bytes;
+                }
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private String keyOf(long jobId) {
+        return keyPrefix + jobId;
+    }
+
+    /** printerBound, address, then the parts as one run of bytes. */
+    private static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) entry.bytes + 64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeBoolean(entry.printerBound);
+        out.writeUTF(entry.address);
+        for (byte[] part : entry.parts) {
+            out.write(part);
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static Entry decode(byte[] data) throws IOException {
+        ByteArrayInputStream buffer = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(buffer);
+        boolean printerBound = in.readBoolean();
+        String address = in.readUTF();
+        byte[] job = Arrays.copyOfRange(data, data.length - buffer.available(), data.length);
+        return new Entry(address, printerBound, Collections.singletonList(job), job.length);
+    }
+}
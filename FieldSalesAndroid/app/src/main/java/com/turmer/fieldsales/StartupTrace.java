@@ -0,0 +1,65 @@
+package com.turmer.fieldsales;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cold-start timing markers, in milliseconds since the process started.
+ *
+ * Each marker is recorded once per process, so a recreated activity or a
+ * second page load does not overwrite the cold-start numbers. Logged under
+ * the "Startup" tag and exposed to the page through
+ * AndroidSettings.getStartupTimings().
+ */
+final class StartupTrace {
+
+    private static final String TAG = "Startup";
+
+    static final String ACTIVITY_CREATED = "activityCreated";
+    static final String WEBVIEW_CREATED = "webViewCreated";
+    static final String LOAD_STARTED = "loadStarted";
+    static final String FIRST_FRAME = "firstFrame";
+    static final String PAGE_FINISHED = "pageFinished";
+    static final String BRIDGE_READY = "bridgeReady";
+
+    private static final Map<String, Long> MARKS = new LinkedHashMap<>();
+    private static boolean resumedUrl;
+
+    private StartupTrace() {
+    }
+
+    /** Records the marker unless it was already recorded in this process. */
+    static synchronized void mark(String name) {
+        if (MARKS.containsKey(name)) {
+            return;
+        }
+        long ms = SystemClock.uptimeMillis() - Process.getStartUptimeMillis();
+        MARKS.put(name, ms);
+        Log.i(TAG, name + " +" + ms + " ms");
+    }
+
+    /**
+     * The last open page's URL was loaded again after process death, instead
+     * of the home URL. A fresh load of it all the same: no WebView state or
+     * history is kept.
+     */
+    static synchronized void setResumedUrl(boolean value) {
+        resumedUrl = value;
+    }
+
+    static synchronized JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        Json.put(json, "processStart", 0);
+        for (Map.Entry<String, Long> mark : MARKS.entrySet()) {
+            Json.put(json, mark.getKey(), mark.getValue());
+        }
+        Json.put(json, "resumedUrl", resumedUrl);
+        return json;
+    }
+}
@@ -0,0 +1,279 @@
+package com.turmer.fieldsales;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Raw TCP ("JetDirect", port 9100) to a network printer, e.g. the depot
+ * printers that print the daily load sheets.
+ *
+ * Uses a non-blocking SocketChannel so the connect and every write can
+ * time out; a plain Socket's stream would block forever on a printer that
+ * stopped reading. The link is far faster than SPP, so pacing starts from
+ * the largest chunk with no gap ({@link PrinterProfile#NETWORK}).
+ */
+final class TcpTransport implements PrinterTransport {
+
+    static final int DEFAULT_PORT = 9100;
+
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    // A printer that is out of paper stops reading; the status monitor
+    // holds the job meanwhile, so this only catches a dead peer
+    private static final long WRITE_TIMEOUT_MS = 30000;
+
+    private final String host;
+    private final int port;
+
+    TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /** "tcp:host:port" from any accepted spelling ("tcp:host", "tcp://host:port"), or null. */
+    static String normalize(String address) {
+        String rest = address.substring(TCP_PREFIX.length());
+        if (rest.startsWith("//")) {
+            rest = rest.substring(2);
+        }
+        if (rest.endsWith("/")) {
+            rest = rest.substring(0, rest.length() - 1);
+        }
+        String host = rest;
+        int port = DEFAULT_PORT;
+        int colon = rest.lastIndexOf(':');
+        if (colon >= 0) {
+            host = rest.substring(0, colon);
+            try {
+                port = Integer.parseInt(rest.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (host.isEmpty() || port <= 0 || port > 65535 || !host.matches("[a-z0-9.\\-]+")) {
+            return null;
+        }
+        return TCP_PREFIX + host + ":" + port;
+    }
+
+    /** Transport for a normalized "tcp:host:port" address. */
+    static TcpTransport fromAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        return new TcpTransport(address.substring(TCP_PREFIX.length(), colon),
+                Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    @Override
+    public Channel connect() throws IOException {
+        long connectStart = BridgeMetrics.start();
+        boolean connected = false;
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            // Status requests are a few bytes and must not sit in Nagle's buffer
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            InetSocketAddress remote = new InetSocketAddress(host, port);
+            if (remote.isUnresolved()) {
+                throw new UnknownHostException(host);
+            }
+            if (!channel.connect(remote)) {
+                try (Selector selector = Selector.open()) {
+                    channel.register(selector, SelectionKey.OP_CONNECT);
+                    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+                    while (!channel.finishConnect()) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException("No answer from " + host + ":" + port);
+                        }
+                        selector.select(remaining);
+                        selector.selectedKeys().clear();
+                    }
+                }
+            }
+            NioChannel open = new NioChannel(channel, host + ":" + port);
+            connected = true;
+            return open;
+        } finally {
+            BridgeMetrics.record("tcp.connect", connectStart, connected);
+            if (!connected) {
+                channel.close();
+            }
+        }
+    }
+
+    @Override
+    public String kind() {
+        return "tcp";
+    }
+
+    @Override
+    public PrinterProfile defaultProfile() {
+        return PrinterProfile.NETWORK;
+    }
+
+    /**
+     * Blocking streams over the non-blocking channel. One thread writes (the
+     * link's write lock) and one reads (the status monitor), each with its
+     * own selector.
+     */
+    private static final class NioChannel implements Channel {
+        private final SocketChannel channel;
+        private final String name;
+        private final Selector readSelector;
+        private final Selector writeSelector;
+        // Kept ready for reading (flipped); reader thread only
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+        private volatile boolean eof;
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int available() throws IOException {
+                if (!fill(false)) {
+                    throw new IOException("Printer closed the connection");
+                }
+                return readBuffer.remaining();
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!fill(true)) {
+                    return -1;
+                }
+                int n = Math.min(len, readBuffer.remaining());
+                readBuffer.get(b, off, n);
+                return n;
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer src = ByteBuffer.wrap(b, off, len);
+                long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+                while (src.hasRemaining()) {
+                    if (channel.write(src) > 0) {
+                        // The printer is still taking data
+                        deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+                        continue;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Printer stopped accepting data");
+                    }
+                    await(writeSelector, remaining);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                NioChannel.this.close();
+            }
+        };
+
+        NioChannel(SocketChannel channel, String name) throws IOException {
+            this.channel = channel;
+            this.name = name;
+            this.readSelector = Selector.open();
+            this.writeSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+            readBuffer.flip();
+        }
+
+        @Override
+        public InputStream in() {
+            return in;
+        }
+
+        @Override
+        public OutputStream out() {
+            return out;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return channel.isConnected() && !eof;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void close() throws IOException {
+            readSelector.wakeup();
+            writeSelector.wakeup();
+            try {
+                channel.close();
+            } finally {
+                readSelector.close();
+                writeSelector.close();
+            }
+        }
+
+        /**
+         * Makes sure readBuffer has bytes, waiting for them if block is set.
+         * Returns false at end of stream.
+         */
+        private boolean fill(boolean block) throws IOException {
+            while (!readBuffer.hasRemaining()) {
+                if (eof) {
+                    return false;
+                }
+                readBuffer.clear();
+                int n = channel.read(readBuffer);
+                readBuffer.flip();
+                if (n < 0) {
+                    eof = true;
+                    return false;
+                }
+                if (n == 0) {
+                    if (!block) {
+                        return true;
+                    }
+                    await(readSelector, 0);
+                }
+            }
+            return true;
+        }
+
+        /** Waits until the selector's one key is ready (0 = no timeout) or the channel is closed. */
+        private void await(Selector selector, long timeoutMs) throws IOException {
+            try {
+                selector.select(timeoutMs);
+                selector.selectedKeys().clear();
+            } catch (ClosedSelectorException e) {
+                throw new ClosedChannelException();
+            }
+            if (!channel.isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
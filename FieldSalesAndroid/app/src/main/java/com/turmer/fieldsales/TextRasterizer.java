@@ -0,0 +1,412 @@
+package com.turmer.fieldsales;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.icu.text.ArabicShaping;
+import android.icu.text.ArabicShapingException;
+import android.icu.text.Bidi;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Draws text the printer's own fonts cannot show (Arabic customer names,
+ * mixed Arabic/English product lines) as raster, so the page no longer has
+ * to paint whole blocks on a canvas and send them as images.
+ *
+ * Each paragraph is shaped (Arabic letters to their joining forms, lam-alef
+ * ligatures) with ICU's ArabicShaping, wrapped, and put in display order
+ * line by line with ICU's Bidi. The shaped glyph clusters are drawn once
+ * per font, size and weight into 1-bit bitmaps that are kept in an LRU
+ * cache; a line is composed by copying cached glyphs side by side into a
+ * printer-width row, and the rows go to {@link RasterEncoder} as they are,
+ * with no dithering. A receipt of a few dozen names therefore renders a
+ * few hundred small glyphs once and then only copies bits.
+ *
+ * Options JSON for {@link #render} (all optional):
+ * <pre>
+ * { "width": 384, "size": 24, "bold": false, "font": "sans-serif|serif|monospace",
+ *   "align": "left|center|right", "lineGap": 6 }
+ * </pre>
+ * Without "align", right-to-left paragraphs are right aligned and the rest
+ * left aligned. Thread-safe; one instance is shared by all print sessions.
+ */
+final class TextRasterizer implements ReceiptRenderer.TextRaster {
+
+    private static final String TAG = "TextRasterizer";
+
+    static final int DEFAULT_SIZE_PX = 24;
+    // 24 px text plus this gap gives the printer's default 1/6" line (30 dots at 203 dpi)
+    private static final int DEFAULT_LINE_GAP = 6;
+    // Receipt text rows are the height of a default text line, scaled by the block size
+    private static final int RECEIPT_LINE_DOTS = 30;
+    // A few scripts at a few sizes and weights; ~100 bytes each at 24 px
+    private static final int MAX_GLYPHS = 2048;
+    // Anti-aliased edges at least this opaque are printed
+    private static final int INK_ALPHA = 128;
+
+    /** One glyph cluster as a 1-bit bitmap, placed relative to the pen on the baseline. */
+    private static final class Glyph {
+        final float advance;
+        final int left;
+        final int top;
+        final int width;
+        final int height;
+        final int rowBytes;
+        final byte[] bits;
+
+        Glyph(float advance, int left, int top, int width, int height, byte[] bits) {
+            this.advance = advance;
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.rowBytes = (width + 7) / 8;
+            this.bits = bits;
+        }
+    }
+
+    /** Font, size and weight; part of every glyph's cache key. */
+    private static final class Style {
+        final String font;
+        final int sizePx;
+        final boolean bold;
+        final String key;
+
+        Style(String font, int sizePx, boolean bold) {
+            this.font = font;
+            this.sizePx = sizePx;
+            this.bold = bold;
+            this.key = font + "/" + sizePx + (bold ? "b" : "") + "/";
+        }
+    }
+
+    // Guarded by this
+    private final LinkedHashMap<String, Glyph> glyphs = new LinkedHashMap<String, Glyph>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Glyph> eldest) {
+            return size() > MAX_GLYPHS;
+        }
+    };
+    private final Map<String, Paint> paints = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    /**
+     * Renders a text block (paragraphs separated by "\n") to raster commands
+     * a printer-width wide.
+     */
+    RasterEncoder.Result render(String text, String optionsJson) throws IOException {
+        JSONObject options;
+        try {
+            options = optionsJson == null || optionsJson.trim().isEmpty()
+                    ? new JSONObject() : new JSONObject(optionsJson);
+        } catch (JSONException e) {
+            throw new IOException("Invalid text options: " + e.getMessage(), e);
+        }
+        long start = System.nanoTime();
+        int width = Math.max(8, options.optInt("width", ImageRasterizer.DEFAULT_WIDTH_DOTS));
+        Style style = new Style(options.optString("font", "sans-serif"),
+                Math.max(8, Math.min(200, options.optInt("size", DEFAULT_SIZE_PX))),
+                options.optBoolean("bold", false));
+        int gap = Math.max(0, options.optInt("lineGap", DEFAULT_LINE_GAP));
+        String align = options.optString("align", "");
+        int rowBytes = (width + 7) / 8;
+
+        Paint.FontMetricsInt metrics = paint(style).getFontMetricsInt();
+        int ascent = -metrics.ascent;
+        int lineHeight = ascent + metrics.descent + gap;
+
+        List<byte[]> rows = new ArrayList<>();
+        for (String paragraph : text.split("\n", -1)) {
+            String shaped = shape(paragraph);
+            Bidi bidi = new Bidi();
+            bidi.setPara(shaped, Bidi.LEVEL_DEFAULT_LTR, null);
+            boolean rtl = (bidi.getParaLevel() & 1) != 0;
+            int alignment = parseAlign(align, rtl);
+            for (int[] range : wrap(shaped, style, width)) {
+                byte[] row = new byte[rowBytes * lineHeight];
+                // ICU rejects an empty line; it is a blank row anyway
+                if (range[1] > range[0]) {
+                    String visual = bidi.createLineBidi(range[0], range[1])
+                            .writeReordered(Bidi.DO_MIRRORING | Bidi.KEEP_BASE_COMBINING);
+                    drawLine(visual, style, row, rowBytes, lineHeight, ascent, 0, width, alignment);
+                }
+                rows.add(row);
+            }
+        }
+
+        byte[] packed = new byte[rowBytes * lineHeight * rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            System.arraycopy(rows.get(i), 0, packed, i * rows.get(i).length, rows.get(i).length);
+        }
+        RasterEncoder.Result result = RasterEncoder.encodePacked(packed, width, lineHeight * rows.size());
+        Log.i(TAG, "Rendered " + rows.size() + " line(s) -> " + result.bytes.length + " bytes (plain GS v 0: "
+                + result.plainBytes + ") in " + (System.nanoTime() - start) / 1000000 + " ms, " + statsLine());
+        return result;
+    }
+
+    @Override
+    public boolean needs(String text) {
+        char[] chars = text.toCharArray();
+        return Bidi.requiresBidi(chars, 0, chars.length);
+    }
+
+    @Override
+    public byte[] line(String[] cells, int[] widths, int[] aligns, int charDots, boolean bold, int size) {
+        int cellDots = charDots * size;
+        int width = 0;
+        for (int i = 0; i < widths.length; i++) {
+            width += (i > 0 ? 1 : 0) + widths[i];
+        }
+        width *= cellDots;
+        int rowBytes = (width + 7) / 8;
+        int height = RECEIPT_LINE_DOTS * size;
+        Style style = new Style("sans-serif", DEFAULT_SIZE_PX * size, bold);
+        Paint.FontMetricsInt metrics = paint(style).getFontMetricsInt();
+        // Centre the font's ascent..descent in the row
+        int baseline = -metrics.ascent + (height - (metrics.descent - metrics.ascent)) / 2;
+
+        byte[] row = new byte[rowBytes * height];
+        int x = 0;
+        for (int i = 0; i < cells.length; i++) {
+            if (i > 0) {
+                x += cellDots;
+            }
+            String cell = cells[i];
+            if (!cell.isEmpty()) {
+                String shaped = shape(cell);
+                Bidi bidi = new Bidi();
+                bidi.setPara(shaped, Bidi.LEVEL_DEFAULT_LTR, null);
+                String visual = bidi.writeReordered(Bidi.DO_MIRRORING | Bidi.KEEP_BASE_COMBINING);
+                drawLine(visual, style, row, rowBytes, height, baseline, x, widths[i] * cellDots, aligns[i]);
+            }
+            x += widths[i] * cellDots;
+        }
+        return RasterEncoder.encodePacked(row, width, height).bytes;
+    }
+
+    /** Drops every cached glyph, e.g. when the system is short of memory. */
+    synchronized void clear() {
+        glyphs.clear();
+    }
+
+    synchronized String statsLine() {
+        return glyphs.size() + " glyphs cached, " + hits + " hits, " + misses + " misses";
+    }
+
+    // -------------------------------------------------------------------------
+    // Shaping and layout
+    // -------------------------------------------------------------------------
+
+    /** Arabic letters to their joining forms, still in logical order. */
+    private static String shape(String text) {
+        try {
+            return new ArabicShaping(ArabicShaping.LETTERS_SHAPE | ArabicShaping.TEXT_DIRECTION_LOGICAL
+                    | ArabicShaping.LENGTH_GROW_SHRINK).shape(text);
+        } catch (ArabicShapingException e) {
+            // Unshaped Arabic is still readable, if disjoined
+            return text;
+        }
+    }
+
+    /**
+     * Greedy wrap of a shaped paragraph at spaces, measured with the glyph
+     * advances; a word wider than the line is broken between clusters.
+     * Returns [start, limit) ranges into the paragraph.
+     */
+    private List<int[]> wrap(String text, Style style, int width) {
+        List<int[]> lines = new ArrayList<>();
+        int lineStart = 0;
+        int lastSpace = -1;
+        float lineWidth = 0;
+        float sinceSpace = 0;
+        int i = 0;
+        while (i < text.length()) {
+            int end = clusterEnd(text, i);
+            float advance = glyph(style, text.substring(i, end)).advance;
+            if (text.charAt(i) == ' ') {
+                lastSpace = i;
+                sinceSpace = 0;
+                lineWidth += advance;
+            } else if (lineWidth + advance > width && i > lineStart) {
+                if (lastSpace >= lineStart) {
+                    // Break at the last space; it is dropped
+                    lines.add(new int[]{lineStart, lastSpace});
+                    lineStart = lastSpace + 1;
+                    lineWidth = sinceSpace + advance;
+                } else {
+                    lines.add(new int[]{lineStart, i});
+                    lineStart = i;
+                    lineWidth = advance;
+                }
+                lastSpace = -1;
+                sinceSpace = advance;
+            } else {
+                lineWidth += advance;
+                sinceSpace += advance;
+            }
+            i = end;
+        }
+        lines.add(new int[]{lineStart, text.length()});
+        return lines;
+    }
+
+    /** Copies the glyphs of a line in display order into [x, x + width) of the row. */
+    private void drawLine(String visual, Style style, byte[] row, int rowBytes, int height,
+                          int baseline, int x, int width, int align) {
+        List<Glyph> line = new ArrayList<>(visual.length());
+        float total = 0;
+        for (int i = 0; i < visual.length(); ) {
+            int end = clusterEnd(visual, i);
+            Glyph glyph = glyph(style, visual.substring(i, end));
+            line.add(glyph);
+            total += glyph.advance;
+            i = end;
+        }
+        // Trailing spaces do not count for alignment
+        for (int i = line.size() - 1; i >= 0 && line.get(i).bits == null; i--) {
+            total -= line.get(i).advance;
+        }
+        float pen = x;
+        if (align == EscPos.ALIGN_RIGHT) {
+            pen += Math.max(0, width - total);
+        } else if (align == EscPos.ALIGN_CENTER) {
+            pen += Math.max(0, (width - total) / 2);
+        }
+        int clipRight = x + width;
+        for (Glyph glyph : line) {
+            if (glyph.bits != null) {
+                blit(glyph, Math.round(pen), baseline, row, rowBytes, height, x, clipRight);
+            }
+            pen += glyph.advance;
+        }
+    }
+
+    /** ORs a glyph's bits into the row at the pen position, clipped to [clipLeft, clipRight). */
+    private static void blit(Glyph glyph, int pen, int baseline, byte[] row, int rowBytes, int height,
+                             int clipLeft, int clipRight) {
+        int originX = pen + glyph.left;
+        int originY = baseline + glyph.top;
+        for (int gy = 0; gy < glyph.height; gy++) {
+            int y = originY + gy;
+            if (y < 0 || y >= height) {
+                continue;
+            }
+            int src = gy * glyph.rowBytes;
+            int dst = y * rowBytes;
+            for (int b = 0; b < glyph.rowBytes; b++) {
+                int bits = glyph.bits[src + b] & 0xFF;
+                if (bits == 0) {
+                    continue;
+                }
+                for (int bit = 0; bit < 8; bit++) {
+                    if ((bits & (0x80 >> bit)) == 0) {
+                        continue;
+                    }
+                    int px = originX + b * 8 + bit;
+                    if (px >= clipLeft && px < clipRight) {
+                        row[dst + (px >> 3)] |= (byte) (0x80 >> (px & 7));
+                    }
+                }
+            }
+        }
+    }
+
+    /** End of the cluster at i: a character (or surrogate pair) and the marks on it. */
+    private static int clusterEnd(String text, int i) {
+        int end = i + Character.charCount(text.codePointAt(i));
+        while (end < text.length()) {
+            int type = Character.getType(text.codePointAt(end));
+            if (type != Character.NON_SPACING_MARK && type != Character.ENCLOSING_MARK
+                    && type != Character.COMBINING_SPACING_MARK) {
+                break;
+            }
+            end += Character.charCount(text.codePointAt(end));
+        }
+        return end;
+    }
+
+    private static int parseAlign(String align, boolean rtl) {
+        switch (align) {
+            case "left":
+                return EscPos.ALIGN_LEFT;
+            case "center":
+                return EscPos.ALIGN_CENTER;
+            case "right":
+                return EscPos.ALIGN_RIGHT;
+            default:
+                return rtl ? EscPos.ALIGN_RIGHT : EscPos.ALIGN_LEFT;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Glyph cache
+    // -------------------------------------------------------------------------
+
+    private synchronized Glyph glyph(Style style, String cluster) {
+        String key = style.key + cluster;
+        Glyph glyph = glyphs.get(key);
+        if (glyph != null) {
+            hits++;
+            return glyph;
+        }
+        misses++;
+        glyph = draw(paint(style), cluster);
+        glyphs.put(key, glyph);
+        return glyph;
+    }
+
+    /** One Paint per style; glyphs are only drawn with it under the lock. */
+    private synchronized Paint paint(Style style) {
+        Paint paint = paints.get(style.key);
+        if (paint == null) {
+            paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setTypeface(Typeface.create(style.font, style.bold ? Typeface.BOLD : Typeface.NORMAL));
+            paint.setTextSize(style.sizePx);
+            paints.put(style.key, paint);
+        }
+        return paint;
+    }
+
+    /** Draws one cluster and keeps the pixels that are inked enough. */
+    private static Glyph draw(Paint paint, String cluster) {
+        float advance = paint.measureText(cluster);
+        Rect bounds = new Rect();
+        paint.getTextBounds(cluster, 0, cluster.length(), bounds);
+        if (bounds.isEmpty()) {
+            // Space or a character the fonts do not have
+            return new Glyph(advance, 0, 0, 0, 0, null);
+        }
+        // One pixel of margin for anti-aliasing outside the reported bounds
+        int width = bounds.width() + 2;
+        int height = bounds.height() + 2;
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+        new Canvas(bitmap).drawText(cluster, 1 - bounds.left, 1 - bounds.top, paint);
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+
+        int rowBytes = (width + 7) / 8;
+        byte[] bits = new byte[rowBytes * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (pixels[y * width + x] >>> 24 >= INK_ALPHA) {
+                    bits[y * rowBytes + (x >> 3)] |= (byte) (0x80 >> (x & 7));
+                }
+            }
+        }
+        return new Glyph(advance, bounds.left - 1, bounds.top - 1, width, height, bits);
+    }
+}
@@ -0,0 +1,111 @@
+package com.turmer.fieldsales;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+/**
+ * How often the system ran short of memory and the WebView renderer died,
+ * and how long bringing the page back took.
+ *
+ * Counters are kept in SharedPreferences, so they add up across app
+ * restarts (an OOM often takes the app process too). Logged under the
+ * "WebViewHealth" tag and exposed to the page through
+ * AndroidSettings.getWebViewHealth().
+ */
+final class WebViewHealth {
+
+    private static final String TAG = "WebViewHealth";
+    private static final String PREFS_NAME = "WebViewHealth";
+
+    // This many renderer deaths within the window means the page itself is
+    // the trouble (e.g. a huge report): start from the home URL instead
+    private static final int CRASH_LOOP_COUNT = 3;
+    private static final long CRASH_LOOP_WINDOW_MS = 60 * 1000;
+
+    private static final String KEY_TRIMS = "trims";
+    private static final String KEY_CRITICAL_TRIMS = "criticalTrims";
+    private static final String KEY_CRASHES = "rendererCrashes";
+    private static final String KEY_KILLS = "rendererKills";
+    private static final String KEY_RECOVERIES = "recoveries";
+    private static final String KEY_HOME_RECOVERIES = "homeRecoveries";
+    private static final String KEY_LAST_GONE_AT = "lastGoneAt";
+    private static final String KEY_LAST_RECOVERY_MS = "lastRecoveryMs";
+
+    private final SharedPreferences prefs;
+    // Renderer deaths in this process, newest last; main thread only
+    private final long[] recentGone = new long[CRASH_LOOP_COUNT];
+    private int goneCount;
+    private int lastTrimLevel = -1;
+
+    WebViewHealth(Context context) {
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** Counts an onTrimMemory() call. */
+    void onTrimMemory(int level) {
+        lastTrimLevel = level;
+        String key = isCritical(level) ? KEY_CRITICAL_TRIMS : KEY_TRIMS;
+        prefs.edit().putLong(key, prefs.getLong(key, 0) + 1).apply();
+    }
+
+    /**
+     * Counts a renderer death. True if it is the third within a minute, in
+     * which case the page should not be restored as it was.
+     */
+    boolean onRendererGone(boolean crashed) {
+        long now = System.currentTimeMillis();
+        String key = crashed ? KEY_CRASHES : KEY_KILLS;
+        prefs.edit()
+                .putLong(key, prefs.getLong(key, 0) + 1)
+                .putLong(KEY_LAST_GONE_AT, now)
+                .apply();
+        System.arraycopy(recentGone, 1, recentGone, 0, recentGone.length - 1);
+        recentGone[recentGone.length - 1] = now;
+        goneCount++;
+        boolean looping = goneCount >= CRASH_LOOP_COUNT && now - recentGone[0] < CRASH_LOOP_WINDOW_MS;
+        Log.w(TAG, "Renderer " + (crashed ? "crashed" : "killed by the system")
+                + (looping ? ", " + CRASH_LOOP_COUNT + " times in a minute" : ""));
+        return looping;
+    }
+
+    /** A new WebView is showing the page again. */
+    void onRecovered(long elapsedMs, boolean toHome) {
+        SharedPreferences.Editor editor = prefs.edit()
+                .putLong(KEY_RECOVERIES, prefs.getLong(KEY_RECOVERIES, 0) + 1)
+                .putLong(KEY_LAST_RECOVERY_MS, elapsedMs);
+        if (toHome) {
+            editor.putLong(KEY_HOME_RECOVERIES, prefs.getLong(KEY_HOME_RECOVERIES, 0) + 1);
+        }
+        editor.apply();
+        Log.i(TAG, "WebView rebuilt in " + elapsedMs + " ms" + (toHome ? " (home page)" : ""));
+    }
+
+    String statsJson() {
+        JSONObject json = new JSONObject();
+        Json.put(json, KEY_TRIMS, prefs.getLong(KEY_TRIMS, 0));
+        Json.put(json, KEY_CRITICAL_TRIMS, prefs.getLong(KEY_CRITICAL_TRIMS, 0));
+        Json.put(json, KEY_CRASHES, prefs.getLong(KEY_CRASHES, 0));
+        Json.put(json, KEY_KILLS, prefs.getLong(KEY_KILLS, 0));
+        Json.put(json, KEY_RECOVERIES, prefs.getLong(KEY_RECOVERIES, 0));
+        Json.put(json, KEY_HOME_RECOVERIES, prefs.getLong(KEY_HOME_RECOVERIES, 0));
+        long lastGoneAt = prefs.getLong(KEY_LAST_GONE_AT, 0);
+        if (lastGoneAt > 0) {
+            Json.put(json, KEY_LAST_GONE_AT, lastGoneAt);
+            Json.put(json, KEY_LAST_RECOVERY_MS, prefs.getLong(KEY_LAST_RECOVERY_MS, 0));
+        }
+        if (lastTrimLevel >= 0) {
+            Json.put(json, "lastTrimLevel", lastTrimLevel);
+        }
+        return json.toString();
+    }
+
+    /** The app is about to be killed, or the foreground is nearly out of memory. */
+    static boolean isCritical(int level) {
+        return level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+                || level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+    }
+}
@@ -0,0 +1,164 @@
+package com.turmer.fieldsales;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Backoff and recovery of {@link AdaptivePacer} against a simulated SPP
+ * sink whose flush blocks like RFCOMM does when the printer is out of
+ * credits.
+ */
+public class AdaptivePacerTest {
+
+    /** Counts bytes; flush stalls for stallMs while stalling is on. */
+    private static final class SimulatedSink extends OutputStream {
+        volatile long stallMs;
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (stallMs > 0) {
+                try {
+                    Thread.sleep(stallMs);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        }
+    }
+
+    private final byte[] data = new byte[AdaptivePacer.MAX_CHUNK];
+
+    @Test
+    public void stallHalvesChunkAndAddsGap() throws Exception {
+        AdaptivePacer pacer = new AdaptivePacer(PrinterProfile.DEFAULT);
+        SimulatedSink sink = new SimulatedSink();
+        sink.stallMs = AdaptivePacer.STALL_MS + 80;
+
+        pacer.writeChunk(sink, data, 0, pacer.chunkSize());
+
+        assertEquals(PrinterProfile.DEFAULT.chunkSize / 2, pacer.chunkSize());
+        assertEquals(10, pacer.gapMs());
+        assertEquals(1, pacer.stalls());
+        assertEquals(PrinterProfile.DEFAULT.chunkSize, sink.bytes);
+    }
+
+    @Test
+    public void repeatedStallsStopAtTheLimits() throws Exception {
+        AdaptivePacer pacer = new AdaptivePacer(new PrinterProfile(AdaptivePacer.MIN_CHUNK * 2, 150));
+        SimulatedSink sink = new SimulatedSink();
+        sink.stallMs = AdaptivePacer.STALL_MS + 80;
+
+        pacer.writeChunk(sink, data, 0, pacer.chunkSize());
+        pacer.writeChunk(sink, data, 0, pacer.chunkSize());
+
+        assertEquals(AdaptivePacer.MIN_CHUNK, pacer.chunkSize());
+        assertEquals(AdaptivePacer.MAX_GAP_MS, pacer.gapMs());
+        assertEquals(2, pacer.stalls());
+    }
+
+    @Test
+    public void fastRunShrinksGapBeforeGrowingChunk() throws Exception {
+        AdaptivePacer pacer = new AdaptivePacer(new PrinterProfile(512, 8));
+        SimulatedSink sink = new SimulatedSink();
+
+        // Every run of 8 fast chunks takes a quarter off the gap: 8, 6, 4, 3, 2, 1, 0
+        int[] gaps = {6, 4, 3, 2, 1, 0};
+        for (int expected : gaps) {
+            writeChunks(pacer, sink, 8);
+            assertEquals(expected, pacer.gapMs());
+            assertEquals(512, pacer.chunkSize());
+        }
+
+        // Only then does the chunk grow
+        writeChunks(pacer, sink, 8);
+        assertEquals(768, pacer.chunkSize());
+        assertEquals(0, pacer.stalls());
+    }
+
+    @Test
+    public void recoversAfterStallsEnd() throws Exception {
+        AdaptivePacer pacer = new AdaptivePacer(PrinterProfile.DEFAULT);
+        SimulatedSink sink = new SimulatedSink();
+        sink.stallMs = AdaptivePacer.STALL_MS + 80;
+        pacer.writeChunk(sink, data, 0, pacer.chunkSize());
+        pacer.writeChunk(sink, data, 0, pacer.chunkSize());
+        assertEquals(256, pacer.chunkSize());
+        assertEquals(20, pacer.gapMs());
+
+        // Printer caught up: the gap goes away first, then chunks grow back
+        sink.stallMs = 0;
+        int chunks = 0;
+        while (pacer.chunkSize() < PrinterProfile.DEFAULT.chunkSize && chunks < 400) {
+            pacer.writeChunk(sink, data, 0, pacer.chunkSize());
+            chunks++;
+        }
+        assertEquals(0, pacer.gapMs());
+        assertEquals(PrinterProfile.DEFAULT.chunkSize, pacer.chunkSize());
+        assertEquals(2, pacer.stalls());
+    }
+
+    @Test
+    public void xoffWaitsForXonAndBacksOff() throws Exception {
+        AdaptivePacer pacer = new AdaptivePacer(PrinterProfile.DEFAULT);
+        SimulatedSink sink = new SimulatedSink();
+        pacer.pause();
+        Thread xon = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+                // Resume at once
+            }
+            pacer.resume();
+        });
+        long start = System.currentTimeMillis();
+        xon.start();
+
+        pacer.writeChunk(sink, data, 0, pacer.chunkSize());
+        xon.join();
+
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(PrinterProfile.DEFAULT.chunkSize, sink.bytes);
+        assertEquals(1, pacer.stalls());
+        assertEquals(PrinterProfile.DEFAULT.chunkSize / 2, pacer.chunkSize());
+    }
+
+    @Test
+    public void snapshotAndResetRoundTrip() throws Exception {
+        AdaptivePacer pacer = new AdaptivePacer(PrinterProfile.DEFAULT);
+        SimulatedSink sink = new SimulatedSink();
+        sink.stallMs = AdaptivePacer.STALL_MS + 80;
+        pacer.writeChunk(sink, data, 0, pacer.chunkSize());
+
+        PrinterProfile learned = PrinterProfile.decode(pacer.snapshot().encode(), PrinterProfile.DEFAULT);
+        assertEquals(512, learned.chunkSize);
+        assertEquals(10, learned.gapMs);
+
+        pacer.reset(PrinterProfile.NETWORK);
+        assertEquals(AdaptivePacer.MAX_CHUNK, pacer.chunkSize());
+        assertEquals(0, pacer.gapMs());
+        assertEquals(0, pacer.stalls());
+        assertEquals(0, pacer.bytesPerSecond());
+    }
+
+    private void writeChunks(AdaptivePacer pacer, SimulatedSink sink, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            pacer.writeChunk(sink, data, 0, pacer.chunkSize());
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.turmer.fieldsales;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link AssetCache} against a local HTTP server standing in for Odoo: a
+ * miss is stored, a hit is served from disk, and a new process revalidates
+ * with If-None-Match, keeping the copy on 304 and replacing it on 200.
+ */
+public class AssetCacheTest {
+
+    private static final String PATH = "/web/assets/1234/web.assets_frontend.min.js";
+
+    private HttpServer server;
+    private String origin;
+    private File directory;
+
+    // What the server answers with; a request with this ETag gets a 304
+    private volatile String body = "console.log('v1');";
+    private volatile String etag = "\"v1\"";
+    private volatile int status = 200;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile String lastIfNoneMatch;
+    private volatile String lastCookie;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            lastIfNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            lastCookie = exchange.getRequestHeaders().getFirst("Cookie");
+            if (status != 200) {
+                exchange.sendResponseHeaders(status, -1);
+            } else if (etag.equals(lastIfNoneMatch)) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/javascript; charset=utf-8");
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.sendResponseHeaders(200, bytes.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(bytes);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        origin = "http://127.0.0.1:" + server.getAddress().getPort();
+        directory = Files.createTempDirectory("asset-cache").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop(0);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void missIsStoredAndHitServedFromDisk() throws Exception {
+        AssetCache cache = newCache();
+
+        AssetCache.Response first = cache.fetch(origin + PATH, null);
+        assertNotNull(first);
+        assertFalse(first.fromCache);
+        assertEquals("text/javascript", first.mimeType);
+        assertEquals("utf-8", first.encoding);
+        assertEquals("console.log('v1');", read(first.body));
+        assertEquals("session_id=abc", lastCookie);
+
+        AssetCache.Response second = cache.fetch(origin + PATH, null);
+        assertTrue(second.fromCache);
+        assertEquals("hit", second.headers.get("X-Asset-Cache"));
+        assertEquals("console.log('v1');", read(second.body));
+        // Fetched in this process, so not checked again within the hour
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void unchangedAssetIsRevalidatedWith304() throws Exception {
+        read(newCache().fetch(origin + PATH, null).body);
+
+        // A new process serves the stored copy and checks it in the background
+        AssetCache restarted = newCache();
+        AssetCache.Response response = restarted.fetch(origin + PATH, null);
+        assertTrue(response.fromCache);
+        assertEquals("console.log('v1');", read(response.body));
+
+        awaitStat(restarted, "notModified", 1);
+        assertEquals("\"v1\"", lastIfNoneMatch);
+        assertEquals(0, stat(restarted, "updated"));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void changedAssetIsReplacedForTheNextLoad() throws Exception {
+        read(newCache().fetch(origin + PATH, null).body);
+        body = "console.log('v2');";
+        etag = "\"v2\"";
+
+        AssetCache restarted = newCache();
+        // This load still gets the old copy...
+        assertEquals("console.log('v1');", read(restarted.fetch(origin + PATH, null).body));
+        awaitStat(restarted, "updated", 1);
+        assertEquals("\"v1\"", lastIfNoneMatch);
+
+        // ...and the next one the new
+        AssetCache.Response next = newCache().fetch(origin + PATH, null);
+        assertTrue(next.fromCache);
+        assertEquals("console.log('v2');", read(next.body));
+    }
+
+    @Test
+    public void offlineServesCachedCopyOnly() throws Exception {
+        read(newCache().fetch(origin + PATH, null).body);
+        server.stop(0);
+        server = null;
+
+        AssetCache offline = newCache();
+        assertEquals("console.log('v1');", read(offline.fetch(origin + PATH, null).body));
+        assertNull(offline.fetch(origin + "/web/static/other.css", null));
+    }
+
+    @Test
+    public void errorResponsesAreNotStored() throws Exception {
+        status = 404;
+        AssetCache cache = newCache();
+        assertNull(cache.fetch(origin + PATH, null));
+        assertEquals(0, stat(cache, "entries"));
+    }
+
+    @Test
+    public void onlyStaticGetsOfTheOriginAreCacheable() {
+        AssetCache cache = newCache();
+        assertTrue(cache.isCacheable("GET", origin + PATH));
+        assertTrue(cache.isCacheable("GET", origin + "/web/static/lib/fontawesome/fonts/fa.woff2?v=4"));
+        assertFalse(cache.isCacheable("POST", origin + PATH));
+        assertFalse(cache.isCacheable("GET", origin + "/web/dataset/call_kw"));
+        assertFalse(cache.isCacheable("GET", "http://other.example" + PATH));
+
+        cache.setOrigin(null);
+        assertFalse(cache.isCacheable("GET", origin + PATH));
+    }
+
+    private AssetCache newCache() {
+        AssetCache cache = new AssetCache(directory, 1024 * 1024, url -> "session_id=abc");
+        cache.setOrigin(origin);
+        return cache;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long stat(AssetCache cache, String name) throws Exception {
+        return new JSONObject(cache.statsJson()).getLong(name);
+    }
+
+    /** Revalidation runs on the cache's own thread. */
+    private static void awaitStat(AssetCache cache, String name, long expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stat(cache, name) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, stat(cache, name));
+    }
+}
@@ -0,0 +1,338 @@
+package com.turmer.fieldsales;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link CatalogSync} against a mock Odoo JSON-RPC endpoint: full and
+ * incremental pulls, write_date ties across pages, resuming after a failed
+ * page, and pruning. The rows go to a {@link MemoryStore}, so the
+ * watermarks can be checked without SQLite.
+ */
+public class CatalogSyncTest {
+
+    private static final String T0 = "2024-05-01 08:00:00";
+    private static final String T1 = "2024-05-02 09:30:00";
+
+    private HttpServer server;
+    private final MemoryStore store = new MemoryStore();
+    private CatalogSync sync;
+
+    // The mock server's records per model, and what it was asked
+    private final Map<String, List<JSONObject>> records = new HashMap<>();
+    private final Map<String, Integer> searchReads = new ConcurrentHashMap<>();
+    private final Map<String, JSONArray> lastDomains = new ConcurrentHashMap<>();
+    private volatile int failSearchReadsAfter = -1;
+
+    @Before
+    public void setUp() throws IOException {
+        for (CatalogStore.Table table : CatalogStore.TABLES) {
+            records.put(table.model, new ArrayList<>());
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/web/dataset/call_kw/", this::callKw);
+        server.start();
+
+        OdooRpc rpc = new OdooRpc(null);
+        rpc.setOrigin("http://127.0.0.1:" + server.getAddress().getPort());
+        sync = new CatalogSync(rpc, store);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    // -------------------------------------------------------------------------
+    // Sync
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void firstSyncPullsEverythingThenOnlyChanges() throws Exception {
+        seedCatalog();
+
+        JSONObject first = sync.run();
+        assertEquals(2, fetched(first, "categories"));
+        assertEquals(2, fetched(first, "products"));
+        assertEquals(1, fetched(first, "customers"));
+        assertEquals(T0, store.watermark(CatalogStore.PRODUCTS).writeDate);
+        assertEquals(11, store.watermark(CatalogStore.PRODUCTS).lastId);
+
+        product(10).put("display_name", "Orange Juice 2L").put("write_date", T1);
+        JSONObject second = sync.run();
+        assertEquals(0, fetched(second, "categories"));
+        assertEquals(1, fetched(second, "products"));
+        assertEquals(0, fetched(second, "customers"));
+        // Asked only for what changed since the watermark
+        assertTrue(lastDomains.get("product.product").toString().contains("\"write_date\",\">\",\"" + T0 + "\""));
+
+        assertEquals(2, store.rows("products").size());
+        assertEquals(T1, store.watermark(CatalogStore.PRODUCTS).writeDate);
+        assertEquals(10, store.watermark(CatalogStore.PRODUCTS).lastId);
+        assertEquals("Orange Juice 2L", store.rows("products").get(10L).getString("display_name"));
+    }
+
+    @Test
+    public void bulkWriteWithOneWriteDatePagesById() throws Exception {
+        List<JSONObject> products = records.get("product.product");
+        for (int id = 1; id <= 600; id++) {
+            products.add(productRecord(id, T0, "Item " + id, "9" + id, 1.5, 1, 1000 + id));
+        }
+
+        JSONObject summary = sync.run();
+        assertEquals(600, fetched(summary, "products"));
+        // A full page, then the rest past the last id of the same second
+        assertEquals(2, (int) searchReads.get("product.product"));
+        assertEquals(600, store.rows("products").size());
+        assertEquals(600, store.watermark(CatalogStore.PRODUCTS).lastId);
+    }
+
+    @Test
+    public void failedPageResumesFromTheWatermark() throws Exception {
+        List<JSONObject> products = records.get("product.product");
+        for (int id = 1; id <= 600; id++) {
+            products.add(productRecord(id, T0, "Item " + id, "9" + id, 1.5, 1, 1000 + id));
+        }
+        failSearchReadsAfter = 2; // categories and the first page of products
+
+        try {
+            sync.run();
+            fail("Second page should have failed");
+        } catch (IOException expected) {
+            // The first page is committed with its watermark
+        }
+        assertEquals(500, store.rows("products").size());
+        assertEquals(500, store.watermark(CatalogStore.PRODUCTS).lastId);
+        assertFalse(store.synced.contains("products"));
+
+        failSearchReadsAfter = -1;
+        JSONObject summary = sync.run();
+        assertEquals(100, fetched(summary, "products"));
+        // Picked up past id 500 within the same write_date
+        assertTrue(lastDomains.get("product.product").toString().contains("\"id\",\">\",500"));
+        assertEquals(600, store.rows("products").size());
+        assertEquals(CatalogStore.TABLES.length, store.synced.size());
+    }
+
+    @Test
+    public void recordsGoneFromTheServerArePruned() throws Exception {
+        seedCatalog();
+        sync.run();
+
+        // Archived product and customer: no longer returned, write_date unchanged
+        records.get("product.product").remove(product(11));
+        records.get("res.partner").clear();
+        JSONObject summary = sync.run();
+
+        assertEquals(1, summary.getJSONObject("products").getInt("removed"));
+        assertEquals(1, summary.getJSONObject("customers").getInt("removed"));
+        assertFalse(store.rows("products").containsKey(11L));
+        assertTrue(store.rows("products").containsKey(10L));
+        assertTrue(store.rows("customers").isEmpty());
+    }
+
+    @Test
+    public void odooErrorIsThrownWithItsMessage() throws Exception {
+        JSONObject expired = new JSONObject().put("jsonrpc", "2.0")
+                .put("error", new JSONObject().put("message", "Odoo Session Expired")
+                        .put("data", new JSONObject().put("name", "odoo.http.SessionExpiredException")));
+        server.removeContext("/web/dataset/call_kw/");
+        server.createContext("/web/dataset/call_kw/", exchange -> reply(exchange, expired));
+        try {
+            sync.run();
+            fail("Expected an OdooException");
+        } catch (OdooRpc.OdooException e) {
+            assertTrue(e.sessionExpired);
+            assertEquals("Session expired", e.getMessage());
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Mock Odoo
+    // -------------------------------------------------------------------------
+
+    /** search_read honours the watermark part of the domain; search returns every id. */
+    private void callKw(HttpExchange exchange) throws IOException {
+        try {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            String model = path[path.length - 2];
+            String method = path[path.length - 1];
+            JSONObject params = new JSONObject(readText(exchange.getRequestBody())).getJSONObject("params");
+            List<JSONObject> rows = new ArrayList<>(records.get(model));
+            rows.sort((a, b) -> {
+                int byDate = a.optString("write_date").compareTo(b.optString("write_date"));
+                return byDate != 0 ? byDate : Long.compare(a.optLong("id"), b.optLong("id"));
+            });
+
+            JSONArray result = new JSONArray();
+            if ("search".equals(method)) {
+                for (JSONObject row : rows) {
+                    result.put(row.getLong("id"));
+                }
+            } else if ("search_read".equals(method)) {
+                searchReads.merge(model, 1, Integer::sum);
+                int total = 0;
+                for (int count : searchReads.values()) {
+                    total += count;
+                }
+                if (failSearchReadsAfter >= 0 && total > failSearchReadsAfter) {
+                    exchange.sendResponseHeaders(502, -1);
+                    exchange.close();
+                    return;
+                }
+                JSONObject kwargs = params.getJSONObject("kwargs");
+                JSONArray domain = kwargs.getJSONArray("domain");
+                lastDomains.put(model, domain);
+                String after = null;
+                long afterId = 0;
+                for (int i = 0; i < domain.length(); i++) {
+                    JSONArray leaf = domain.optJSONArray(i);
+                    if (leaf != null && ">".equals(leaf.getString(1))) {
+                        if ("write_date".equals(leaf.getString(0))) {
+                            after = leaf.getString(2);
+                        } else if ("id".equals(leaf.getString(0))) {
+                            afterId = leaf.getLong(2);
+                        }
+                    }
+                }
+                int limit = kwargs.getInt("limit");
+                for (JSONObject row : rows) {
+                    int byDate = after == null ? 1 : row.getString("write_date").compareTo(after);
+                    if ((byDate > 0 || (byDate == 0 && row.getLong("id") > afterId)) && result.length() < limit) {
+                        result.put(row);
+                    }
+                }
+            }
+            reply(exchange, new JSONObject().put("jsonrpc", "2.0").put("result", result));
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void reply(HttpExchange exchange, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        exchange.close();
+    }
+
+    /** Two categories, a drink and a fruit, and one customer, all written at T0. */
+    private void seedCatalog() throws JSONException {
+        records.get("product.category").add(new JSONObject().put("id", 1).put("write_date", T0)
+                .put("complete_name", "All / Drinks").put("parent_path", "1/"));
+        records.get("product.category").add(new JSONObject().put("id", 2).put("write_date", T0)
+                .put("complete_name", "All / Fruit").put("parent_path", "2/"));
+        records.get("product.product").add(productRecord(10, T0, "Orange Juice 1L", "5000001", 100.0, 1, 20));
+        records.get("product.product").add(productRecord(11, T0, "Apples 1kg", "5000002", 50.0, 2, 21));
+        records.get("res.partner").add(new JSONObject().put("id", 7).put("write_date", T0)
+                .put("name", "Harbour Deli").put("ref", "C007").put("phone", false).put("mobile", false)
+                .put("email", false).put("street", false).put("city", "Izmir").put("vat", false)
+                .put("property_product_pricelist", pair(1, "Retail")));
+    }
+
+    private JSONObject product(long id) {
+        for (JSONObject row : records.get("product.product")) {
+            if (row.optLong("id") == id) {
+                return row;
+            }
+        }
+        throw new IllegalArgumentException("No product " + id);
+    }
+
+    private static JSONObject productRecord(long id, String writeDate, String name, String barcode,
+                                            double price, long categId, long tmplId) throws JSONException {
+        return new JSONObject().put("id", id).put("write_date", writeDate)
+                .put("display_name", name).put("default_code", false).put("barcode", barcode)
+                .put("lst_price", price).put("uom_id", pair(1, "Units"))
+                .put("categ_id", pair(categId, "Category " + categId))
+                .put("product_tmpl_id", pair(tmplId, name));
+    }
+
+    private static JSONArray pair(long id, String name) {
+        return new JSONArray().put(id).put(name);
+    }
+
+    private static int fetched(JSONObject summary, String table) throws JSONException {
+        return summary.getJSONObject(table).getInt("fetched");
+    }
+
+    private static String readText(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /** The rows by table and id, and the watermarks, as {@link CatalogStore} keeps them. */
+    private static final class MemoryStore implements CatalogSync.Store {
+        private final Map<String, Map<Long, JSONObject>> tables = new HashMap<>();
+        private final Map<String, CatalogStore.Watermark> watermarks = new HashMap<>();
+        final Set<String> synced = new HashSet<>();
+
+        Map<Long, JSONObject> rows(String table) {
+            return tables.computeIfAbsent(table, name -> new TreeMap<>());
+        }
+
+        @Override
+        public CatalogStore.Watermark watermark(CatalogStore.Table table) {
+            CatalogStore.Watermark watermark = watermarks.get(table.name);
+            return watermark != null ? watermark : new CatalogStore.Watermark(null, 0, 0);
+        }
+
+        @Override
+        public void apply(CatalogStore.Table table, JSONArray rows, CatalogStore.Watermark next)
+                throws JSONException {
+            for (int i = 0; i < rows.length(); i++) {
+                JSONObject row = rows.getJSONObject(i);
+                rows(table.name).put(row.getLong("id"), row);
+            }
+            watermarks.put(table.name, next);
+        }
+
+        @Override
+        public int prune(CatalogStore.Table table, Set<Long> serverIds) {
+            Map<Long, JSONObject> rows = rows(table.name);
+            int before = rows.size();
+            rows.keySet().retainAll(serverIds);
+            return before - rows.size();
+        }
+
+        @Override
+        public void touch(CatalogStore.Table table) {
+            synced.add(table.name);
+        }
+    }
+}
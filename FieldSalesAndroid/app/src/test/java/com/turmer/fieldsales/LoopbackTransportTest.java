@@ -0,0 +1,380 @@
+package com.turmer.fieldsales;
+
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round-trips through {@link LoopbackTransport}: DLE EOT status requests
+ * answered on the channel, and whole jobs through a {@link PrinterSession}
+ * (connect, status check, pacing, metrics, cancel) with no printer.
+ */
+public class LoopbackTransportTest {
+
+    private static final byte DLE = 0x10;
+    private static final byte EOT = 0x04;
+    private static final int READY = 0x12;
+
+    private final MemoryPrefs prefs = new MemoryPrefs();
+    private final Map<Long, CountDownLatch> finished = new ConcurrentHashMap<>();
+    private PrinterSession session;
+
+    @Before
+    public void setUp() {
+        BridgeMetrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Channel
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void statusRequestsAreAnsweredReady() throws Exception {
+        try (PrinterTransport.Channel channel = new LoopbackTransport(0).connect()) {
+            channel.out().write(new byte[]{DLE, EOT, 1, DLE, EOT, 4});
+            assertEquals(READY, channel.in().read());
+            assertEquals(READY, channel.in().read());
+            assertTrue(PrinterStatus.isStatusByte(READY));
+            assertTrue(PrinterStatus.UNKNOWN.withReply(1, READY).isReady());
+        }
+    }
+
+    @Test
+    public void requestSplitAcrossWritesIsAnswered() throws Exception {
+        try (PrinterTransport.Channel channel = new LoopbackTransport(0).connect()) {
+            OutputStream out = channel.out();
+            out.write(DLE);
+            out.write(new byte[]{EOT});
+            out.write(new byte[]{2, 'x'});
+            assertEquals(1, channel.in().available());
+            assertEquals(READY, channel.in().read());
+        }
+    }
+
+    @Test
+    public void jobBytesGetNoReply() throws Exception {
+        try (PrinterTransport.Channel channel = new LoopbackTransport(0).connect()) {
+            // Text, DLE DC4 (not a status request) and DLE EOT with n out of range
+            channel.out().write("Hello\n".getBytes(StandardCharsets.US_ASCII));
+            channel.out().write(new byte[]{DLE, 0x14, 1, 1, 1, DLE, EOT, 5, DLE, 'a'});
+            assertEquals(0, channel.in().available());
+        }
+    }
+
+    @Test
+    public void closedChannelFailsReadsAndWrites() throws Exception {
+        PrinterTransport.Channel channel = new LoopbackTransport(0).connect();
+        channel.close();
+        assertTrue(!channel.isConnected());
+        try {
+            channel.out().write(1);
+            fail("Write after close");
+        } catch (IOException expected) {
+            // As a dropped link would
+        }
+        try {
+            channel.in().read();
+            fail("Read after close");
+        } catch (IOException expected) {
+            // Unblocks the status monitor
+        }
+    }
+
+    @Test
+    public void rateLimitedWritesBlock() throws Exception {
+        try (PrinterTransport.Channel channel = new LoopbackTransport(10000).connect()) {
+            byte[] chunk = new byte[1000];
+            long start = System.nanoTime();
+            for (int i = 0; i < 3; i++) {
+                channel.out().write(chunk);
+            }
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            assertTrue("took " + elapsedMs + " ms", elapsedMs >= 299);
+        }
+    }
+
+    @Test
+    public void addressesNormalize() {
+        assertEquals("loopback", LoopbackTransport.normalize("loopback"));
+        assertEquals("loopback", LoopbackTransport.normalize("loopback:0"));
+        assertEquals("loopback:11000", LoopbackTransport.normalize("loopback:11000"));
+        assertNull(LoopbackTransport.normalize("loopback:-5"));
+        assertNull(LoopbackTransport.normalize("loopback:fast"));
+        assertEquals(PrinterProfile.NETWORK, LoopbackTransport.fromAddress("loopback").defaultProfile());
+        assertEquals(PrinterProfile.DEFAULT, LoopbackTransport.fromAddress("loopback:11000").defaultProfile());
+    }
+
+    // -------------------------------------------------------------------------
+    // Session
+    // -------------------------------------------------------------------------
+
+    @Test
+    public void jobsRoundTripThroughASession() throws Exception {
+        session = newSession(new LoopbackTransport(0));
+
+        byte[] receipt = "Receipt\n\n\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] cut = {0x1D, 0x56, 0x42, 0x00};
+        PrintJob rendered = enqueue(new PrintJob(PrintQueue.nextId(), PrintJob.Kind.RAW,
+                job -> Arrays.asList(receipt, cut)));
+        byte[] payload = new byte[20000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        byte[] base64 = Base64.getEncoder().encode(payload);
+        PrintJob streamed = enqueue(new PrintJob(PrintQueue.nextId(), PrintJob.Kind.BASE64,
+                new PrintJob.Base64Source(() -> new ByteArrayInputStream(base64))));
+
+        awaitFinished(rendered);
+        awaitFinished(streamed);
+        assertEquals(PrintJob.State.DONE, rendered.state);
+        assertEquals(receipt.length + cut.length, rendered.bytesWritten);
+        assertEquals(PrintJob.State.DONE, streamed.state);
+        assertEquals(payload.length, streamed.totalBytes);
+        assertEquals(payload.length, streamed.bytesWritten);
+
+        // The status monitor gets its replies over the same channel
+        assertTrue(session.connection.isConnected());
+        awaitTrue("status reply", () -> session.connection.status().known);
+        assertTrue(session.connection.status().isReady());
+
+        JSONObject write = BridgeMetrics.metric("loopback.write").toJson();
+        assertEquals(2, write.getLong("calls"));
+        assertEquals(0, write.getLong("errors"));
+        assertEquals(receipt.length + cut.length + payload.length, write.getLong("bytes"));
+
+        // Once the queue runs dry the learned pacing is kept for next time
+        awaitTrue("saved profile", () -> prefs.getString("loopback", null) != null);
+    }
+
+    @Test
+    public void cancelStopsARunningJob() throws Exception {
+        session = newSession(new LoopbackTransport(4000));
+        byte[] big = new byte[40000];
+        PrintJob job = enqueue(new PrintJob(PrintQueue.nextId(), PrintJob.Kind.RAW,
+                j -> Collections.singletonList(big)));
+
+        awaitTrue("first chunk", () -> job.bytesWritten > 0);
+        assertTrue(session.queue.cancel(job.id));
+        awaitFinished(job);
+
+        assertEquals(PrintJob.State.CANCELLED, job.state);
+        assertTrue(job.bytesWritten > 0 && job.bytesWritten < big.length);
+    }
+
+    @Test
+    public void closedSessionRefusesJobs() throws Exception {
+        session = newSession(new LoopbackTransport(0));
+        session.close();
+        PrintJob job = new PrintJob(PrintQueue.nextId(), PrintJob.Kind.RAW,
+                j -> Collections.singletonList(new byte[]{'x'}));
+        finished.put(job.id, new CountDownLatch(1));
+
+        assertTrue(!session.queue.offer(job));
+        assertEquals(PrintJob.State.QUEUED, job.state);
+        assertTrue(!session.queue.contains(job.id));
+    }
+
+    private PrinterSession newSession(PrinterTransport transport) {
+        PrinterProfileStore profiles = new PrinterProfileStore(new ContextWrapper(null) {
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                return prefs;
+            }
+        });
+        PrinterConnection.Listener connectionListener = new PrinterConnection.Listener() {
+            @Override
+            public void onConnectionStateChanged(PrinterConnection connection) {
+            }
+
+            @Override
+            public void onPrinterStatusChanged(PrinterConnection connection, PrinterStatus status) {
+            }
+        };
+        PrintQueue.Listener jobListener = new PrintQueue.Listener() {
+            @Override
+            public void onJobStateChanged(PrintJob job) {
+                PrintJob.State state = job.state;
+                if (state == PrintJob.State.DONE || state == PrintJob.State.FAILED
+                        || state == PrintJob.State.CANCELLED) {
+                    finished.get(job.id).countDown();
+                }
+            }
+
+            @Override
+            public void onJobProgress(PrintJob job) {
+            }
+        };
+        return new PrinterSession(transport, PrinterTransport.LOOPBACK, profiles, connectionListener, jobListener);
+    }
+
+    private PrintJob enqueue(PrintJob job) {
+        finished.put(job.id, new CountDownLatch(1));
+        return session.queue.enqueue(job);
+    }
+
+    private void awaitFinished(PrintJob job) throws InterruptedException {
+        assertTrue("Job " + job.id + " still " + job.state, finished.get(job.id).await(10, TimeUnit.SECONDS));
+    }
+
+    private static void awaitTrue(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for " + what);
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /** Just enough SharedPreferences for {@link PrinterProfileStore}. */
+    private static final class MemoryPrefs implements SharedPreferences {
+        private final Map<String, Object> values = new ConcurrentHashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            Object value = values.get(key);
+            return value != null ? (String) value : defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            Map<String, Object> changes = new HashMap<>();
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> values) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    changes.put(key, changes);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public boolean commit() {
+                    apply();
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        if (change.getValue() == changes) {
+                            values.remove(change.getKey());
+                        } else {
+                            values.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
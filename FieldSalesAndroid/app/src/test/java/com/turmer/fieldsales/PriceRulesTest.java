@@ -0,0 +1,149 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link PriceRules} over priceRules rows as {@link CatalogStore} reads
+ * them: Odoo's rule order, dates and minimum quantities, and formulas on
+ * other pricelists.
+ */
+public class PriceRulesTest {
+
+    private static final String NOW = "2024-05-02 09:30:00";
+
+    // Product 10 is in All / Drinks, product 11 in All / Fruit
+    private static final String DRINKS = "1/";
+    private static final String FRUIT = "2/";
+
+    private final Map<Long, List<JSONObject>> pricelists = new HashMap<>();
+
+    @Test
+    public void noRuleMeansListPrice() throws Exception {
+        JSONObject price = price(10, DRINKS, 100.0, 1, 1);
+        assertEquals(100.0, price.getDouble("price"), 1e-9);
+        assertFalse(price.has("ruleId"));
+        assertFalse(price.has("reason"));
+    }
+
+    @Test
+    public void pricesFollowOdooRuleOrder() throws Exception {
+        // 10% off the Drinks category, 80.00 for ten or more of product 10
+        rule(1, 1, "2_product_category").put("categId", 1).put("categPath", DRINKS).put("categName", "All / Drinks")
+                .put("compute", "percentage").put("percent", 10.0);
+        rule(2, 1, "0_product_variant").put("productId", 10).put("minQty", 10.0).put("fixedPrice", 80.0);
+
+        JSONObject one = price(10, DRINKS, 100.0, 1, 1);
+        assertEquals(100.0, one.getDouble("listPrice"), 1e-9);
+        assertEquals(90.0, one.getDouble("price"), 1e-9);
+        assertEquals(1, one.getLong("ruleId"));
+
+        JSONObject twelve = price(10, DRINKS, 100.0, 1, 12);
+        assertEquals(80.0, twelve.getDouble("price"), 1e-9);
+        assertEquals(2, twelve.getLong("ruleId"));
+
+        // Outside Drinks: list price, no rule
+        JSONObject other = price(11, FRUIT, 50.0, 1, 1);
+        assertEquals(50.0, other.getDouble("price"), 1e-9);
+        assertFalse(other.has("ruleId"));
+    }
+
+    @Test
+    public void largerMinimumQuantityThenDeeperCategoryThenNewerRuleWins() throws Exception {
+        rule(1, 1, "2_product_category").put("categId", 1).put("categPath", DRINKS).put("categName", "All / Drinks")
+                .put("fixedPrice", 90.0);
+        rule(2, 1, "2_product_category").put("categId", 4).put("categPath", "1/4/")
+                .put("categName", "All / Drinks / Juice").put("fixedPrice", 85.0);
+        rule(3, 1, "2_product_category").put("categId", 1).put("categPath", DRINKS).put("categName", "All / Drinks")
+                .put("minQty", 6.0).put("fixedPrice", 70.0);
+        rule(4, 1, "3_global").put("minQty", 100.0).put("fixedPrice", 1.0);
+
+        assertEquals(2, price(10, "1/4/", 100.0, 1, 1).getLong("ruleId"));
+        assertEquals(1, price(10, DRINKS, 100.0, 1, 1).getLong("ruleId"));
+        assertEquals(3, price(10, "1/4/", 100.0, 1, 6).getLong("ruleId"));
+        // A narrower scope beats any quantity on a wider one
+        assertEquals(3, price(10, "1/4/", 100.0, 1, 100).getLong("ruleId"));
+
+        rule(5, 1, "2_product_category").put("categId", 1).put("categPath", DRINKS).put("categName", "All / Drinks")
+                .put("fixedPrice", 95.0);
+        assertEquals(5, price(10, DRINKS, 100.0, 1, 1).getLong("ruleId"));
+    }
+
+    @Test
+    public void rulesOutsideTheirDatesAreSkipped() throws Exception {
+        rule(1, 1, "1_product").put("tmplId", 20).put("fixedPrice", 60.0);
+        // An expired variant rule would otherwise win for any quantity
+        rule(2, 1, "0_product_variant").put("productId", 10).put("fixedPrice", 1.0).put("dateEnd", "2000-01-31");
+        rule(3, 1, "0_product_variant").put("productId", 10).put("fixedPrice", 2.0).put("dateStart", "2024-06-01");
+
+        assertEquals(1, price(10, DRINKS, 100.0, 1, 1).getLong("ruleId"));
+
+        // A date-only bound covers the whole day
+        rule(4, 1, "0_product_variant").put("productId", 10).put("fixedPrice", 3.0)
+                .put("dateStart", "2024-05-02").put("dateEnd", "2024-05-02");
+        assertEquals(3.0, price(10, DRINKS, 100.0, 1, 1).getDouble("price"), 1e-9);
+    }
+
+    @Test
+    public void formulaOnAnotherPricelistRoundsThenAddsSurcharge() throws Exception {
+        rule(1, 1, "2_product_category").put("categId", 1).put("categPath", DRINKS).put("categName", "All / Drinks")
+                .put("compute", "percentage").put("percent", 10.0);
+        rule(4, 2, "3_global").put("compute", "formula").put("base", "pricelist").put("basePricelistId", 1)
+                .put("discount", 5.0).put("rounding", 1.0).put("surcharge", -0.01);
+
+        // 90.00 on pricelist 1, less 5% = 85.50, rounded to 86, then -0.01
+        JSONObject price = price(10, DRINKS, 100.0, 2, 1);
+        assertEquals(85.99, price.getDouble("price"), 1e-9);
+        assertEquals(4, price.getLong("ruleId"));
+    }
+
+    @Test
+    public void marginsBoundTheFormula() throws Exception {
+        rule(1, 1, "3_global").put("compute", "formula").put("discount", 50.0).put("minMargin", -20.0);
+        rule(2, 2, "3_global").put("compute", "formula").put("surcharge", 30.0).put("maxMargin", 10.0);
+
+        assertEquals(80.0, price(10, DRINKS, 100.0, 1, 1).getDouble("price"), 1e-9);
+        assertEquals(110.0, price(10, DRINKS, 100.0, 2, 1).getDouble("price"), 1e-9);
+    }
+
+    @Test
+    public void costBasedRuleLeavesThePriceToTheServer() throws Exception {
+        rule(5, 3, "3_global").put("compute", "formula").put("base", "standard_price").put("surcharge", 2.0);
+
+        JSONObject price = price(10, DRINKS, 100.0, 3, 1);
+        assertTrue(price.isNull("price"));
+        assertEquals(5, price.getLong("ruleId"));
+        assertEquals("Rule 5 is based on standard_price", price.getString("reason"));
+    }
+
+    private JSONObject price(long productId, String categPath, double listPrice, long pricelistId, double qty)
+            throws JSONException {
+        return PriceRules.price(id -> pricelists.getOrDefault(id, Collections.emptyList()),
+                productId, productId + 10, categPath, listPrice, pricelistId, qty, NOW);
+    }
+
+    /** A priceRules row with Odoo's defaults: fixed 0.00, no dates, no minimum quantity. */
+    private JSONObject rule(long id, long pricelistId, String appliedOn) throws JSONException {
+        JSONObject rule = new JSONObject().put("id", id).put("pricelistId", pricelistId)
+                .put("appliedOn", appliedOn).put("productId", JSONObject.NULL).put("tmplId", JSONObject.NULL)
+                .put("categId", JSONObject.NULL).put("minQty", JSONObject.NULL).put("compute", "fixed")
+                .put("fixedPrice", 0.0).put("percent", 0.0).put("base", "list_price")
+                .put("basePricelistId", JSONObject.NULL).put("discount", 0.0).put("surcharge", 0.0)
+                .put("rounding", 0.0).put("minMargin", 0.0).put("maxMargin", 0.0)
+                .put("dateStart", JSONObject.NULL).put("dateEnd", JSONObject.NULL)
+                .put("categPath", JSONObject.NULL).put("categName", JSONObject.NULL);
+        pricelists.computeIfAbsent(pricelistId, list -> new ArrayList<>()).add(rule);
+        return rule;
+    }
+}
@@ -0,0 +1,82 @@
+package com.turmer.fieldsales;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a print payload the way the bridge receives it: a base64 string
+ * from JS, wrapped with MIME line breaks as some pages send it.
+ *
+ * {@link #streaming} runs the writer's code: a BASE64 {@link PrintJob} over
+ * a {@link PrintJob.Base64Source}, read through openStream() one pooled,
+ * chunk-sized block at a time as PrinterSession.writeJob() does (the text
+ * comes from memory here, from the spool file in the app).
+ * {@link #decodedLength} is the job's byteLength(), the scan the writer
+ * makes first for progress. {@link #wholeArray} is the old
+ * decode-everything-first path, kept as the baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Base64DecodeBenchmark {
+
+    /** Decoded size: a short receipt, a long receipt, a logo-heavy job. */
+    @Param({"2048", "32768", "262144"})
+    public int bytes;
+
+    private byte[] payload;
+    private PrintJob job;
+
+    @Setup
+    public void setUp() {
+        byte[] data = new byte[bytes];
+        new Random(42).nextBytes(data);
+        payload = Base64.getMimeEncoder().encode(data);
+        job = new PrintJob(1, PrintJob.Kind.BASE64,
+                new PrintJob.Base64Source(() -> new ByteArrayInputStream(payload)));
+    }
+
+    @Benchmark
+    public void streaming(Blackhole bh) throws IOException {
+        byte[] buffer = BufferPool.acquire();
+        int chunk = Math.min(PrinterProfile.DEFAULT.chunkSize, buffer.length);
+        try (InputStream in = job.openStream()) {
+            int n;
+            while ((n = in.read(buffer, 0, chunk)) > 0) {
+                bh.consume(buffer[n - 1]);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    @Benchmark
+    public byte[] wholeArray() {
+        return Base64.getMimeDecoder().decode(payload);
+    }
+
+    @Benchmark
+    public long decodedLength() throws IOException {
+        return job.byteLength();
+    }
+}
@@ -0,0 +1,138 @@
+package com.turmer.fieldsales;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producing ESC/POS bytes on the device: a text receipt from the JSON model
+ * ({@link ReceiptRenderer}) and a 58 mm wide logo / signature image
+ * ({@link RasterEncoder}) with each dither mode, banded and as one block.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscPosBenchmark {
+
+    private static final int IMAGE_WIDTH = 384;
+    private static final int IMAGE_HEIGHT = 240;
+
+    @State(Scope.Benchmark)
+    public static class Receipt {
+        @Param({"10", "60"})
+        public int lines;
+
+        String json;
+
+        @Setup
+        public void setUp() throws JSONException {
+            json = receipt(lines).toString();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Image {
+        @Param({"FLOYD_STEINBERG", "ORDERED", "THRESHOLD"})
+        public String dither;
+
+        int[] argb;
+        RasterEncoder.Options banded;
+        RasterEncoder.Options plain;
+
+        @Setup
+        public void setUp() {
+            argb = image(IMAGE_WIDTH, IMAGE_HEIGHT);
+            banded = new RasterEncoder.Options();
+            banded.dither = RasterEncoder.Dither.valueOf(dither);
+            plain = new RasterEncoder.Options();
+            plain.dither = banded.dither;
+            plain.banded = false;
+        }
+    }
+
+    @Benchmark
+    public byte[] renderReceipt(Receipt receipt) throws JSONException {
+        return ReceiptRenderer.render(receipt.json);
+    }
+
+    @Benchmark
+    public byte[] encodeImageBanded(Image image) {
+        return RasterEncoder.encode(image.argb, IMAGE_WIDTH, IMAGE_HEIGHT, image.banded).bytes;
+    }
+
+    @Benchmark
+    public byte[] encodeImagePlain(Image image) {
+        return RasterEncoder.encode(image.argb, IMAGE_WIDTH, IMAGE_HEIGHT, image.plain).bytes;
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    /** A van-sales invoice: header, item table with long names, totals, taxes. */
+    private static JSONObject receipt(int lines) throws JSONException {
+        JSONArray items = new JSONArray();
+        for (int i = 0; i < lines; i++) {
+            items.put(new JSONObject()
+                    .put("name", "Mineral water 330ml x 24 pack, item " + i)
+                    .put("qty", String.valueOf(1 + i % 5))
+                    .put("price", "12.50")
+                    .put("total", String.valueOf(12.5 * (1 + i % 5))));
+        }
+        return new JSONObject()
+                .put("columns", 48)
+                .put("header", new JSONArray()
+                        .put(new JSONObject().put("text", "TURMER TRADING").put("align", "center").put("bold", true).put("size", 2))
+                        .put("Invoice INV/2024/00042")
+                        .put(new JSONObject().put("separator", "-")))
+                .put("layout", new JSONArray()
+                        .put(new JSONObject().put("field", "name").put("width", 0).put("label", "Item"))
+                        .put(new JSONObject().put("field", "qty").put("width", 4).put("align", "right").put("label", "Qty"))
+                        .put(new JSONObject().put("field", "price").put("width", 8).put("align", "right").put("label", "Price"))
+                        .put(new JSONObject().put("field", "total").put("width", 9).put("align", "right").put("label", "Total")))
+                .put("showColumnHeaders", true)
+                .put("lines", items)
+                .put("totals", new JSONArray()
+                        .put(new JSONObject().put("label", "Total").put("value", "1234.50").put("bold", true)))
+                .put("taxes", new JSONArray()
+                        .put(new JSONObject().put("label", "VAT 15%").put("value", "161.02")))
+                .put("footer", new JSONArray().put("Thank you"))
+                .put("feed", 3)
+                .put("cut", true);
+    }
+
+    /** Gradient with a few solid bars and blank rows, like a logo over white paper. */
+    private static int[] image(int width, int height) {
+        int[] argb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            boolean blank = y % 60 >= 40;
+            for (int x = 0; x < width; x++) {
+                int gray;
+                if (blank) {
+                    gray = 255;
+                } else if (x % 96 < 16) {
+                    gray = 0;
+                } else {
+                    gray = (x * 255 / width + y) & 0xFF;
+                }
+                argb[y * width + x] = 0xFF000000 | gray << 16 | gray << 8 | gray;
+            }
+        }
+        return argb;
+    }
+}
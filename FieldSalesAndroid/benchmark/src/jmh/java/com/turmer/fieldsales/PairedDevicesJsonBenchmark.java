@@ -0,0 +1,86 @@
+package com.turmer.fieldsales;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the reply of BluetoothPrintBridge.listPairedDevices(), which the
+ * page calls on every settings / printer picker open.
+ * {@link #listPairedDevices} runs the registry's own code,
+ * DeviceRanking.pairedJson(): ranking (preferred, printers, fresh signal,
+ * name) and JSON, on a copy of the bonded set as PrinterDeviceRegistry
+ * makes one. The registry caches the result and only pays this after a
+ * device is paired or unpaired, a scan sees a bonded one, or a signal
+ * strength it ranked by goes stale; {@link #cached} is its cache check,
+ * what every other call costs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PairedDevicesJsonBenchmark {
+
+    /** Bonded devices: a printer and a phone, a busy depot handset. */
+    @Param({"2", "12", "40"})
+    public int devices;
+
+    private List<DeviceRanking.Device> bonded;
+    private List<String> preferred;
+    private String pairedJson;
+    private String pairedJsonKey;
+    private long pairedJsonStaleAt;
+
+    @Setup
+    public void setUp() {
+        bonded = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < devices; i++) {
+            String address = String.format(Locale.US, "00:1B:%02X:4C:%02X:%02X", i, i * 7 & 0xFF, i * 13 & 0xFF);
+            DeviceRanking.Device device = new DeviceRanking.Device(address);
+            // Some devices report no name until they have been seen once
+            device.name = i % 5 == 4 ? null : "CT32-Printer-" + i;
+            device.type = 1 + i % 3;
+            device.majorClass = i % 2 == 0 ? DeviceRanking.MAJOR_IMAGING : DeviceRanking.MAJOR_UNCATEGORIZED;
+            device.bonded = true;
+            if (i % 3 == 0) {
+                // Seen in a recent scan, so signal strength counts
+                device.rssi = -40 - i;
+                device.seenAt = now;
+            }
+            bonded.add(device);
+        }
+        preferred = Collections.singletonList(bonded.get(0).address);
+        pairedJson = listPairedDevices();
+        pairedJsonKey = String.valueOf(preferred);
+        pairedJsonStaleAt = now + DeviceRanking.FRESH_MS;
+    }
+
+    @Benchmark
+    public String listPairedDevices() {
+        return DeviceRanking.pairedJson(new ArrayList<>(bonded), preferred);
+    }
+
+    @Benchmark
+    public String cached() {
+        String key = String.valueOf(preferred);
+        return pairedJson != null && key.equals(pairedJsonKey) && System.currentTimeMillis() < pairedJsonStaleAt
+                ? pairedJson : null;
+    }
+}
@@ -0,0 +1,85 @@
+package com.turmer.fieldsales;
+
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stand-in for a Bluetooth SPP socket stream, so write paths can be timed
+ * on a plain JVM.
+ *
+ * Bytes leave at a fixed link rate and each flush() costs one round-trip
+ * latency, which is how RFCOMM behaves once the printer stops granting
+ * credits: write() blocks until the data is on the air. Like the socket, it
+ * accepts writes at full speed until its buffer (the RFCOMM window) is full.
+ * A rate of 0 makes the sink free, leaving only the CPU cost of the caller.
+ *
+ * Time is kept on a virtual wire clock and the caller is parked until the
+ * wire catches up, so the cost per byte stays right even for tiny writes.
+ */
+final class SimulatedSppOutputStream extends OutputStream {
+
+    private final long nanosPerByte;
+    private final long flushNanos;
+    private final long bufferNanos;
+    // When the last byte written so far will have left the device
+    private long wireFreeAt;
+    private long bytesWritten;
+
+    /**
+     * @param bytesPerSecond link throughput; 0 for an infinitely fast sink
+     * @param flushLatencyMicros cost of each flush(), e.g. an RFCOMM round trip
+     * @param bufferBytes bytes accepted ahead of the wire before write() blocks
+     */
+    SimulatedSppOutputStream(long bytesPerSecond, long flushLatencyMicros, int bufferBytes) {
+        this.nanosPerByte = bytesPerSecond > 0 ? 1_000_000_000L / bytesPerSecond : 0;
+        this.flushNanos = flushLatencyMicros * 1000;
+        this.bufferNanos = bufferBytes * nanosPerByte;
+    }
+
+    long bytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void write(int b) {
+        send(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        send(len);
+    }
+
+    @Override
+    public void flush() {
+        if (flushNanos > 0) {
+            // The round trip starts once everything queued is on the air
+            waitUntil(Math.max(wireFreeAt, System.nanoTime()) + flushNanos);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private void send(int len) {
+        bytesWritten += len;
+        if (nanosPerByte == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        wireFreeAt = Math.max(wireFreeAt, now) + len * nanosPerByte;
+        // Block only for what does not fit in the buffer
+        waitUntil(wireFreeAt - bufferNanos);
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.turmer.fieldsales;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One print job from base64 string to the (simulated) printer, as
+ * PrinterSession.writeJob does it: decode a pacer-sized block into a pooled
+ * buffer, hand it to {@link AdaptivePacer#writeChunk}, repeat.
+ *
+ * The link is a {@link SimulatedSppOutputStream}; "free" shows the CPU cost
+ * alone, the others approximate a good and a poor Bluetooth link. Each job
+ * starts from a fresh pacer with the default profile, like the first job
+ * on a new connection. {@link #fixedPacing} is the old fixed 512-byte /
+ * 50 ms loop for comparison. The score is jobs per ms; the "bytes"
+ * counter is the achieved throughput in bytes per ms (roughly KB/s).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@State(Scope.Thread)
+public class SppWriteBenchmark {
+
+    /** bytesPerSecond/flushLatencyMicros/bufferBytes of the simulated link. */
+    @Param({"free", "90000/2000/4096", "11000/15000/1024"})
+    public String link;
+
+    @Param({"4096", "32768"})
+    public int jobBytes;
+
+    private byte[] payload;
+    private long bytesPerSecond;
+    private long flushLatencyMicros;
+    private int bufferBytes;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Sent {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        byte[] data = new byte[jobBytes];
+        new Random(42).nextBytes(data);
+        payload = Base64.getEncoder().encode(data);
+        if (!"free".equals(link)) {
+            String[] parts = link.split("/");
+            bytesPerSecond = Long.parseLong(parts[0]);
+            flushLatencyMicros = Long.parseLong(parts[1]);
+            bufferBytes = Integer.parseInt(parts[2]);
+        }
+    }
+
+    @Benchmark
+    public long adaptivePacing(Sent sent) throws IOException, InterruptedException {
+        SimulatedSppOutputStream out = newLink();
+        AdaptivePacer pacer = new AdaptivePacer(PrinterProfile.DEFAULT);
+        byte[] buffer = BufferPool.acquire();
+        try {
+            InputStream in = new Base64DecodingInputStream(new ByteArrayInputStream(payload));
+            int len;
+            while ((len = readFully(in, buffer, Math.min(pacer.chunkSize(), buffer.length))) > 0) {
+                pacer.writeChunk(out, buffer, 0, len);
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+        sent.bytes += out.bytesWritten();
+        return out.bytesWritten();
+    }
+
+    @Benchmark
+    public long fixedPacing(Sent sent) throws IOException, InterruptedException {
+        SimulatedSppOutputStream out = newLink();
+        byte[] data = Base64.getDecoder().decode(payload);
+        for (int off = 0; off < data.length; off += 512) {
+            out.write(data, off, Math.min(512, data.length - off));
+            out.flush();
+            Thread.sleep(50);
+        }
+        sent.bytes += out.bytesWritten();
+        return out.bytesWritten();
+    }
+
+    // -------------------------------------------------------------------------
+    // Private helpers
+    // -------------------------------------------------------------------------
+
+    private SimulatedSppOutputStream newLink() {
+        return new SimulatedSppOutputStream(bytesPerSecond, flushLatencyMicros, bufferBytes);
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(buffer, total, len - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+}